@@ -0,0 +1,50 @@
+package net.haesleinhuepf.clijx.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the JMH command line options, but writes the results as JSON
+ * to clij2fft-benchmarks.json unless -rf or -rff are given.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar                          all benchmarks, default device
+ * java -jar target/benchmarks.jar FFTBenchmark -p device=pthread   PoCL CPU device
+ * java -jar target/benchmarks.jar -p backend=java          pure java backend
+ * java -jar target/benchmarks.jar -p size=128x128x64,129x129x65
+ * </pre>
+ *
+ * @author Brian Northan
+ */
+public class BenchmarkMain {
+
+	public static final String DEFAULT_RESULT_FILE = "clij2fft-benchmarks.json";
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions options = new CommandLineOptions(args);
+
+		if (options.shouldHelp()) {
+			options.showHelp();
+			return;
+		}
+
+		if (options.shouldList()) {
+			new Runner(options).list();
+			return;
+		}
+
+		ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+
+		if (!options.getResultFormat().hasValue()) {
+			builder.resultFormat(ResultFormatType.JSON);
+		}
+		if (!options.getResult().hasValue()) {
+			builder.result(DEFAULT_RESULT_FILE);
+		}
+
+		new Runner(builder.build()).run();
+	}
+}
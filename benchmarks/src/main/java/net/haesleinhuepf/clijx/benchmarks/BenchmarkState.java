@@ -0,0 +1,80 @@
+package net.haesleinhuepf.clijx.benchmarks;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.plugins.FFTBackends;
+import net.haesleinhuepf.clijx.plugins.OTFCache;
+import net.haesleinhuepf.clijx.tests.SyntheticImages;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Device, backend and synthetic data shared by the benchmarks.
+ *
+ * The OpenCL device is chosen with the parameter device (part of the device name, for
+ * example "pthread" for a PoCL CPU device, empty for the default device) and the FFT
+ * backend with backend ("clfft" or "java", see FFTBackends).  size is the image size as
+ * "width x height x depth", the default sweep contains sizes clFFT can transform directly
+ * and sizes with large prime factors that have to be extended.
+ *
+ * @author Brian Northan
+ */
+@State(Scope.Benchmark)
+public abstract class BenchmarkState {
+
+	@Param({ "" })
+	public String device;
+
+	@Param({ "clfft" })
+	public String backend;
+
+	@Param({ "64x64x32", "100x100x50", "127x127x61", "128x128x64", "131x131x67",
+		"256x256x64" })
+	public String size;
+
+	protected CLIJ2 clij2;
+
+	/**
+	 * Select device and backend, call from the @Setup of the benchmark
+	 */
+	protected void setUpDevice() {
+		FFTBackends.setBackend(backend);
+		clij2 = device.isEmpty() ? CLIJ2.getInstance() : CLIJ2.getInstance(device);
+	}
+
+	/**
+	 * Release the cached OTFs and all buffers, call from the @TearDown of the benchmark
+	 */
+	protected void tearDownDevice() {
+		OTFCache.clear();
+		clij2.clear();
+	}
+
+	/**
+	 * @return size parsed from "width x height x depth"
+	 */
+	protected long[] getDimensions() {
+		String[] parts = size.split("x");
+		long[] dimensions = new long[parts.length];
+		for (int d = 0; d < parts.length; d++) {
+			dimensions[d] = Long.parseLong(parts[d].trim());
+		}
+		return dimensions;
+	}
+
+	/**
+	 * @return float image with uniform random values in [0, 100), always the same for a size
+	 */
+	protected ClearCLBuffer pushRandom(long[] dimensions) {
+		return clij2.push(SyntheticImages.randomVolume(dimensions));
+	}
+
+	/**
+	 * @return normalized 3D gaussian PSF of size width x width x depth
+	 */
+	protected ClearCLBuffer pushGaussianPSF(int width, int depth) {
+		return clij2.push(SyntheticImages.gaussianPSF(width, depth, 4.0, 16.0, true));
+	}
+}
@@ -0,0 +1,61 @@
+package net.haesleinhuepf.clijx.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clijx.plugins.ConvolveFFT;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ConvolveFFT.convolveFFT of a synthetic image with a gaussian PSF, including extension,
+ * cropping and the temporary buffers.  The OTF is cached (see OTFCache) after the first
+ * call, so this measures the steady state of repeated convolutions.
+ *
+ * @author Brian Northan
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConvolutionBenchmark extends BenchmarkState {
+
+	@Param({ "15" })
+	public int psfSize;
+
+	private ClearCLBuffer image;
+	private ClearCLBuffer psf;
+	private ClearCLBuffer convolved;
+
+	@Setup
+	public void setUp() {
+		setUpDevice();
+
+		long[] dimensions = getDimensions();
+
+		image = pushRandom(dimensions);
+		psf = pushGaussianPSF(psfSize, psfSize);
+		convolved = clij2.create(dimensions, NativeTypeEnum.Float);
+	}
+
+	@TearDown
+	public void tearDown() {
+		tearDownDevice();
+	}
+
+	@Benchmark
+	public boolean convolve() {
+		return ConvolveFFT.convolveFFT(clij2, image, psf, convolved);
+	}
+}
@@ -0,0 +1,64 @@
+package net.haesleinhuepf.clijx.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clijx.plugins.FFTSizeSelector;
+import net.haesleinhuepf.clijx.plugins.ForwardFFT;
+import net.haesleinhuepf.clijx.plugins.InverseFFT;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Forward and inverse FFT (ForwardFFT.runFFT, InverseFFT.runInverseFFT) into preallocated
+ * buffers.  Sizes clFFT can not transform directly are extended to the size
+ * FFTSizeSelector.select picks, as the plugins do.
+ *
+ * @author Brian Northan
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FFTBenchmark extends BenchmarkState {
+
+	private ClearCLBuffer image;
+	private ClearCLBuffer fft;
+	private ClearCLBuffer inverse;
+
+	@Setup
+	public void setUp() {
+		setUpDevice();
+
+		long[] dimensions = FFTSizeSelector.select(clij2, getDimensions());
+
+		image = pushRandom(dimensions);
+		fft = ForwardFFT.runFFT(clij2, image);
+		inverse = clij2.create(dimensions, NativeTypeEnum.Float);
+	}
+
+	@TearDown
+	public void tearDown() {
+		tearDownDevice();
+	}
+
+	@Benchmark
+	public void forward() {
+		ForwardFFT.runFFT(clij2, image, fft);
+	}
+
+	@Benchmark
+	public void inverse() {
+		InverseFFT.runInverseFFT(clij2, fft, inverse);
+	}
+}
@@ -0,0 +1,71 @@
+package net.haesleinhuepf.clijx.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clijx.plugins.OpenCLFFTUtility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extension of the image (padFFTInputMirror and padFFTInputZeros, including the allocation
+ * of the extended image) and of the PSF (padShiftFFTKernel into a preallocated buffer).
+ *
+ * @author Brian Northan
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PaddingBenchmark extends BenchmarkState {
+
+	@Param({ "15" })
+	public int psfSize;
+
+	private ClearCLBuffer image;
+	private ClearCLBuffer psf;
+	private ClearCLBuffer psfExtended;
+
+	@Setup
+	public void setUp() {
+		setUpDevice();
+
+		long[] dimensions = getDimensions();
+
+		image = pushRandom(dimensions);
+		psf = pushGaussianPSF(psfSize, psfSize);
+		psfExtended = clij2.create(OpenCLFFTUtility.getExtendedSize(dimensions, psf
+			.getDimensions()), NativeTypeEnum.Float);
+	}
+
+	@TearDown
+	public void tearDown() {
+		tearDownDevice();
+	}
+
+	@Benchmark
+	public void padMirror() {
+		OpenCLFFTUtility.padFFTInputMirror(clij2, image, psf).close();
+	}
+
+	@Benchmark
+	public void padZeros() {
+		OpenCLFFTUtility.padFFTInputZeros(clij2, image, psf).close();
+	}
+
+	@Benchmark
+	public void padShiftKernel() {
+		OpenCLFFTUtility.padShiftFFTKernel(clij2, psf, psfExtended);
+	}
+}
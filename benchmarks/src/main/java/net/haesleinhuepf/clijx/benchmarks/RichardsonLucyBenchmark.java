@@ -0,0 +1,73 @@
+package net.haesleinhuepf.clijx.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clijx.plugins.BoundaryMode;
+import net.haesleinhuepf.clijx.plugins.DeconvolutionSession;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of one Richardson Lucy iteration.  The DeconvolutionSession (OTF, buffers, kernels,
+ * plans) is created and prepared in the setup, the benchmark only runs iterations, so the
+ * score is the time per iteration.
+ *
+ * @author Brian Northan
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RichardsonLucyBenchmark extends BenchmarkState {
+
+	private static final int ITERATIONS = 10;
+
+	@Param({ "15" })
+	public int psfSize;
+
+	@Param({ "0.0", "0.002" })
+	public float regularizationFactor;
+
+	@Param({ "CIRCULANT", "NON_CIRCULANT" })
+	public BoundaryMode boundaryMode;
+
+	private DeconvolutionSession session;
+
+	@Setup
+	public void setUp() {
+		setUpDevice();
+
+		long[] dimensions = getDimensions();
+
+		ClearCLBuffer image = pushRandom(dimensions);
+		ClearCLBuffer psf = pushGaussianPSF(psfSize, psfSize);
+
+		session = new DeconvolutionSession(clij2, dimensions, psf, regularizationFactor,
+			boundaryMode, 1, null);
+		session.prepare(0, image);
+	}
+
+	@TearDown
+	public void tearDown() {
+		session.close();
+		tearDownDevice();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ITERATIONS)
+	public int iteration() {
+		return session.iterate(0, ITERATIONS);
+	}
+}
@@ -2,10 +2,13 @@
 
 #ifdef _WIN64
 #include <direct.h>
+#include <process.h>
 #define GetCurrentDir _getcwd
+#define CurrentProcessId _getpid
 #else
 #include <unistd.h>
 #define GetCurrentDir getcwd
+#define CurrentProcessId getpid
 #endif
 
 // #include "CL/cl.h"
@@ -19,6 +22,12 @@
 #include <math.h>
 #include "clij2fft.h"
 #include <iostream>
+#include <vector>
+#include <mutex>
+#include <thread>
+#include <functional>
+#include <string>
+#include <stdarg.h>
 
 #include "kernels/cle_totalvariationterm.h";
 
@@ -126,12 +135,484 @@ const char * programString =                                       "\n" \
 "        a[id] = 1.0;        \n" \
 "       }                           \n" \
 "    }                           \n" \
+"}                                                               \n" \
+"__kernel void partialSums(  __global float *a,                  \n" \
+"                       __global float *b,                       \n" \
+"                       __global float *sums,                    \n" \
+"                       const unsigned int n,                    \n" \
+"                       const int measure,                       \n" \
+"                       __local float *localNum,                 \n" \
+"                       __local float *localDen)                 \n" \
+"{                                                               \n" \
+"    int id = get_global_id(0);                                  \n" \
+"    int lid = get_local_id(0);                                  \n" \
+"    float num = 0;                                              \n" \
+"    float den = 0;                                              \n" \
+"                                                                \n" \
+"    // each work item sums a strided part of the image           \n" \
+"    for (int i = id; i < n; i += get_global_size(0)) {          \n" \
+"        float x = a[i];                                         \n" \
+"        float y = b[i];                                         \n" \
+"        if (measure == 2) {                                     \n" \
+"            // I-divergence, a is observed and b reblurred       \n" \
+"            num += (x > 0 && y > 0) ? x*log(x/y) - x + y : y;   \n" \
+"            den += x;                                           \n" \
+"        }                                                       \n" \
+"        else if (measure == 4) {                                \n" \
+"            // dot products for the acceleration factor         \n" \
+"            num += x*y;                                         \n" \
+"            den += y*y;                                         \n" \
+"        }                                                       \n" \
+"        else {                                                  \n" \
+"            // squared difference, normalized by b (change) or a (residual) \n" \
+"            num += (x - y)*(x - y);                             \n" \
+"            den += measure == 1 ? y*y : x*x;                    \n" \
+"        }                                                       \n" \
+"    }                                                           \n" \
+"                                                                \n" \
+"    // sum the work group in local memory                       \n" \
+"    localNum[lid] = num;                                        \n" \
+"    localDen[lid] = den;                                        \n" \
+"    barrier(CLK_LOCAL_MEM_FENCE);                               \n" \
+"    for (int s = get_local_size(0)/2; s > 0; s >>= 1) {         \n" \
+"        if (lid < s) {                                          \n" \
+"            localNum[lid] += localNum[lid + s];                 \n" \
+"            localDen[lid] += localDen[lid + s];                 \n" \
+"        }                                                       \n" \
+"        barrier(CLK_LOCAL_MEM_FENCE);                           \n" \
+"    }                                                           \n" \
+"    if (lid == 0) {                                             \n" \
+"        sums[2*get_group_id(0)] = localNum[0];                  \n" \
+"        sums[2*get_group_id(0) + 1] = localDen[0];              \n" \
+"    }                                                           \n" \
+"}                                                               \n" \
+"__kernel void vecSub(  __global float *a,                       \n" \
+"                       __global float *b,                       \n" \
+"                       __global float *c,                       \n" \
+"                       const unsigned int n)                    \n" \
+"{                                                               \n" \
+"    int id = get_global_id(0);                                  \n" \
+"    if (id < n)  {                                              \n" \
+"        c[id] = a[id]-b[id];                                    \n" \
+"    }                                                           \n" \
+"}                                                               \n" \
+"__kernel void accelerationFactor(  __global float *sums,        \n" \
+"                       __global float *alpha,                   \n" \
+"                       const unsigned int groups)               \n" \
+"{                                                               \n" \
+"    // a single work item adds up the partial sums               \n" \
+"    if (get_global_id(0) == 0) {                                \n" \
+"        float num = 0;                                          \n" \
+"        float den = 0;                                          \n" \
+"        for (int i = 0; i < groups; i++) {                      \n" \
+"            num += sums[2*i];                                   \n" \
+"            den += sums[2*i + 1];                               \n" \
+"        }                                                       \n" \
+"        // safeguard, the step has to be in [0, 1]              \n" \
+"        float a = den > 0 ? num/den : 0;                        \n" \
+"        alpha[0] = clamp(a, 0.0f, 1.0f);                        \n" \
+"    }                                                           \n" \
+"}                                                               \n" \
+"__kernel void biggsAndrewsPredict(  __global float *x,          \n" \
+"                       __global float *xPrevious,               \n" \
+"                       __global float *alpha,                   \n" \
+"                       const unsigned int n)                    \n" \
+"{                                                               \n" \
+"    int id = get_global_id(0);                                  \n" \
+"    if (id < n)  {                                              \n" \
+"        float xi = x[id];                                       \n" \
+"        float y = xi + alpha[0]*(xi - xPrevious[id]);           \n" \
+"        xPrevious[id] = xi;                                     \n" \
+"        // keep the prediction positive                         \n" \
+"        x[id] = y > 0 ? y : xi;                                 \n" \
+"    }                                                           \n" \
+"}                                                               \n" \
+"__kernel void complexMultiplyOTF(  __global float *a,           \n" \
+"                       __global float *otf,                     \n" \
+"                       __global float *c,                       \n" \
+"                       const unsigned int n,                    \n" \
+"                       const int conjugate)                     \n" \
+"{                                                               \n" \
+"    // multiply by the OTF or its conjugate (correlation)       \n" \
+"    int id = get_global_id(0);                                  \n" \
+"    if (id < n)  {                                              \n" \
+"        float ar = a[2*id];                                     \n" \
+"        float ai = a[2*id+1];                                   \n" \
+"        float br = otf[2*id];                                   \n" \
+"        float bi = conjugate ? -otf[2*id+1] : otf[2*id+1];      \n" \
+"        c[2*id] = ar*br - ai*bi;                                \n" \
+"        c[2*id+1] = ar*bi + ai*br;                              \n" \
+"    }                                                           \n" \
+"}                                                               \n" \
+"__kernel void updateEstimate(  __global float *estimate,        \n" \
+"                       __global float *update,                  \n" \
+"                       __global float *normal,                  \n" \
+"                       const unsigned int n,                    \n" \
+"                       const int useNormal)                     \n" \
+"{                                                               \n" \
+"    // multiply by the update factor and divide by the normal    \n" \
+"    int id = get_global_id(0);                                  \n" \
+"    if (id < n)  {                                              \n" \
+"        float value = estimate[id]*update[id];                  \n" \
+"        if (useNormal) {                                        \n" \
+"            value = value/normal[id];                           \n" \
+"        }                                                       \n" \
+"        estimate[id] = value;                                   \n" \
+"    }                                                           \n" \
 "}                                                               \n" \
  "\n" ;
 
 
 
 
+/**
+ * Logging.  Messages go to stdout if their level is at or below the log level set with 
+ * set_log_level.  By default only errors are printed, the hot loops use LOG_DEBUG. 
+ * */
+#define LOG_OFF 0
+#define LOG_ERROR 1
+#define LOG_INFO 2
+#define LOG_DEBUG 3
+
+static int logLevel = LOG_ERROR;
+
+void logPrint(int level, const char * format, ...) {
+  if (level > logLevel) {
+    return;
+  }
+
+  va_list args;
+  va_start(args, format);
+  vfprintf(stdout, format, args);
+  va_end(args);
+
+  fflush(stdout);
+}
+
+/**
+ * Set the log level (0 off, 1 errors, 2 info, 3 debug), returns the previous level
+ * */
+int set_log_level(int level) {
+  int previous = logLevel;
+  logLevel = level;
+  return previous;
+}
+
+/**
+ * Number of Richardson Lucy iterations after which the session waits for the queue. 
+ * 0 (default) enqueues all iterations and only waits at the end. 
+ * */
+static int checkpointInterval = 0;
+
+/**
+ * Set the checkpoint interval, returns the previous interval
+ * */
+int set_checkpoint_interval(int interval) {
+  int previous = checkpointInterval;
+  checkpointInterval = interval < 0 ? 0 : interval;
+  return previous;
+}
+
+/**
+ * If not 0 (default) Richardson Lucy uses the fused kernels (multiply by the OTF with the 
+ * conjugate on the fly, and one pass for the update with total variation and normalization). 
+ * 0 runs the separate kernels, for validation. 
+ * */
+static int fusedKernels = 1;
+
+/**
+ * Turn the fused kernels on or off, returns the previous setting
+ * */
+int set_fused_kernels(int fused) {
+  int previous = fusedKernels;
+  fusedKernels = fused;
+  return previous;
+}
+
+/**
+ * Profiling.  When profiling is on (see set_profiling) the FFT functions and Richardson Lucy 
+ * sessions run on a queue created with CL_QUEUE_PROFILING_ENABLE, and every stage (an FFT, 
+ * a kernel, a copy) is bracketed by two markers.  profiling_collect waits for the markers 
+ * and turns each pair into a record (stage, start and end in device nanoseconds), which is 
+ * read with the profiling_record_* functions.  The markers remember the thread that enqueued 
+ * them, profiling_collect_thread only collects the markers of the calling thread into records 
+ * of that thread (read with the profiling_thread_record_* functions), so concurrent calls do 
+ * not take each others records.  The stage ids are listed in Profiler.java. 
+ * */
+#define PROFILE_FFT_FORWARD 0
+#define PROFILE_FFT_INVERSE 1
+#define PROFILE_COMPLEX_MULTIPLY 2
+#define PROFILE_DIVIDE 3
+#define PROFILE_UPDATE 4
+#define PROFILE_TOTAL_VARIATION 5
+#define PROFILE_NORMALIZE 6
+#define PROFILE_REDUCE 7
+#define PROFILE_ACCELERATE 8
+#define PROFILE_COPY 9
+
+// records kept until profiling_clear, later stages are dropped
+#define MAX_PROFILE_RECORDS (1<<20)
+
+static int profilingEnabled = 0;
+
+struct ProfileMarkers {
+  int stage;
+  cl_event start;
+  cl_event end;
+  std::thread::id thread;
+};
+
+struct ProfileRecord {
+  int stage;
+  cl_ulong start;
+  cl_ulong end;
+};
+
+// profiling queues created for the queues passed in (which usually do not profile)
+struct ProfilingQueue {
+  cl_command_queue queue;
+  cl_context context;
+  cl_device_id deviceID;
+  cl_command_queue profilingQueue;
+};
+
+static std::mutex profileMutex;
+static std::vector<ProfileMarkers> profilePending;
+static std::vector<ProfileRecord> profileRecords;
+static std::vector<ProfilingQueue> profilingQueues;
+
+// records of the markers collected by profiling_collect_thread on this thread
+static thread_local std::vector<ProfileRecord> threadProfileRecords;
+
+/**
+ * Queue to run on.  queue itself if profiling is off or queue profiles, otherwise a profiling 
+ * queue for the same context and device (created the first time).  In that case queue is 
+ * finished first, so the work on the profiling queue sees its results. 
+ * */
+cl_command_queue profilingQueue(cl_command_queue queue) {
+
+  if (!profilingEnabled) {
+    return queue;
+  }
+
+  cl_command_queue_properties properties = 0;
+  cl_context context = NULL;
+  cl_device_id deviceID = NULL;
+
+  cl_int ret = clGetCommandQueueInfo(queue, CL_QUEUE_PROPERTIES, sizeof(properties), &properties, NULL);
+  if (ret==CL_SUCCESS) ret = clGetCommandQueueInfo(queue, CL_QUEUE_CONTEXT, sizeof(context), &context, NULL);
+  if (ret==CL_SUCCESS) ret = clGetCommandQueueInfo(queue, CL_QUEUE_DEVICE, sizeof(deviceID), &deviceID, NULL);
+
+  if (ret!=CL_SUCCESS || (properties & CL_QUEUE_PROFILING_ENABLE)) {
+    return queue;
+  }
+
+  std::lock_guard<std::mutex> lock(profileMutex);
+
+  clFinish(queue);
+
+  for (size_t i=0;i<profilingQueues.size();i++) {
+    ProfilingQueue &entry = profilingQueues[i];
+    if (entry.queue==queue && entry.context==context && entry.deviceID==deviceID) {
+      return entry.profilingQueue;
+    }
+  }
+
+  cl_command_queue created = clCreateCommandQueue(context, deviceID, properties | CL_QUEUE_PROFILING_ENABLE, &ret);
+
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "create profiling queue failed %d\n", ret);
+    return queue;
+  }
+
+  ProfilingQueue entry = {queue, context, deviceID, created};
+  profilingQueues.push_back(entry);
+
+  return created;
+}
+
+/**
+ * Enqueue the marker that starts a stage, NULL if profiling is off 
+ * */
+cl_event profileBegin(cl_command_queue queue) {
+
+  if (!profilingEnabled) {
+    return NULL;
+  }
+
+  cl_event start = NULL;
+
+  if (clEnqueueMarker(queue, &start)!=CL_SUCCESS) {
+    return NULL;
+  }
+
+  return start;
+}
+
+/**
+ * Enqueue the marker that ends a stage started with profileBegin 
+ * */
+void profileEnd(cl_command_queue queue, int stage, cl_event start) {
+
+  if (start==NULL) {
+    return;
+  }
+
+  cl_event end = NULL;
+
+  if (clEnqueueMarker(queue, &end)!=CL_SUCCESS) {
+    clReleaseEvent(start);
+    return;
+  }
+
+  std::lock_guard<std::mutex> lock(profileMutex);
+
+  ProfileMarkers markers = {stage, start, end, std::this_thread::get_id()};
+  profilePending.push_back(markers);
+}
+
+/**
+ * Turn profiling on (1) or off (0), returns the previous setting.  Turning it off releases the 
+ * profiling queues that are not used by a session. 
+ * */
+int set_profiling(int enabled) {
+
+  int previous = profilingEnabled;
+  profilingEnabled = enabled;
+
+  if (!enabled) {
+    std::lock_guard<std::mutex> lock(profileMutex);
+
+    for (size_t i=0;i<profilingQueues.size();i++) {
+      clReleaseCommandQueue(profilingQueues[i].profilingQueue);
+    }
+    profilingQueues.clear();
+  }
+
+  return previous;
+}
+
+/**
+ * Wait for a pair of markers and append their record to records (unless it is full), the 
+ * markers are released 
+ * */
+static void collectMarkers(ProfileMarkers &markers, std::vector<ProfileRecord> &records) {
+
+  cl_ulong start = 0, end = 0;
+
+  // the end of a marker is when all commands enqueued before it are finished 
+  cl_int ret = clWaitForEvents(1, &markers.end);
+  if (ret==CL_SUCCESS) ret = clGetEventProfilingInfo(markers.start, CL_PROFILING_COMMAND_END, sizeof(start), &start, NULL);
+  if (ret==CL_SUCCESS) ret = clGetEventProfilingInfo(markers.end, CL_PROFILING_COMMAND_END, sizeof(end), &end, NULL);
+
+  if (ret==CL_SUCCESS && records.size()<MAX_PROFILE_RECORDS) {
+    ProfileRecord record = {markers.stage, start, end};
+    records.push_back(record);
+  }
+  else if (ret!=CL_SUCCESS) {
+    logPrint(LOG_DEBUG, "profiling info not available %d\n", ret);
+  }
+
+  clReleaseEvent(markers.start);
+  clReleaseEvent(markers.end);
+}
+
+/**
+ * Wait for the pending markers of all threads and turn them into records, returns the number 
+ * of records 
+ * */
+int profiling_collect() {
+
+  std::lock_guard<std::mutex> lock(profileMutex);
+
+  for (size_t i=0;i<profilePending.size();i++) {
+    collectMarkers(profilePending[i], profileRecords);
+  }
+
+  profilePending.clear();
+
+  return (int)profileRecords.size();
+}
+
+/**
+ * Wait for the pending markers of the calling thread and turn them into the records of the 
+ * thread, replacing the records of the last call.  Returns the number of records. 
+ * */
+int profiling_collect_thread() {
+
+  std::vector<ProfileMarkers> markers;
+  std::thread::id thread = std::this_thread::get_id();
+
+  {
+    std::lock_guard<std::mutex> lock(profileMutex);
+
+    std::vector<ProfileMarkers> others;
+    for (size_t i=0;i<profilePending.size();i++) {
+      if (profilePending[i].thread==thread) {
+        markers.push_back(profilePending[i]);
+      }
+      else {
+        others.push_back(profilePending[i]);
+      }
+    }
+    profilePending.swap(others);
+  }
+
+  // waiting does not block the other threads 
+  threadProfileRecords.clear();
+  for (size_t i=0;i<markers.size();i++) {
+    collectMarkers(markers[i], threadProfileRecords);
+  }
+
+  return (int)threadProfileRecords.size();
+}
+
+int profiling_thread_record_stage(int index) {
+  return index>=0 && index<(int)threadProfileRecords.size() ? threadProfileRecords[index].stage : -1;
+}
+
+long long profiling_thread_record_start(int index) {
+  return index>=0 && index<(int)threadProfileRecords.size() ? (long long)threadProfileRecords[index].start : 0;
+}
+
+long long profiling_thread_record_end(int index) {
+  return index>=0 && index<(int)threadProfileRecords.size() ? (long long)threadProfileRecords[index].end : 0;
+}
+
+int profiling_record_count() {
+  std::lock_guard<std::mutex> lock(profileMutex);
+  return (int)profileRecords.size();
+}
+
+int profiling_record_stage(int index) {
+  std::lock_guard<std::mutex> lock(profileMutex);
+  return index>=0 && index<(int)profileRecords.size() ? profileRecords[index].stage : -1;
+}
+
+long long profiling_record_start(int index) {
+  std::lock_guard<std::mutex> lock(profileMutex);
+  return index>=0 && index<(int)profileRecords.size() ? (long long)profileRecords[index].start : 0;
+}
+
+long long profiling_record_end(int index) {
+  std::lock_guard<std::mutex> lock(profileMutex);
+  return index>=0 && index<(int)profileRecords.size() ? (long long)profileRecords[index].end : 0;
+}
+
+/**
+ * Drop all records (pending markers of all threads are collected first), and the records of 
+ * the calling thread 
+ * */
+int profiling_clear() {
+  profiling_collect();
+
+  std::lock_guard<std::mutex> lock(profileMutex);
+  profileRecords.clear();
+  threadProfileRecords.clear();
+
+  return CL_SUCCESS;
+}
+
 /**
  * Get fileSize.  Ussually called before reading a kernel from a .cl file
  * 
@@ -144,7 +625,7 @@ size_t getFileSize(const char * fileName) {
 
     fp = fopen(fileName, "r");
     if (!fp) {
-        printf("Failed to load kernel\n");
+        logPrint(LOG_ERROR, "Failed to load kernel\n");
         return -1;
     }
 
@@ -161,13 +642,13 @@ size_t getFileSize(const char * fileName) {
  * getFileSize first 
  * */
 int getProgramFromFile(const char* fileName, char * program_str, size_t program_size) {
-  printf("get program from file %s\n",fileName);
+  logPrint(LOG_INFO, "get program from file %s\n",fileName);
 
   FILE *fp;
 
   fp = fopen(fileName, "r");
   if (!fp) {
-      printf("Failed to load kernel\n");
+      logPrint(LOG_ERROR, "Failed to load kernel\n");
       return -1;
   }
 
@@ -183,7 +664,7 @@ int getProgramFromFile(const char* fileName, char * program_str, size_t program_
  * Compile a cl_program from source_str
  * */
 cl_program makeProgram(cl_context context, cl_device_id deviceID, char * source_str) {
-  printf("make program\n");
+  logPrint(LOG_INFO, "make program\n");
 
   int ret;
 
@@ -191,24 +672,26 @@ cl_program makeProgram(cl_context context, cl_device_id deviceID, char * source_
 	//cl_program program = clCreateProgramWithSource(context, 1, (const char **)source_str, NULL, &ret);	
 	cl_program program = clCreateProgramWithSource(context, 1, (const char **)&source_str, NULL, &ret);	
 
-  std::cout<<"Create program "<<ret<<"\n";
+  logPrint(LOG_INFO, "Create program %d\n", ret);
 
 	ret = clBuildProgram(program, 1, &deviceID, NULL, NULL, NULL);
 
-  printf("\nbuild program %d\n", ret);
+  logPrint(LOG_INFO, "\nbuild program %d\n", ret);
+
+  int buildRet = ret;
 
   size_t size;
 	// get size of build log
   ret = clGetProgramBuildInfo(program, deviceID, CL_PROGRAM_BUILD_LOG ,0,NULL,&size);
     
-  std::cout<<"Get program build info "<<ret<<" size "<<size<<"\n";
+  logPrint(LOG_INFO, "Get program build info %d size %lu\n", ret, (unsigned long)size);
   
   // allocate and get build log
   char *buildlog=(char*)malloc(size);
   clGetProgramBuildInfo(program, deviceID, CL_PROGRAM_BUILD_LOG ,size,buildlog,NULL);
 
   // print build log   
-  printf("\n\nBuildlog:   %s\n\n",buildlog);
+  logPrint(buildRet==CL_SUCCESS ? LOG_INFO : LOG_ERROR, "\n\nBuildlog:   %s\n\n",buildlog);
   
   free(buildlog);
 
@@ -223,26 +706,24 @@ cl_int callInPlaceKernel(cl_kernel kernel, cl_mem in1, const unsigned int n, cl_
 	cl_int ret = clSetKernelArg(kernel, 0, sizeof(cl_mem), (void *)&in1);
 
   if (ret!=0) {	
-    printf("\nset variable 1 %d\n", ret);
+    logPrint(LOG_ERROR, "\nset variable 1 %d\n", ret);
     return ret;
   }
 
   ret = clSetKernelArg(kernel, 1, sizeof(unsigned int), &n);	
   
   if (ret!=0) {	
-    printf("\nset variable 4 %d\n", ret);
+    logPrint(LOG_ERROR, "\nset variable 4 %d\n", ret);
     return ret;
   }
  
   ret = clEnqueueNDRangeKernel(commandQueue, kernel, 1, NULL, &globalItemSize, &localItemSize, 0, NULL, NULL);	
   
   if (ret!=0) {	
-    printf("\nEnqueue Kernel %d\n", ret);
+    logPrint(LOG_ERROR, "\nEnqueue Kernel %d\n", ret);
     return ret;
   }
 
-  ret = clFinish(commandQueue);
-
   return ret;
 }
 
@@ -254,39 +735,37 @@ cl_int callKernel(cl_kernel kernel, cl_mem in1, cl_mem in2, cl_mem out, const un
 	cl_int ret = clSetKernelArg(kernel, 0, sizeof(cl_mem), (void *)&in1);
 
   if (ret!=0) {	
-    printf("\nset variable 1 %d\n", ret);
+    logPrint(LOG_ERROR, "\nset variable 1 %d\n", ret);
     return ret;
   }
 
 	ret = clSetKernelArg(kernel, 1, sizeof(cl_mem), (void *)&in2);	
    
   if (ret!=0) {	
-    printf("\nset variable 2 %d\n", ret);
+    logPrint(LOG_ERROR, "\nset variable 2 %d\n", ret);
     return ret;
   }
 
 	ret = clSetKernelArg(kernel, 2, sizeof(cl_mem), (void *)&out);	
   if (ret!=0) {	
-    printf("\nset variable 3 %d\n", ret);
+    logPrint(LOG_ERROR, "\nset variable 3 %d\n", ret);
     return ret;
   }
 
   ret = clSetKernelArg(kernel, 3, sizeof(unsigned int), &n);	
   
   if (ret!=0) {	
-    printf("\nset variable 4 %d\n", ret);
+    logPrint(LOG_ERROR, "\nset variable 4 %d\n", ret);
     return ret;
   }
  
   ret = clEnqueueNDRangeKernel(commandQueue, kernel, 1, NULL, &globalItemSize, &localItemSize, 0, NULL, NULL);	
   
   if (ret!=0) {	
-    printf("\nEnqueue Kernel %d\n", ret);
+    logPrint(LOG_ERROR, "\nEnqueue Kernel %d\n", ret);
     return ret;
   }
 
-  ret = clFinish(commandQueue);
-
   return ret;
 }
 
@@ -300,68 +779,68 @@ cl_int callVariationKernel(cl_kernel kernel, cl_mem in, cl_mem correction, cl_me
 	cl_int ret = clSetKernelArg(kernel, 0, sizeof(cl_mem), (void *)&in);
 
   if (ret!=0) {	
-    printf("\nset variable 0 %d\n", ret);
+    logPrint(LOG_ERROR, "\nset variable 0 %d\n", ret);
     return ret;
   }
 
 	ret = clSetKernelArg(kernel, 1, sizeof(cl_mem), (void *)&correction);	
   if (ret!=0) {	
-    printf("\nset variable 1 %d\n", ret);
+    logPrint(LOG_ERROR, "\nset variable 1 %d\n", ret);
     return ret;
   }
 
 	ret = clSetKernelArg(kernel, 2, sizeof(cl_mem), (void *)&out);	
   if (ret!=0) {	
-    printf("\nset variable 2 %d\n", ret);
+    logPrint(LOG_ERROR, "\nset variable 2 %d\n", ret);
     return ret;
   }
 
   ret = clSetKernelArg(kernel, 3, sizeof(unsigned int), &Nx);	
   
   if (ret!=0) {	
-    printf("\nset variable 3 %d\n", ret);
+    logPrint(LOG_ERROR, "\nset variable 3 %d\n", ret);
     return ret;
   }
   
   ret = clSetKernelArg(kernel, 4, sizeof(unsigned int), &Ny);	
   
   if (ret!=0) {	
-    printf("\nset variable 4 %d\n", ret);
+    logPrint(LOG_ERROR, "\nset variable 4 %d\n", ret);
     return ret;
   }
   
   ret = clSetKernelArg(kernel, 5, sizeof(unsigned int), &Nz);	
   
   if (ret!=0) {	
-    printf("\nset variable 5 %d\n", ret);
+    logPrint(LOG_ERROR, "\nset variable 5 %d\n", ret);
     return ret;
   }
 
   ret = clSetKernelArg(kernel, 6, sizeof(float), &hx);	
   
   if (ret!=0) {	
-    printf("\nset variable 6 %d\n", ret);
+    logPrint(LOG_ERROR, "\nset variable 6 %d\n", ret);
     return ret;
   }
  
   ret = clSetKernelArg(kernel, 7, sizeof(float), &hy);	
   
   if (ret!=0) {	
-    printf("\nset variable 7 %d\n", ret);
+    logPrint(LOG_ERROR, "\nset variable 7 %d\n", ret);
     return ret;
   }
  
   ret = clSetKernelArg(kernel, 8, sizeof(float), &hz);	
   
   if (ret!=0) {	
-    printf("\nset variable 8 %d\n", ret);
+    logPrint(LOG_ERROR, "\nset variable 8 %d\n", ret);
     return ret;
   }
  
   ret = clSetKernelArg(kernel, 9, sizeof(float), &regularizationFactor);	
   
   if (ret!=0) {	
-    printf("\nset variable 8 %d\n", ret);
+    logPrint(LOG_ERROR, "\nset variable 8 %d\n", ret);
     return ret;
   }
  
@@ -379,14 +858,7 @@ cl_int callVariationKernel(cl_kernel kernel, cl_mem in, cl_mem correction, cl_me
   ret = clEnqueueNDRangeKernel(commandQueue, kernel, 3, NULL, global, NULL, 0, NULL, NULL);	
   
   if (ret!=0) {	
-    printf("\nEnqueue Kernel %d\n", ret);
-    return ret;
-  }
-
-  ret = clFinish(commandQueue);
-
-  if (ret!=0) {	
-    printf("\nFinish %d\n", ret);
+    logPrint(LOG_ERROR, "\nEnqueue Kernel %d\n", ret);
     return ret;
   }
 
@@ -397,19 +869,42 @@ cl_int callVariationKernel(cl_kernel kernel, cl_mem in, cl_mem correction, cl_me
 } 
 
 
+// clFFT only needs to be set up once per process.  Plans are kept in the plan cache 
+// (see below) so we no longer tear down the library after each transform
+static bool fftIsSetup = false;
+static std::mutex fftSetupMutex;
+
 cl_int setupFFT() {
+  std::lock_guard<std::mutex> lock(fftSetupMutex);
+
+  if (fftIsSetup) {
+    return CLFFT_SUCCESS;
+  }
+
    // Setup clFFT
   clfftSetupData fftSetup;
   cl_int ret = clfftInitSetupData(&fftSetup);
-  printf("clfft init %d\n", ret);
+  logPrint(LOG_INFO, "clfft init %d\n", ret);
   ret = clfftSetup(&fftSetup);
 
+  if (ret == CLFFT_SUCCESS) {
+    fftIsSetup = true;
+  }
+
   return ret;
 }
 
-clfftPlanHandle bake_2d_forward_32f(long N0, long N1, cl_context context, cl_command_queue commandQueue) {
+/**
+ * ret if it is an error, next otherwise.  Keeps the first error of a sequence of enqueues, so 
+ * a failed FFT or kernel is not hidden by the calls that follow it. 
+ * */
+static inline cl_int firstError(cl_int ret, cl_int next) {
+  return ret!=CL_SUCCESS ? ret : next;
+}
+
+clfftPlanHandle bake_2d_forward_32f(long N0, long N1, cl_context context, cl_command_queue commandQueue, cl_int *err) {
 
-  cl_int ret;
+  cl_int ret = CL_SUCCESS;
   // FFT library related declarations 
   clfftPlanHandle planHandleForward;
   clfftDim dim = CLFFT_2D;
@@ -418,11 +913,12 @@ clfftPlanHandle bake_2d_forward_32f(long N0, long N1, cl_context context, cl_com
   // note each output row has N0/2+1 complex numbers 
   size_t outStride[3] = {1,(size_t)N0/2+1};
 
-  printf("clfft setup %d\n", ret);
+  logPrint(LOG_INFO, "clfft setup %d\n", ret);
   // Create a default plan for a complex FFT.
-  ret = clfftCreateDefaultPlan(&planHandleForward, context, dim, clLengths);
+  cl_int created = clfftCreateDefaultPlan(&planHandleForward, context, dim, clLengths);
+  ret = firstError(ret, created);
 
-  printf("Create Default Plan %d\n", ret);
+  logPrint(LOG_INFO, "Create Default Plan %d\n", ret);
 
   clfftPrecision precision = CLFFT_SINGLE;
   clfftLayout inLayout = CLFFT_REAL;
@@ -430,31 +926,39 @@ clfftPlanHandle bake_2d_forward_32f(long N0, long N1, cl_context context, cl_com
   clfftResultLocation resultLocation = CLFFT_OUTOFPLACE;
   
   // Set plan parameters. 
-  ret = clfftSetPlanPrecision(planHandleForward, precision);
-  printf("clfft precision %d\n", ret);
-  ret = clfftSetLayout(planHandleForward, inLayout, outLayout);
-  printf("clfft set layout real hermittian interveaved %d\n", ret);
-  ret = clfftSetResultLocation(planHandleForward, resultLocation);
-  printf("clfft set result location %d\n", ret);
-  ret=clfftSetPlanInStride(planHandleForward, dim, inStride);
-  printf("clfft set instride %d\n", ret);
-  ret=clfftSetPlanOutStride(planHandleForward, dim, outStride);
-  printf("clfft set out stride %d\n", ret);
+  ret = firstError(ret, clfftSetPlanPrecision(planHandleForward, precision));
+  logPrint(LOG_INFO, "clfft precision %d\n", ret);
+  ret = firstError(ret, clfftSetLayout(planHandleForward, inLayout, outLayout));
+  logPrint(LOG_INFO, "clfft set layout real hermittian interveaved %d\n", ret);
+  ret = firstError(ret, clfftSetResultLocation(planHandleForward, resultLocation));
+  logPrint(LOG_INFO, "clfft set result location %d\n", ret);
+  ret = firstError(ret, clfftSetPlanInStride(planHandleForward, dim, inStride));
+  logPrint(LOG_INFO, "clfft set instride %d\n", ret);
+  ret = firstError(ret, clfftSetPlanOutStride(planHandleForward, dim, outStride));
+  logPrint(LOG_INFO, "clfft set out stride %d\n", ret);
 
   // Bake the plan.
-  ret = clfftBakePlan(planHandleForward, 1, &commandQueue, NULL, NULL);
+  ret = firstError(ret, clfftBakePlan(planHandleForward, 1, &commandQueue, NULL, NULL));
 
-  printf("Bake %d\n", ret);
-  ret = clFinish(commandQueue);
-  printf("Finish Command Queue %d\n", ret);
+  logPrint(LOG_INFO, "Bake %d\n", ret);
+  ret = firstError(ret, clFinish(commandQueue));
+  logPrint(LOG_INFO, "Finish Command Queue %d\n", ret);
+
+  // a plan that did not bake is not used (or cached) 
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "baking the plan failed %d\n", ret);
+    if (created==CL_SUCCESS) clfftDestroyPlan(&planHandleForward);
+  }
+
+  *err = ret;
 
   return planHandleForward;
 
 }
 
-clfftPlanHandle bake_3d_forward_32f(long N0, long N1, long N2, cl_context context, cl_command_queue commandQueue) {
+clfftPlanHandle bake_3d_forward_32f(long N0, long N1, long N2, cl_context context, cl_command_queue commandQueue, cl_int *err) {
 
-  cl_int ret;
+  cl_int ret = CL_SUCCESS;
   // FFT library related declarations 
   clfftPlanHandle planHandleForward;
   clfftDim dim = CLFFT_3D;
@@ -463,11 +967,12 @@ clfftPlanHandle bake_3d_forward_32f(long N0, long N1, long N2, cl_context contex
   // note each output row has N0/2+1 complex numbers 
   size_t outStride[3] = {1, (size_t)N0/2+1, ((size_t)N0/2+1)*(size_t)N1};
 
-  printf("clfft setup %d\n", ret);
+  logPrint(LOG_INFO, "clfft setup %d\n", ret);
   // Create a default plan for a complex FFT.
-  ret = clfftCreateDefaultPlan(&planHandleForward, context, dim, clLengths);
+  cl_int created = clfftCreateDefaultPlan(&planHandleForward, context, dim, clLengths);
+  ret = firstError(ret, created);
 
-  printf("Create Default Plan %d\n", ret);
+  logPrint(LOG_INFO, "Create Default Plan %d\n", ret);
 
   clfftPrecision precision = CLFFT_SINGLE;
   clfftLayout inLayout = CLFFT_REAL;
@@ -475,30 +980,38 @@ clfftPlanHandle bake_3d_forward_32f(long N0, long N1, long N2, cl_context contex
   clfftResultLocation resultLocation = CLFFT_OUTOFPLACE;
   
   // Set plan parameters. 
-  ret = clfftSetPlanPrecision(planHandleForward, precision);
-  printf("clfft precision %d\n", ret);
-  ret = clfftSetLayout(planHandleForward, inLayout, outLayout);
-  printf("clfft set layout real hermittian interveaved %d\n", ret);
-  ret = clfftSetResultLocation(planHandleForward, resultLocation);
-  printf("clfft set result location %d\n", ret);
-  ret=clfftSetPlanInStride(planHandleForward, dim, inStride);
-  printf("clfft set instride %d\n", ret);
-  ret=clfftSetPlanOutStride(planHandleForward, dim, outStride);
-  printf("clfft set out stride %d\n", ret);
+  ret = firstError(ret, clfftSetPlanPrecision(planHandleForward, precision));
+  logPrint(LOG_INFO, "clfft precision %d\n", ret);
+  ret = firstError(ret, clfftSetLayout(planHandleForward, inLayout, outLayout));
+  logPrint(LOG_INFO, "clfft set layout real hermittian interveaved %d\n", ret);
+  ret = firstError(ret, clfftSetResultLocation(planHandleForward, resultLocation));
+  logPrint(LOG_INFO, "clfft set result location %d\n", ret);
+  ret = firstError(ret, clfftSetPlanInStride(planHandleForward, dim, inStride));
+  logPrint(LOG_INFO, "clfft set instride %d\n", ret);
+  ret = firstError(ret, clfftSetPlanOutStride(planHandleForward, dim, outStride));
+  logPrint(LOG_INFO, "clfft set out stride %d\n", ret);
 
   // Bake the plan.
-  ret = clfftBakePlan(planHandleForward, 1, &commandQueue, NULL, NULL);
+  ret = firstError(ret, clfftBakePlan(planHandleForward, 1, &commandQueue, NULL, NULL));
 
-  printf("Bake %d\n", ret);
-  ret = clFinish(commandQueue);
-  printf("Finish Command Queue %d\n", ret);
+  logPrint(LOG_INFO, "Bake %d\n", ret);
+  ret = firstError(ret, clFinish(commandQueue));
+  logPrint(LOG_INFO, "Finish Command Queue %d\n", ret);
+
+  // a plan that did not bake is not used (or cached) 
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "baking the plan failed %d\n", ret);
+    if (created==CL_SUCCESS) clfftDestroyPlan(&planHandleForward);
+  }
+
+  *err = ret;
 
   return planHandleForward;
 
 }
 
-clfftPlanHandle bake_2d_backward_32f(long N0, long N1, cl_context context, cl_command_queue commandQueue) {
-  cl_int ret;
+clfftPlanHandle bake_2d_backward_32f(long N0, long N1, cl_context context, cl_command_queue commandQueue, cl_int *err) {
+  cl_int ret = CL_SUCCESS;
 
   // FFT library realted declarations 
   clfftPlanHandle planHandleBackward;
@@ -509,44 +1022,50 @@ clfftPlanHandle bake_2d_backward_32f(long N0, long N1, cl_context context, cl_co
   size_t outStride[3] = {1,(size_t)N0};
 
   // Setup clFFT. 
-  clfftSetupData fftSetup;
-  ret = clfftInitSetupData(&fftSetup);
-  printf("clfft init %d\n", ret);
-  ret = clfftSetup(&fftSetup);
+  ret = firstError(ret, setupFFT());
 
-  printf("clfft setup %d\n", ret);
+  logPrint(LOG_INFO, "clfft setup %d\n", ret);
   
   // Create a default plan for a complex FFT. 
-  ret = clfftCreateDefaultPlan(&planHandleBackward, context, dim, clLengths);
+  cl_int created = clfftCreateDefaultPlan(&planHandleBackward, context, dim, clLengths);
+  ret = firstError(ret, created);
 
-  printf("Create Default Plan %d\n", ret);
+  logPrint(LOG_INFO, "Create Default Plan %d\n", ret);
   
   // Set plan parameters. 
-  ret = clfftSetPlanPrecision(planHandleBackward, CLFFT_SINGLE);
-  printf("clfft precision %d\n", ret);
-  ret = clfftSetLayout(planHandleBackward, CLFFT_HERMITIAN_INTERLEAVED, CLFFT_REAL);
-  printf("clfft set layout real hermittian interveaved %d\n", ret);
-  ret = clfftSetResultLocation(planHandleBackward, CLFFT_OUTOFPLACE);
-  printf("clfft set result location %d\n", ret);
-  ret=clfftSetPlanInStride(planHandleBackward, dim, inStride);
-  printf("clfft set instride %d\n", ret);
-  ret=clfftSetPlanOutStride(planHandleBackward, dim, outStride);
-  printf("clfft set out stride %d\n", ret);
+  ret = firstError(ret, clfftSetPlanPrecision(planHandleBackward, CLFFT_SINGLE));
+  logPrint(LOG_INFO, "clfft precision %d\n", ret);
+  ret = firstError(ret, clfftSetLayout(planHandleBackward, CLFFT_HERMITIAN_INTERLEAVED, CLFFT_REAL));
+  logPrint(LOG_INFO, "clfft set layout real hermittian interveaved %d\n", ret);
+  ret = firstError(ret, clfftSetResultLocation(planHandleBackward, CLFFT_OUTOFPLACE));
+  logPrint(LOG_INFO, "clfft set result location %d\n", ret);
+  ret = firstError(ret, clfftSetPlanInStride(planHandleBackward, dim, inStride));
+  logPrint(LOG_INFO, "clfft set instride %d\n", ret);
+  ret = firstError(ret, clfftSetPlanOutStride(planHandleBackward, dim, outStride));
+  logPrint(LOG_INFO, "clfft set out stride %d\n", ret);
 
   // Bake the plan.
-  ret = clfftBakePlan(planHandleBackward, 1, &commandQueue, NULL, NULL);
+  ret = firstError(ret, clfftBakePlan(planHandleBackward, 1, &commandQueue, NULL, NULL));
 
-  printf("Bake %d\n", ret);
-  ret = clFinish(commandQueue);
-  printf("Finish Command Queue %d\n", ret);
+  logPrint(LOG_INFO, "Bake %d\n", ret);
+  ret = firstError(ret, clFinish(commandQueue));
+  logPrint(LOG_INFO, "Finish Command Queue %d\n", ret);
+
+  // a plan that did not bake is not used (or cached) 
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "baking the plan failed %d\n", ret);
+    if (created==CL_SUCCESS) clfftDestroyPlan(&planHandleBackward);
+  }
+
+  *err = ret;
 
   return planHandleBackward;
 
 }
 
-clfftPlanHandle bake_3d_backward_32f(long N0, long N1, long N2, cl_context context, cl_command_queue commandQueue) {
+clfftPlanHandle bake_3d_backward_32f(long N0, long N1, long N2, cl_context context, cl_command_queue commandQueue, cl_int *err) {
 
-  cl_int ret;
+  cl_int ret = CL_SUCCESS;
   // FFT library related declarations 
   clfftPlanHandle planHandleBackward;
   clfftDim dim = CLFFT_3D;
@@ -555,119 +1074,751 @@ clfftPlanHandle bake_3d_backward_32f(long N0, long N1, long N2, cl_context conte
   // note each output row has N0/2+1 complex numbers 
   size_t outStride[3] = {1, (size_t)N0, (size_t)N0*(size_t)N1};
 
-  printf("clfft setup %d\n", ret);
+  logPrint(LOG_INFO, "clfft setup %d\n", ret);
   // Create a default plan for a complex FFT.
-  ret = clfftCreateDefaultPlan(&planHandleBackward, context, dim, clLengths);
+  cl_int created = clfftCreateDefaultPlan(&planHandleBackward, context, dim, clLengths);
+  ret = firstError(ret, created);
 
-  printf("Create Default Plan %d\n", ret);
+  logPrint(LOG_INFO, "Create Default Plan %d\n", ret);
 
   clfftPrecision precision = CLFFT_SINGLE;
   clfftResultLocation resultLocation = CLFFT_OUTOFPLACE;
   
   // Set plan parameters. 
-  ret = clfftSetPlanPrecision(planHandleBackward, precision);
-  printf("clfft precision %d\n", ret);
-  ret = clfftSetLayout(planHandleBackward, CLFFT_HERMITIAN_INTERLEAVED, CLFFT_REAL);
-  printf("clfft set layout real hermittian interveaved %d\n", ret);
-  ret = clfftSetResultLocation(planHandleBackward, CLFFT_OUTOFPLACE);
-  printf("clfft set result location %d\n", ret);
-  ret=clfftSetPlanInStride(planHandleBackward, dim, inStride);
-  printf("clfft set instride %d\n", ret);
-  ret=clfftSetPlanOutStride(planHandleBackward, dim, outStride);
-  printf("clfft set out stride %d\n", ret);
+  ret = firstError(ret, clfftSetPlanPrecision(planHandleBackward, precision));
+  logPrint(LOG_INFO, "clfft precision %d\n", ret);
+  ret = firstError(ret, clfftSetLayout(planHandleBackward, CLFFT_HERMITIAN_INTERLEAVED, CLFFT_REAL));
+  logPrint(LOG_INFO, "clfft set layout real hermittian interveaved %d\n", ret);
+  ret = firstError(ret, clfftSetResultLocation(planHandleBackward, CLFFT_OUTOFPLACE));
+  logPrint(LOG_INFO, "clfft set result location %d\n", ret);
+  ret = firstError(ret, clfftSetPlanInStride(planHandleBackward, dim, inStride));
+  logPrint(LOG_INFO, "clfft set instride %d\n", ret);
+  ret = firstError(ret, clfftSetPlanOutStride(planHandleBackward, dim, outStride));
+  logPrint(LOG_INFO, "clfft set out stride %d\n", ret);
 
   // Bake the plan.
-  ret = clfftBakePlan(planHandleBackward, 1, &commandQueue, NULL, NULL);
+  ret = firstError(ret, clfftBakePlan(planHandleBackward, 1, &commandQueue, NULL, NULL));
 
-  printf("Bake %d\n", ret);
-  ret = clFinish(commandQueue);
-  printf("Finish Command Queue %d\n", ret);
+  logPrint(LOG_INFO, "Bake %d\n", ret);
+  ret = firstError(ret, clFinish(commandQueue));
+  logPrint(LOG_INFO, "Finish Command Queue %d\n", ret);
+
+  // a plan that did not bake is not used (or cached) 
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "baking the plan failed %d\n", ret);
+    if (created==CL_SUCCESS) clfftDestroyPlan(&planHandleBackward);
+  }
+
+  *err = ret;
 
   return planHandleBackward;
 
 }
 
-int fft2d_32f_lp(long long N0, long long N1, long long d_image, long long d_out, long long l_context, long long l_queue) {
-  printf("input address %ld", d_image);
-  printf("input address %lu", (unsigned long long)d_image);
- 
-	// cast long to context 
-	cl_context context = (cl_context)l_context;
-  
-	// cast long to queue 
-	cl_command_queue commandQueue = (cl_command_queue)l_queue;  
+/**
+ * Bake a (possibly batched) real to complex (forward) or complex to real (backward) plan.
+ * 
+ * batchSize images are transformed by one enqueue.  inDistance and outDistance are the distances 
+ * between the first elements of consecutive images, in real elements for the real side and in 
+ * complex elements for the Hermitian side (this is how clFFT defines them).
+ * */
+clfftPlanHandle bake_batched_32f(clfftDim dim, long N0, long N1, long N2, bool forward, size_t batchSize, size_t inDistance, size_t outDistance, cl_context context, cl_command_queue commandQueue, cl_int *err) {
 
-  // number of elements in Hermitian (interleaved) output 
-  unsigned long nFreq=N1*(N0/2+1);
+  cl_int ret = CL_SUCCESS;
+  clfftPlanHandle planHandle;
+  size_t clLengths[3] = {(size_t)N0, (size_t)N1, (size_t)N2};
+  size_t realStride[3] = {1, (size_t)N0, (size_t)N0*(size_t)N1};
+  // note each complex row has N0/2+1 complex numbers 
+  size_t complexStride[3] = {1, (size_t)N0/2+1, ((size_t)N0/2+1)*(size_t)N1};
 
-  clfftPlanHandle planHandleForward = bake_2d_forward_32f(N0, N1, context, commandQueue); 
+  ret = firstError(ret, setupFFT());
 
-  cl_int ret = setupFFT();
-  cl_mem cl_mem_image=(cl_mem)d_image;
-  cl_mem cl_mem_out=(cl_mem)d_out;
-  
-  // Execute the plan. 
-  ret = clfftEnqueueTransform(planHandleForward, CLFFT_FORWARD, 1, &commandQueue, 0, NULL, NULL, &cl_mem_image, &cl_mem_out, NULL);
-  printf("Forward FFT %d\n", ret);
-  
-  ret = clFinish(commandQueue);
-  printf("Finish Command Queue for forward FFT %d\n", ret);
-  
-   // Release the plan. 
-   ret = clfftDestroyPlan( &planHandleForward );
+  // Create a default plan for a complex FFT.
+  cl_int created = clfftCreateDefaultPlan(&planHandle, context, dim, clLengths);
+  ret = firstError(ret, created);
+  logPrint(LOG_INFO, "Create Default Plan (batch %lu) %d\n", (unsigned long)batchSize, ret);
 
-   clfftTeardown();
-   
-   printf("FFT finished\n");
+  // Set plan parameters. 
+  ret = firstError(ret, clfftSetPlanPrecision(planHandle, CLFFT_SINGLE));
 
-   return 0; 
-}
+  if (forward) {
+    ret = firstError(ret, clfftSetLayout(planHandle, CLFFT_REAL, CLFFT_HERMITIAN_INTERLEAVED));
+    ret = firstError(ret, clfftSetPlanInStride(planHandle, dim, realStride));
+    ret = firstError(ret, clfftSetPlanOutStride(planHandle, dim, complexStride));
+  }
+  else {
+    ret = firstError(ret, clfftSetLayout(planHandle, CLFFT_HERMITIAN_INTERLEAVED, CLFFT_REAL));
+    ret = firstError(ret, clfftSetPlanInStride(planHandle, dim, complexStride));
+    ret = firstError(ret, clfftSetPlanOutStride(planHandle, dim, realStride));
+  }
 
-int fft3d_32f_lp(long long N0, long long N1, long long N2, long long d_image, long long d_out, long long l_context, long long l_queue) {
-  
-	// cast long to context 
-	cl_context context = (cl_context)l_context;
-  
-	// cast long to queue 
-	cl_command_queue commandQueue = (cl_command_queue)l_queue;  
+  ret = firstError(ret, clfftSetResultLocation(planHandle, CLFFT_OUTOFPLACE));
+  ret = firstError(ret, clfftSetPlanBatchSize(planHandle, batchSize));
+  logPrint(LOG_INFO, "clfft set batch size %d\n", ret);
+  ret = firstError(ret, clfftSetPlanDistance(planHandle, inDistance, outDistance));
+  logPrint(LOG_INFO, "clfft set distance %d\n", ret);
 
-  // number of elements in Hermitian (interleaved) output 
-  unsigned long nFreq=N2*N1*(N0/2+1);
+  // Bake the plan.
+  ret = firstError(ret, clfftBakePlan(planHandle, 1, &commandQueue, NULL, NULL));
 
-  clfftPlanHandle planHandleForward = bake_3d_forward_32f(N0, N1, N2, context, commandQueue); 
+  logPrint(LOG_INFO, "Bake %d\n", ret);
+  ret = firstError(ret, clFinish(commandQueue));
 
-  cl_int ret = setupFFT();
-  cl_mem cl_mem_image=(cl_mem)d_image;
-  cl_mem cl_mem_out=(cl_mem)d_out;
-  
-  // Execute the plan. 
-  ret = clfftEnqueueTransform(planHandleForward, CLFFT_FORWARD, 1, &commandQueue, 0, NULL, NULL, &cl_mem_image, &cl_mem_out, NULL);
-  printf("Forward FFT %d\n", ret);
-  
-  ret = clFinish(commandQueue);
-  printf("Finish Command Queue for forward FFT %d\n", ret);
-  
-   // Release the plan. 
-   ret = clfftDestroyPlan( &planHandleForward );
+  // a plan that did not bake is not used (or cached) 
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "baking the plan failed %d\n", ret);
+    if (created==CL_SUCCESS) clfftDestroyPlan(&planHandle);
+  }
 
-   clfftTeardown();
-   
-   printf("FFT finished\n");
+  *err = ret;
 
-   return 0; 
+  return planHandle;
 }
 
-int fft2d_32f(size_t N0, size_t N1, float *h_image, float * h_out) {
- 
-  cl_platform_id platformId = NULL;
-	cl_device_id deviceID = NULL;
-	cl_uint retNumDevices;
+/**
+ * Process wide cache of baked clFFT plans.  
+ * 
+ * Baking a plan is expensive compared to running a transform on small or medium sized 
+ * images, so plans are kept and re-used for the same (dimensions, direction, batch size, batch 
+ * distances, context, queue).
+ * Each entry is reference counted while it is in use, and unreferenced entries are evicted in 
+ * least recently used order once the cache grows beyond planCacheMaxSize.  The context and 
+ * queue of an entry are retained, so a released context can not be re-used at the same address 
+ * while a plan baked for it is still cached.
+ * */
+struct PlanCacheEntry {
+  clfftDim dim;
+  size_t lengths[3];
+  bool forward;
+  size_t batchSize;
+  size_t inDistance;
+  size_t outDistance;
+  cl_context context;
+  cl_command_queue queue;
+  clfftPlanHandle plan;
+  int refCount;
+  unsigned long long lastUsed;
+};
+
+static std::vector<PlanCacheEntry> planCache;
+static std::recursive_mutex planCacheMutex;
+static size_t planCacheMaxSize = 16;
+static unsigned long long planCacheClock = 0;
+static unsigned long long planCacheHitCount = 0;
+static unsigned long long planCacheMissCount = 0;
+
+/**
+ * destroy the plan of a cache entry and release the context and queue retained for it
+ * */
+void destroyPlanCacheEntry(PlanCacheEntry &entry) {
+  clfftDestroyPlan(&entry.plan);
+  clReleaseCommandQueue(entry.queue);
+  clReleaseContext(entry.context);
+}
+
+/**
+ * Evict least recently used unreferenced plans until the cache is no larger than planCacheMaxSize
+ * */
+void evictPlans() {
+  std::lock_guard<std::recursive_mutex> lock(planCacheMutex);
+
+  while (planCache.size() > planCacheMaxSize) {
+    int lru = -1;
+
+    for (size_t i = 0; i < planCache.size(); i++) {
+      if (planCache[i].refCount == 0 && (lru == -1 || planCache[i].lastUsed < planCache[lru].lastUsed)) {
+        lru = (int)i;
+      }
+    }
+
+    // all remaining plans are in use
+    if (lru == -1) {
+      return;
+    }
+
+    destroyPlanCacheEntry(planCache[lru]);
+    planCache.erase(planCache.begin() + lru);
+  }
+}
+
+/**
+ * Get a baked (batched) plan from the cache, baking (and caching) a new plan if there is no match.
+ * Distances of 0 mean contiguous images.  Every successful call has to be paired with a call to 
+ * releasePlan.  If the plan can not be baked the error is returned in err (and nothing has to be 
+ * released). 
+ * */
+clfftPlanHandle acquireBatchedPlan(clfftDim dim, long N0, long N1, long N2, bool forward, size_t batchSize, size_t inDistance, size_t outDistance, cl_context context, cl_command_queue commandQueue, cl_int *err) {
+  std::lock_guard<std::recursive_mutex> lock(planCacheMutex);
+
+  size_t lengths[3] = {(size_t)N0, (size_t)N1, dim == CLFFT_3D ? (size_t)N2 : 1};
+
+  // resolve default (contiguous) distances so equivalent plans share a cache entry
+  size_t realDistance = lengths[0]*lengths[1]*lengths[2];
+  size_t complexDistance = (lengths[0]/2+1)*lengths[1]*lengths[2];
+
+  if (batchSize < 1) {
+    batchSize = 1;
+  }
+
+  if (inDistance == 0 || batchSize == 1) {
+    inDistance = forward ? realDistance : complexDistance;
+  }
+
+  if (outDistance == 0 || batchSize == 1) {
+    outDistance = forward ? complexDistance : realDistance;
+  }
+
+  for (size_t i = 0; i < planCache.size(); i++) {
+    PlanCacheEntry &entry = planCache[i];
+
+    if (entry.dim == dim && entry.forward == forward && entry.context == context && entry.queue == commandQueue &&
+        entry.lengths[0] == lengths[0] && entry.lengths[1] == lengths[1] && entry.lengths[2] == lengths[2] &&
+        entry.batchSize == batchSize && entry.inDistance == inDistance && entry.outDistance == outDistance) {
+      entry.refCount++;
+      entry.lastUsed = ++planCacheClock;
+      planCacheHitCount++;
+      *err = CL_SUCCESS;
+      return entry.plan;
+    }
+  }
+
+  planCacheMissCount++;
+
+  clfftPlanHandle plan;
+
+  if (batchSize > 1) {
+    plan = bake_batched_32f(dim, N0, N1, lengths[2], forward, batchSize, inDistance, outDistance, context, commandQueue, err);
+  }
+  else if (dim == CLFFT_2D) {
+    plan = forward ? bake_2d_forward_32f(N0, N1, context, commandQueue, err) : bake_2d_backward_32f(N0, N1, context, commandQueue, err);
+  }
+  else {
+    plan = forward ? bake_3d_forward_32f(N0, N1, N2, context, commandQueue, err) : bake_3d_backward_32f(N0, N1, N2, context, commandQueue, err);
+  }
+
+  // failed plans are not cached, so the next call for this shape tries again 
+  if (*err!=CL_SUCCESS) {
+    return 0;
+  }
+
+  clRetainContext(context);
+  clRetainCommandQueue(commandQueue);
+
+  PlanCacheEntry entry;
+  entry.dim = dim;
+  entry.lengths[0] = lengths[0];
+  entry.lengths[1] = lengths[1];
+  entry.lengths[2] = lengths[2];
+  entry.forward = forward;
+  entry.batchSize = batchSize;
+  entry.inDistance = inDistance;
+  entry.outDistance = outDistance;
+  entry.context = context;
+  entry.queue = commandQueue;
+  entry.plan = plan;
+  entry.refCount = 1;
+  entry.lastUsed = ++planCacheClock;
+
+  planCache.push_back(entry);
+
+  return plan;
+}
+
+/**
+ * Get a baked (single image) plan from the cache, see acquireBatchedPlan
+ * */
+clfftPlanHandle acquirePlan(clfftDim dim, long N0, long N1, long N2, bool forward, cl_context context, cl_command_queue commandQueue, cl_int *err) {
+  return acquireBatchedPlan(dim, N0, N1, N2, forward, 1, 0, 0, context, commandQueue, err);
+}
+
+/**
+ * Release a plan acquired with acquirePlan.  The plan stays in the cache unless the cache is full 
+ * */
+void releasePlan(clfftPlanHandle plan) {
+  std::lock_guard<std::recursive_mutex> lock(planCacheMutex);
+
+  for (size_t i = 0; i < planCache.size(); i++) {
+    if (planCache[i].plan == plan && planCache[i].refCount > 0) {
+      planCache[i].refCount--;
+      break;
+    }
+  }
+
+  evictPlans();
+}
+
+/**
+ * Destroy all unreferenced plans that were baked for context.  Called before a context 
+ * created in this library is released.
+ * */
+void evictPlansForContext(cl_context context) {
+  std::lock_guard<std::recursive_mutex> lock(planCacheMutex);
+
+  for (size_t i = planCache.size(); i-- > 0;) {
+    if (planCache[i].context == context && planCache[i].refCount == 0) {
+      destroyPlanCacheEntry(planCache[i]);
+      planCache.erase(planCache.begin() + i);
+    }
+  }
+}
+
+/**
+ * Destroy the unreferenced plans baked for a context that is about to be released by the 
+ * caller (cached plans retain their context and queue, so it is not freed otherwise).  
+ * Returns the number of plans of the context that are still in use. 
+ * */
+int releasePlansForContext(long long l_context) {
+  std::lock_guard<std::recursive_mutex> lock(planCacheMutex);
+
+  cl_context context = (cl_context)l_context;
+
+  evictPlansForContext(context);
+
+  int inUse = 0;
+  for (size_t i = 0; i < planCache.size(); i++) {
+    if (planCache[i].context == context) {
+      inUse++;
+    }
+  }
+
+  return inUse;
+}
+
+int planCacheSize() {
+  std::lock_guard<std::recursive_mutex> lock(planCacheMutex);
+  return (int)planCache.size();
+}
+
+long long planCacheHits() {
+  std::lock_guard<std::recursive_mutex> lock(planCacheMutex);
+  return (long long)planCacheHitCount;
+}
+
+long long planCacheMisses() {
+  std::lock_guard<std::recursive_mutex> lock(planCacheMutex);
+  return (long long)planCacheMissCount;
+}
+
+/**
+ * Destroy all cached plans that are not in use.  Returns the number of plans still in use. 
+ * */
+int clearPlanCache() {
+  std::lock_guard<std::recursive_mutex> lock(planCacheMutex);
+
+  for (size_t i = planCache.size(); i-- > 0;) {
+    if (planCache[i].refCount == 0) {
+      destroyPlanCacheEntry(planCache[i]);
+      planCache.erase(planCache.begin() + i);
+    }
+  }
+
+  return (int)planCache.size();
+}
+
+/**
+ * Set the maximum number of cached plans (0 disables caching).  Returns the previous maximum. 
+ * */
+int setPlanCacheMaxSize(int maxSize) {
+  std::lock_guard<std::recursive_mutex> lock(planCacheMutex);
+
+  int previous = (int)planCacheMaxSize;
+  planCacheMaxSize = maxSize < 0 ? 0 : (size_t)maxSize;
+
+  evictPlans();
+
+  return previous;
+}
+
+int getPlanCacheMaxSize() {
+  std::lock_guard<std::recursive_mutex> lock(planCacheMutex);
+  return (int)planCacheMaxSize;
+}
+
+/**
+ * Built programs are cached per (context, device, source), so sessions and convolutions only 
+ * compile once per context.  If a directory is set with setProgramCacheDir the binaries are 
+ * also written to disk, keyed by device name, driver version and source hash, so new 
+ * processes skip the compiler too. 
+ * */
+struct ProgramCacheEntry {
+  cl_context context;
+  cl_device_id deviceID;
+  unsigned long long sourceHash;
+  cl_program program;
+};
+
+static std::vector<ProgramCacheEntry> programCache;
+static std::recursive_mutex programCacheMutex;
+static std::string programCacheDir;
+static long long programCacheHitCount = 0;
+static long long programCacheDiskHitCount = 0;
+static long long programCacheMissCount = 0;
+
+/**
+ * FNV-1a hash of a string, continuing from hash 
+ * */
+unsigned long long hashString(const char *str, unsigned long long hash) {
+  for (const unsigned char *c = (const unsigned char *)str; *c; c++) {
+    hash ^= *c;
+    hash *= 1099511628211ULL;
+  }
+  return hash;
+}
+
+std::string getDeviceString(cl_device_id deviceID, cl_device_info param) {
+  size_t size = 0;
+  if (clGetDeviceInfo(deviceID, param, 0, NULL, &size)!=CL_SUCCESS || size==0) {
+    return "";
+  }
+  std::vector<char> value(size);
+  clGetDeviceInfo(deviceID, param, size, value.data(), NULL);
+  return std::string(value.data());
+}
+
+/**
+ * Name of the cache file of a program, the key includes the device name, driver and OpenCL 
+ * version so binaries are never loaded on a different device or driver 
+ * */
+std::string programCacheFile(cl_device_id deviceID, unsigned long long sourceHash) {
+  std::string key = getDeviceString(deviceID, CL_DEVICE_NAME) + "|" + getDeviceString(deviceID, CL_DRIVER_VERSION) + "|" + getDeviceString(deviceID, CL_DEVICE_VERSION);
+
+  char name[64];
+  snprintf(name, sizeof(name), "clij2fft_%016llx.bin", hashString(key.c_str(), sourceHash));
+
+  return programCacheDir + "/" + name;
+}
+
+/**
+ * Create and build a program from a cached binary, returns NULL if there is no usable binary 
+ * */
+cl_program loadProgramBinary(cl_context context, cl_device_id deviceID, const std::string &fileName) {
+
+  FILE *fp = fopen(fileName.c_str(), "rb");
+
+  if (fp==NULL) {
+    return NULL;
+  }
+
+  fseek(fp, 0, SEEK_END);
+  long size = ftell(fp);
+  fseek(fp, 0, SEEK_SET);
+
+  std::vector<unsigned char> binary(size>0 ? size : 0);
+  size_t read = size>0 ? fread(binary.data(), 1, size, fp) : 0;
+  fclose(fp);
+
+  if (size<=0 || read!=(size_t)size) {
+    return NULL;
+  }
+
+  const unsigned char *binaryPointer = binary.data();
+  size_t binarySize = binary.size();
+  cl_int binaryStatus;
+  cl_int ret;
+
+  cl_program program = clCreateProgramWithBinary(context, 1, &deviceID, &binarySize, &binaryPointer, &binaryStatus, &ret);
+
+  if (ret!=CL_SUCCESS || binaryStatus!=CL_SUCCESS) {
+    logPrint(LOG_INFO, "cached program %s not usable %d %d\n", fileName.c_str(), ret, binaryStatus);
+    if (program!=NULL) clReleaseProgram(program);
+    return NULL;
+  }
+
+  // binaries have to be built too, but the compiler is skipped
+  ret = clBuildProgram(program, 1, &deviceID, NULL, NULL, NULL);
+
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_INFO, "build cached program %s failed %d\n", fileName.c_str(), ret);
+    clReleaseProgram(program);
+    return NULL;
+  }
+
+  return program;
+}
+
+/**
+ * Write the binary of a program (built for one device) to the cache.  The file is written 
+ * under a temporary name unique to the process and thread and renamed, so other processes 
+ * (and threads compiling the same program at the same time) never see a partial binary. 
+ * */
+void saveProgramBinary(cl_program program, const std::string &fileName) {
+
+  size_t size = 0;
+  cl_int ret = clGetProgramInfo(program, CL_PROGRAM_BINARY_SIZES, sizeof(size_t), &size, NULL);
+
+  if (ret!=CL_SUCCESS || size==0) {
+    return;
+  }
+
+  std::vector<unsigned char> binary(size);
+  unsigned char *binaryPointer = binary.data();
+  ret = clGetProgramInfo(program, CL_PROGRAM_BINARIES, sizeof(unsigned char*), &binaryPointer, NULL);
+
+  if (ret!=CL_SUCCESS) {
+    return;
+  }
+
+  // a shared temporary name could be truncated by one writer while another renames it 
+  std::string tempName = fileName + "." + std::to_string((long long)CurrentProcessId()) + "." + 
+    std::to_string((unsigned long long)std::hash<std::thread::id>()(std::this_thread::get_id())) + ".tmp";
+  FILE *fp = fopen(tempName.c_str(), "wb");
+
+  if (fp==NULL) {
+    logPrint(LOG_INFO, "can not write program cache %s\n", tempName.c_str());
+    return;
+  }
+
+  bool written = fwrite(binary.data(), 1, size, fp)==size;
+  fclose(fp);
+
+  if (!written || rename(tempName.c_str(), fileName.c_str())!=0) {
+    remove(tempName.c_str());
+  }
+}
+
+/**
+ * Get a built program for source from the cache, the disk cache or the compiler.  The returned 
+ * program is retained for the caller, who has to release it.  Returns NULL (and the error in 
+ * ret) if the program can not be built. 
+ * */
+cl_program acquireProgram(cl_context context, cl_device_id deviceID, const char *source, cl_int *ret) {
+  std::lock_guard<std::recursive_mutex> lock(programCacheMutex);
+
+  unsigned long long sourceHash = hashString(source, 14695981039346656037ULL);
+
+  for (size_t i = 0; i < programCache.size(); i++) {
+    if (programCache[i].context == context && programCache[i].deviceID == deviceID && programCache[i].sourceHash == sourceHash) {
+      programCacheHitCount++;
+      clRetainProgram(programCache[i].program);
+      *ret = CL_SUCCESS;
+      return programCache[i].program;
+    }
+  }
+
+  cl_program program = NULL;
+  std::string fileName;
+
+  if (!programCacheDir.empty()) {
+    fileName = programCacheFile(deviceID, sourceHash);
+    program = loadProgramBinary(context, deviceID, fileName);
+
+    if (program!=NULL) {
+      programCacheDiskHitCount++;
+      logPrint(LOG_INFO, "loaded program %s\n", fileName.c_str());
+    }
+  }
+
+  if (program==NULL) {
+    programCacheMissCount++;
+
+    program = makeProgram(context, deviceID, (char*)source);
+
+    cl_build_status status = CL_BUILD_ERROR;
+    if (program!=NULL) {
+      clGetProgramBuildInfo(program, deviceID, CL_PROGRAM_BUILD_STATUS, sizeof(cl_build_status), &status, NULL);
+    }
+
+    if (status!=CL_BUILD_SUCCESS) {
+      if (program!=NULL) clReleaseProgram(program);
+      *ret = CL_BUILD_PROGRAM_FAILURE;
+      return NULL;
+    }
+
+    if (!fileName.empty()) {
+      saveProgramBinary(program, fileName);
+    }
+  }
+
+  // the cache keeps the first reference, the caller gets a second one
+  ProgramCacheEntry entry;
+  entry.context = context;
+  entry.deviceID = deviceID;
+  entry.sourceHash = sourceHash;
+  entry.program = program;
+  programCache.push_back(entry);
+
+  clRetainProgram(program);
+  *ret = CL_SUCCESS;
+
+  return program;
+}
+
+/**
+ * Release the cached programs built for context (a program retains its context) 
+ * */
+void evictProgramsForContext(cl_context context) {
+  std::lock_guard<std::recursive_mutex> lock(programCacheMutex);
+
+  for (size_t i = programCache.size(); i-- > 0;) {
+    if (programCache[i].context == context) {
+      clReleaseProgram(programCache[i].program);
+      programCache.erase(programCache.begin() + i);
+    }
+  }
+}
+
+/**
+ * Release the cached programs of a context that is about to be released by the caller.  
+ * Sessions that use them keep their own reference. 
+ * */
+int releaseProgramsForContext(long long l_context) {
+  evictProgramsForContext((cl_context)l_context);
+  return 0;
+}
+
+int programCacheSize() {
+  std::lock_guard<std::recursive_mutex> lock(programCacheMutex);
+  return (int)programCache.size();
+}
+
+long long programCacheHits() {
+  std::lock_guard<std::recursive_mutex> lock(programCacheMutex);
+  return programCacheHitCount;
+}
+
+long long programCacheDiskHits() {
+  std::lock_guard<std::recursive_mutex> lock(programCacheMutex);
+  return programCacheDiskHitCount;
+}
+
+long long programCacheMisses() {
+  std::lock_guard<std::recursive_mutex> lock(programCacheMutex);
+  return programCacheMissCount;
+}
+
+/**
+ * Release the cached programs (sessions that use them keep their own reference). 
+ * */
+int clearProgramCache() {
+  std::lock_guard<std::recursive_mutex> lock(programCacheMutex);
+
+  for (size_t i = 0; i < programCache.size(); i++) {
+    clReleaseProgram(programCache[i].program);
+  }
+  programCache.clear();
+
+  return 0;
+}
+
+/**
+ * Set the directory of the disk cache (it has to exist), NULL or an empty string turns the 
+ * disk cache off 
+ * */
+int setProgramCacheDir(const char *dir) {
+  std::lock_guard<std::recursive_mutex> lock(programCacheMutex);
+
+  programCacheDir = dir==NULL ? "" : dir;
+
+  return 0;
+}
+
+int fft2d_32f_lp(long long N0, long long N1, long long d_image, long long d_out, long long l_context, long long l_queue) {
+  logPrint(LOG_INFO, "input address %ld", d_image);
+  logPrint(LOG_INFO, "input address %lu", (unsigned long long)d_image);
+ 
+	// cast long to context 
+	cl_context context = (cl_context)l_context;
+  
+	// cast long to queue 
+	cl_command_queue commandQueue = profilingQueue((cl_command_queue)l_queue);  
+
+  // number of elements in Hermitian (interleaved) output 
+  unsigned long nFreq=N1*(N0/2+1);
+
+  cl_int ret = setupFFT();
+
+  // get the plan from the cache (it is only baked the first time these dimensions are used)
+  clfftPlanHandle planHandleForward = acquirePlan(CLFFT_2D, N0, N1, 1, true, context, commandQueue, &ret);
+
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "could not bake the forward 2D plan %d\n", ret);
+    return ret;
+  }
+
+  cl_mem cl_mem_image=(cl_mem)d_image;
+  cl_mem cl_mem_out=(cl_mem)d_out;
+  
+  // Execute the plan. 
+  cl_event marker = profileBegin(commandQueue);
+  ret = clfftEnqueueTransform(planHandleForward, CLFFT_FORWARD, 1, &commandQueue, 0, NULL, NULL, &cl_mem_image, &cl_mem_out, NULL);
+  profileEnd(commandQueue, PROFILE_FFT_FORWARD, marker);
+  logPrint(LOG_INFO, "Forward FFT %d\n", ret);
+  
+  if (ret == CL_SUCCESS) {
+    ret = clFinish(commandQueue);
+    logPrint(LOG_INFO, "Finish Command Queue for forward FFT %d\n", ret);
+  }
+  
+   // Release the plan (it stays cached) 
+   releasePlan(planHandleForward);
+   
+   logPrint(LOG_INFO, "FFT finished\n");
+
+   if (ret != CL_SUCCESS) {
+     logPrint(LOG_ERROR, "fft2d_32f_lp failed %d\n", ret);
+   }
+
+   return ret; 
+}
+
+int fft3d_32f_lp(long long N0, long long N1, long long N2, long long d_image, long long d_out, long long l_context, long long l_queue) {
+  
+	// cast long to context 
+	cl_context context = (cl_context)l_context;
+  
+	// cast long to queue 
+	cl_command_queue commandQueue = profilingQueue((cl_command_queue)l_queue);  
+
+  // number of elements in Hermitian (interleaved) output 
+  unsigned long nFreq=N2*N1*(N0/2+1);
+
+  cl_int ret = setupFFT();
+
+  // get the plan from the cache (it is only baked the first time these dimensions are used)
+  clfftPlanHandle planHandleForward = acquirePlan(CLFFT_3D, N0, N1, N2, true, context, commandQueue, &ret);
+
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "could not bake the forward 3D plan %d\n", ret);
+    return ret;
+  }
+
+  cl_mem cl_mem_image=(cl_mem)d_image;
+  cl_mem cl_mem_out=(cl_mem)d_out;
+  
+  // Execute the plan. 
+  cl_event marker = profileBegin(commandQueue);
+  ret = clfftEnqueueTransform(planHandleForward, CLFFT_FORWARD, 1, &commandQueue, 0, NULL, NULL, &cl_mem_image, &cl_mem_out, NULL);
+  profileEnd(commandQueue, PROFILE_FFT_FORWARD, marker);
+  logPrint(LOG_INFO, "Forward FFT %d\n", ret);
+  
+  if (ret == CL_SUCCESS) {
+    ret = clFinish(commandQueue);
+    logPrint(LOG_INFO, "Finish Command Queue for forward FFT %d\n", ret);
+  }
+  
+   // Release the plan (it stays cached) 
+   releasePlan(planHandleForward);
+   
+   logPrint(LOG_INFO, "FFT finished\n");
+
+   if (ret != CL_SUCCESS) {
+     logPrint(LOG_ERROR, "fft3d_32f_lp failed %d\n", ret);
+   }
+
+   return ret; 
+}
+
+int fft2d_32f(size_t N0, size_t N1, float *h_image, float * h_out) {
+ 
+  cl_platform_id platformId = NULL;
+	cl_device_id deviceID = NULL;
+	cl_uint retNumDevices;
 	cl_uint retNumPlatforms;
 
   // create platform
   cl_int ret = clGetPlatformIDs(1, &platformId, &retNumPlatforms);
 
-  printf("\ncreated platform\n");
+  logPrint(LOG_INFO, "\ncreated platform\n");
 
   // get device ids
 	ret = clGetDeviceIDs(platformId, CL_DEVICE_TYPE_DEFAULT, 1, &deviceID, &retNumDevices);
@@ -675,39 +1826,43 @@ int fft2d_32f(size_t N0, size_t N1, float *h_image, float * h_out) {
 	// Creating context.
 	cl_context context = clCreateContext(NULL, 1, &deviceID, NULL, NULL,  &ret);
 
-  printf("\ncreated context\n");
+  logPrint(LOG_INFO, "\ncreated context\n");
 
 	// Creating command queue
 	cl_command_queue commandQueue = clCreateCommandQueue(context, deviceID, 0, &ret);
 
-  printf("\ncreated command queue\n");
+  logPrint(LOG_INFO, "\ncreated command queue\n");
 	
   // Memory buffers for each array
 	cl_mem aMemObj = clCreateBuffer(context, CL_MEM_READ_WRITE, N1 * N0 * sizeof(float), NULL, &ret);
-  printf("\ncreate variable 1 %d\n", ret);
+  logPrint(LOG_INFO, "\ncreate variable 1 %d\n", ret);
 	
    // Copy lists to memory buffers
 	ret = clEnqueueWriteBuffer(commandQueue, aMemObj, CL_TRUE, 0, N1 * N0 * sizeof(float), h_image, 0, NULL, NULL);;
-  printf("\ncopy to GPU  %d\n", ret);
+  logPrint(LOG_INFO, "\ncopy to GPU  %d\n", ret);
 
   // number of elements in Hermitian (interleaved) output 
   unsigned long nFreq=N1*(N0/2+1);
 
   // create output buffer (note each complex number is represented by 2 floats)
   cl_mem FFT = clCreateBuffer(context, CL_MEM_READ_WRITE, 2*nFreq*sizeof(float), NULL, &ret);
-  printf("\ncreate FFT %d\n", ret);
+  logPrint(LOG_INFO, "\ncreate FFT %d\n", ret);
 	 
   ret = fft2d_32f_lp(N0, N1, (long long)aMemObj, (long long)FFT, (long long)context, (long long)commandQueue);
-  printf("FFT refactored\n");
+  logPrint(LOG_INFO, "FFT refactored\n");
   
   // transfer from device back to GPU
   ret = clEnqueueReadBuffer( commandQueue, FFT, CL_TRUE, 0, 2*nFreq*sizeof(float), h_out, 0, NULL, NULL );
-  printf("copy back to host %d\n", ret);
+  logPrint(LOG_INFO, "copy back to host %d\n", ret);
   
   // Release OpenCL memory objects. 
   clReleaseMemObject( FFT );
   clReleaseMemObject( aMemObj);
 
+  // the context is private to this call so don't keep its plans and programs
+  evictPlansForContext(context);
+  evictProgramsForContext(context);
+
   // Release OpenCL working objects.
   clReleaseCommandQueue( commandQueue );
   clReleaseContext( context );
@@ -716,39 +1871,51 @@ int fft2d_32f(size_t N0, size_t N1, float *h_image, float * h_out) {
 }
 
 int fft2dinv_32f_lp(long long N0, long long N1, long long d_fft, long long d_out, long long l_context, long long l_queue) {
-  printf("input address %ld", d_fft);
-  printf("input address %lu", (unsigned long long)d_fft);
+  logPrint(LOG_INFO, "input address %ld", d_fft);
+  logPrint(LOG_INFO, "input address %lu", (unsigned long long)d_fft);
  
 	// cast long long to context 
 	cl_context context = (cl_context)l_context;
   
 	// cast long long to queue 
-	cl_command_queue commandQueue = (cl_command_queue)l_queue;
+	cl_command_queue commandQueue = profilingQueue((cl_command_queue)l_queue);
 
   cl_int ret = setupFFT();
   cl_mem cl_mem_image=(cl_mem)d_fft;
   cl_mem cl_mem_out=(cl_mem)d_out;
  
-  clfftPlanHandle planHandleBackward = bake_2d_backward_32f(N0, N1, context, commandQueue); 
+  // get the plan from the cache (it is only baked the first time these dimensions are used)
+  clfftPlanHandle planHandleBackward = acquirePlan(CLFFT_2D, N0, N1, 1, false, context, commandQueue, &ret);
+
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "could not bake the inverse 2D plan %d\n", ret);
+    return ret;
+  }
   
   // number of elements in Hermitian (interleaved) output 
   unsigned long nFreq=N1*(N0/2+1);
 
   // Execute the plan.
+  cl_event marker = profileBegin(commandQueue);
   ret = clfftEnqueueTransform(planHandleBackward, CLFFT_FORWARD, 1, &commandQueue, 0, NULL, NULL, &cl_mem_image, &cl_mem_out, NULL);
+  profileEnd(commandQueue, PROFILE_FFT_INVERSE, marker);
 
-  printf("Backward FFT %d\n", ret);
-  ret = clFinish(commandQueue);
-  printf("Finish Command Queue for backward FFT %d\n", ret);
+  logPrint(LOG_INFO, "Backward FFT %d\n", ret);
+  if (ret == CL_SUCCESS) {
+    ret = clFinish(commandQueue);
+    logPrint(LOG_INFO, "Finish Command Queue for backward FFT %d\n", ret);
+  }
  
-   // Release the plan. 
-   ret = clfftDestroyPlan( &planHandleBackward);
-
-   clfftTeardown();
+   // Release the plan (it stays cached) 
+   releasePlan(planHandleBackward);
    
-   printf("Backward FFT finished\n");
+   logPrint(LOG_INFO, "Backward FFT finished\n");
+
+   if (ret != CL_SUCCESS) {
+     logPrint(LOG_ERROR, "fft2dinv_32f_lp failed %d\n", ret);
+   }
 
-   return 0; 
+   return ret; 
 }
 
 
@@ -758,35 +1925,102 @@ int fft3dinv_32f_lp(long long N0, long long N1, long long N2, long long d_fft, l
 	cl_context context = (cl_context)l_context;
   
 	// cast long long to queue 
-	cl_command_queue commandQueue = (cl_command_queue)l_queue;
+	cl_command_queue commandQueue = profilingQueue((cl_command_queue)l_queue);
 
   cl_int ret = setupFFT();
   cl_mem cl_mem_image=(cl_mem)d_fft;
   cl_mem cl_mem_out=(cl_mem)d_out;
  
-  clfftPlanHandle planHandleBackward = bake_3d_backward_32f(N0, N1, N2, context, commandQueue); 
+  // get the plan from the cache (it is only baked the first time these dimensions are used)
+  clfftPlanHandle planHandleBackward = acquirePlan(CLFFT_3D, N0, N1, N2, false, context, commandQueue, &ret);
+
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "could not bake the inverse 3D plan %d\n", ret);
+    return ret;
+  }
   
   // number of elements in Hermitian (interleaved) output 
   unsigned long nFreq=N2*N1*(N0/2+1);
 
   // Execute the plan.
+  cl_event marker = profileBegin(commandQueue);
   ret = clfftEnqueueTransform(planHandleBackward, CLFFT_FORWARD, 1, &commandQueue, 0, NULL, NULL, &cl_mem_image, &cl_mem_out, NULL);
+  profileEnd(commandQueue, PROFILE_FFT_INVERSE, marker);
 
-  printf("Backward FFT %d\n", ret);
-  ret = clFinish(commandQueue);
-  printf("Finish Command Queue for backward FFT %d\n", ret);
+  logPrint(LOG_INFO, "Backward FFT %d\n", ret);
+  if (ret == CL_SUCCESS) {
+    ret = clFinish(commandQueue);
+    logPrint(LOG_INFO, "Finish Command Queue for backward FFT %d\n", ret);
+  }
  
-   // Release the plan. 
-   ret = clfftDestroyPlan( &planHandleBackward);
-
-   clfftTeardown();
+   // Release the plan (it stays cached) 
+   releasePlan(planHandleBackward);
    
-   printf("Backward FFT finished\n");
+   logPrint(LOG_INFO, "Backward FFT finished\n");
+
+   if (ret != CL_SUCCESS) {
+     logPrint(LOG_ERROR, "fft3dinv_32f_lp failed %d\n", ret);
+   }
 
-   return 0; 
+   return ret; 
 }
 
 
+/**
+ * Run a batched transform on device memory, shared by the batched entry points below 
+ * */
+int fft_batch_32f_lp(clfftDim dim, bool forward, long long N0, long long N1, long long N2, long long batchSize, long long inDistance, long long outDistance, long long d_in, long long d_out, long long l_context, long long l_queue) {
+
+	// cast long long to context 
+	cl_context context = (cl_context)l_context;
+  
+	// cast long long to queue 
+	cl_command_queue commandQueue = profilingQueue((cl_command_queue)l_queue);
+
+  cl_int ret = setupFFT();
+  cl_mem cl_mem_in=(cl_mem)d_in;
+  cl_mem cl_mem_out=(cl_mem)d_out;
+
+  // get the plan from the cache (it is only baked the first time this size and batch layout is used)
+  clfftPlanHandle planHandle = acquireBatchedPlan(dim, N0, N1, N2, forward, (size_t)batchSize, (size_t)inDistance, (size_t)outDistance, context, commandQueue, &ret);
+
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "could not bake the batched plan %d\n", ret);
+    return ret;
+  }
+
+  // Execute the plan (all images of the batch are transformed by one enqueue).
+  cl_event marker = profileBegin(commandQueue);
+  ret = clfftEnqueueTransform(planHandle, forward ? CLFFT_FORWARD : CLFFT_BACKWARD, 1, &commandQueue, 0, NULL, NULL, &cl_mem_in, &cl_mem_out, NULL);
+  profileEnd(commandQueue, forward ? PROFILE_FFT_FORWARD : PROFILE_FFT_INVERSE, marker);
+  logPrint(LOG_INFO, "Batched FFT (batch %lld) %d\n", batchSize, ret);
+
+  if (ret == CL_SUCCESS) {
+    ret = clFinish(commandQueue);
+  }
+
+   // Release the plan (it stays cached) 
+   releasePlan(planHandle);
+
+   return ret; 
+}
+
+int fft2d_batch_32f_lp(long long N0, long long N1, long long batchSize, long long inDistance, long long outDistance, long long d_image, long long d_out, long long l_context, long long l_queue) {
+  return fft_batch_32f_lp(CLFFT_2D, true, N0, N1, 1, batchSize, inDistance, outDistance, d_image, d_out, l_context, l_queue);
+}
+
+int fft3d_batch_32f_lp(long long N0, long long N1, long long N2, long long batchSize, long long inDistance, long long outDistance, long long d_image, long long d_out, long long l_context, long long l_queue) {
+  return fft_batch_32f_lp(CLFFT_3D, true, N0, N1, N2, batchSize, inDistance, outDistance, d_image, d_out, l_context, l_queue);
+}
+
+int fft2dinv_batch_32f_lp(long long N0, long long N1, long long batchSize, long long inDistance, long long outDistance, long long d_fft, long long d_out, long long l_context, long long l_queue) {
+  return fft_batch_32f_lp(CLFFT_2D, false, N0, N1, 1, batchSize, inDistance, outDistance, d_fft, d_out, l_context, l_queue);
+}
+
+int fft3dinv_batch_32f_lp(long long N0, long long N1, long long N2, long long batchSize, long long inDistance, long long outDistance, long long d_fft, long long d_out, long long l_context, long long l_queue) {
+  return fft_batch_32f_lp(CLFFT_3D, false, N0, N1, N2, batchSize, inDistance, outDistance, d_fft, d_out, l_context, l_queue);
+}
+
 /*
 Inverse complex to real FFT 
 
@@ -803,36 +2037,36 @@ int fftinv2d_32f(size_t N0, size_t N1, float *h_fft, float * h_out) {
 	cl_uint retNumPlatforms;
   cl_int ret = clGetPlatformIDs(1, &platformId, &retNumPlatforms);
 
-  printf("\ncreated platform\n"); 
+  logPrint(LOG_INFO, "\ncreated platform\n"); 
 
 	ret = clGetDeviceIDs(platformId, CL_DEVICE_TYPE_DEFAULT, 1, &deviceID, &retNumDevices);
 
 	// Creating context.
 	cl_context context = clCreateContext(NULL, 1, &deviceID, NULL, NULL,  &ret);
 
-  printf("\ncreated context\n");
+  logPrint(LOG_INFO, "\ncreated context\n");
 
 	// Creating command queue
 	cl_command_queue commandQueue = clCreateCommandQueue(context, deviceID, 0, &ret);
 
-  printf("\ncreated command queue\n");
+  logPrint(LOG_INFO, "\ncreated command queue\n");
 
   // number of elements in Hermitian (interleaved) output 
   unsigned long nFreq = (N0/2+1)*N1;
 	
   // declare FFT memory on GPU
 	cl_mem d_FFT = clCreateBuffer(context, CL_MEM_READ_WRITE, 2 *nFreq * sizeof(float), NULL, &ret);
-  printf("\ncreate variable 1 %d\n", ret);
+  logPrint(LOG_INFO, "\ncreate variable 1 %d\n", ret);
 	
-  printf("\nallocated memory\n");
+  logPrint(LOG_INFO, "\nallocated memory\n");
 
    // Copy fft to GPU
 	ret = clEnqueueWriteBuffer(commandQueue, d_FFT, CL_TRUE, 0, 2 * nFreq * sizeof(float), h_fft, 0, NULL, NULL);;
-  printf("\ncopy to GPU  %d\n", ret);
+  logPrint(LOG_INFO, "\ncopy to GPU  %d\n", ret);
 
   // create output buffer 
   cl_mem out = clCreateBuffer(context, CL_MEM_READ_WRITE, N0*N1*sizeof(float), NULL, &ret);
-  printf("\ncreate img on GPU %d\n", ret);
+  logPrint(LOG_INFO, "\ncreate img on GPU %d\n", ret);
 
   fft2dinv_32f_lp(N0, N1, (long long)d_FFT, (long long)out, (long long)context, (long long)commandQueue);
   
@@ -844,8 +2078,9 @@ int fftinv2d_32f(size_t N0, size_t N1, float *h_fft, float * h_out) {
   clReleaseMemObject( d_FFT );
   clReleaseMemObject( out );
 
-   // Release clFFT library. 
-   clfftTeardown( );
+  // the context is private to this call so don't keep its plans and programs
+  evictPlansForContext(context);
+  evictProgramsForContext(context);
 
    // Release OpenCL working objects.
    clReleaseCommandQueue( commandQueue );
@@ -856,7 +2091,7 @@ int fftinv2d_32f(size_t N0, size_t N1, float *h_fft, float * h_out) {
 }
 
 int conv3d_32f_lp(size_t N0, size_t N1, size_t N2, long long l_image, long long l_psf,  long long l_output, bool correlate, long long l_context, long long l_queue, long long l_device) {
-  printf("enter convolve");
+  logPrint(LOG_INFO, "enter convolve");
 
   cl_int ret;
 
@@ -884,21 +2119,28 @@ int conv3d_32f_lp(size_t N0, size_t N1, size_t N2, long long l_image, long long
  
   // create memory for FFT of estimate and PSF 
 	cl_mem estimateFFT = clCreateBuffer(context, CL_MEM_READ_WRITE, 2*nFreq * sizeof(float), NULL, &ret);
-  printf("\ncreate PSF FFT %d\n", ret);
+  logPrint(LOG_INFO, "\ncreate PSF FFT %d\n", ret);
  
-  cl_mem psfFFT = clCreateBuffer(context, CL_MEM_READ_WRITE, 2*nFreq * sizeof(float), NULL, &ret);
-  printf("\ncreate Object FFT %d\n", ret);
-		
-  // Create program from kernel source
-	cl_program program = clCreateProgramWithSource(context, 1, (const char **)&programString, NULL, &ret);	
-  printf("\ncreate program %d\n", ret);
+  cl_mem psfFFT = NULL;
+  if (ret==CL_SUCCESS) {
+    psfFFT = clCreateBuffer(context, CL_MEM_READ_WRITE, 2*nFreq * sizeof(float), NULL, &ret);
+    logPrint(LOG_INFO, "\ncreate Object FFT %d\n", ret);
+  }
 
-	// Build opencl program
-	ret = clBuildProgram(program, 1, &deviceID, NULL, NULL, NULL);
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "convolve could not allocate FFT buffers %d\n", ret);
+    if (estimateFFT!=NULL) clReleaseMemObject( estimateFFT );
+    return ret;
+  }
+		
+  // Get the program (only built the first time in this context)
+	cl_program program = acquireProgram(context, deviceID, programString, &ret);	
 
-  printf("\nbuild program %d\n", ret);
+  logPrint(LOG_INFO, "\nbuild program %d\n", ret);
 
   if (ret!=0) {
+    clReleaseMemObject( psfFFT );
+    clReleaseMemObject( estimateFFT );
     return ret;
   }
 
@@ -906,303 +2148,1106 @@ int conv3d_32f_lp(size_t N0, size_t N1, size_t N2, long long l_image, long long
   cl_kernel kernel;
 
   if (correlate==false) {
-  std::cout<<"it's convolve\n"<<std::flush;
+  logPrint(LOG_INFO, "it's convolve\n");
 	  kernel = clCreateKernel(program, "vecComplexMultiply", &ret);
   } else {
-  std::cout<<"it's coerrelate\n"<<std::flush;
+  logPrint(LOG_INFO, "it's coerrelate\n");
     kernel = clCreateKernel(program, "vecComplexConjugateMultiply", &ret);
   }
-  printf("\ncreate KERNEL in GPU %d\n", ret);
+  logPrint(LOG_INFO, "\ncreate KERNEL in GPU %d\n", ret);
+
+  setupFFT();
 
-  clfftPlanHandle planHandleForward=bake_3d_forward_32f(N0, N1, N2, context, commandQueue);
-  clfftPlanHandle planHandleBackward=bake_3d_backward_32f(N0, N1, N2, context, commandQueue);
+  // a plan that failed to bake is not acquired, so it is not released either
+  cl_int planRet = CL_SUCCESS;
+  clfftPlanHandle planHandleForward=acquirePlan(CLFFT_3D, N0, N1, N2, true, context, commandQueue, &planRet);
+  bool forwardAcquired = planRet==CL_SUCCESS;
+  clfftPlanHandle planHandleBackward=0;
+  if (forwardAcquired) {
+    planHandleBackward=acquirePlan(CLFFT_3D, N0, N1, N2, false, context, commandQueue, &planRet);
+  }
+  bool backwardAcquired = forwardAcquired && planRet==CL_SUCCESS;
+  ret = firstError(ret, planRet);
   
   // compute item sizes 
   size_t localItemSize=64;
 	size_t globalItemSize= ceil((N2*N1*N0)/(float)localItemSize)*localItemSize;
 	size_t globalItemSizeFreq = ceil((nFreq)/(float)localItemSize)*localItemSize;
-  printf("nFreq %lu glbalItemSizeFreq %lu\n",nFreq, globalItemSizeFreq);
+  logPrint(LOG_INFO, "nFreq %lu glbalItemSizeFreq %lu\n",nFreq, globalItemSizeFreq);
  
   // FFT of PSF
-  ret = clfftEnqueueTransform(planHandleForward, CLFFT_FORWARD, 1, &commandQueue, 0, NULL, NULL, &d_psf, &psfFFT, NULL);
-  printf("fft psf %d\n", ret);
+  if (ret==CL_SUCCESS) {
+    ret = clfftEnqueueTransform(planHandleForward, CLFFT_FORWARD, 1, &commandQueue, 0, NULL, NULL, &d_psf, &psfFFT, NULL);
+    logPrint(LOG_INFO, "fft psf %d\n", ret);
+  }
   
   // FFT of estimate
-  ret = clfftEnqueueTransform(planHandleForward, CLFFT_FORWARD, 1, &commandQueue, 0, NULL, NULL, &d_image, &estimateFFT, NULL);
-  printf("fft estimate %d\n", ret);
+  if (ret==CL_SUCCESS) {
+    ret = clfftEnqueueTransform(planHandleForward, CLFFT_FORWARD, 1, &commandQueue, 0, NULL, NULL, &d_image, &estimateFFT, NULL);
+    logPrint(LOG_INFO, "fft estimate %d\n", ret);
+  }
 
   // complex multipy estimate FFT and PSF FFT
-  ret = callKernel(kernel, estimateFFT, psfFFT, estimateFFT, nFreq, commandQueue, globalItemSizeFreq, localItemSize);
-  printf("kernel complex %d\n", ret);
+  if (ret==CL_SUCCESS) {
+    ret = callKernel(kernel, estimateFFT, psfFFT, estimateFFT, nFreq, commandQueue, globalItemSizeFreq, localItemSize);
+    logPrint(LOG_INFO, "kernel complex %d\n", ret);
+  }
   
   // Inverse to get convolved
-  ret = clfftEnqueueTransform(planHandleBackward, CLFFT_BACKWARD, 1, &commandQueue, 0, NULL, NULL, &estimateFFT, &d_output, NULL);
-  printf("fft inverse %d\n", ret);
+  if (ret==CL_SUCCESS) {
+    ret = clfftEnqueueTransform(planHandleBackward, CLFFT_BACKWARD, 1, &commandQueue, 0, NULL, NULL, &estimateFFT, &d_output, NULL);
+    logPrint(LOG_INFO, "fft inverse %d\n", ret);
+  }
+
+  // wait, so device allocation failures are reported here
+  if (ret==CL_SUCCESS) {
+    ret = clFinish(commandQueue);
+  }
+
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "convolve failed %d\n", ret);
+  }
  
   // Release OpenCL memory objects. 
   clReleaseMemObject( psfFFT );
   clReleaseMemObject( estimateFFT );
 
-   // Release the plan. 
-   ret = clfftDestroyPlan( &planHandleForward);
-   ret = clfftDestroyPlan( &planHandleBackward );
+  // Release the kernel and program (the program stays cached) 
+  clReleaseKernel(kernel);
+  clReleaseProgram(program);
+
+   // Release the plans (they stay cached) 
+   if (forwardAcquired) releasePlan(planHandleForward);
+   if (backwardAcquired) releasePlan(planHandleBackward);
+
+  return ret;
+}
+
+int conv3d_32f(size_t N0, size_t N1, size_t N2, float *h_image, float *h_psf, float *h_out) {
+
+  cl_platform_id platformId = NULL;
+	cl_device_id deviceID = NULL;
+	cl_uint retNumDevices;
+	cl_uint retNumPlatforms;
+  cl_int ret = clGetPlatformIDs(1, &platformId, &retNumPlatforms);
+
+  logPrint(LOG_INFO, "\ncreated platform\n");
+
+	ret = clGetDeviceIDs(platformId, CL_DEVICE_TYPE_DEFAULT, 1, &deviceID, &retNumDevices);
+
+	// Creating context.
+	cl_context context = clCreateContext(NULL, 1, &deviceID, NULL, NULL,  &ret);
+
+  logPrint(LOG_INFO, "\ncreated context\n");
+
+	// Creating command queue
+	cl_command_queue commandQueue = clCreateCommandQueue(context, deviceID, 0, &ret);
+
+  logPrint(LOG_INFO, "\ncreated command queue\n");
+	
+  // Memory buffers for each array
+	cl_mem d_image = clCreateBuffer(context, CL_MEM_READ_WRITE, N2*N1*N0 * sizeof(float), NULL, &ret);
+  logPrint(LOG_INFO, "\ncreate gpu mem for image %d\n", ret);
+	cl_mem d_psf = clCreateBuffer(context, CL_MEM_READ_WRITE, N2*N1*N0 * sizeof(float), NULL, &ret);
+  logPrint(LOG_INFO, "\ncreate gpu mem for psf %d\n", ret);
+	cl_mem d_out = clCreateBuffer(context, CL_MEM_READ_WRITE, N2*N1*N0 * sizeof(float), NULL, &ret);
+  logPrint(LOG_INFO, "\ncreate variable 3 %d\n", ret);
+  
+  logPrint(LOG_INFO, "\nallocated memory\n");
+
+   // Copy to memory buffers
+	ret = clEnqueueWriteBuffer(commandQueue, d_image, CL_TRUE, 0, N2*N1*N0 * sizeof(float), h_image, 0, NULL, NULL);;
+  logPrint(LOG_INFO, "\ncopy to GPU  %d\n", ret);
+	ret = clEnqueueWriteBuffer(commandQueue, d_psf, CL_TRUE, 0, N2*N1*N0 * sizeof(float), h_psf, 0, NULL, NULL);
+  logPrint(LOG_INFO, "\ncopy to GPU  %d\n", ret);
+
+  conv3d_32f_lp(N0, N1, N2, (long long)d_image, (long long)d_psf, (long long)d_out, 0, (long long)context, (long long)commandQueue, (long long)deviceID);
+
+  // copy back to host 
+  ret = clEnqueueReadBuffer( commandQueue, d_out, CL_TRUE, 0, N0*N1*N2*sizeof(float), h_out, 0, NULL, NULL );
+
+  return 0;
+}
+
+int deconvRichardsonLucy(int iterations, float regularizationFactor, size_t N0, size_t N1, size_t N2, long long l_observed, long long l_psf, long long l_otf, long long l_estimate, long long l_normal, long long l_context, long long l_queue, long long l_device);
+
+int deconv3d_32f_lp(int iterations, size_t N0, size_t N1, size_t N2, long long l_observed, long long l_psf, long long l_estimate, long long l_normal, long long l_context, long long l_queue, long long l_device) {
+
+  return deconv3d_32f_lp_tv(iterations, 0., N0, N1, N2, l_observed, l_psf, l_estimate, l_normal, l_context, l_queue, l_device);  
+
+}
+
+int deconv3d_32f_lp_tv(int iterations, float regularizationFactor, size_t N0, size_t N1, size_t N2, long long l_observed, long long l_psf, long long l_estimate, long long l_normal, long long l_context, long long l_queue, long long l_device) {
+
+  return deconvRichardsonLucy(iterations, regularizationFactor, N0, N1, N2, l_observed, l_psf, 0, l_estimate, l_normal, l_context, l_queue, l_device);
+
+}
+
+/**
+ * Richardson Lucy with a precomputed OTF (the forward FFT of the extended and shifted PSF, see 
+ * OTFCache on the java side).  The OTF is only read, so it can be re-used for many calls. 
+ * */
+int deconv3d_32f_lp_tv_otf(int iterations, float regularizationFactor, size_t N0, size_t N1, size_t N2, long long l_observed, long long l_otf, long long l_estimate, long long l_normal, long long l_context, long long l_queue, long long l_device) {
+
+  return deconvRichardsonLucy(iterations, regularizationFactor, N0, N1, N2, l_observed, 0, l_otf, l_estimate, l_normal, l_context, l_queue, l_device);
+
+}
+
+/**
+ * Richardson Lucy session.  Holds everything that only depends on the image size, the PSF and 
+ * the options (work buffers, OTF, compiled kernels and plans), so a session can be run on many 
+ * images without allocating memory, compiling programs or baking plans.  
+ * */
+struct DeconvSession {
+  size_t N0, N1, N2;
+  unsigned long n, nFreq;
+  float regularizationFactor;
+  bool tv;
+
+  cl_context context;
+  cl_command_queue commandQueue;
+  cl_device_id deviceID;
+
+  // queue passed in, differs from commandQueue (retained) if profiling was on at creation 
+  cl_command_queue externalQueue;
+
+  // FFT of the PSF, retained if it was passed in, otherwise owned by the session
+  cl_mem psfFFT;
+  cl_mem d_reblurred;
+  cl_mem estimateFFT;
+  cl_mem d_variation;
+
+  cl_program program;
+  cl_program programTV;
+  cl_kernel kernelComplexMultiply;
+  cl_kernel kernelComplexConjugateMultiply;
+  cl_kernel kernelDiv;
+  cl_kernel kernelMul;
+  cl_kernel kernelRemoveSmallValues;
+  cl_kernel kernelTV;
+
+  clfftPlanHandle planHandleForward;
+  clfftPlanHandle planHandleBackward;
+  bool plansAcquired;
+
+  size_t localItemSize;
+  size_t globalItemSize;
+  size_t globalItemSizeFreq;
+
+  // stopping criterion (see deconv_session_set_stopping)
+  int stopMeasure;
+  float stopTolerance;
+  int stopInterval;
+  cl_kernel kernelPartialSums;
+  cl_mem d_partialSums;
+  cl_mem d_previous;
+  std::vector<float> partialSums;
+
+  // Biggs-Andrews acceleration (see deconv_session_set_acceleration)
+  bool accelerate;
+  cl_kernel kernelSub;
+  cl_kernel kernelAccelerationFactor;
+  cl_kernel kernelPredict;
+  cl_mem d_accelY;
+  cl_mem d_accelXPrevious;
+  cl_mem d_accelG;
+  cl_mem d_accelGPrevious;
+  cl_mem d_accelAlpha;
+
+  // fused kernels (see set_fused_kernels)
+  cl_kernel kernelComplexMultiplyOTF;
+  cl_kernel kernelUpdate;
+  cl_kernel kernelTVUpdate;
+
+  // global memory read and written by the last run
+  long long bytesMoved;
+
+  // iterations done and last value of the measure of the last run
+  int iterationsRun;
+  double lastMeasure;
+};
+
+// stopping criteria
+#define STOP_NONE 0
+#define STOP_RELATIVE_CHANGE 1
+#define STOP_I_DIVERGENCE 2
+#define STOP_RESIDUAL_NORM 3
+
+// measure of the partial sums kernel for the dot products of the acceleration
+#define SUMS_DOT 4
+
+// number of work groups of the partial sums kernel, the host adds up their sums
+#define REDUCE_GROUPS 256
+
+/**
+ * Release everything a session holds.  Members that were never created are NULL. 
+ * */
+void destroySession(DeconvSession *session) {
+
+  if (session==NULL) {
+    return;
+  }
+
+  if (session->plansAcquired) {
+    // Release the plans (they stay cached) 
+    releasePlan(session->planHandleForward);
+    releasePlan(session->planHandleBackward);
+  }
+
+  if (session->kernelComplexMultiply!=NULL) clReleaseKernel(session->kernelComplexMultiply);
+  if (session->kernelComplexConjugateMultiply!=NULL) clReleaseKernel(session->kernelComplexConjugateMultiply);
+  if (session->kernelDiv!=NULL) clReleaseKernel(session->kernelDiv);
+  if (session->kernelMul!=NULL) clReleaseKernel(session->kernelMul);
+  if (session->kernelRemoveSmallValues!=NULL) clReleaseKernel(session->kernelRemoveSmallValues);
+  if (session->kernelTV!=NULL) clReleaseKernel(session->kernelTV);
+  if (session->kernelPartialSums!=NULL) clReleaseKernel(session->kernelPartialSums);
+  if (session->kernelSub!=NULL) clReleaseKernel(session->kernelSub);
+  if (session->kernelAccelerationFactor!=NULL) clReleaseKernel(session->kernelAccelerationFactor);
+  if (session->kernelPredict!=NULL) clReleaseKernel(session->kernelPredict);
+  if (session->kernelComplexMultiplyOTF!=NULL) clReleaseKernel(session->kernelComplexMultiplyOTF);
+  if (session->kernelUpdate!=NULL) clReleaseKernel(session->kernelUpdate);
+  if (session->kernelTVUpdate!=NULL) clReleaseKernel(session->kernelTVUpdate);
+  if (session->program!=NULL) clReleaseProgram(session->program);
+  if (session->programTV!=NULL) clReleaseProgram(session->programTV);
+
+  if (session->d_reblurred!=NULL) clReleaseMemObject(session->d_reblurred);
+  if (session->estimateFFT!=NULL) clReleaseMemObject(session->estimateFFT);
+  if (session->d_variation!=NULL) clReleaseMemObject(session->d_variation);
+  if (session->d_partialSums!=NULL) clReleaseMemObject(session->d_partialSums);
+  if (session->d_previous!=NULL) clReleaseMemObject(session->d_previous);
+  if (session->d_accelY!=NULL) clReleaseMemObject(session->d_accelY);
+  if (session->d_accelXPrevious!=NULL) clReleaseMemObject(session->d_accelXPrevious);
+  if (session->d_accelG!=NULL) clReleaseMemObject(session->d_accelG);
+  if (session->d_accelGPrevious!=NULL) clReleaseMemObject(session->d_accelGPrevious);
+  if (session->d_accelAlpha!=NULL) clReleaseMemObject(session->d_accelAlpha);
+  if (session->psfFFT!=NULL) clReleaseMemObject(session->psfFFT);
+
+  if (session->commandQueue!=NULL && session->commandQueue!=session->externalQueue) {
+    clReleaseCommandQueue(session->commandQueue);
+  }
+
+  delete session;
+}
+
+/**
+ * Create a Richardson Lucy session for images of size N0 x N1 x N2.  Either d_psf (extended and 
+ * shifted PSF, transformed here) or d_otf (its FFT, retained by the session) has to be set. 
+ * Returns NULL if something could not be created, the error is written to ret. 
+ * */
+DeconvSession * createSession(size_t N0, size_t N1, size_t N2, float regularizationFactor, cl_mem d_psf, cl_mem d_otf, cl_context context, cl_command_queue commandQueue, cl_device_id deviceID, cl_int *ret) {
+
+  DeconvSession *session = new DeconvSession();
+
+  session->N0 = N0;
+  session->N1 = N1;
+  session->N2 = N2;
+
+  // size in spatial domain
+  session->n = N0*N1*N2;
+
+  // size in frequency domain
+  session->nFreq=(N0/2+1)*N1*N2;
+
+  session->regularizationFactor = regularizationFactor;
+  session->tv = regularizationFactor>0;
+  session->context = context;
+  session->externalQueue = commandQueue;
+  session->deviceID = deviceID;
+
+  // with profiling on the session runs on a profiling queue for its whole life 
+  commandQueue = profilingQueue(commandQueue);
+  session->commandQueue = commandQueue;
+
+  if (commandQueue!=session->externalQueue) {
+    clRetainCommandQueue(commandQueue);
+  }
+
+  // create memory for reblurred 	
+  session->d_reblurred = clCreateBuffer(context, CL_MEM_READ_WRITE, N2*N1*N0 * sizeof(float), NULL, ret);
+  logPrint(LOG_INFO, "\ncreate memory for reblurred %d\n", *ret);
+ 
+  // create memory for FFT of estimate 
+  if (*ret==CL_SUCCESS) {
+	  session->estimateFFT = clCreateBuffer(context, CL_MEM_READ_WRITE, 2*session->nFreq * sizeof(float), NULL, ret);
+    logPrint(LOG_INFO, "\ncreate estimate FFT %d\n", *ret);
+  }
+
+  if (*ret==CL_SUCCESS && session->tv) {
+    session->d_variation = clCreateBuffer(context, CL_MEM_READ_WRITE, N2*N1*N0 * sizeof(float), NULL, ret);
+  }
+
+  // use the precomputed OTF if one was passed, otherwise the PSF is transformed below 
+  if (*ret==CL_SUCCESS) {
+    if (d_otf!=NULL) {
+      clRetainMemObject(d_otf);
+      session->psfFFT = d_otf;
+    }
+    else {
+      session->psfFFT = clCreateBuffer(context, CL_MEM_READ_WRITE, 2*session->nFreq * sizeof(float), NULL, ret);
+      logPrint(LOG_INFO, "\ncreate PSF FFT %d\n", *ret);
+    }
+  }
+
+  if (*ret!=CL_SUCCESS) {
+    destroySession(session);
+    return NULL;
+  }
+	
+  // Create kernels 	
+  // Get the program (only built the first time in this context)
+	session->program = acquireProgram(context, deviceID, programString, ret);	
+
+  logPrint(LOG_INFO, "\nbuild program %d\n", *ret);
+
+  if (*ret!=0) {
+    destroySession(session);
+    return NULL;
+  }
+
+	// Create complex multiply kernel
+	session->kernelComplexMultiply = clCreateKernel(session->program, "vecComplexMultiply", ret);
+ 
+ 	// Create complex conjugate multiply kernel
+	session->kernelComplexConjugateMultiply = clCreateKernel(session->program, "vecComplexConjugateMultiply", ret);
+ 	
+  // Create divide kernel
+	session->kernelDiv = clCreateKernel(session->program, "vecDiv", ret);
+ 
+  // Create multiply kernel
+	session->kernelMul = clCreateKernel(session->program, "vecMul", ret);
+
+  // Create remove small values kernel
+	session->kernelRemoveSmallValues = clCreateKernel(session->program, "removeSmallValues", ret);
+
+  // Create partial sums kernel (stopping criteria)
+	session->kernelPartialSums = clCreateKernel(session->program, "partialSums", ret);
+
+  // Create acceleration kernels
+	session->kernelSub = clCreateKernel(session->program, "vecSub", ret);
+	session->kernelAccelerationFactor = clCreateKernel(session->program, "accelerationFactor", ret);
+	session->kernelPredict = clCreateKernel(session->program, "biggsAndrewsPredict", ret);
+
+  // Create fused kernels
+	session->kernelComplexMultiplyOTF = clCreateKernel(session->program, "complexMultiplyOTF", ret);
+	session->kernelUpdate = clCreateKernel(session->program, "updateEstimate", ret);
+  logPrint(LOG_INFO, "\ncreate kernels %d\n", *ret);
+
+  if (session->tv) {
+    logPrint(LOG_INFO, "\n\nCompile total variation kernel\n\n");
+    session->programTV = acquireProgram(context, deviceID, __cle_totalvariationterm_h, ret);
+
+    if (*ret==CL_SUCCESS) {
+      session->kernelTV = clCreateKernel(session->programTV, "totalVariationTerm", ret);
+    }
+
+    if (*ret==CL_SUCCESS) {
+      session->kernelTVUpdate = clCreateKernel(session->programTV, "totalVariationUpdate", ret);
+    }
+
+    logPrint(LOG_INFO, "\ncreate total variaton KERNEL in GPU %d\n", *ret);
+  }
+
+  if (*ret!=CL_SUCCESS) {
+    destroySession(session);
+    return NULL;
+  }
+
+  setupFFT();
+
+  session->planHandleForward=acquirePlan(CLFFT_3D, N0, N1, N2, true, context, commandQueue, ret);
+
+  if (*ret!=CL_SUCCESS) {
+    destroySession(session);
+    return NULL;
+  }
+
+  session->planHandleBackward=acquirePlan(CLFFT_3D, N0, N1, N2, false, context, commandQueue, ret);
+
+  // destroySession releases both plans, so the forward plan is released here if the inverse failed
+  if (*ret!=CL_SUCCESS) {
+    releasePlan(session->planHandleForward);
+    destroySession(session);
+    return NULL;
+  }
+
+  session->plansAcquired = true;
+
+  // compute item sizes 
+  session->localItemSize=64;
+	session->globalItemSize= ceil((N2*N1*N0)/(float)session->localItemSize)*session->localItemSize;
+	session->globalItemSizeFreq = ceil((session->nFreq+1000)/(float)session->localItemSize)*session->localItemSize;
+  logPrint(LOG_INFO, "nFreq %lu glbalItemSizeFreq %lu\n",session->nFreq, session->globalItemSizeFreq);
+  
+   // FFT of PSF
+  if (d_otf==NULL) {
+    *ret = clfftEnqueueTransform(session->planHandleForward, CLFFT_FORWARD, 1, &commandQueue, 0, NULL, NULL, &d_psf, &session->psfFFT, NULL);
+
+    logPrint(LOG_INFO, "FFT of PSF %d\n", *ret);
+
+    if (*ret!=CL_SUCCESS) {
+      destroySession(session);
+      return NULL;
+    }
+  }
+
+  return session;
+}
+
+/**
+ * Enqueue the partial sums of a measure of a and b, each work group writes one pair of sums 
+ * to d_partialSums. 
+ * */
+cl_int enqueuePartialSums(DeconvSession *session, cl_mem a, cl_mem b, int measure) {
+
+  cl_int ret = clSetKernelArg(session->kernelPartialSums, 0, sizeof(cl_mem), (void *)&a);
+  ret |= clSetKernelArg(session->kernelPartialSums, 1, sizeof(cl_mem), (void *)&b);
+  ret |= clSetKernelArg(session->kernelPartialSums, 2, sizeof(cl_mem), (void *)&session->d_partialSums);
+  unsigned int n = session->n;
+  ret |= clSetKernelArg(session->kernelPartialSums, 3, sizeof(unsigned int), &n);
+  ret |= clSetKernelArg(session->kernelPartialSums, 4, sizeof(int), &measure);
+  ret |= clSetKernelArg(session->kernelPartialSums, 5, session->localItemSize*sizeof(float), NULL);
+  ret |= clSetKernelArg(session->kernelPartialSums, 6, session->localItemSize*sizeof(float), NULL);
+
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "set partial sums arguments %d\n", ret);
+    return ret;
+  }
+
+  size_t globalItemSize = REDUCE_GROUPS*session->localItemSize;
 
-   // Release clFFT library. 
-   clfftTeardown( );
+  ret = clEnqueueNDRangeKernel(session->commandQueue, session->kernelPartialSums, 1, NULL, &globalItemSize, &session->localItemSize, 0, NULL, NULL);
+
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "enqueue partial sums %d\n", ret);
+  }
 
   return ret;
 }
 
-int conv3d_32f(size_t N0, size_t N1, size_t N2, float *h_image, float *h_psf, float *h_out) {
+/**
+ * Compute the stopping measure of a and b on the device.  Only the partial sums are read back 
+ * (this waits for the queue). 
+ * */
+cl_int reduceSession(DeconvSession *session, cl_mem a, cl_mem b, double *value) {
 
-  cl_platform_id platformId = NULL;
-	cl_device_id deviceID = NULL;
-	cl_uint retNumDevices;
-	cl_uint retNumPlatforms;
-  cl_int ret = clGetPlatformIDs(1, &platformId, &retNumPlatforms);
+  cl_int ret = enqueuePartialSums(session, a, b, session->stopMeasure);
 
-  printf("\ncreated platform\n");
+  if (ret!=CL_SUCCESS) {
+    return ret;
+  }
 
-	ret = clGetDeviceIDs(platformId, CL_DEVICE_TYPE_DEFAULT, 1, &deviceID, &retNumDevices);
+  ret = clEnqueueReadBuffer(session->commandQueue, session->d_partialSums, CL_TRUE, 0, 2*REDUCE_GROUPS*sizeof(float), session->partialSums.data(), 0, NULL, NULL);
 
-	// Creating context.
-	cl_context context = clCreateContext(NULL, 1, &deviceID, NULL, NULL,  &ret);
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "read partial sums %d\n", ret);
+    return ret;
+  }
 
-  printf("\ncreated context\n");
+  double num = 0, den = 0;
 
-	// Creating command queue
-	cl_command_queue commandQueue = clCreateCommandQueue(context, deviceID, 0, &ret);
+  for (int i=0;i<REDUCE_GROUPS;i++) {
+    num += session->partialSums[2*i];
+    den += session->partialSums[2*i+1];
+  }
 
-  printf("\ncreated command queue\n");
-	
-  // Memory buffers for each array
-	cl_mem d_image = clCreateBuffer(context, CL_MEM_READ_WRITE, N2*N1*N0 * sizeof(float), NULL, &ret);
-  printf("\ncreate gpu mem for image %d\n", ret);
-	cl_mem d_psf = clCreateBuffer(context, CL_MEM_READ_WRITE, N2*N1*N0 * sizeof(float), NULL, &ret);
-  printf("\ncreate gpu mem for psf %d\n", ret);
-	cl_mem d_out = clCreateBuffer(context, CL_MEM_READ_WRITE, N2*N1*N0 * sizeof(float), NULL, &ret);
-  printf("\ncreate variable 3 %d\n", ret);
-  
-  printf("\nallocated memory\n");
+  if (den<=0) {
+    *value = 0;
+  }
+  else if (session->stopMeasure==STOP_I_DIVERGENCE) {
+    // I-divergence per unit of observed intensity
+    *value = num/den;
+  }
+  else {
+    // relative L2 norm
+    *value = sqrt(num/den);
+  }
 
-   // Copy to memory buffers
-	ret = clEnqueueWriteBuffer(commandQueue, d_image, CL_TRUE, 0, N2*N1*N0 * sizeof(float), h_image, 0, NULL, NULL);;
-  printf("\ncopy to GPU  %d\n", ret);
-	ret = clEnqueueWriteBuffer(commandQueue, d_psf, CL_TRUE, 0, N2*N1*N0 * sizeof(float), h_psf, 0, NULL, NULL);
-  printf("\ncopy to GPU  %d\n", ret);
+  return CL_SUCCESS;
+}
 
-  conv3d_32f_lp(N0, N1, N2, (long long)d_image, (long long)d_psf, (long long)d_out, 0, (long long)context, (long long)commandQueue, (long long)deviceID);
+/**
+ * Multiply a by the OTF of the session (or its conjugate), one kernel for both directions 
+ * */
+cl_int callComplexMultiplyOTF(DeconvSession *session, cl_mem a, bool conjugate) {
 
-  // copy back to host 
-  ret = clEnqueueReadBuffer( commandQueue, d_out, CL_TRUE, 0, N0*N1*N2*sizeof(float), h_out, 0, NULL, NULL );
+  int conj = conjugate ? 1 : 0;
+  unsigned int nFreq = session->nFreq;
 
-  return 0;
-}
+  cl_int ret = clSetKernelArg(session->kernelComplexMultiplyOTF, 0, sizeof(cl_mem), (void *)&a);
+  ret |= clSetKernelArg(session->kernelComplexMultiplyOTF, 1, sizeof(cl_mem), (void *)&session->psfFFT);
+  ret |= clSetKernelArg(session->kernelComplexMultiplyOTF, 2, sizeof(cl_mem), (void *)&a);
+  ret |= clSetKernelArg(session->kernelComplexMultiplyOTF, 3, sizeof(unsigned int), &nFreq);
+  ret |= clSetKernelArg(session->kernelComplexMultiplyOTF, 4, sizeof(int), &conj);
 
-int deconv3d_32f_lp(int iterations, size_t N0, size_t N1, size_t N2, long long l_observed, long long l_psf, long long l_estimate, long long l_normal, long long l_context, long long l_queue, long long l_device) {
+  if (ret==CL_SUCCESS) {
+    ret = clEnqueueNDRangeKernel(session->commandQueue, session->kernelComplexMultiplyOTF, 1, NULL, &session->globalItemSizeFreq, &session->localItemSize, 0, NULL, NULL);
+  }
 
-  return deconv3d_32f_lp_tv(iterations, 0., N0, N1, N2, l_observed, l_psf, l_estimate, l_normal, l_context, l_queue, l_device);  
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "complex multiply OTF %d\n", ret);
+  }
 
+  return ret;
 }
 
-int deconv3d_32f_lp_tv(int iterations, float regularizationFactor, size_t N0, size_t N1, size_t N2, long long l_observed, long long l_psf, long long l_estimate, long long l_normal, long long l_context, long long l_queue, long long l_device) {
+/**
+ * estimate = estimate*update (/normal) in one pass 
+ * */
+cl_int callUpdateKernel(DeconvSession *session, cl_mem d_estimate, cl_mem d_update, cl_mem d_normal) {
 
-  cl_int ret;
-  
-  bool tv=false;
+  int useNormal = d_normal!=NULL ? 1 : 0;
+  unsigned int n = session->n;
 
-  if (regularizationFactor>0) {
-    tv=true;
-  }
-	
-  // cast long long to context 
-	cl_context context = (cl_context)l_context;
-  
-	// cast long long to queue 
-	cl_command_queue commandQueue = (cl_command_queue)l_queue;
-	
-  // cast long long pointers to cl_mem 
-	cl_mem d_observed = (cl_mem)l_observed;
-	cl_mem d_psf =  (cl_mem)l_psf;
-	cl_mem d_estimate = (cl_mem)l_estimate; 
+  // the kernel needs a valid buffer even if the normal is not used
+  cl_mem normal = d_normal!=NULL ? d_normal : d_update;
 
-  cl_mem d_normal = NULL;
+  cl_int ret = clSetKernelArg(session->kernelUpdate, 0, sizeof(cl_mem), (void *)&d_estimate);
+  ret |= clSetKernelArg(session->kernelUpdate, 1, sizeof(cl_mem), (void *)&d_update);
+  ret |= clSetKernelArg(session->kernelUpdate, 2, sizeof(cl_mem), (void *)&normal);
+  ret |= clSetKernelArg(session->kernelUpdate, 3, sizeof(unsigned int), &n);
+  ret |= clSetKernelArg(session->kernelUpdate, 4, sizeof(int), &useNormal);
 
-  if (l_normal!=0) {
-    d_normal = (cl_mem)l_normal;
+  if (ret==CL_SUCCESS) {
+    ret = clEnqueueNDRangeKernel(session->commandQueue, session->kernelUpdate, 1, NULL, &session->globalItemSize, &session->localItemSize, 0, NULL, NULL);
   }
 
-  cl_device_id deviceID = (cl_device_id)l_device;
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "update estimate %d\n", ret);
+  }
 
-  // size in spatial domain
-  unsigned long n = N0*N1*N2;
+  return ret;
+}
 
-  // size in frequency domain
-  unsigned long nFreq=(N0/2+1)*N1*N2;
+/**
+ * updated = estimate*correction/total variation term (/normal) in one pass.  updated has to be 
+ * another buffer than estimate. 
+ * */
+cl_int callVariationUpdateKernel(DeconvSession *session, cl_mem d_estimate, cl_mem d_correction, cl_mem d_normal, cl_mem d_updated) {
 
-  // create memory for reblurred 	
-  cl_mem d_reblurred = clCreateBuffer(context, CL_MEM_READ_WRITE, N2*N1*N0 * sizeof(float), NULL, &ret);
-  printf("\ncreate memory for reblurred %d\n", ret);
- 
-  // create memory for FFT of estimate and PSF 
-	cl_mem estimateFFT = clCreateBuffer(context, CL_MEM_READ_WRITE, 2*nFreq * sizeof(float), NULL, &ret);
-  printf("\ncreate PSF FFT %d\n", ret);
- 
-  cl_mem psfFFT = clCreateBuffer(context, CL_MEM_READ_WRITE, 2*nFreq * sizeof(float), NULL, &ret);
-  printf("\ncreate Object FFT %d\n", ret);
+  cl_kernel kernel = session->kernelTVUpdate;
 
-  cl_mem d_variation;
+  int useNormal = d_normal!=NULL ? 1 : 0;
+  cl_mem normal = d_normal!=NULL ? d_normal : d_correction;
+
+  unsigned int Nx = session->N0, Ny = session->N1, Nz = session->N2;
+  float hx = 1.0, hy = 1.0, hz = 3.0;
+
+  cl_int ret = clSetKernelArg(kernel, 0, sizeof(cl_mem), (void *)&d_estimate);
+  ret |= clSetKernelArg(kernel, 1, sizeof(cl_mem), (void *)&d_correction);
+  ret |= clSetKernelArg(kernel, 2, sizeof(cl_mem), (void *)&normal);
+  ret |= clSetKernelArg(kernel, 3, sizeof(cl_mem), (void *)&d_updated);
+  ret |= clSetKernelArg(kernel, 4, sizeof(unsigned int), &Nx);
+  ret |= clSetKernelArg(kernel, 5, sizeof(unsigned int), &Ny);
+  ret |= clSetKernelArg(kernel, 6, sizeof(unsigned int), &Nz);
+  ret |= clSetKernelArg(kernel, 7, sizeof(float), &hx);
+  ret |= clSetKernelArg(kernel, 8, sizeof(float), &hy);
+  ret |= clSetKernelArg(kernel, 9, sizeof(float), &hz);
+  ret |= clSetKernelArg(kernel, 10, sizeof(float), &session->regularizationFactor);
+  ret |= clSetKernelArg(kernel, 11, sizeof(int), &useNormal);
 
-  if (tv==true) {
-    d_variation = clCreateBuffer(context, CL_MEM_READ_WRITE, N2*N1*N0 * sizeof(float), NULL, &ret);
+  size_t global[3] = {session->N0, session->N1, session->N2};
+
+  if (ret==CL_SUCCESS) {
+    ret = clEnqueueNDRangeKernel(session->commandQueue, kernel, 3, NULL, global, NULL, 0, NULL, NULL);
   }
-  else {
-    d_variation = NULL;
+
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "total variation update %d\n", ret);
   }
-	
-  // Create kernels 	
-  // Create program from kernel source
-	cl_program program = clCreateProgramWithSource(context, 1, (const char **)&programString, NULL, &ret);	
 
-  printf("\ncreate program %d\n", ret);
+  return ret;
+}
+
+/**
+ * Biggs-Andrews prediction.  d_estimate contains x(k+1) = RL(y(k)) and d_accelY y(k).  The 
+ * step alpha = (g(k).g(k-1))/(g(k-1).g(k-1)) with g(k) = x(k+1)-y(k) is computed on the device 
+ * and limited to [0, 1], then d_estimate is replaced by the prediction 
+ * y(k+1) = x(k+1) + alpha*(x(k+1)-x(k)). 
+ * */
+cl_int accelerateSession(DeconvSession *session, cl_mem d_estimate, bool first) {
 
-	// Build opencl program
-	ret = clBuildProgram(program, 1, &deviceID, NULL, NULL, NULL);
+  cl_int ret = callKernel(session->kernelSub, d_estimate, session->d_accelY, session->d_accelG, session->n, session->commandQueue, session->globalItemSize, session->localItemSize);
 
-  printf("\nbuild program %d\n", ret);
+  if (ret==CL_SUCCESS && !first) {
+    ret = enqueuePartialSums(session, session->d_accelG, session->d_accelGPrevious, SUMS_DOT);
 
-  if (ret!=0) {
-    return ret;
+    unsigned int groups = REDUCE_GROUPS;
+    ret |= clSetKernelArg(session->kernelAccelerationFactor, 0, sizeof(cl_mem), (void *)&session->d_partialSums);
+    ret |= clSetKernelArg(session->kernelAccelerationFactor, 1, sizeof(cl_mem), (void *)&session->d_accelAlpha);
+    ret |= clSetKernelArg(session->kernelAccelerationFactor, 2, sizeof(unsigned int), &groups);
+
+    size_t one = 1;
+    if (ret==CL_SUCCESS) {
+      ret = clEnqueueNDRangeKernel(session->commandQueue, session->kernelAccelerationFactor, 1, NULL, &one, &one, 0, NULL, NULL);
+    }
   }
 
-	// Create complex multiply kernel
-	cl_kernel kernelComplexMultiply = clCreateKernel(program, "vecComplexMultiply", &ret);
-  printf("\ncreate KERNEL in GPU %d\n", ret);
- 
- 	// Create complex conjugate multiply kernel
-	cl_kernel kernelComplexConjugateMultiply = clCreateKernel(program, "vecComplexConjugateMultiply", &ret);
-  printf("\ncreate KERNEL in GPU %d\n", ret);
- 	
-  // Create divide kernel
-	cl_kernel kernelDiv = clCreateKernel(program, "vecDiv", &ret);
-  printf("\ncreate Divide KERNEL in GPU %d\n", ret);
- 
-  // Create multiply kernel
-	cl_kernel kernelMul = clCreateKernel(program, "vecMul", &ret);
-  printf("\ncreate Divide KERNEL in GPU %d\n", ret);
+  if (ret==CL_SUCCESS) {
+    ret = callKernel(session->kernelPredict, d_estimate, session->d_accelXPrevious, session->d_accelAlpha, session->n, session->commandQueue, session->globalItemSize, session->localItemSize);
+  }
 
-  // Create remove small values kernel
-	cl_kernel kernelRemoveSamllValues = clCreateKernel(program, "removeSmallValues", &ret);
-  printf("\ncreate remove small values kernel %d\n", ret);
+  // g(k) is g(k-1) of the next iteration
+  cl_mem temp = session->d_accelG;
+  session->d_accelG = session->d_accelGPrevious;
+  session->d_accelGPrevious = temp;
 
-  cl_kernel kernelTV;
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "acceleration failed %d\n", ret);
+  }
 
-  if (tv==true) {
-   
-    //std::cout<< __cle_totalvariationterm_h <<"\n";
-    std::cout<<"\n\nCompile total variation kernel\n\n";
-    cl_program program2 = makeProgram(context, deviceID, __cle_totalvariationterm_h);
+  return ret;
+}
+
+/**
+ * Run iterations of Richardson Lucy.  d_estimate has to contain the first guess and is updated 
+ * in place, d_normal is the (optional) non-circulant normalization factor. 
+ * */
+cl_int runSession(DeconvSession *session, int iterations, cl_mem d_observed, cl_mem d_estimate, cl_mem d_normal) {
+
+  cl_int ret = CL_SUCCESS;
+
+  cl_command_queue commandQueue = session->commandQueue;
+  unsigned long n = session->n;
+  unsigned long nFreq = session->nFreq;
+  size_t localItemSize = session->localItemSize;
+  size_t globalItemSize = session->globalItemSize;
+  size_t globalItemSizeFreq = session->globalItemSizeFreq;
+
+  cl_mem d_reblurred = session->d_reblurred;
+  cl_mem estimateFFT = session->estimateFFT;
+  cl_mem psfFFT = session->psfFFT;
 
-    kernelTV = clCreateKernel(program2, "totalVariationTerm", &ret);
+  bool fused = fusedKernels!=0;
 
-    printf("\ncreate total variaton KERNEL in GPU %d\n", ret);
+  // bytes of one pass over an image and over its FFT
+  long long imageBytes = n*sizeof(float);
+  long long fftBytes = 2*nFreq*sizeof(float);
 
-    //free(program_str);
+  session->bytesMoved = 0;
+
+  if (commandQueue!=session->externalQueue) {
+    // profiling queue, the input has to be ready on the queue passed in 
+    clFinish(session->externalQueue);
   }
-  else {
-    kernelTV=NULL;
+
+  cl_event marker = NULL;
+
+  if (d_normal!=NULL) {
+    marker = profileBegin(commandQueue);
+    ret = callInPlaceKernel(session->kernelRemoveSmallValues, d_normal, n, commandQueue, globalItemSize, localItemSize);
+    profileEnd(commandQueue, PROFILE_NORMALIZE, marker);
+    logPrint(LOG_DEBUG, "\ncall remove small values kernel %d\n", ret);
+    session->bytesMoved += 2*imageBytes;
+
+    if (ret!=CL_SUCCESS) {
+      return ret;
+    }
   }
 
-  clfftPlanHandle planHandleForward=bake_3d_forward_32f(N0, N1, N2, context, commandQueue);
-  
-  clfftPlanHandle planHandleBackward=bake_3d_backward_32f(N0, N1, N2, context, commandQueue);
+  int stopMeasure = session->stopInterval>0 ? session->stopMeasure : STOP_NONE;
+  bool havePrevious = false;
+  double previousMeasure = 0;
 
-  // compute item sizes 
-  size_t localItemSize=64;
-	size_t globalItemSize= ceil((N2*N1*N0)/(float)localItemSize)*localItemSize;
-	size_t globalItemSizeFreq = ceil((nFreq+1000)/(float)localItemSize)*localItemSize;
-  printf("nFreq %lu glbalItemSizeFreq %lu\n",nFreq, globalItemSizeFreq);
-  
-   // FFT of PSF
-  ret = clfftEnqueueTransform(planHandleForward, CLFFT_FORWARD, 1, &commandQueue, 0, NULL, NULL, &d_psf, &psfFFT, NULL);
+  session->iterationsRun = 0;
+  session->lastMeasure = 0;
 
-  printf("FFT of PSF %d\n", ret);
+  if (session->accelerate) {
+    // no prediction before the second iteration
+    float zero = 0;
+    ret = clEnqueueWriteBuffer(commandQueue, session->d_accelAlpha, CL_TRUE, 0, sizeof(float), &zero, 0, NULL, NULL);
 
-  if (d_normal!=NULL) {
-    ret = callInPlaceKernel(kernelRemoveSamllValues, d_normal, n, commandQueue, globalItemSize, localItemSize);
-    printf("\ncall remove small values kernel %d\n", ret);
+    if (ret!=CL_SUCCESS) {
+      return ret;
+    }
   }
 
+  // the fused total variation update can not work in place, the estimate alternates between 
+  // d_estimate and d_variation 
+  cl_mem current = d_estimate;
+
   for (int i=0;i<iterations;i++) {
+      // check the stopping criterion every stopInterval iterations 
+      bool check = stopMeasure!=STOP_NONE && (i+1)%session->stopInterval==0;
+      double measure = 0;
+
+      if (check && stopMeasure==STOP_RELATIVE_CHANGE) {
+        // keep the estimate to compare with after the update
+        marker = profileBegin(commandQueue);
+        ret = firstError(ret, clEnqueueCopyBuffer(commandQueue, current, session->d_previous, 0, 0, n*sizeof(float), 0, NULL, NULL));
+        profileEnd(commandQueue, PROFILE_COPY, marker);
+        session->bytesMoved += 2*imageBytes;
+      }
+
+      if (session->accelerate) {
+        // keep the prediction y(k) to compute the change vector g(k)
+        marker = profileBegin(commandQueue);
+        ret = firstError(ret, clEnqueueCopyBuffer(commandQueue, current, session->d_accelY, 0, 0, n*sizeof(float), 0, NULL, NULL));
+        profileEnd(commandQueue, PROFILE_COPY, marker);
+        session->bytesMoved += 2*imageBytes;
+      }
+
       // FFT of estimate
-      ret = clfftEnqueueTransform(planHandleForward, CLFFT_FORWARD, 1, &commandQueue, 0, NULL, NULL, &d_estimate, &estimateFFT, NULL);
-      //printf("fft1 %d\n", ret);
+      marker = profileBegin(commandQueue);
+      ret = firstError(ret, clfftEnqueueTransform(session->planHandleForward, CLFFT_FORWARD, 1, &commandQueue, 0, NULL, NULL, &current, &estimateFFT, NULL));
+      profileEnd(commandQueue, PROFILE_FFT_FORWARD, marker);
 
       // complex multipy estimate FFT and PSF FFT
-      ret = callKernel(kernelComplexMultiply, estimateFFT, psfFFT, estimateFFT, nFreq, commandQueue, globalItemSizeFreq, localItemSize);
-      //printf("kernel complex %d\n", ret);
+      marker = profileBegin(commandQueue);
+      if (fused) {
+        ret = firstError(ret, callComplexMultiplyOTF(session, estimateFFT, false));
+      }
+      else {
+        ret = firstError(ret, callKernel(session->kernelComplexMultiply, estimateFFT, psfFFT, estimateFFT, nFreq, commandQueue, globalItemSizeFreq, localItemSize));
+      }
+      profileEnd(commandQueue, PROFILE_COMPLEX_MULTIPLY, marker);
       
       // Inverse to get reblurred
-      ret = clfftEnqueueTransform(planHandleBackward, CLFFT_BACKWARD, 1, &commandQueue, 0, NULL, NULL, &estimateFFT, &d_reblurred, NULL);
-      //printf("fft2 %d\n", ret);
+      marker = profileBegin(commandQueue);
+      ret = firstError(ret, clfftEnqueueTransform(session->planHandleBackward, CLFFT_BACKWARD, 1, &commandQueue, 0, NULL, NULL, &estimateFFT, &d_reblurred, NULL));
+      profileEnd(commandQueue, PROFILE_FFT_INVERSE, marker);
       
+      if (check && stopMeasure!=STOP_RELATIVE_CHANGE) {
+        // I-divergence or residual of the current estimate
+        marker = profileBegin(commandQueue);
+        ret = firstError(ret, reduceSession(session, d_observed, d_reblurred, &measure));
+        profileEnd(commandQueue, PROFILE_REDUCE, marker);
+        session->bytesMoved += 2*imageBytes;
+
+        if (ret!=CL_SUCCESS) {
+          return ret;
+        }
+      }
+
       // divide observed by reblurred
-      ret = callKernel(kernelDiv, d_observed, d_reblurred, d_reblurred, n, commandQueue, globalItemSize, localItemSize);
+      marker = profileBegin(commandQueue);
+      ret = firstError(ret, callKernel(session->kernelDiv, d_observed, d_reblurred, d_reblurred, n, commandQueue, globalItemSize, localItemSize));
+      profileEnd(commandQueue, PROFILE_DIVIDE, marker);
       
       if (ret!=0) {
-        printf("kernel div %d\n", ret);
+        logPrint(LOG_ERROR, "kernel div %d\n", ret);
       }
       
       // FFT of observed/reblurred 
-      ret = clfftEnqueueTransform(planHandleForward, CLFFT_FORWARD, 1, &commandQueue, 0, NULL, NULL, &d_reblurred, &estimateFFT, NULL);
-      //printf("fft %d\n", ret);
+      marker = profileBegin(commandQueue);
+      ret = firstError(ret, clfftEnqueueTransform(session->planHandleForward, CLFFT_FORWARD, 1, &commandQueue, 0, NULL, NULL, &d_reblurred, &estimateFFT, NULL));
+      profileEnd(commandQueue, PROFILE_FFT_FORWARD, marker);
       
       // Correlate above result with PSF 
-      ret = callKernel(kernelComplexConjugateMultiply, estimateFFT, psfFFT, estimateFFT, nFreq, commandQueue, globalItemSizeFreq, localItemSize);
-      printf("correlate %d\n", ret);
+      marker = profileBegin(commandQueue);
+      if (fused) {
+        ret = firstError(ret, callComplexMultiplyOTF(session, estimateFFT, true));
+      }
+      else {
+        ret = firstError(ret, callKernel(session->kernelComplexConjugateMultiply, estimateFFT, psfFFT, estimateFFT, nFreq, commandQueue, globalItemSizeFreq, localItemSize));
+      }
+      profileEnd(commandQueue, PROFILE_COMPLEX_MULTIPLY, marker);
+      logPrint(LOG_DEBUG, "correlate %d\n", ret);
       
       // Inverse FFT to get update factor 
-      ret = clfftEnqueueTransform(planHandleBackward, CLFFT_BACKWARD, 1, &commandQueue, 0, NULL, NULL, &estimateFFT, &d_reblurred, NULL);
-     
-      // if using total variation multiply by variation factor
-      if (tv) {
-        ret = callVariationKernel(kernelTV, d_estimate, d_reblurred, d_variation, N0, N1, N2, 1.0, 1.0, 3.0, regularizationFactor, commandQueue, globalItemSize, localItemSize);
+      marker = profileBegin(commandQueue);
+      ret = firstError(ret, clfftEnqueueTransform(session->planHandleBackward, CLFFT_BACKWARD, 1, &commandQueue, 0, NULL, NULL, &estimateFFT, &d_reblurred, NULL));
+      profileEnd(commandQueue, PROFILE_FFT_INVERSE, marker);
 
-        ret = callKernel(kernelMul, d_estimate, d_variation, d_estimate, n, commandQueue, globalItemSize, localItemSize);
+      // 4 FFTs (counted as one pass reading the input and writing the output, clFFT may need 
+      // more), 2 complex multiplies and the division of observed by reblurred 
+      session->bytesMoved += 4*(imageBytes+fftBytes) + 2*3*fftBytes + 3*imageBytes;
+     
+      // the update, total variation and normalization are one stage with the fused kernels 
+      marker = profileBegin(commandQueue);
+
+      if (fused) {
+        if (session->tv) {
+          // estimate * update * total variation (/ normal) written to the other buffer
+          cl_mem next = current==d_estimate ? session->d_variation : d_estimate;
+          ret = firstError(ret, callVariationUpdateKernel(session, current, d_reblurred, d_normal, next));
+          current = next;
+        }
+        else {
+          // estimate * update (/ normal) 
+          ret = firstError(ret, callUpdateKernel(session, current, d_reblurred, d_normal));
+        }
+        session->bytesMoved += (d_normal!=NULL ? 4 : 3)*imageBytes;
       }
       else {
-        // multiply estimate by update factor 
-        ret = callKernel(kernelMul, d_estimate, d_reblurred, d_estimate, n, commandQueue, globalItemSize, localItemSize);
+        // if using total variation multiply by variation factor
+        if (session->tv) {
+          ret = firstError(ret, callVariationKernel(session->kernelTV, current, d_reblurred, session->d_variation, session->N0, session->N1, session->N2, 1.0, 1.0, 3.0, session->regularizationFactor, commandQueue, globalItemSize, localItemSize));
+
+          ret = firstError(ret, callKernel(session->kernelMul, current, session->d_variation, current, n, commandQueue, globalItemSize, localItemSize));
+          session->bytesMoved += 6*imageBytes;
+        }
+        else {
+          // multiply estimate by update factor 
+          ret = firstError(ret, callKernel(session->kernelMul, current, d_reblurred, current, n, commandQueue, globalItemSize, localItemSize));
+          session->bytesMoved += 3*imageBytes;
+        }
+   
+        if (d_normal!=NULL) {
+          // divide estimate by normal
+          ret = firstError(ret, callKernel(session->kernelDiv, current, d_normal, current, n, commandQueue, globalItemSize, localItemSize));
+          logPrint(LOG_DEBUG, "divide by normal returned %d\n", ret);
+          session->bytesMoved += 3*imageBytes;
+        }      
+      }
+
+      profileEnd(commandQueue, session->tv ? PROFILE_TOTAL_VARIATION : PROFILE_UPDATE, marker);
+
+      if (check && stopMeasure==STOP_RELATIVE_CHANGE) {
+        marker = profileBegin(commandQueue);
+        ret = firstError(ret, reduceSession(session, current, session->d_previous, &measure));
+        profileEnd(commandQueue, PROFILE_REDUCE, marker);
+        session->bytesMoved += 2*imageBytes;
+      }
+
+      if (ret!=CL_SUCCESS) {
+        logPrint(LOG_ERROR, "iteration %d failed %d\n", i, ret);
+        return ret;
       }
- 
-      if (d_normal!=NULL) {
-        // divide estimate by normal
-        ret = callKernel(kernelDiv, d_estimate, d_normal, d_estimate, n, commandQueue, globalItemSize, localItemSize);
-        printf("divide by normal returned %d\n", ret);
-      }      
 
-      ret = clFinish(commandQueue);
+      session->iterationsRun = i+1;
+
+      if (check) {
+        session->lastMeasure = measure;
+        logPrint(LOG_INFO, "iteration %d measure %g\n", i, measure);
+
+        // the relative change has to fall below the tolerance, the I-divergence and residual 
+        // have to stop decreasing by more than the tolerance (relative) 
+        bool converged;
+        if (stopMeasure==STOP_RELATIVE_CHANGE) {
+          converged = measure<session->stopTolerance;
+        }
+        else {
+          converged = havePrevious && previousMeasure-measure<session->stopTolerance*previousMeasure;
+        }
+
+        previousMeasure = measure;
+        havePrevious = true;
+
+        if (converged) {
+          logPrint(LOG_INFO, "converged after %d iterations\n", i+1);
+          break;
+        }
+      }
+
+      // predict the next estimate (not after the last iteration, the result is x not y) 
+      if (session->accelerate && i+1<iterations) {
+        marker = profileBegin(commandQueue);
+        ret = accelerateSession(session, current, i==0);
+        profileEnd(commandQueue, PROFILE_ACCELERATE, marker);
+
+        // subtract, dot products and prediction 
+        session->bytesMoved += (3 + (i==0 ? 0 : 2) + 4)*imageBytes;
+
+        if (ret!=CL_SUCCESS) {
+          return ret;
+        }
+      }
+
+      // the queue is in order, so the iterations do not have to wait for each other. 
+      // Only wait at checkpoints (if set), otherwise once at the end. 
+      if (checkpointInterval>0 && (i+1)%checkpointInterval==0) {
+        ret = clFinish(commandQueue);
+        logPrint(LOG_DEBUG, "Iteration %d finished\n",i);
 
-      printf("Iteration %d finished\n",i);
+        if (ret!=CL_SUCCESS) {
+          return ret;
+        }
+      }
 
   }  
- 
-   // Release OpenCL memory objects. 
-  clReleaseMemObject( d_reblurred);
-  clReleaseMemObject( psfFFT );
-  clReleaseMemObject( estimateFFT );
 
-  if (tv=true) {
-    clReleaseMemObject(d_variation);
+  if (current!=d_estimate) {
+    marker = profileBegin(commandQueue);
+    ret = clEnqueueCopyBuffer(commandQueue, current, d_estimate, 0, 0, n*sizeof(float), 0, NULL, NULL);
+    profileEnd(commandQueue, PROFILE_COPY, marker);
+    session->bytesMoved += 2*imageBytes;
+
+    if (ret!=CL_SUCCESS) {
+      logPrint(LOG_ERROR, "copy estimate %d\n", ret);
+      return ret;
+    }
+  }
+
+  ret = clFinish(commandQueue);
+
+  return ret;
+}
+
+static thread_local cl_int lastSessionError = CL_SUCCESS;
+
+/**
+ * Create a session, returns a handle (0 if the session could not be created) that has to be 
+ * destroyed with deconv_session_destroy.  The OTF is retained by the session. 
+ * */
+long long deconv_session_create(size_t N0, size_t N1, size_t N2, float regularizationFactor, long long l_otf, long long l_context, long long l_queue, long long l_device) {
+
+  cl_int ret = CL_SUCCESS;
+
+  DeconvSession *session = createSession(N0, N1, N2, regularizationFactor, NULL, (cl_mem)l_otf, (cl_context)l_context, (cl_command_queue)l_queue, (cl_device_id)l_device, &ret);
+
+  if (session==NULL) {
+    logPrint(LOG_ERROR, "create session failed %d\n", ret);
+  }
+
+  lastSessionError = ret;
+
+  return (long long)session;
+}
+
+/**
+ * Error code of the last deconv_session_create on the calling thread (CL_SUCCESS if the session 
+ * was created), so callers can tell a failed allocation from other errors 
+ * */
+int deconv_session_last_error() {
+  return lastSessionError;
+}
+
+int deconv_session_run(long long l_session, int iterations, long long l_observed, long long l_estimate, long long l_normal) {
+
+  if (l_session==0) {
+    return CL_INVALID_VALUE;
+  }
+
+  return runSession((DeconvSession*)l_session, iterations, (cl_mem)l_observed, (cl_mem)l_estimate, (cl_mem)l_normal);
+}
+
+/**
+ * Set the stopping criterion of a session (measure is one of STOP_NONE, STOP_RELATIVE_CHANGE, 
+ * STOP_I_DIVERGENCE, STOP_RESIDUAL_NORM).  The measure is computed every interval iterations, 
+ * a run stops early when it converged (see runSession). 
+ * */
+int deconv_session_set_stopping(long long l_session, int measure, float tolerance, int interval) {
+
+  if (l_session==0 || measure<STOP_NONE || measure>STOP_RESIDUAL_NORM) {
+    return CL_INVALID_VALUE;
+  }
+
+  DeconvSession *session = (DeconvSession*)l_session;
+
+  cl_int ret = CL_SUCCESS;
+
+  // the work buffers are created the first time they are needed
+  if (measure!=STOP_NONE && session->d_partialSums==NULL) {
+    session->d_partialSums = clCreateBuffer(session->context, CL_MEM_READ_WRITE, 2*REDUCE_GROUPS*sizeof(float), NULL, &ret);
+    session->partialSums.resize(2*REDUCE_GROUPS);
+  }
+
+  if (ret==CL_SUCCESS && measure==STOP_RELATIVE_CHANGE && session->d_previous==NULL) {
+    session->d_previous = clCreateBuffer(session->context, CL_MEM_READ_WRITE, session->n*sizeof(float), NULL, &ret);
+  }
+
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "create stopping buffers %d\n", ret);
+    return ret;
+  }
+
+  session->stopMeasure = measure;
+  session->stopTolerance = tolerance;
+  session->stopInterval = interval;
+
+  return CL_SUCCESS;
+}
+
+/**
+ * Turn Biggs-Andrews acceleration of a session on (accelerate!=0) or off.  Acceleration needs 
+ * four more buffers of the image size, they are created the first time it is turned on. 
+ * */
+int deconv_session_set_acceleration(long long l_session, int accelerate) {
+
+  if (l_session==0) {
+    return CL_INVALID_VALUE;
+  }
+
+  DeconvSession *session = (DeconvSession*)l_session;
+
+  cl_int ret = CL_SUCCESS;
+
+  if (accelerate) {
+    // buffers that are missing (also after a failed call) are created 
+    size_t size = session->n*sizeof(float);
+    if (ret==CL_SUCCESS && session->d_accelY==NULL) session->d_accelY = clCreateBuffer(session->context, CL_MEM_READ_WRITE, size, NULL, &ret);
+    if (ret==CL_SUCCESS && session->d_accelXPrevious==NULL) session->d_accelXPrevious = clCreateBuffer(session->context, CL_MEM_READ_WRITE, size, NULL, &ret);
+    if (ret==CL_SUCCESS && session->d_accelG==NULL) session->d_accelG = clCreateBuffer(session->context, CL_MEM_READ_WRITE, size, NULL, &ret);
+    if (ret==CL_SUCCESS && session->d_accelGPrevious==NULL) session->d_accelGPrevious = clCreateBuffer(session->context, CL_MEM_READ_WRITE, size, NULL, &ret);
+    if (ret==CL_SUCCESS && session->d_accelAlpha==NULL) session->d_accelAlpha = clCreateBuffer(session->context, CL_MEM_READ_WRITE, sizeof(float), NULL, &ret);
+    if (ret==CL_SUCCESS && session->d_partialSums==NULL) {
+      session->d_partialSums = clCreateBuffer(session->context, CL_MEM_READ_WRITE, 2*REDUCE_GROUPS*sizeof(float), NULL, &ret);
+      session->partialSums.resize(2*REDUCE_GROUPS);
+    }
+  }
+
+  if (ret!=CL_SUCCESS) {
+    logPrint(LOG_ERROR, "create acceleration buffers %d\n", ret);
+    return ret;
+  }
+
+  session->accelerate = accelerate!=0;
+
+  return CL_SUCCESS;
+}
+
+/**
+ * Number of iterations the last run did
+ * */
+int deconv_session_get_iterations(long long l_session) {
+
+  if (l_session==0) {
+    return 0;
+  }
+
+  return ((DeconvSession*)l_session)->iterationsRun;
+}
+
+/**
+ * Bytes of global memory the last run read and wrote (FFTs counted as a single pass)
+ * */
+long long deconv_session_get_bytes_moved(long long l_session) {
+
+  if (l_session==0) {
+    return 0;
+  }
+
+  return ((DeconvSession*)l_session)->bytesMoved;
+}
+
+/**
+ * Last value of the stopping measure of the last run (0 if it was not computed)
+ * */
+float deconv_session_get_measure(long long l_session) {
+
+  if (l_session==0) {
+    return 0;
+  }
+
+  return (float)((DeconvSession*)l_session)->lastMeasure;
+}
+
+int deconv_session_destroy(long long l_session) {
+
+  destroySession((DeconvSession*)l_session);
+
+  return 0;
+}
+
+/**
+ * Richardson Lucy implementation, either l_psf (extended and shifted PSF) or l_otf (its FFT) 
+ * has to be set.  Runs a session that only lives for this call. 
+ * */
+int deconvRichardsonLucy(int iterations, float regularizationFactor, size_t N0, size_t N1, size_t N2, long long l_observed, long long l_psf, long long l_otf, long long l_estimate, long long l_normal, long long l_context, long long l_queue, long long l_device) {
+
+  cl_int ret = CL_SUCCESS;
+
+  DeconvSession *session = createSession(N0, N1, N2, regularizationFactor, (cl_mem)l_psf, (cl_mem)l_otf, (cl_context)l_context, (cl_command_queue)l_queue, (cl_device_id)l_device, &ret);
+
+  if (session==NULL) {
+    return ret;
   }
 
-   // Release the plan. 
-   ret = clfftDestroyPlan( &planHandleBackward );
+  ret = runSession(session, iterations, (cl_mem)l_observed, (cl_mem)l_estimate, (cl_mem)l_normal);
 
-   // Release clFFT library. 
-   clfftTeardown( );
+  destroySession(session);
 
-   return 0;
+  return ret;
 
 }
 
@@ -1220,41 +3265,41 @@ int deconv3d_32f_tv(int iterations, float regularizationFactor, size_t N0, size_
 	cl_uint retNumPlatforms;
 
   cl_int ret = clGetPlatformIDs(1, &platformId, &retNumPlatforms);
-  printf("\ncreated platform %d \n",ret);
+  logPrint(LOG_INFO, "\ncreated platform %d \n",ret);
 	
   ret = clGetDeviceIDs(platformId, CL_DEVICE_TYPE_DEFAULT, 1, &deviceID, &retNumDevices);
-  printf("\nget device IDs %d \n",ret);
+  logPrint(LOG_INFO, "\nget device IDs %d \n",ret);
 	
   // Creating context.
 	cl_context context = clCreateContext(NULL, 1, &deviceID, NULL, NULL,  &ret);
-  printf("created context %d\n", ret);
+  logPrint(LOG_INFO, "created context %d\n", ret);
 
 	// Creating command queue
 	cl_command_queue commandQueue = clCreateCommandQueue(context, deviceID, 0, &ret);
-  printf("created command queue %d\n", ret);
+  logPrint(LOG_INFO, "created command queue %d\n", ret);
 
   // create device memory buffers for each array
 	cl_mem d_observed = clCreateBuffer(context, CL_MEM_READ_WRITE, N2*N1*N0 * sizeof(float), NULL, &ret);
-  printf("\ncreate gpu mem for image %d\n", ret);
+  logPrint(LOG_INFO, "\ncreate gpu mem for image %d\n", ret);
 	cl_mem d_psf = clCreateBuffer(context, CL_MEM_READ_WRITE, N2*N1*N0 * sizeof(float), NULL, &ret);
-  printf("\ncreate gpu mem for psf %d\n", ret);
+  logPrint(LOG_INFO, "\ncreate gpu mem for psf %d\n", ret);
 	cl_mem d_estimate = clCreateBuffer(context, CL_MEM_READ_WRITE, N2*N1*N0 * sizeof(float), NULL, &ret);
-  printf("\ncreate variable 3 %d\n", ret);
+  logPrint(LOG_INFO, "\ncreate variable 3 %d\n", ret);
  
-  printf("\nallocated memory\n");
+  logPrint(LOG_INFO, "\nallocated memory\n");
 
   // Copy lists to memory buffers
 	ret = clEnqueueWriteBuffer(commandQueue, d_observed, CL_TRUE, 0, N2*N1*N0 * sizeof(float), h_image, 0, NULL, NULL);;
-  printf("\ncopy to GPU  %d\n", ret);
+  logPrint(LOG_INFO, "\ncopy to GPU  %d\n", ret);
 	ret = clEnqueueWriteBuffer(commandQueue, d_psf, CL_TRUE, 0, N2*N1*N0 * sizeof(float), h_psf, 0, NULL, NULL);
-  printf("\ncopy to GPU  %d\n", ret);
+  logPrint(LOG_INFO, "\ncopy to GPU  %d\n", ret);
 	ret = clEnqueueWriteBuffer(commandQueue, d_estimate, CL_TRUE, 0, N2*N1*N0 * sizeof(float), h_out, 0, NULL, NULL);
-  printf("\ncopy to GPU  %d\n", ret);
+  logPrint(LOG_INFO, "\ncopy to GPU  %d\n", ret);
 
   unsigned long n = N0*N1*N2;
   unsigned long nFreq=(N0/2+1)*N1*N2;
      
-  printf("Call deconv with long long pointers\n\n");
+  logPrint(LOG_INFO, "Call deconv with long long pointers\n\n");
   deconv3d_32f_lp_tv(iterations, regularizationFactor, N0, N1, N2, (long long)d_observed, (long long)d_psf, (long long)d_estimate, (long long)0, (long long)context, (long long)commandQueue, (long long)deviceID); 
     
   // copy back to host 
@@ -1265,6 +3310,10 @@ int deconv3d_32f_tv(int iterations, float regularizationFactor, size_t N0, size_
   clReleaseMemObject( d_observed );
   clReleaseMemObject( d_psf);
 
+  // the context is private to this call so don't keep its plans and programs
+  evictPlansForContext(context);
+  evictProgramsForContext(context);
+
   // Release OpenCL working objects.
   clReleaseCommandQueue( commandQueue );
   clReleaseContext( context );
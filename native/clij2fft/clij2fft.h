@@ -8,13 +8,55 @@ extern "C" {
   __declspec(dllexport) int deconv3d_32f_tv(int iterations, float regularizationFactor, size_t N1, size_t N2, size_t N3, float *h_image, float *h_psf, float *h_out, float * normal);
   __declspec(dllexport) int deconv3d_32f_lp(int iterations, size_t N0, size_t N1, size_t N2, long long d_image, long long d_psf, long long d_update, long long d_normal, long long l_context, long long l_queuee, long long l_device); 
   __declspec(dllexport) int deconv3d_32f_lp_tv(int iterations, float regularizationFactor, size_t N0, size_t N1, size_t N2, long long d_image, long long d_psf, long long d_update, long long d_normal, long long l_context, long long l_queuee, long long l_device); 
+  __declspec(dllexport) int deconv3d_32f_lp_tv_otf(int iterations, float regularizationFactor, size_t N0, size_t N1, size_t N2, long long d_image, long long d_otf, long long d_update, long long d_normal, long long l_context, long long l_queuee, long long l_device); 
+  __declspec(dllexport) long long deconv_session_create(size_t N0, size_t N1, size_t N2, float regularizationFactor, long long l_otf, long long l_context, long long l_queue, long long l_device);
+  __declspec(dllexport) int deconv_session_run(long long l_session, int iterations, long long l_observed, long long l_estimate, long long l_normal);
+  __declspec(dllexport) int deconv_session_set_stopping(long long l_session, int measure, float tolerance, int interval);
+  __declspec(dllexport) int deconv_session_set_acceleration(long long l_session, int accelerate);
+  __declspec(dllexport) int deconv_session_get_iterations(long long l_session);
+  __declspec(dllexport) float deconv_session_get_measure(long long l_session);
+  __declspec(dllexport) long long deconv_session_get_bytes_moved(long long l_session);
+  __declspec(dllexport) int deconv_session_destroy(long long l_session);
+  __declspec(dllexport) int deconv_session_last_error();
+  __declspec(dllexport) int set_log_level(int level);
+  __declspec(dllexport) int set_checkpoint_interval(int interval);
+  __declspec(dllexport) int set_fused_kernels(int fused);
+  __declspec(dllexport) int set_profiling(int enabled);
+  __declspec(dllexport) int profiling_collect();
+  __declspec(dllexport) int profiling_collect_thread();
+  __declspec(dllexport) int profiling_thread_record_stage(int index);
+  __declspec(dllexport) long long profiling_thread_record_start(int index);
+  __declspec(dllexport) long long profiling_thread_record_end(int index);
+  __declspec(dllexport) int profiling_record_count();
+  __declspec(dllexport) int profiling_record_stage(int index);
+  __declspec(dllexport) long long profiling_record_start(int index);
+  __declspec(dllexport) long long profiling_record_end(int index);
+  __declspec(dllexport) int profiling_clear();
   __declspec(dllexport) int fft2d_32f(size_t N1, size_t N2, float *h_image, float * h_out);
   __declspec(dllexport) int fft2d_32f_lp(long long N1, long long N2, long long h_image, long long h_out, long long l_context, long long l_queue);
   __declspec(dllexport)int fft3d_32f_lp(long long N0, long long N1, long long N2, long long d_image, long long d_out, long long l_context, long long l_queue);
   __declspec(dllexport) int fftinv2d_32f(size_t N1, size_t N2, float *h_fft, float * h_out);
   __declspec(dllexport) int fft2dinv_32f_lp(long long N1, long long N2, long long h_fft, long long h_out, long long l_context, long long l_queue);
   __declspec(dllexport) int fft3dinv_32f_lp(long long N0, long long N1, long long N2, long long d_fft, long long d_out, long long l_context, long long l_queue);
+  __declspec(dllexport) int fft2d_batch_32f_lp(long long N0, long long N1, long long batchSize, long long inDistance, long long outDistance, long long d_image, long long d_out, long long l_context, long long l_queue);
+  __declspec(dllexport) int fft3d_batch_32f_lp(long long N0, long long N1, long long N2, long long batchSize, long long inDistance, long long outDistance, long long d_image, long long d_out, long long l_context, long long l_queue);
+  __declspec(dllexport) int fft2dinv_batch_32f_lp(long long N0, long long N1, long long batchSize, long long inDistance, long long outDistance, long long d_fft, long long d_out, long long l_context, long long l_queue);
+  __declspec(dllexport) int fft3dinv_batch_32f_lp(long long N0, long long N1, long long N2, long long batchSize, long long inDistance, long long outDistance, long long d_fft, long long d_out, long long l_context, long long l_queue);
   __declspec(dllexport) int diagnostic(); 
+  __declspec(dllexport) int planCacheSize();
+  __declspec(dllexport) long long planCacheHits();
+  __declspec(dllexport) long long planCacheMisses();
+  __declspec(dllexport) int clearPlanCache();
+  __declspec(dllexport) int setPlanCacheMaxSize(int maxSize);
+  __declspec(dllexport) int getPlanCacheMaxSize();
+  __declspec(dllexport) int releasePlansForContext(long long l_context);
+  __declspec(dllexport) int programCacheSize();
+  __declspec(dllexport) long long programCacheHits();
+  __declspec(dllexport) long long programCacheDiskHits();
+  __declspec(dllexport) long long programCacheMisses();
+  __declspec(dllexport) int clearProgramCache();
+  __declspec(dllexport) int setProgramCacheDir(const char *dir);
+  __declspec(dllexport) int releaseProgramsForContext(long long l_context);
 }
 #else
 extern "C" {
@@ -24,13 +66,55 @@ extern "C" {
   int deconv3d_32f_tv(int iterations, float regularizationFactor, size_t N1, size_t N2, size_t N3, float *h_image, float *h_psf, float *h_out, float * normal);
   int deconv3d_32f_lp(int iterations, size_t N0, size_t N1, size_t N2, long long d_image, long long d_psf, long long d_update, long long d_normal, long long l_context, long long l_queuee, long long l_device); 
   int deconv3d_32f_lp_tv(int iterations, float regularizationFactor, size_t N0, size_t N1, size_t N2, long long d_image, long long d_psf, long long d_update, long long d_normal, long long l_context, long long l_queuee, long long l_device); 
+  int deconv3d_32f_lp_tv_otf(int iterations, float regularizationFactor, size_t N0, size_t N1, size_t N2, long long d_image, long long d_otf, long long d_update, long long d_normal, long long l_context, long long l_queuee, long long l_device); 
+  long long deconv_session_create(size_t N0, size_t N1, size_t N2, float regularizationFactor, long long l_otf, long long l_context, long long l_queue, long long l_device);
+  int deconv_session_run(long long l_session, int iterations, long long l_observed, long long l_estimate, long long l_normal);
+  int deconv_session_set_stopping(long long l_session, int measure, float tolerance, int interval);
+  int deconv_session_set_acceleration(long long l_session, int accelerate);
+  int deconv_session_get_iterations(long long l_session);
+  float deconv_session_get_measure(long long l_session);
+  long long deconv_session_get_bytes_moved(long long l_session);
+  int deconv_session_destroy(long long l_session);
+  int deconv_session_last_error();
+  int set_log_level(int level);
+  int set_checkpoint_interval(int interval);
+  int set_fused_kernels(int fused);
+  int set_profiling(int enabled);
+  int profiling_collect();
+  int profiling_collect_thread();
+  int profiling_thread_record_stage(int index);
+  long long profiling_thread_record_start(int index);
+  long long profiling_thread_record_end(int index);
+  int profiling_record_count();
+  int profiling_record_stage(int index);
+  long long profiling_record_start(int index);
+  long long profiling_record_end(int index);
+  int profiling_clear();
   int fft2d_32f(size_t N1, size_t N2, float *h_image, float * h_out);
   int fft2d_32f_lp(long long N1, long long N2, long long h_image, long long h_out, long long l_context, long long l_queue);
   int fft3d_32f_lp(long long N0, long long N1, long long N2, long long d_image, long long d_out, long long l_context, long long l_queue);
   int fftinv2d_32f(size_t N1, size_t N2, float *h_fft, float * h_out);
   int fft2dinv_32f_lp(long long N1, long long N2, long long h_fft, long long h_out, long long l_context, long long l_queue);
   int fft3dinv_32f_lp(long long N0, long long N1, long long N2, long long d_fft, long long d_out, long long l_context, long long l_queue);
+  int fft2d_batch_32f_lp(long long N0, long long N1, long long batchSize, long long inDistance, long long outDistance, long long d_image, long long d_out, long long l_context, long long l_queue);
+  int fft3d_batch_32f_lp(long long N0, long long N1, long long N2, long long batchSize, long long inDistance, long long outDistance, long long d_image, long long d_out, long long l_context, long long l_queue);
+  int fft2dinv_batch_32f_lp(long long N0, long long N1, long long batchSize, long long inDistance, long long outDistance, long long d_fft, long long d_out, long long l_context, long long l_queue);
+  int fft3dinv_batch_32f_lp(long long N0, long long N1, long long N2, long long batchSize, long long inDistance, long long outDistance, long long d_fft, long long d_out, long long l_context, long long l_queue);
   int diagnostic(); 
+  int planCacheSize();
+  long long planCacheHits();
+  long long planCacheMisses();
+  int clearPlanCache();
+  int setPlanCacheMaxSize(int maxSize);
+  int getPlanCacheMaxSize();
+  int releasePlansForContext(long long l_context);
+  int programCacheSize();
+  long long programCacheHits();
+  long long programCacheDiskHits();
+  long long programCacheMisses();
+  int clearProgramCache();
+  int setProgramCacheDir(const char *dir);
+  int releaseProgramsForContext(long long l_context);
 }
 #endif
 
@@ -16,28 +16,18 @@
 "    return 0.0;\n" \
 "}\n" \
 "/**\n" \
-" * This kernel implements the correction term for Richardson-Lucy algorithm with total variation\n" \
-" * regularization for 3D confocal microscope deconvolution Microsc Res Rech 2006\n" \
+" * Total variation term for the voxel (i, j, k), the RL correction is divided by it (see the \n" \
+" * kernels below).  Implements the correction term for Richardson-Lucy algorithm with total \n" \
+" * variation regularization for 3D confocal microscope deconvolution Microsc Res Rech 2006\n" \
 " * Apr; 69(4)- 260-6\n" \
-" *\n" \
-" * estimate - current estimate of RL algorithm\n" \
-" * correction - current correction of RL algorithm\n" \
-" * variation - the correction will be modified with the total variation constraint and written to 'variation'\n" \
-" *\n" \
 " **/\n" \
 "#pragma OPENCL EXTENSION cl_khr_fp64 : enable \n" \
-"__kernel void totalVariationTerm(  __global float *estimate, global float * correction, __global float * variation,\n" \
-"                    const unsigned int Nx, const unsigned int Ny, const unsigned int Nz, float hx, float hy, float hz, float regularizationFactor)  \n" \
-"{                                             \n" \
-"    \n" \
+"double totalVariationDenominator(__global float *estimate, int i, int j, int k,\n" \
+"                    const unsigned int Nx, const unsigned int Ny, const unsigned int Nz, float hx, float hy, float hz, float regularizationFactor)\n" \
+"{\n" \
 "    int NxNy=Nx*Ny;\n" \
 "    \n" \
 "    double FLOAT32_EPS = 0.0;\n" \
-"    \n" \
-"    //Get 3D global thread IDs               \n" \
-"    int i = get_global_id(0);              \n" \
-"    int j = get_global_id(1);              \n" \
-"    int k = get_global_id(2);     \n" \
 "\n" \
 "    int im1, ip1, jm1, jp1, km1, kp1;\n" \
 "\n" \
@@ -46,11 +36,6 @@
 "    float aim, bjm, ckm, aijk, bijk, cijk;\n" \
 "    float Dxpf, Dxmf, Dypf, Dymf, Dzpf, Dzmf;\n" \
 "    float Dxma, Dymb, Dzmc;\n" \
-" \n" \
-"    //Make sure we do not go out of bounds\n" \
-"    i = (i>Nx-1 ? Nx-1 : i);\n" \
-"    j = (j>Ny-1 ? Ny-1 : j);\n" \
-"    k = (k>Nz-1 ? Nz-1 : k);\n" \
 "    \n" \
 "    im1 = (i > 0 ? i - 1 : 0);\n" \
 "	ip1 = (i + 1 == Nx ? i : i + 1);\n" \
@@ -126,9 +111,64 @@
 "    Dymb = (bijk - bjm) / hy;\n" \
 "    Dzmc = (cijk - ckm) / hz;\n" \
 "    \n" \
-"    int index=i+j*Nx+k*NxNy;\n" \
-"    variation[index]=correction[index]/(1.-regularizationFactor*(Dxma+Dymb+Dzmc));\n" \
+"    return 1.-regularizationFactor*(Dxma+Dymb+Dzmc);\n" \
+"}\n" \
+"\n" \
+"/**\n" \
+" * This kernel implements the correction term for Richardson-Lucy algorithm with total variation\n" \
+" * regularization for 3D confocal microscope deconvolution Microsc Res Rech 2006\n" \
+" * Apr; 69(4)- 260-6\n" \
+" *\n" \
+" * estimate - current estimate of RL algorithm\n" \
+" * correction - current correction of RL algorithm\n" \
+" * variation - the correction will be modified with the total variation constraint and written to 'variation'\n" \
+" *\n" \
+" **/\n" \
+"__kernel void totalVariationTerm(  __global float *estimate, global float * correction, __global float * variation,\n" \
+"                    const unsigned int Nx, const unsigned int Ny, const unsigned int Nz, float hx, float hy, float hz, float regularizationFactor)  \n" \
+"{                                             \n" \
+"    //Get 3D global thread IDs               \n" \
+"    int i = get_global_id(0);              \n" \
+"    int j = get_global_id(1);              \n" \
+"    int k = get_global_id(2);     \n" \
+"\n" \
+"    //Make sure we do not go out of bounds\n" \
+"    i = (i>Nx-1 ? Nx-1 : i);\n" \
+"    j = (j>Ny-1 ? Ny-1 : j);\n" \
+"    k = (k>Nz-1 ? Nz-1 : k);\n" \
+"\n" \
+"    int index=i+j*Nx+k*Nx*Ny;\n" \
+"    variation[index]=correction[index]/totalVariationDenominator(estimate, i, j, k, Nx, Ny, Nz, hx, hy, hz, regularizationFactor);\n" \
+"}                                \n" \
+"\n" \
+"/**\n" \
+" * Fused RL update with total variation, one pass instead of totalVariationTerm, multiply and \n" \
+" * divide by normal. \n" \
+" *\n" \
+" * estimate - current estimate of RL algorithm (read only, neighbours are needed)\n" \
+" * correction - current correction of RL algorithm\n" \
+" * normal - non-circulant normalization factor, only used if useNormal is not 0\n" \
+" * updated - the next estimate is written here (can not be estimate)\n" \
+" *\n" \
+" **/\n" \
+"__kernel void totalVariationUpdate(  __global float *estimate, __global float * correction, __global float * normal, __global float * updated,\n" \
+"                    const unsigned int Nx, const unsigned int Ny, const unsigned int Nz, float hx, float hy, float hz, float regularizationFactor, const int useNormal)  \n" \
+"{                                             \n" \
+"    int i = get_global_id(0);              \n" \
+"    int j = get_global_id(1);              \n" \
+"    int k = get_global_id(2);     \n" \
+"\n" \
+"    i = (i>Nx-1 ? Nx-1 : i);\n" \
+"    j = (j>Ny-1 ? Ny-1 : j);\n" \
+"    k = (k>Nz-1 ? Nz-1 : k);\n" \
+"\n" \
+"    int index=i+j*Nx+k*Nx*Ny;\n" \
+"    float variation=correction[index]/totalVariationDenominator(estimate, i, j, k, Nx, Ny, Nz, hx, hy, hz, regularizationFactor);\n" \
+"    float value=estimate[index]*variation;\n" \
+"    if (useNormal) {\n" \
+"        value=value/normal[index];\n" \
+"    }\n" \
+"    updated[index]=value;\n" \
 "}                                \n" \
-" \n" \
 
 #endif //__cle_totalvariationterm_h
@@ -15,28 +15,18 @@ double m(double a, double b) {
     return 0.0;
 }
 /**
- * This kernel implements the correction term for Richardson-Lucy algorithm with total variation
- * regularization for 3D confocal microscope deconvolution Microsc Res Rech 2006
+ * Total variation term for the voxel (i, j, k), the RL correction is divided by it (see the 
+ * kernels below).  Implements the correction term for Richardson-Lucy algorithm with total 
+ * variation regularization for 3D confocal microscope deconvolution Microsc Res Rech 2006
  * Apr; 69(4)- 260-6
- *
- * estimate - current estimate of RL algorithm
- * correction - current correction of RL algorithm
- * variation - the correction will be modified with the total variation constraint and written to 'variation'
- *
  **/
 #pragma OPENCL EXTENSION cl_khr_fp64 : enable 
-__kernel void totalVariationTerm(  __global float *estimate, global float * correction, __global float * variation,
-                    const unsigned int Nx, const unsigned int Ny, const unsigned int Nz, float hx, float hy, float hz, float regularizationFactor)  
-{                                             
-    
+double totalVariationDenominator(__global float *estimate, int i, int j, int k,
+                    const unsigned int Nx, const unsigned int Ny, const unsigned int Nz, float hx, float hy, float hz, float regularizationFactor)
+{
     int NxNy=Nx*Ny;
     
     double FLOAT32_EPS = 0.0;
-    
-    //Get 3D global thread IDs               
-    int i = get_global_id(0);              
-    int j = get_global_id(1);              
-    int k = get_global_id(2);     
 
     int im1, ip1, jm1, jp1, km1, kp1;
 
@@ -45,11 +35,6 @@ __kernel void totalVariationTerm(  __global float *estimate, global float * corr
     float aim, bjm, ckm, aijk, bijk, cijk;
     float Dxpf, Dxmf, Dypf, Dymf, Dzpf, Dzmf;
     float Dxma, Dymb, Dzmc;
- 
-    //Make sure we do not go out of bounds
-    i = (i>Nx-1 ? Nx-1 : i);
-    j = (j>Ny-1 ? Ny-1 : j);
-    k = (k>Nz-1 ? Nz-1 : k);
     
     im1 = (i > 0 ? i - 1 : 0);
 	ip1 = (i + 1 == Nx ? i : i + 1);
@@ -125,7 +110,62 @@ __kernel void totalVariationTerm(  __global float *estimate, global float * corr
     Dymb = (bijk - bjm) / hy;
     Dzmc = (cijk - ckm) / hz;
     
-    int index=i+j*Nx+k*NxNy;
-    variation[index]=correction[index]/(1.-regularizationFactor*(Dxma+Dymb+Dzmc));
+    return 1.-regularizationFactor*(Dxma+Dymb+Dzmc);
+}
+
+/**
+ * This kernel implements the correction term for Richardson-Lucy algorithm with total variation
+ * regularization for 3D confocal microscope deconvolution Microsc Res Rech 2006
+ * Apr; 69(4)- 260-6
+ *
+ * estimate - current estimate of RL algorithm
+ * correction - current correction of RL algorithm
+ * variation - the correction will be modified with the total variation constraint and written to 'variation'
+ *
+ **/
+__kernel void totalVariationTerm(  __global float *estimate, global float * correction, __global float * variation,
+                    const unsigned int Nx, const unsigned int Ny, const unsigned int Nz, float hx, float hy, float hz, float regularizationFactor)  
+{                                             
+    //Get 3D global thread IDs               
+    int i = get_global_id(0);              
+    int j = get_global_id(1);              
+    int k = get_global_id(2);     
+
+    //Make sure we do not go out of bounds
+    i = (i>Nx-1 ? Nx-1 : i);
+    j = (j>Ny-1 ? Ny-1 : j);
+    k = (k>Nz-1 ? Nz-1 : k);
+
+    int index=i+j*Nx+k*Nx*Ny;
+    variation[index]=correction[index]/totalVariationDenominator(estimate, i, j, k, Nx, Ny, Nz, hx, hy, hz, regularizationFactor);
+}                                
+
+/**
+ * Fused RL update with total variation, one pass instead of totalVariationTerm, multiply and 
+ * divide by normal. 
+ *
+ * estimate - current estimate of RL algorithm (read only, neighbours are needed)
+ * correction - current correction of RL algorithm
+ * normal - non-circulant normalization factor, only used if useNormal is not 0
+ * updated - the next estimate is written here (can not be estimate)
+ *
+ **/
+__kernel void totalVariationUpdate(  __global float *estimate, __global float * correction, __global float * normal, __global float * updated,
+                    const unsigned int Nx, const unsigned int Ny, const unsigned int Nz, float hx, float hy, float hz, float regularizationFactor, const int useNormal)  
+{                                             
+    int i = get_global_id(0);              
+    int j = get_global_id(1);              
+    int k = get_global_id(2);     
+
+    i = (i>Nx-1 ? Nx-1 : i);
+    j = (j>Ny-1 ? Ny-1 : j);
+    k = (k>Nz-1 ? Nz-1 : k);
+
+    int index=i+j*Nx+k*Nx*Ny;
+    float variation=correction[index]/totalVariationDenominator(estimate, i, j, k, Nx, Ny, Nz, hx, hy, hz, regularizationFactor);
+    float value=estimate[index]*variation;
+    if (useNormal) {
+        value=value/normal[index];
+    }
+    updated[index]=value;
 }                                
- 
\ No newline at end of file
@@ -0,0 +1,35 @@
+package net.haesleinhuepf.clijx.plugins;
+
+/**
+ * How FFT based deconvolution (and convolution) handles the image border:
+ *
+ * <ul>
+ * <li>CIRCULANT - the image is extended by the PSF size with mirrored values</li>
+ * <li>NON_CIRCULANT - the image is extended by the PSF size with zeros and the border is
+ * handled with a normalization factor (Bertero and Boccacci)</li>
+ * <li>PERIODIC_SMOOTH - the image is split into a periodic and a smooth component (Moisan,
+ * Periodic plus smooth image decomposition), the periodic component is deconvolved
+ * without extending it by the PSF size (only to the next fast FFT size) and the smooth
+ * component is added back, see PeriodicSmoothDecomposition</li>
+ * </ul>
+ *
+ * @author Brian Northan
+ */
+public enum BoundaryMode {
+	CIRCULANT, NON_CIRCULANT, PERIODIC_SMOOTH;
+
+	/**
+	 * @param code - number used in macros (0 circulant, 1 non-circulant, 2 periodic plus
+	 *          smooth)
+	 */
+	public static BoundaryMode fromCode(int code) {
+		if (code < 0 || code >= values().length) {
+			throw new IllegalArgumentException("Error: unknown boundary mode " + code);
+		}
+		return values()[code];
+	}
+
+	static BoundaryMode fromNonCirculant(boolean nonCirculant) {
+		return nonCirculant ? NON_CIRCULANT : CIRCULANT;
+	}
+}
@@ -0,0 +1,451 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import org.jocl.NativePointerObject;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.clearcl.ClearCLQueue;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+/**
+ * FFT backend that runs clFFT (and the native Richardson Lucy implementation) on the
+ * OpenCL device of the CLIJ2 instance.
+ *
+ * @author Brian Northan
+ */
+public class ClFFTBackend implements FFTBackend {
+
+	public static final String NAME = "clfft";
+
+	/**
+	 * System property for the native log level (0 off, 1 errors, 2 info, 3 debug)
+	 */
+	public static final String LOG_LEVEL_PROPERTY = "clij2fft.loglevel";
+
+	/**
+	 * System property for the checkpoint interval of the native Richardson Lucy loop
+	 */
+	public static final String CHECKPOINT_PROPERTY = "clij2fft.checkpoint";
+
+	/**
+	 * System property to turn the fused Richardson Lucy kernels off (false) for validation
+	 */
+	public static final String FUSED_PROPERTY = "clij2fft.fused";
+
+	// null until probe was called, volatile so isLoaded does not need the lock
+	private static volatile Boolean available = null;
+
+	private static Throwable loadError = null;
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	/**
+	 * @return true if the native clij2fft and clFFT libraries can be loaded
+	 */
+	@Override
+	public boolean isAvailable() {
+		return probe();
+	}
+
+	/**
+	 * Load the native clij2fft and clFFT libraries the first time it is called.  Nothing
+	 * native is loaded before, so discovering and loading the plugins does not load clFFT.
+	 *
+	 * @return true if the libraries are loaded, see getLoadError otherwise
+	 */
+	public static boolean probe() {
+		synchronized (ClFFTBackend.class) {
+			if (available == null) {
+				try {
+					clij2fftWrapper.load();
+					available = true;
+
+					// the level of LOG_LEVEL_PROPERTY or the one set with setLogLevel before
+					clij2fftWrapper.set_log_level(FFTLog.getLevel());
+					String checkpoint = System.getProperty(CHECKPOINT_PROPERTY);
+					if (checkpoint != null) {
+						clij2fftWrapper.set_checkpoint_interval(Integer.parseInt(checkpoint));
+					}
+					String fused = System.getProperty(FUSED_PROPERTY);
+					if (fused != null) {
+						clij2fftWrapper.set_fused_kernels(Boolean.parseBoolean(fused) ? 1 : 0);
+					}
+					ProgramCache.init();
+					Profiler.init();
+				}
+				catch (Throwable t) {
+					FFTLog.error("clij2fft native library not available: " + t);
+					loadError = t;
+					available = false;
+				}
+			}
+			return available;
+		}
+	}
+
+	/**
+	 * @return why the native libraries could not be loaded, null if they were loaded or
+	 *         probe was not called yet
+	 */
+	public static synchronized Throwable getLoadError() {
+		return loadError;
+	}
+
+	/**
+	 * Probe and throw if the native libraries are not available, called before native
+	 * functions that do not go through an FFTBackend
+	 */
+	static void requireNative() {
+		if (!probe()) {
+			throw new IllegalStateException("Error: clij2fft native library not available",
+				getLoadError());
+		}
+	}
+
+	/**
+	 * @return true if the native library was loaded already (does not try to load it)
+	 */
+	static boolean isLoaded() {
+		return available == Boolean.TRUE;
+	}
+
+	/**
+	 * Set the level of the native and the Java log (0 off, 1 errors, 2 info, 3 debug, see
+	 * FFTLog).  By default only errors are printed.  Can be called before the native library
+	 * is loaded.
+	 *
+	 * @param level
+	 * @return the previous level
+	 */
+	public static int setLogLevel(int level) {
+		int previous = FFTLog.setLevel(level);
+		if (isLoaded()) {
+			clij2fftWrapper.set_log_level(level);
+		}
+		return previous;
+	}
+
+	/**
+	 * The native Richardson Lucy loop enqueues all iterations on the (in order) queue and
+	 * waits once at the end.  A checkpoint interval > 0 makes it wait every interval
+	 * iterations (1 is the old behaviour, useful for debugging and timing).
+	 *
+	 * @param interval - iterations between waits, 0 to only wait at the end
+	 * @return the previous interval
+	 */
+	public static int setCheckpointInterval(int interval) {
+		requireNative();
+		return clij2fftWrapper.set_checkpoint_interval(interval);
+	}
+
+	/**
+	 * The native Richardson Lucy loop uses fused kernels by default (multiply by the OTF
+	 * with the conjugate on the fly, one pass for the update with total variation and
+	 * normalization).  Turning them off runs the separate kernels, the results are the
+	 * same.
+	 *
+	 * @param fused
+	 * @return the previous setting
+	 */
+	public static boolean setFusedKernels(boolean fused) {
+		requireNative();
+		return clij2fftWrapper.set_fused_kernels(fused ? 1 : 0) != 0;
+	}
+
+	/**
+	 * Release what the native library keeps for the OpenCL context of clij2: the cached
+	 * clFFT plans (which retain the context, its queue and their temporary buffers) and the
+	 * built programs (see ProgramCache).  The caches are process wide, so without this every
+	 * context ever used stays alive.  Call it before clij2 is closed, or when a long running
+	 * worker is done with a device.
+	 *
+	 * @param clij2
+	 * @return number of plans of the context that are still in use (by an open session)
+	 */
+	public static int releaseContext(CLIJ2 clij2) {
+		if (!isLoaded()) {
+			return 0;
+		}
+
+		long l_context = getContextPointer(clij2);
+
+		clij2fftWrapper.releaseProgramsForContext(l_context);
+
+		return clij2fftWrapper.releasePlansForContext(l_context);
+	}
+
+	@Override
+	public void forwardFFT(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer fft) {
+
+		// get the long pointers to in, out, context and queue.
+		long l_in = getPointer(input);
+		long l_out = getPointer(fft);
+		long l_context = getContextPointer(clij2);
+		long l_queue = getQueuePointer(clij2);
+
+		long start = System.nanoTime();
+
+		if (input.getDimensions().length == 2) {
+			// call the native code that runs the FFT
+			checkError((int) clij2fftWrapper.fft2d_32f_lp((long) (input.getWidth()), input
+				.getHeight(), l_in, l_out, l_context, l_queue), "forward FFT");
+		}
+
+		if (input.getDimensions().length == 3) {
+			// call the native code that runs the FFT
+			checkError((int) clij2fftWrapper.fft3d_32f_lp((long) (input.getWidth()), input
+				.getHeight(), input.getDepth(), l_in, l_out, l_context, l_queue), "forward FFT");
+		}
+
+		Profiler.collectNative(start);
+	}
+
+	@Override
+	public void inverseFFT(CLIJ2 clij2, ClearCLBuffer fft, ClearCLBuffer output) {
+
+		// get the long pointers to in, out, context and queue.
+		long l_in = getPointer(fft);
+		long l_out = getPointer(output);
+		long l_context = getContextPointer(clij2);
+		long l_queue = getQueuePointer(clij2);
+
+		long start = System.nanoTime();
+
+		if (output.getDimensions().length == 2) {
+			// call the native code that runs the inverse FFT
+			checkError((int) clij2fftWrapper.fft2dinv_32f_lp((long) (output.getWidth()), output
+				.getHeight(), l_in, l_out, l_context, l_queue), "inverse FFT");
+		}
+
+		if (output.getDimensions().length == 3) {
+			// call the native code that runs the inverse FFT
+			checkError((int) clij2fftWrapper.fft3dinv_32f_lp((long) (output.getWidth()), output
+				.getHeight(), output.getDepth(), l_in, l_out, l_context, l_queue),
+				"inverse FFT");
+		}
+
+		Profiler.collectNative(start);
+	}
+
+	@Override
+	public void forwardFFTBatch(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer fft,
+		long[] imageDimensions, int batchSize, long inDistance, long outDistance)
+	{
+		long start = System.nanoTime();
+
+		if (imageDimensions.length == 2) {
+			checkError(clij2fftWrapper.fft2d_batch_32f_lp(imageDimensions[0],
+				imageDimensions[1], batchSize, inDistance, outDistance, getPointer(input),
+				getPointer(fft), getContextPointer(clij2), getQueuePointer(clij2)),
+				"batched forward FFT");
+		}
+
+		if (imageDimensions.length == 3) {
+			checkError(clij2fftWrapper.fft3d_batch_32f_lp(imageDimensions[0],
+				imageDimensions[1], imageDimensions[2], batchSize, inDistance, outDistance,
+				getPointer(input), getPointer(fft), getContextPointer(clij2), getQueuePointer(
+					clij2)), "batched forward FFT");
+		}
+
+		Profiler.collectNative(start);
+	}
+
+	@Override
+	public void inverseFFTBatch(CLIJ2 clij2, ClearCLBuffer fft, ClearCLBuffer output,
+		long[] imageDimensions, int batchSize, long inDistance, long outDistance)
+	{
+		long start = System.nanoTime();
+
+		if (imageDimensions.length == 2) {
+			checkError(clij2fftWrapper.fft2dinv_batch_32f_lp(imageDimensions[0],
+				imageDimensions[1], batchSize, inDistance, outDistance, getPointer(fft),
+				getPointer(output), getContextPointer(clij2), getQueuePointer(clij2)),
+				"batched inverse FFT");
+		}
+
+		if (imageDimensions.length == 3) {
+			checkError(clij2fftWrapper.fft3dinv_batch_32f_lp(imageDimensions[0],
+				imageDimensions[1], imageDimensions[2], batchSize, inDistance, outDistance,
+				getPointer(fft), getPointer(output), getContextPointer(clij2), getQueuePointer(
+					clij2)), "batched inverse FFT");
+		}
+
+		Profiler.collectNative(start);
+	}
+
+	@Override
+	public void richardsonLucy(CLIJ2 clij2, ClearCLBuffer observed, ClearCLBuffer psf,
+		ClearCLBuffer estimate, ClearCLBuffer normal, int iterations,
+		float regularizationFactor)
+	{
+		// Get the CL Buffers, context, queue and device as long native pointers
+		long l_normal = normal == null ? 0 : getPointer(normal);
+
+		// call the decon wrapper (n iterations of RL)
+		checkError(clij2fftWrapper.deconv3d_32f_lp_tv(iterations, regularizationFactor,
+			observed.getDimensions()[0], observed.getDimensions()[1], observed
+				.getDimensions()[2], getPointer(observed), getPointer(psf), getPointer(estimate),
+			l_normal, getContextPointer(clij2), getQueuePointer(clij2), getDevicePointer(
+				clij2)), "Richardson Lucy");
+	}
+
+	@Override
+	public void richardsonLucyOTF(CLIJ2 clij2, ClearCLBuffer observed, ClearCLBuffer otf,
+		ClearCLBuffer estimate, ClearCLBuffer normal, int iterations,
+		float regularizationFactor)
+	{
+		long l_normal = normal == null ? 0 : getPointer(normal);
+
+		checkError(clij2fftWrapper.deconv3d_32f_lp_tv_otf(iterations, regularizationFactor,
+			observed.getDimensions()[0], observed.getDimensions()[1], observed
+				.getDimensions()[2], getPointer(observed), getPointer(otf), getPointer(estimate),
+			l_normal, getContextPointer(clij2), getQueuePointer(clij2), getDevicePointer(
+				clij2)), "Richardson Lucy");
+	}
+
+	@Override
+	public RichardsonLucyWorkspace createRichardsonLucyWorkspace(CLIJ2 clij2,
+		ClearCLBuffer otf, long[] extendedDimensions, float regularizationFactor,
+		ClearCLQueue queue)
+	{
+		long l_queue = queue == null ? getQueuePointer(clij2) : getPointer(queue);
+
+		long session = clij2fftWrapper.deconv_session_create(extendedDimensions[0],
+			extendedDimensions[1], extendedDimensions[2], regularizationFactor, getPointer(otf),
+			getContextPointer(clij2), l_queue, getDevicePointer(clij2));
+
+		if (session == 0) {
+			int ret = clij2fftWrapper.deconv_session_last_error();
+
+			if (FFTOutOfMemoryException.isOutOfMemoryCode(ret)) {
+				throw new FFTOutOfMemoryException("creating the Richardson Lucy session", ret);
+			}
+
+			throw new IllegalStateException(
+				"Error: could not create native Richardson Lucy session " + ret);
+		}
+
+		return new ClFFTRichardsonLucyWorkspace(session, queue != null);
+	}
+
+	/**
+	 * Handle of a native Richardson Lucy session (work buffers, plans and kernels on the
+	 * device).  The session only uses its own kernels, so with its own queue it can run on
+	 * another thread.
+	 */
+	private static class ClFFTRichardsonLucyWorkspace implements RichardsonLucyWorkspace {
+
+		private long session;
+		private final boolean ownQueue;
+
+		ClFFTRichardsonLucyWorkspace(long session, boolean ownQueue) {
+			this.session = session;
+			this.ownQueue = ownQueue;
+		}
+
+		@Override
+		public int run(ClearCLBuffer observed, ClearCLBuffer estimate, ClearCLBuffer normal,
+			int iterations)
+		{
+			if (session == 0) {
+				throw new IllegalStateException("Error: session is closed");
+			}
+
+			long l_normal = normal == null ? 0 : getPointer(normal);
+
+			long start = System.nanoTime();
+
+			checkError(clij2fftWrapper.deconv_session_run(session, iterations, getPointer(
+				observed), getPointer(estimate), l_normal), "Richardson Lucy");
+
+			Profiler.collectNative(start);
+
+			return clij2fftWrapper.deconv_session_get_iterations(session);
+		}
+
+		@Override
+		public long getBytesMoved() {
+			return session == 0 ? 0 : clij2fftWrapper.deconv_session_get_bytes_moved(session);
+		}
+
+		@Override
+		public void setAcceleration(boolean accelerate) {
+			if (session == 0) {
+				throw new IllegalStateException("Error: session is closed");
+			}
+
+			checkError(clij2fftWrapper.deconv_session_set_acceleration(session, accelerate ? 1
+				: 0), "setting the acceleration");
+		}
+
+		@Override
+		public void setStoppingCriterion(StoppingCriterion criterion) {
+			if (session == 0) {
+				throw new IllegalStateException("Error: session is closed");
+			}
+
+			checkError(clij2fftWrapper.deconv_session_set_stopping(session, criterion
+				.getMeasure().ordinal(), criterion.getTolerance(), criterion.getInterval()),
+				"setting the stopping criterion");
+		}
+
+		@Override
+		public boolean isConcurrent() {
+			return ownQueue;
+		}
+
+		@Override
+		public void close() {
+			if (session != 0) {
+				clij2fftWrapper.deconv_session_destroy(session);
+				session = 0;
+			}
+		}
+	}
+
+	/**
+	 * Throw if a native call returned an error, FFTOutOfMemoryException if the device ran
+	 * out of memory
+	 *
+	 * @param ret - OpenCL or clFFT error code returned by the native call
+	 * @param operation - what failed, for the message
+	 */
+	static void checkError(int ret, String operation) {
+		if (ret == 0) {
+			return;
+		}
+
+		if (FFTOutOfMemoryException.isOutOfMemoryCode(ret)) {
+			throw new FFTOutOfMemoryException(operation, ret);
+		}
+
+		throw new IllegalStateException("Error: " + operation + " failed " + ret);
+	}
+
+	static long getPointer(ClearCLBuffer buffer) {
+		return ((NativePointerObject) (buffer.getPeerPointer().getPointer()))
+			.getNativePointer();
+	}
+
+	static long getPointer(ClearCLQueue queue) {
+		return ((NativePointerObject) (queue.getPeerPointer().getPointer()))
+			.getNativePointer();
+	}
+
+	static long getContextPointer(CLIJ2 clij2) {
+		return ((NativePointerObject) (clij2.getCLIJ().getClearCLContext()
+			.getPeerPointer().getPointer())).getNativePointer();
+	}
+
+	static long getQueuePointer(CLIJ2 clij2) {
+		return ((NativePointerObject) (clij2.getCLIJ().getClearCLContext()
+			.getDefaultQueue().getPeerPointer().getPointer())).getNativePointer();
+	}
+
+	static long getDevicePointer(CLIJ2 clij2) {
+		return ((NativePointerObject) clij2.getCLIJ().getClearCLContext().getDevice()
+			.getPeerPointer().getPointer()).getNativePointer();
+	}
+}
@@ -1,9 +1,10 @@
 
 package net.haesleinhuepf.clijx.plugins;
 
-import static net.haesleinhuepf.clijx.plugins.OpenCLFFTUtility.padShiftFFTKernel;
 import static net.haesleinhuepf.clijx.plugins.OpenCLFFTUtility.padFFTInputZeros;
 
+import java.util.Arrays;
+
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
@@ -14,30 +15,15 @@ import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clij2.utilities.HasAuthor;
 import net.haesleinhuepf.clij2.utilities.HasClassifiedInputOutput;
 import net.haesleinhuepf.clij2.utilities.IsCategorized;
-import net.imagej.ops.OpService;
+import net.haesleinhuepf.clijx.plugins.OpenCLFFTUtility.PadMode;
 
-import org.jocl.NativePointerObject;
-import org.scijava.Context;
-import org.scijava.command.CommandService;
 import org.scijava.plugin.Plugin;
 
-import ij.IJ;
-
 @Plugin(type = CLIJMacroPlugin.class, name = "CLIJx_convolveFFT")
 public class ConvolveFFT extends AbstractCLIJ2Plugin implements
 	CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation, HasAuthor, HasClassifiedInputOutput, IsCategorized
 {
 	
-	private static OpService ops;
-	private static Context ctx;
-	static {
-		// this initializes the SciJava platform.
-		// See https://forum.image.sc/t/compatibility-of-imagej-tensorflow-with-imagej1/41295/2
-		ctx = (Context) IJ.runPlugIn("org.scijava.Context", "");
-		if (ctx == null) ctx = new Context(CommandService.class, OpService.class);
-		ops = ctx.getService(OpService.class);
-	}
-	
 	@Override
 	public boolean executeCL() {
 		
@@ -48,7 +34,8 @@ public class ConvolveFFT extends AbstractCLIJ2Plugin implements
 	}
 
 	/**
-	 * Convert image to float if not already float, extend, then convolve 
+	 * Extend image, then convolve.  The FFT of the PSF is taken from the OTF cache, so
+	 * the PSF is only extended and transformed the first time it is used with an image size
 	 * 
 	 * @param clij2
 	 * @param input
@@ -59,64 +46,127 @@ public class ConvolveFFT extends AbstractCLIJ2Plugin implements
 	public static boolean convolveFFT(CLIJ2 clij2, ClearCLBuffer input,
 		ClearCLBuffer psf, ClearCLBuffer convolved)
 	{
+		try (TransferAccounting.Scope scope = TransferAccounting.enter("ConvolveFFT", true)) {
+			FFTMetrics.Timer timer = FFTMetrics.start(FFTMetrics.Operation.CONVOLVE_FFT);
+		
+			// crop the PSF to its support if that is turned on (see PSFSupport)
+			ClearCLBuffer psfSupport = PSFSupport.cropIfEnabled(clij2, input.getDimensions(), psf);
 
-		ClearCLBuffer inpuFloat = input;
+			Profiler.Stage stage = Profiler.start("pad input");
 		
-		boolean inputConverted = false;
+			// extended input (float)
+			ClearCLBuffer inputExtended = padFFTInputZeros(clij2, input, psfSupport);
 		
-		if (inpuFloat.getNativeType() != NativeTypeEnum.Float) {
-			inpuFloat = clij2.create(input.getDimensions(), NativeTypeEnum.Float);
-			clij2.copy(input, inpuFloat);
-			inputConverted=true;
-		}
-
-		boolean psfConverted=false;
-		ClearCLBuffer psfFloat = psf;
-		if (psf.getNativeType() != NativeTypeEnum.Float) {
-			psfFloat = clij2.create(psf
-				.getDimensions(), NativeTypeEnum.Float);
-			clij2.copy(psf, psfFloat);
-			psfConverted=true;
-		}
-
-		// extended input
-		ClearCLBuffer inputExtended = padFFTInputZeros(clij2, input, psf, ops);
+			// create memory for extended convolved
+			ClearCLBuffer convolvedExtended = clij2.create(inputExtended);
 		
-		// create memory for extended psf and convolved
-		ClearCLBuffer psf_extended = clij2.create(inputExtended);
-		ClearCLBuffer convolvedExtended = clij2.create(inputExtended);
+			stage.stop();
+			stage = Profiler.start("acquire OTF");
 		
-		// extend kernel
-		padShiftFFTKernel(clij2, psfFloat, psf_extended);
+			// get FFT of extended and shifted kernel
+			ClearCLBuffer otf = OTFCache.acquireOTF(clij2, psfSupport, inputExtended.getDimensions(), false);
 		
-		runConvolve(clij2, inputExtended, psf_extended, convolvedExtended, false);
+			stage.stop();
+			stage = Profiler.start("convolve");
 		
-		clij2.release(psf_extended);
-
-		if (inpuFloat != input) {
-			clij2.release(inpuFloat);
-		}
-
-		if (psfFloat != psf) {
-			clij2.release(psfFloat);
-		}
+			runConvolveWithOTF(clij2, inputExtended, otf, convolvedExtended);
+		
+			OTFCache.releaseOTF(otf);
+		
+			stage.stop();
+			stage = Profiler.start("crop result");
+		
+			OpenCLFFTUtility.cropExtended(clij2, convolvedExtended, convolved);
 		
-		OpenCLFFTUtility.cropExtended(clij2, convolvedExtended, convolved);
+			stage.stop();
 	
-		clij2.release(psf_extended);
-		clij2.release(inputExtended);
-		clij2.release(convolvedExtended);
+			clij2.release(inputExtended);
+			clij2.release(convolvedExtended);
 		
-		if (inputConverted) {
-			inpuFloat.close();
-		}
+			if (psfSupport != psf) {
+				psfSupport.close();
+			}
+		
+			timer.stop();
 		
-		if (psfConverted) {
-			psfFloat.close();
+			return true;
 		}
+	}
+
+	/**
+	 * Convolve with the given boundary handling.  With BoundaryMode.PERIODIC_SMOOTH the
+	 * image is only extended to the next fast FFT size, the periodic component is convolved
+	 * and the smooth component (scaled by the sum of the PSF) is added back, see
+	 * PeriodicSmoothDecomposition.  The other modes extend the image by the PSF size with
+	 * zeros (as convolveFFT without a boundary mode).
+	 * 
+	 * @param clij2
+	 * @param input
+	 * @param psf
+	 * @param convolved
+	 * @param boundaryMode
+	 * @return
+	 */
+	public static boolean convolveFFT(CLIJ2 clij2, ClearCLBuffer input,
+		ClearCLBuffer psf, ClearCLBuffer convolved, BoundaryMode boundaryMode)
+	{
+		try (TransferAccounting.Scope scope = TransferAccounting.enter("ConvolveFFT", true)) {
+			if (boundaryMode != BoundaryMode.PERIODIC_SMOOTH) {
+				return convolveFFT(clij2, input, psf, convolved);
+			}
+		
+			FFTMetrics.Timer timer = FFTMetrics.start(FFTMetrics.Operation.CONVOLVE_FFT);
+		
+			long[] extendedSize = FFTSizeSelector.select(clij2, input.getDimensions());
 		
+			// crop the PSF to its support if that is turned on (see PSFSupport)
+			ClearCLBuffer psfSupport = PSFSupport.cropIfEnabled(clij2, input.getDimensions(), psf);
 		
-		return true;
+			// the image is not extended by the PSF, so the PSF has to fit into it
+			for (int d = 0; d < extendedSize.length; d++) {
+				if (psfSupport.getDimensions()[d] > extendedSize[d]) {
+					String message = "Error: PSF " + Arrays.toString(psfSupport.getDimensions()) +
+						" is larger than the image " + Arrays.toString(extendedSize);
+					if (psfSupport != psf) {
+						psfSupport.close();
+					}
+					throw new IllegalArgumentException(message);
+				}
+			}
+		
+			ClearCLBuffer inputExtended = OpenCLFFTUtility.padFFTInput(clij2, input, extendedSize,
+				PadMode.MIRROR_SINGLE, 0);
+			ClearCLBuffer periodic = clij2.create(inputExtended);
+			ClearCLBuffer smooth = clij2.create(inputExtended);
+		
+			PeriodicSmoothDecomposition.decompose(clij2, inputExtended, periodic, smooth);
+		
+			ClearCLBuffer otf = OTFCache.acquireOTF(clij2, psfSupport, extendedSize, false);
+		
+			// inputExtended holds the convolved periodic component
+			runConvolveWithOTF(clij2, periodic, otf, inputExtended);
+		
+			OTFCache.releaseOTF(otf);
+		
+			// the PSF leaves the smooth component unchanged apart from its sum
+			clij2.multiplyImageAndScalar(smooth, periodic, TransferAccounting.sumOfAllPixels(
+				clij2, psfSupport));
+			clij2.addImages(inputExtended, periodic, smooth);
+		
+			OpenCLFFTUtility.cropExtended(clij2, smooth, convolved);
+		
+			clij2.release(inputExtended);
+			clij2.release(periodic);
+			clij2.release(smooth);
+		
+			if (psfSupport != psf) {
+				psfSupport.close();
+			}
+		
+			timer.stop();
+		
+			return true;
+		}
 	}
 
 	/**
@@ -140,7 +190,7 @@ public class ConvolveFFT extends AbstractCLIJ2Plugin implements
 		ClearCLBuffer complexOutput = clij2.create(gpuFFTImg.getDimensions(), NativeTypeEnum.Float);
 
 		// Perform convolution by mulitplying in the frequency domain (see https://en.wikipedia.org/wiki/Convolution_theorem)
-		MultiplyComplexImages.multiplyComplexImages(clij2, gpuFFTImg, gpuFFTPSF, complexOutput);
+		MultiplyComplexImages.multiplyComplexImages(clij2, gpuFFTImg, gpuFFTPSF, complexOutput, correlate);
 
 		// now get convolved spatian signal by performing inverse 
 		InverseFFT.runInverseFFT(clij2, complexOutput, output);
@@ -152,6 +202,42 @@ public class ConvolveFFT extends AbstractCLIJ2Plugin implements
 	}
 
 
+	/**
+	 * run convolution with a precomputed OTF
+	 * 
+	 * @param gpuImg - need to prepad to supported FFT size
+	 * @param gpuOTF - FFT of the extended and shifted PSF (see OTFCache)
+	 * @param output
+	 */
+	public static void runConvolveWithOTF(CLIJ2 clij2, ClearCLBuffer gpuImg,
+		ClearCLBuffer gpuOTF, ClearCLBuffer output)
+	{
+		runConvolveWithOTF(clij2, gpuImg, gpuOTF, output, false);
+	}
+
+	/**
+	 * run convolution or correlation with a precomputed OTF
+	 * 
+	 * @param gpuImg - need to prepad to supported FFT size
+	 * @param gpuOTF - FFT of the extended and shifted PSF (see OTFCache)
+	 * @param output
+	 * @param correlate - if true correlate with the PSF (multiply with the conjugate OTF)
+	 */
+	public static void runConvolveWithOTF(CLIJ2 clij2, ClearCLBuffer gpuImg,
+		ClearCLBuffer gpuOTF, ClearCLBuffer output, boolean correlate)
+	{
+		ClearCLBuffer gpuFFTImg = ForwardFFT.runFFT(clij2, gpuImg);
+		
+		ClearCLBuffer complexOutput = clij2.create(gpuFFTImg.getDimensions(), NativeTypeEnum.Float);
+
+		MultiplyComplexImages.multiplyComplexImages(clij2, gpuFFTImg, gpuOTF, complexOutput, correlate);
+
+		InverseFFT.runInverseFFT(clij2, complexOutput, output);
+		
+		complexOutput.close();
+		gpuFFTImg.close();
+	}
+
 	@Override
 	public ClearCLBuffer createOutputBufferFromSource(ClearCLBuffer input) {
 		ClearCLBuffer in = (ClearCLBuffer) args[0];
@@ -0,0 +1,423 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import static net.haesleinhuepf.clijx.plugins.OpenCLFFTUtility.cropExtended;
+import static net.haesleinhuepf.clijx.plugins.OpenCLFFTUtility.getExtendedSize;
+import static net.haesleinhuepf.clijx.plugins.OpenCLFFTUtility.padFFTInput;
+
+import java.util.Arrays;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.clearcl.ClearCLQueue;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.plugins.FFTBackend.RichardsonLucyWorkspace;
+import net.haesleinhuepf.clijx.plugins.OpenCLFFTUtility.PadMode;
+
+/**
+ * Richardson Lucy deconvolution of many images of the same size with the same PSF and
+ * options (for example the time points of a time-lapse or the tiles of a large image).
+ *
+ * The session is created once and owns everything that does not depend on the image: the
+ * OTF and the non-circulant normalization factor (both from OTFCache), the extended input
+ * and estimate buffers and the backend workspace (native work buffers, compiled kernels
+ * and FFT plans).  run does no allocation or compilation.
+ *
+ * <pre>
+ * try (DeconvolutionSession session = new DeconvolutionSession(clij2, input
+ * 	.getDimensions(), psf, 0.0f, false))
+ * {
+ * 	for (...) {
+ * 		session.run(input, deconvolved, 100);
+ * 	}
+ * }
+ * </pre>
+ *
+ * For pipelines (see TiledDeconvolution) a session can hold several slots (sets of extended
+ * buffers) and run its iterations on its own command queue.  run is split into prepare,
+ * iterate and finish.  While one slot iterates (possibly on another thread, see
+ * isConcurrent), other slots can be prepared and finished with clij2.
+ *
+ * With BoundaryMode.PERIODIC_SMOOTH the image is only extended to the next fast FFT size
+ * (not by the PSF size).  The smooth component (see PeriodicSmoothDecomposition) is
+ * removed before the iterations and added back to the result, Richardson Lucy runs on the
+ * periodic component (shifted to be non-negative).
+ *
+ * A session is bound to the CLIJ2 instance (and backend) it was created with.  Apart from
+ * iterate on a concurrent session it is not thread safe.
+ *
+ * @author Brian Northan
+ */
+public class DeconvolutionSession implements AutoCloseable {
+
+	private final CLIJ2 clij2;
+
+	private final long[] imageDimensions;
+	private final long[] extendedDimensions;
+	private final BoundaryMode boundaryMode;
+	private final boolean nonCirculant;
+
+	private ClearCLBuffer otf;
+	private ClearCLBuffer[] inputExtended;
+	private ClearCLBuffer[] estimateExtended;
+	private ClearCLBuffer normalizationFactor;
+	private ClearCLBuffer[] smoothExtended;
+	private float[] offsets;
+	private RichardsonLucyWorkspace workspace;
+
+	private volatile int lastIterations;
+
+	// device bytes of the extended buffers, see FFTMetrics
+	private long deviceBytes = 0;
+
+	/**
+	 * @param clij2
+	 * @param imageDimensions - size of the images that will be deconvolved
+	 * @param psf - the PSF (any type, it is normalized)
+	 * @param regularizationFactor - total variation regularization, 0 for none
+	 * @param nonCirculant - use the non-circulant boundary handling
+	 */
+	public DeconvolutionSession(CLIJ2 clij2, long[] imageDimensions, ClearCLBuffer psf,
+		float regularizationFactor, boolean nonCirculant)
+	{
+		this(clij2, imageDimensions, psf, regularizationFactor, nonCirculant, 1, null);
+	}
+
+	/**
+	 * @param clij2
+	 * @param imageDimensions - size of the images that will be deconvolved
+	 * @param psf - the PSF (any type, it is normalized)
+	 * @param regularizationFactor - total variation regularization, 0 for none
+	 * @param nonCirculant - use the non-circulant boundary handling
+	 * @param slots - number of images that can be in flight (see prepare)
+	 * @param queue - command queue the iterations run on, null for the default queue
+	 */
+	public DeconvolutionSession(CLIJ2 clij2, long[] imageDimensions, ClearCLBuffer psf,
+		float regularizationFactor, boolean nonCirculant, int slots, ClearCLQueue queue)
+	{
+		this(clij2, imageDimensions, psf, regularizationFactor, BoundaryMode
+			.fromNonCirculant(nonCirculant), slots, queue);
+	}
+
+	/**
+	 * @param clij2
+	 * @param imageDimensions - size of the images that will be deconvolved
+	 * @param psf - the PSF (any type, it is normalized)
+	 * @param regularizationFactor - total variation regularization, 0 for none
+	 * @param boundaryMode - how the image border is handled
+	 * @param slots - number of images that can be in flight (see prepare)
+	 * @param queue - command queue the iterations run on, null for the default queue
+	 */
+	public DeconvolutionSession(CLIJ2 clij2, long[] imageDimensions, ClearCLBuffer psf,
+		float regularizationFactor, BoundaryMode boundaryMode, int slots,
+		ClearCLQueue queue)
+	{
+		if (imageDimensions.length != 3 || psf.getDimensions().length != 3) {
+			throw new IllegalArgumentException(
+				"Error: DeconvolutionSession only supports 3D images");
+		}
+
+		this.clij2 = clij2;
+		this.imageDimensions = imageDimensions.clone();
+		this.boundaryMode = boundaryMode;
+		this.nonCirculant = boundaryMode == BoundaryMode.NON_CIRCULANT;
+
+		if (boundaryMode == BoundaryMode.PERIODIC_SMOOTH) {
+			this.extendedDimensions = FFTSizeSelector.select(clij2, imageDimensions);
+
+			for (int d = 0; d < extendedDimensions.length; d++) {
+				if (psf.getDimensions()[d] > extendedDimensions[d]) {
+					throw new IllegalArgumentException("Error: PSF " + Arrays.toString(psf
+						.getDimensions()) + " is larger than the image " + Arrays.toString(
+							extendedDimensions));
+				}
+			}
+		}
+		else {
+			this.extendedDimensions = getExtendedSize(clij2, imageDimensions, psf.getDimensions());
+		}
+
+		try {
+			// the OTF of the normalized PSF (sum of one) for the extended size
+			otf = OTFCache.acquireOTF(clij2, psf, extendedDimensions, true);
+
+			inputExtended = new ClearCLBuffer[slots];
+			estimateExtended = new ClearCLBuffer[slots];
+
+			for (int slot = 0; slot < slots; slot++) {
+				inputExtended[slot] = createExtended();
+				estimateExtended[slot] = createExtended();
+			}
+
+			if (boundaryMode == BoundaryMode.PERIODIC_SMOOTH) {
+				smoothExtended = new ClearCLBuffer[slots];
+				offsets = new float[slots];
+
+				for (int slot = 0; slot < slots; slot++) {
+					smoothExtended[slot] = createExtended();
+				}
+			}
+
+			if (nonCirculant) {
+				normalizationFactor = OTFCache.acquireNormalizationFactor(clij2, psf,
+					extendedDimensions, imageDimensions);
+			}
+
+			workspace = FFTBackends.getBackend().createRichardsonLucyWorkspace(clij2, otf,
+				extendedDimensions, regularizationFactor, queue);
+		}
+		catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Deconvolve one image
+	 *
+	 * @param input - image of the size the session was created for (any type)
+	 * @param output - the deconvolved image is written here
+	 * @param iterations - (maximum) number of Richardson Lucy iterations
+	 * @return true if successful, see getIterations for the number of iterations done
+	 */
+	public boolean run(ClearCLBuffer input, ClearCLBuffer output, int iterations) {
+
+		prepare(0, input);
+		iterate(0, iterations);
+		finish(0, output);
+
+		return true;
+	}
+
+	/**
+	 * Extend input into a slot and set the first guess
+	 *
+	 * @param slot
+	 * @param input - image of the size the session was created for (any type)
+	 */
+	public void prepare(int slot, ClearCLBuffer input) {
+
+		checkOpen();
+
+		if (!Arrays.equals(input.getDimensions(), imageDimensions)) {
+			throw new IllegalArgumentException("Error: image size " + Arrays.toString(input
+				.getDimensions()) + " does not match session size " + Arrays.toString(
+					imageDimensions));
+		}
+
+		Profiler.Stage stage = Profiler.start("pad input");
+
+		// if NOT non-circulant mode pad and mirror, in non-circulant mode pad with zeros
+		padFFTInput(clij2, input, inputExtended[slot], nonCirculant ? PadMode.ZERO
+			: PadMode.MIRROR_SINGLE, 0);
+
+		stage.stop();
+		stage = Profiler.start("first guess");
+
+		if (boundaryMode == BoundaryMode.PERIODIC_SMOOTH) {
+			// keep the smooth component and deconvolve the periodic component, shifted so it
+			// is not negative
+			PeriodicSmoothDecomposition.decompose(clij2, inputExtended[slot],
+				estimateExtended[slot], smoothExtended[slot]);
+
+			offsets[slot] = (float) Math.max(0, -TransferAccounting.minimumOfAllPixels(clij2,
+				estimateExtended[slot]));
+
+			clij2.addImageAndScalar(estimateExtended[slot], inputExtended[slot],
+				offsets[slot]);
+			clij2.copy(inputExtended[slot], estimateExtended[slot]);
+		}
+		else if (nonCirculant) {
+			// for the non-circulant case the first guess needs to be a flat sheet
+			double mean = TransferAccounting.meanOfAllPixels(clij2, inputExtended[slot]);
+			clij2.set(estimateExtended[slot], mean);
+		}
+		else {
+			clij2.copy(inputExtended[slot], estimateExtended[slot]);
+		}
+
+		stage.stop();
+	}
+
+	/**
+	 * Run Richardson Lucy iterations on a prepared slot, returns when they are finished. On
+	 * a concurrent session this can be called from another thread.
+	 *
+	 * @param slot
+	 * @param iterations - (maximum) number of Richardson Lucy iterations
+	 * @return number of iterations done, less than iterations if the stopping criterion was
+	 *         met
+	 */
+	public int iterate(int slot, int iterations) {
+
+		checkOpen();
+
+		Profiler.Stage stage = Profiler.start("Richardson Lucy iterations");
+
+		lastIterations = workspace.run(inputExtended[slot], estimateExtended[slot],
+			normalizationFactor, iterations);
+
+		stage.stop();
+
+		FFTMetrics.addIterations(lastIterations);
+
+		return lastIterations;
+	}
+
+	/**
+	 * Stop the iterations early when the estimate converged (see StoppingCriterion).  By
+	 * default all iterations are run.
+	 *
+	 * @param criterion
+	 */
+	public void setStoppingCriterion(StoppingCriterion criterion) {
+
+		checkOpen();
+
+		workspace.setStoppingCriterion(criterion);
+	}
+
+	/**
+	 * Use Biggs-Andrews acceleration (vector extrapolation with an adaptive step limited to
+	 * [0, 1]).  Reaches the result of plain Richardson Lucy in fewer iterations, but needs
+	 * four more buffers of the extended size.
+	 *
+	 * @param accelerate
+	 */
+	public void setAccelerated(boolean accelerate) {
+
+		checkOpen();
+
+		workspace.setAcceleration(accelerate);
+	}
+
+	/**
+	 * @return number of iterations done by the last run (or iterate)
+	 */
+	public int getIterations() {
+		return lastIterations;
+	}
+
+	/**
+	 * @return bytes of device memory read and written per iteration of the last run (see
+	 *         ClFFTBackend.setFusedKernels), 0 if the backend does not count
+	 */
+	public long getBytesPerIteration() {
+		checkOpen();
+
+		return lastIterations == 0 ? 0 : workspace.getBytesMoved() / lastIterations;
+	}
+
+	/**
+	 * Crop the result of a slot
+	 *
+	 * @param slot
+	 * @param output - the deconvolved image is written here
+	 */
+	public void finish(int slot, ClearCLBuffer output) {
+
+		checkOpen();
+
+		Profiler.Stage stage = Profiler.start("crop result");
+
+		if (boundaryMode == BoundaryMode.PERIODIC_SMOOTH) {
+			// remove the offset and add the smooth component back, inputExtended is not
+			// needed anymore
+			clij2.addImages(estimateExtended[slot], smoothExtended[slot], inputExtended[slot]);
+			clij2.addImageAndScalar(inputExtended[slot], estimateExtended[slot],
+				-offsets[slot]);
+		}
+
+		cropExtended(clij2, estimateExtended[slot], output);
+
+		stage.stop();
+	}
+
+	/**
+	 * @return number of slots
+	 */
+	public int getSlots() {
+		return inputExtended.length;
+	}
+
+	/**
+	 * @return true if iterate only uses the queue of the session and can run on another
+	 *         thread while clij2 is used
+	 */
+	public boolean isConcurrent() {
+		return workspace != null && workspace.isConcurrent();
+	}
+
+	private void checkOpen() {
+		if (workspace == null) {
+			throw new IllegalStateException("Error: session is closed");
+		}
+	}
+
+	/**
+	 * @return size of the images the session deconvolves
+	 */
+	public long[] getImageDimensions() {
+		return imageDimensions.clone();
+	}
+
+	/**
+	 * @return how the image border is handled
+	 */
+	public BoundaryMode getBoundaryMode() {
+		return boundaryMode;
+	}
+
+	/**
+	 * @return size of the extended images (the FFT size)
+	 */
+	public long[] getExtendedDimensions() {
+		return extendedDimensions.clone();
+	}
+
+	/**
+	 * Release the workspace and buffers and return the OTF to the cache
+	 */
+	@Override
+	public void close() {
+		if (workspace != null) {
+			workspace.close();
+			workspace = null;
+		}
+		if (normalizationFactor != null) {
+			OTFCache.releaseNormalizationFactor(normalizationFactor);
+			normalizationFactor = null;
+		}
+		if (smoothExtended != null) {
+			close(smoothExtended);
+		}
+		if (estimateExtended != null) {
+			close(estimateExtended);
+		}
+		if (inputExtended != null) {
+			close(inputExtended);
+		}
+		if (otf != null) {
+			OTFCache.releaseOTF(otf);
+			otf = null;
+		}
+
+		FFTMetrics.deviceReleased(deviceBytes);
+		deviceBytes = 0;
+	}
+
+	private ClearCLBuffer createExtended() {
+		ClearCLBuffer buffer = clij2.create(extendedDimensions, NativeTypeEnum.Float);
+		deviceBytes += buffer.getSizeInBytes();
+		FFTMetrics.deviceAllocated(buffer.getSizeInBytes());
+		return buffer;
+	}
+
+	private static void close(ClearCLBuffer[] buffers) {
+		for (int i = 0; i < buffers.length; i++) {
+			if (buffers[i] != null) {
+				buffers[i].close();
+				buffers[i] = null;
+			}
+		}
+	}
+}
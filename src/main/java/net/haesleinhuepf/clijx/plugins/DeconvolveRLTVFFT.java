@@ -7,13 +7,21 @@ import org.scijava.plugin.Plugin;
 @Plugin(type = CLIJMacroPlugin.class, name = "CLIJx_deconvolveRLTVFFT")
 public class DeconvolveRLTVFFT extends DeconvolveRichardsonLucyFFT {
 
+	// no stopping criterion parameters, the defaults have to match the help text
+	@Override
+	public Object[] getDefaultValues() {
+		return new Object[] {null, null, null, 100, 0, 0};
+	}
+
 	@Override
 	public String getParameterHelpText() {
-		return "Image input, Image convolution_kernel, ByRef Image destination, Number num_iterations, Number Regularization_Factor, Boolean non_circulant";
+		return "Image input, Image convolution_kernel, ByRef Image destination, Number num_iterations, Number Regularization_Factor, Number boundary_mode";
 	}
 
 	@Override
 	public String getDescription() {
-		return "Applies Richardson-Lucy deconvolution with Total Variation noise regularization and option non-circulant edge handling.  Currently 3D images only";
+		return "Applies Richardson-Lucy deconvolution with Total Variation noise regularization and a choice of edge handling.  " + 
+			"boundary_mode 0 is circulant (mirrored extension), 1 non-circulant and 2 periodic plus smooth (the image " + 
+			"is split into a periodic and a smooth component and only extended to the next fast FFT size).  Currently 3D images only";
 	}
 }
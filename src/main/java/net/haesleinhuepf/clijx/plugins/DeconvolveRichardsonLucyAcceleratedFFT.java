@@ -0,0 +1,41 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+import org.scijava.plugin.Plugin;
+
+@Plugin(type = CLIJMacroPlugin.class, name = "CLIJx_deconvolveRichardsonLucyAcceleratedFFT")
+public class DeconvolveRichardsonLucyAcceleratedFFT extends DeconvolveRichardsonLucyFFT {
+
+	@Override
+	protected boolean isAccelerated() {
+		return true;
+	}
+
+	/**
+	 * Richardson Lucy with Biggs-Andrews acceleration
+	 * 
+	 * @return number of iterations done
+	 */
+	public static int deconvolveRichardsonLucyAcceleratedFFT(CLIJ2 clij2, ClearCLBuffer input,
+		ClearCLBuffer psf, ClearCLBuffer deconvolved, int num_iterations,
+		float regularizationFactor, boolean nonCirculant)
+	{
+		return deconvolveRichardsonLucyFFT(clij2, input, psf, deconvolved, num_iterations,
+			regularizationFactor, nonCirculant, StoppingCriterion.NONE, true);
+	}
+
+	@Override
+	public Object[] getDefaultValues() {
+		return new Object[] {null, null, null, 20, 0, 0, 0, 0.001, 5};
+	}
+
+	@Override
+	public String getDescription() {
+		return "Applies Richardson-Lucy deconvolution with Biggs-Andrews acceleration using a Fast Fourier Transform using the clFFT library.  " + 
+			"Each iteration starts from a prediction extrapolated from the last two estimates, so a fraction of the iterations " + 
+			"of CLIJx_deconvolveRichardsonLucyFFT is needed.  Needs four more image sized buffers.  Currently 3D images only";
+	}
+}
@@ -1,10 +1,7 @@
 
 package net.haesleinhuepf.clijx.plugins;
 
-import static net.haesleinhuepf.clijx.plugins.OpenCLFFTUtility.cropExtended;
-import static net.haesleinhuepf.clijx.plugins.OpenCLFFTUtility.padFFTInputMirror;
-import static net.haesleinhuepf.clijx.plugins.OpenCLFFTUtility.padFFTInputZeros;
-import static net.haesleinhuepf.clijx.plugins.OpenCLFFTUtility.padShiftFFTKernel;
+import java.util.HashMap;
 
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
@@ -16,39 +13,22 @@ import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clij2.utilities.HasAuthor;
 import net.haesleinhuepf.clij2.utilities.HasClassifiedInputOutput;
 import net.haesleinhuepf.clij2.utilities.IsCategorized;
-import net.imagej.ops.OpService;
-import net.imglib2.Dimensions;
-import net.imglib2.FinalDimensions;
-import net.imglib2.FinalInterval;
-import net.imglib2.Interval;
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.Img;
-import net.imglib2.loops.LoopBuilder;
 
-import org.jocl.NativePointerObject;
-import org.scijava.Context;
-import org.scijava.command.CommandService;
 import org.scijava.plugin.Plugin;
 
-import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.view.Views;
-
-import ij.IJ;
-
 @Plugin(type = CLIJMacroPlugin.class, name = "CLIJx_deconvolveRichardsonLucyFFT")
 public class DeconvolveRichardsonLucyFFT extends AbstractCLIJ2Plugin implements
 	CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation, HasAuthor, HasClassifiedInputOutput, IsCategorized
 {
 
-	private static OpService ops;
-	private static Context ctx;
-	static {
-		// this initializes the SciJava platform.
-		// See https://forum.image.sc/t/compatibility-of-imagej-tensorflow-with-imagej1/41295/2
-		ctx = (Context) IJ.runPlugIn("org.scijava.Context", "");
-		if (ctx == null) ctx = new Context(CommandService.class, OpService.class);
-		ops = ctx.getService(OpService.class);
-	}
+	public static final String AUTO_TILE_PROPERTY = "clij2fft.autotile";
+
+	// retry in tiles when the device runs out of memory
+	private static boolean autoTile = Boolean.parseBoolean(System.getProperty(
+		AUTO_TILE_PROPERTY, "true"));
+
+	// tile plans tried before giving up, each with half the memory of the previous one
+	private static final int MAX_TILED_ATTEMPTS = 3;
 
 	@Override
 	public boolean executeCL() {
@@ -59,17 +39,35 @@ public class DeconvolveRichardsonLucyFFT extends AbstractCLIJ2Plugin implements
 			regularizationFactor = ((Double)(args[4])).floatValue();
 		}
 		
-		boolean nonCirculant = false;
+		BoundaryMode boundaryMode = BoundaryMode.CIRCULANT;
 		
 		if (args.length>=6) {
-			if ((Double)(args[5])>0) {
-			nonCirculant = true;
-			}
+			boundaryMode = BoundaryMode.fromCode(asInteger(args[5]));
 		}
 		
-		boolean result = deconvolveRichardsonLucyFFT(getCLIJ2(), (ClearCLBuffer) (args[0]),
-			(ClearCLBuffer) (args[1]), (ClearCLBuffer) (args[2]), asInteger(args[3]), regularizationFactor, nonCirculant);
-		return result;
+		StoppingCriterion stoppingCriterion = StoppingCriterion.NONE;
+		
+		if (args.length>=9) {
+			stoppingCriterion = StoppingCriterion.fromCode(asInteger(args[6]), 
+				((Double)(args[7])).floatValue(), asInteger(args[8]));
+		}
+		
+		int iterations = deconvolveRichardsonLucyFFT(getCLIJ2(), (ClearCLBuffer) (args[0]),
+			(ClearCLBuffer) (args[1]), (ClearCLBuffer) (args[2]), asInteger(args[3]), regularizationFactor, boundaryMode, 
+			stoppingCriterion, isAccelerated());
+		
+		if (stoppingCriterion != StoppingCriterion.NONE) {
+			FFTLog.info("Richardson Lucy stopped after "+iterations+" iterations");
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return true if the macro plugin uses Biggs-Andrews acceleration
+	 */
+	protected boolean isAccelerated() {
+		return false;
 	}
  	
 	public static boolean deconvolveRichardsonLucyFFT(CLIJ2 clij2, ClearCLBuffer input,
@@ -85,7 +83,10 @@ public class DeconvolveRichardsonLucyFFT extends AbstractCLIJ2Plugin implements
 	}
 	
 	/**
-	 * Convert images to float (if not already float), normalize PSF and call Richardson Lucy 
+	 * Deconvolve with a DeconvolutionSession that only lives for this call.  The OTF of the 
+	 * normalized PSF is cached (see OTFCache) so PSF preparation is skipped when the same PSF 
+	 * is used again with the same image size.  To deconvolve many images of the same size 
+	 * keep a DeconvolutionSession open instead. 
 	 * 
 	 * @param clij2
 	 * @param input
@@ -99,113 +100,172 @@ public class DeconvolveRichardsonLucyFFT extends AbstractCLIJ2Plugin implements
 													  ClearCLBuffer psf, ClearCLBuffer deconvolved, int num_iterations, 
 													  float regularizationFactor, boolean nonCirculant)
 	{
-		ClearCLBuffer inputFloat = input;
+		deconvolveRichardsonLucyFFT(clij2, input, psf, deconvolved, num_iterations, 
+			regularizationFactor, nonCirculant, StoppingCriterion.NONE);
 		
-		boolean inputConverted=false;
+		return true;
+	}
+	
+	/**
+	 * Deconvolve and stop before num_iterations when the stopping criterion is met. 
+	 * 
+	 * @param clij2
+	 * @param input
+	 * @param psf
+	 * @param deconvolved
+	 * @param num_iterations - maximum number of iterations
+	 * @param stoppingCriterion - see StoppingCriterion 
+	 * 
+	 * @return number of iterations done
+	 */
+	public static int deconvolveRichardsonLucyFFT(CLIJ2 clij2, ClearCLBuffer input,
+													  ClearCLBuffer psf, ClearCLBuffer deconvolved, int num_iterations, 
+													  float regularizationFactor, boolean nonCirculant, 
+													  StoppingCriterion stoppingCriterion)
+	{
+		return deconvolveRichardsonLucyFFT(clij2, input, psf, deconvolved, num_iterations, 
+			regularizationFactor, nonCirculant, stoppingCriterion, false);
+	}
+	
+	/**
+	 * Deconvolve, optionally with Biggs-Andrews acceleration (see 
+	 * DeconvolutionSession.setAccelerated).  Accelerated Richardson Lucy needs far fewer 
+	 * iterations for the same result. 
+	 * 
+	 * @param clij2
+	 * @param input
+	 * @param psf
+	 * @param deconvolved
+	 * @param num_iterations - maximum number of iterations
+	 * @param stoppingCriterion - see StoppingCriterion 
+	 * @param accelerate - use Biggs-Andrews acceleration
+	 * 
+	 * @return number of iterations done
+	 */
+	public static int deconvolveRichardsonLucyFFT(CLIJ2 clij2, ClearCLBuffer input,
+													  ClearCLBuffer psf, ClearCLBuffer deconvolved, int num_iterations, 
+													  float regularizationFactor, boolean nonCirculant, 
+													  StoppingCriterion stoppingCriterion, boolean accelerate)
+	{
+		return deconvolveRichardsonLucyFFT(clij2, input, psf, deconvolved, num_iterations, 
+			regularizationFactor, BoundaryMode.fromNonCirculant(nonCirculant), stoppingCriterion, 
+			accelerate);
+	}
+	
+	/**
+	 * Deconvolve with the given boundary handling (see BoundaryMode). 
+	 * 
+	 * @param clij2
+	 * @param input
+	 * @param psf
+	 * @param deconvolved
+	 * @param num_iterations - maximum number of iterations
+	 * @param boundaryMode - circulant, non-circulant or periodic plus smooth 
+	 * @param stoppingCriterion - see StoppingCriterion 
+	 * @param accelerate - use Biggs-Andrews acceleration
+	 * 
+	 * @return number of iterations done
+	 */
+	public static int deconvolveRichardsonLucyFFT(CLIJ2 clij2, ClearCLBuffer input,
+													  ClearCLBuffer psf, ClearCLBuffer deconvolved, int num_iterations, 
+													  float regularizationFactor, BoundaryMode boundaryMode, 
+													  StoppingCriterion stoppingCriterion, boolean accelerate)
+	{
+		try (TransferAccounting.Scope scope = TransferAccounting.enter(
+			"DeconvolveRichardsonLucyFFT", true))
+		{
+			Profiler.Stage stage = Profiler.start("deconvolve");
 		
-		if (inputFloat.getNativeType() != NativeTypeEnum.Float) {
-			inputFloat = clij2.create(input.getDimensions(), NativeTypeEnum.Float);
-			clij2.copy(input, inputFloat);
-			inputConverted=true;
-		}
-
-		boolean psfConverted=false;
-		ClearCLBuffer psfFloat = psf;
-		if (psf.getNativeType() != NativeTypeEnum.Float) {
-			psfFloat = clij2.create(psf
-					.getDimensions(), NativeTypeEnum.Float);
-			clij2.copy(psf, psfFloat);
-			psfConverted=true;
-		}
-
-		// normalize PSF so that it's sum is one 
-		ClearCLBuffer psf_normalized = clij2.create(psfFloat);
+			FFTMetrics.Timer timer = FFTMetrics.start(
+				FFTMetrics.Operation.DECONVOLVE_RICHARDSON_LUCY_FFT);
 		
-		OpenCLFFTUtility.normalize(clij2, psfFloat, psf_normalized);
+			int iterations;
 		
-		long start = System.currentTimeMillis();
+			// crop the PSF to its support if that is turned on (see PSFSupport)
+			ClearCLBuffer psfSupport = PSFSupport.cropIfEnabled(clij2, input.getDimensions(), psf);
 		
-		// deconvolve
-		extendAndDeconvolveRichardsonLucyFFT(clij2, inputFloat, 
-			psf_normalized, deconvolved, num_iterations, regularizationFactor, nonCirculant);
-
-		long end = System.currentTimeMillis();
+			try (DeconvolutionSession session = new DeconvolutionSession(clij2, input.getDimensions(), 
+				psfSupport, regularizationFactor, boundaryMode, 1, null)) 
+			{
+				session.setStoppingCriterion(stoppingCriterion);
+				session.setAccelerated(accelerate);
+				session.run(input, deconvolved, num_iterations);
+				iterations = session.getIterations();
+			}
+			catch (RuntimeException e) {
+				if (!autoTile || !FFTOutOfMemoryException.isOutOfMemory(e)) {
+					throw e;
+				}
+			
+				FFTLog.info("Deconvolution ran out of device memory, retrying in tiles");
+			
+				// the tiles are extended by the PSF, so periodic plus smooth falls back to the 
+				// mirrored (circulant) extension 
+				deconvolveTiledAfterOutOfMemory(clij2, input, psfSupport, deconvolved, num_iterations, 
+					regularizationFactor, boundaryMode == BoundaryMode.NON_CIRCULANT, e);
+				iterations = num_iterations;
+			}
+			finally {
+				if (psfSupport != psf) {
+					psfSupport.close();
+				}
+			}
 		
-		System.out.println("Deconvolve time "+(end-start));
-
-		if (inputConverted) {
-			inputFloat.close();
-		}
+			timer.stop();
+			stage.stop();
 		
-		if (psfConverted) {
-			psfFloat.close();
+			return iterations;
 		}
-		
-		psf_normalized.close();
-
-		return true;
 	}
 
-  /**
-   * Extend image and PSF to next supported FFT size and call Richardson Lucy
-   * 
-   * @param clij2
-   * @param input
-   * @param psf
-   * @param output
-   * @param num_iterations
-   * 
-   * @return true if successful
-   * 
-   * TODO error handling
-   */
-	private static boolean extendAndDeconvolveRichardsonLucyFFT(CLIJ2 clij2, ClearCLBuffer input,
-										ClearCLBuffer psf, ClearCLBuffer output, int num_iterations, float regularizationFactor, boolean nonCirculant)
+	/**
+	 * Deconvolve in tiles after the whole image did not fit (see TiledDeconvolution).  The 
+	 * cached OTFs that are not in use are freed first, the tiles are planned for the device 
+	 * memory left over by input, PSF and output and, if a tile still runs out of memory, 
+	 * for half of that. 
+	 * 
+	 * The stopping criterion and acceleration are not used by the tiled deconvolution, all 
+	 * iterations are run. 
+	 */
+	static void deconvolveTiledAfterOutOfMemory(CLIJ2 clij2, ClearCLBuffer input, 
+		ClearCLBuffer psf, ClearCLBuffer deconvolved, int num_iterations, 
+		float regularizationFactor, boolean nonCirculant, RuntimeException cause)
 	{
-
-		ClearCLBuffer inpuExtended;
+		long availableBytes = TiledDeconvolution.getAvailableBytes(clij2) - input
+			.getSizeInBytes() - deconvolved.getSizeInBytes() - psf.getSizeInBytes();
 		
-		// if NOT non-circulant mode pad and mirror
-		if (!nonCirculant) {
-			inpuExtended = padFFTInputMirror(clij2, input, psf, ops);
-		}
-		// if in non-circulant mode pad with zeros
-		else {
-			inpuExtended = padFFTInputZeros(clij2, input, psf, ops);
+		for (int attempt = 0; attempt < MAX_TILED_ATTEMPTS; attempt++) {
+			OTFCache.clear();
+			
+			try {
+				TiledDeconvolution.deconvolveRichardsonLucyFFTTiled(clij2, input, psf, 
+					deconvolved, num_iterations, regularizationFactor, nonCirculant, 
+					availableBytes);
+				return;
+			}
+			catch (RuntimeException e) {
+				if (!FFTOutOfMemoryException.isOutOfMemory(e)) {
+					throw e;
+				}
+				
+				availableBytes /= 2;
+			}
 		}
 		
-		ClearCLBuffer deconvolvedExtended = clij2.create(inpuExtended);
-		ClearCLBuffer psfExtended = clij2.create(inpuExtended);
-		
-		clij2.copy(inpuExtended, deconvolvedExtended);
-		
-		padShiftFFTKernel(clij2, psf, psfExtended);
-		
-		long[] extendedDims = inpuExtended.getDimensions();
-		long[] originalDims = input.getDimensions();
+		throw new FFTOutOfMemoryException("tiled Richardson Lucy", cause);
+	}
 	
-		ClearCLBuffer normalization_factor=null;
-		
-		if (nonCirculant) {
-			normalization_factor = createNormalizationFactor(clij2, new FinalDimensions(extendedDims[0],extendedDims[1],extendedDims[2]),  
-				new FinalDimensions(originalDims[0],originalDims[1],originalDims[2]), psfExtended);
-		
-			// for the non-circulant case the first guess needs to be a flat sheet
-			double mean=clij2.meanOfAllPixels(inpuExtended);
-			clij2.set(deconvolvedExtended, mean);
-		}
-		
-		runRichardsonLucyGPU(clij2, inpuExtended, psfExtended, deconvolvedExtended, normalization_factor, num_iterations, regularizationFactor);
-
-		cropExtended(clij2, deconvolvedExtended, output);
-		
-		clij2.release(psfExtended);
-		clij2.release(inpuExtended);
-		clij2.release(deconvolvedExtended);
-
-		return true;
+	/**
+	 * @param autoTile - if true (default) a deconvolution that runs out of device memory is 
+	 *          retried in tiles, if false FFTOutOfMemoryException is thrown 
+	 */
+	public static void setAutoTile(boolean autoTile) {
+		DeconvolveRichardsonLucyFFT.autoTile = autoTile;
+	}
+	
+	public static boolean isAutoTile() {
+		return autoTile;
 	}
-
 
 	/**
 	 * run Richardson Lucy deconvolution
@@ -216,41 +276,43 @@ public class DeconvolveRichardsonLucyFFT extends AbstractCLIJ2Plugin implements
 	 * @param output
 	 * @param num_iterations
 	 * 
-	 * @return Deconvolved CLBuffer
-	 * TODO proper error handling
+	 * @return true, FFTOutOfMemoryException (or IllegalStateException for other errors) is 
+	 *         thrown if the backend failed
 	 */
 	public static boolean runRichardsonLucyGPU(CLIJ2 clij2, ClearCLBuffer gpuImg,
 										 ClearCLBuffer gpuPSF, ClearCLBuffer output, ClearCLBuffer gpuNormal, 
 										 int num_iterations, float regularizationFactor)
 	{
 
+		// call the current backend (n iterations of RL)
+		FFTBackends.getBackend().richardsonLucy(clij2, gpuImg, gpuPSF, output, gpuNormal,
+			num_iterations, regularizationFactor);
 
-		// Get the CL Buffers, context, queue and device as long native pointers
-		long longPointerImg = ((NativePointerObject) (gpuImg.getPeerPointer()
-				.getPointer())).getNativePointer();
-		long longPointerPSF = ((NativePointerObject) (gpuPSF.getPeerPointer()
-				.getPointer())).getNativePointer();
-		long longPointerOutput = ((NativePointerObject) (output
-				.getPeerPointer().getPointer())).getNativePointer();
-		long longPointerNormal=0;
-		
-		if (gpuNormal!=null) {
-		 longPointerNormal = ((NativePointerObject) (gpuNormal
-				.getPeerPointer().getPointer())).getNativePointer();
-		}
-		
-		long l_context = ((NativePointerObject) (clij2.getCLIJ().getClearCLContext()
-				.getPeerPointer().getPointer())).getNativePointer();
-		long l_queue = ((NativePointerObject) (clij2.getCLIJ().getClearCLContext()
-				.getDefaultQueue().getPeerPointer().getPointer())).getNativePointer();
-		long l_device = ((NativePointerObject) clij2.getCLIJ().getClearCLContext()
-				.getDevice().getPeerPointer().getPointer()).getNativePointer();
+		FFTMetrics.addIterations(num_iterations);
+
+		return true;
+	}
+	
+	/**
+	 * run Richardson Lucy deconvolution with a precomputed OTF (see OTFCache)
+	 * 
+	 * @param clij2
+	 * @param gpuImg - extended image
+	 * @param gpuOTF - FFT of the extended and shifted PSF
+	 * @param output - first guess, contains the result after the call
+	 * @param gpuNormal - non-circulant normalization factor or null
+	 * @param num_iterations
+	 * 
+	 * @return true if successful
+	 */
+	public static boolean runRichardsonLucyOTF(CLIJ2 clij2, ClearCLBuffer gpuImg,
+										 ClearCLBuffer gpuOTF, ClearCLBuffer output, ClearCLBuffer gpuNormal, 
+										 int num_iterations, float regularizationFactor)
+	{
+		FFTBackends.getBackend().richardsonLucyOTF(clij2, gpuImg, gpuOTF, output, gpuNormal,
+			num_iterations, regularizationFactor);
 
-		// call the decon wrapper (n iterations of RL)
-		clij2fftWrapper.deconv3d_32f_lp_tv(num_iterations, regularizationFactor, gpuImg.getDimensions()[0], gpuImg
-						.getDimensions()[1], gpuImg.getDimensions()[2], longPointerImg,
-				longPointerPSF, longPointerOutput, longPointerNormal, l_context, l_queue,
-				l_device);
+		FFTMetrics.addIterations(num_iterations);
 
 		return true;
 	}
@@ -259,40 +321,45 @@ public class DeconvolveRichardsonLucyFFT extends AbstractCLIJ2Plugin implements
 	 * Calculate non-circulant normalization factor. This is used as part of the
 	 * Boundary condition handling scheme described here
 	 * http://bigwww.epfl.ch/deconvolution/challenge2013/index.html?p=doc_math_rl)
+	 * 
+	 * The valid region (1 inside the original image, 0 in the extension) is generated on 
+	 * the device and correlated with the PSF.  Use OTFCache.acquireNormalizationFactor to 
+	 * reuse the result for the same PSF and sizes.
 	 *
 	 */
-	private static ClearCLBuffer createNormalizationFactor(CLIJ2 clij2, final Dimensions paddedDimensions,
-		final Dimensions originalDimensions, ClearCLBuffer psf) {
+	static ClearCLBuffer createNormalizationFactor(CLIJ2 clij2, long[] paddedDimensions,
+		long[] originalDimensions, ClearCLBuffer otf) {
 		
-		final long[] start = new long[paddedDimensions.numDimensions()];
-		final long[] end = new long[paddedDimensions.numDimensions()];
+		final long[] start = new long[3];
+		final long[] end = new long[3];
 
 		// calculate the start and end of the original image within the extended image 
-		for (int d = 0; d < originalDimensions.numDimensions(); d++) {
-			start[d] = (paddedDimensions.dimension(d) - originalDimensions
-				.dimension(d)) / 2;
-			end[d] = start[d] + originalDimensions.dimension(d) - 1;
+		for (int d = 0; d < originalDimensions.length; d++) {
+			start[d] = (paddedDimensions[d] - originalDimensions[d]) / 2;
+			end[d] = start[d] + originalDimensions[d] - 1;
 		}
 		
-		// use the start and end to for the convolution interval
-		final Interval convolutionInterval = new FinalInterval(start, end);
-	
-		// create an image buffer to contain the valid region (all pixels 
-		// in the original region are 1, extended pixels are 0)
-		final Img<FloatType> validRegion = ops.create().img(paddedDimensions,
-			new FloatType());
-
-		// set all voxels in the valid region to 1
-		final RandomAccessibleInterval<FloatType> temp = Views.interval(Views
-			.zeroMin(validRegion), convolutionInterval);
-		LoopBuilder.setImages(temp).multiThreaded().forEachPixel(a -> a.setOne());
-
-		// convert above to ClearBufferCl
-		ClearCLBuffer gpuvalidregion = clij2.push(validRegion);
-	  ClearCLBuffer gpunormal = clij2.create(gpuvalidregion);	
+		// all pixels in the original region are 1, extended pixels are 0
+		ClearCLBuffer gpuvalidregion = clij2.create(paddedDimensions, NativeTypeEnum.Float);
+		
+		HashMap<String, Object> parameters = new HashMap<>();
+		parameters.put("dst", gpuvalidregion);
+		parameters.put("start_x", (int) start[0]);
+		parameters.put("start_y", (int) start[1]);
+		parameters.put("start_z", (int) start[2]);
+		parameters.put("end_x", (int) end[0]);
+		parameters.put("end_y", (int) end[1]);
+		parameters.put("end_z", (int) end[2]);
+		
+		clij2.execute(DeconvolveRichardsonLucyFFT.class, "valid_region_x.cl", "valid_region", 
+			gpuvalidregion.getDimensions(), gpuvalidregion.getDimensions(), parameters);
+		
+		ClearCLBuffer gpunormal = clij2.create(gpuvalidregion);	
+		
+		// the normalization factor is the correlation between valid region and psf 
+		ConvolveFFT.runConvolveWithOTF(clij2, gpuvalidregion, otf, gpunormal, true);
 		
-	  // the normalization factor is the correlation between valid region and psf 
-	  ConvolveFFT.runConvolve(clij2, gpuvalidregion, psf, gpunormal, true);
+		clij2.release(gpuvalidregion);
 	
 		return gpunormal;
 	}
@@ -306,17 +373,22 @@ public class DeconvolveRichardsonLucyFFT extends AbstractCLIJ2Plugin implements
 
 	@Override
 	public Object[] getDefaultValues() {
-		return new Object[] {null, null, null, 100, 0, 0};
+		return new Object[] {null, null, null, 100, 0, 0, 0, 0.001, 10};
 	}
 
 	@Override
 	public String getParameterHelpText() {
-		return "Image input, Image convolution_kernel, ByRef Image destination, Number num_iterations";
+		return "Image input, Image convolution_kernel, ByRef Image destination, Number num_iterations, Number regularization_factor, Number boundary_mode, Number stopping_criterion, Number tolerance, Number check_interval";
 	}
 
 	@Override
 	public String getDescription() {
-		return "Applies Richardson-Lucy deconvolution using a Fast Fourier Transform using the clFFT library.  Currently 3D images only";
+		return "Applies Richardson-Lucy deconvolution using a Fast Fourier Transform using the clFFT library.  Currently 3D images only.\n\n" + 
+			"boundary_mode 0 extends the image with mirrored values (circulant), 1 uses non-circulant edge handling and " + 
+			"2 the periodic plus smooth decomposition, which does not extend the image by the PSF size.\n\n" + 
+			"num_iterations is the maximum number of iterations.  With stopping_criterion 1 (relative change of the estimate), " + 
+			"2 (I-divergence) or 3 (residual norm) the criterion is checked every check_interval iterations and the " + 
+			"deconvolution stops once it changes less than tolerance.  0 runs all iterations.";
 	}
 
 	@Override
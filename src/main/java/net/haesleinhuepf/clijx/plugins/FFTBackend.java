@@ -0,0 +1,143 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.clearcl.ClearCLQueue;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+/**
+ * Implementation of the FFT based operations used by the plugins.  The default backend
+ * (ClFFTBackend) calls clFFT through clij2fftWrapper, JavaFFTBackend runs on the CPU
+ * and can be used on machines without the native library.
+ *
+ * All buffers are float.  FFT buffers use the Hermitian interleaved layout of
+ * ForwardFFT (2*(N0/2+1) x N1 x N2 floats).
+ *
+ * See FFTBackends for how the backend is selected.
+ *
+ * @author Brian Northan
+ */
+public interface FFTBackend {
+
+	/**
+	 * @return short name used to select the backend (see FFTBackends)
+	 */
+	String getName();
+
+	/**
+	 * @return true if the backend can be used on this machine
+	 */
+	boolean isAvailable();
+
+	/**
+	 * forward FFT (not scaled) of a 2D or 3D float image
+	 */
+	void forwardFFT(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer fft);
+
+	/**
+	 * inverse FFT (scaled by 1/N), the size of the output is the size of the original image
+	 */
+	void inverseFFT(CLIJ2 clij2, ClearCLBuffer fft, ClearCLBuffer output);
+
+	/**
+	 * batched forward FFT of batchSize 2D or 3D images stored in one buffer
+	 *
+	 * @param imageDimensions - size of one image
+	 * @param inDistance - distance between consecutive images in pixels, 0 if contiguous
+	 * @param outDistance - distance between consecutive FFTs in complex numbers, 0 if
+	 *          contiguous
+	 */
+	void forwardFFTBatch(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer fft,
+		long[] imageDimensions, int batchSize, long inDistance, long outDistance);
+
+	/**
+	 * batched inverse FFT, see forwardFFTBatch
+	 *
+	 * @param inDistance - distance between consecutive FFTs in complex numbers, 0 if
+	 *          contiguous
+	 * @param outDistance - distance between consecutive images in pixels, 0 if contiguous
+	 */
+	void inverseFFTBatch(CLIJ2 clij2, ClearCLBuffer fft, ClearCLBuffer output,
+		long[] imageDimensions, int batchSize, long inDistance, long outDistance);
+
+	/**
+	 * Runs Richardson Lucy iterations on pre-extended images.  estimate has to contain the
+	 * first guess and is updated in place.
+	 *
+	 * @param observed - extended image
+	 * @param psf - extended and shifted PSF (see OpenCLFFTUtility.padShiftFFTKernel)
+	 * @param estimate - first guess, contains the result after the call
+	 * @param normal - non-circulant normalization factor or null
+	 * @param iterations - number of iterations
+	 * @param regularizationFactor - total variation regularization, 0 for none
+	 */
+	void richardsonLucy(CLIJ2 clij2, ClearCLBuffer observed, ClearCLBuffer psf,
+		ClearCLBuffer estimate, ClearCLBuffer normal, int iterations,
+		float regularizationFactor);
+
+	/**
+	 * Runs Richardson Lucy iterations on a pre-extended image using a precomputed OTF (see
+	 * OTFCache).  Same as richardsonLucy but the PSF is not transformed.
+	 *
+	 * @param otf - FFT of the extended and shifted PSF, is not modified
+	 */
+	void richardsonLucyOTF(CLIJ2 clij2, ClearCLBuffer observed, ClearCLBuffer otf,
+		ClearCLBuffer estimate, ClearCLBuffer normal, int iterations,
+		float regularizationFactor);
+
+	/**
+	 * Create a workspace for repeated Richardson Lucy runs on extended images of one size
+	 * with one OTF (see DeconvolutionSession).  The workspace holds everything that does
+	 * not depend on the image (work buffers, plans, compiled kernels) and has to be closed.
+	 *
+	 * @param otf - FFT of the extended and shifted PSF, has to stay valid until the
+	 *          workspace is closed
+	 * @param extendedDimensions - size of the extended images
+	 * @param queue - command queue the iterations are run on, null for the default queue of
+	 *          clij2
+	 */
+	RichardsonLucyWorkspace createRichardsonLucyWorkspace(CLIJ2 clij2, ClearCLBuffer otf,
+		long[] extendedDimensions, float regularizationFactor, ClearCLQueue queue);
+
+	/**
+	 * Backend resources for Richardson Lucy, see createRichardsonLucyWorkspace
+	 */
+	interface RichardsonLucyWorkspace extends AutoCloseable {
+
+		/**
+		 * Same as FFTBackend.richardsonLucyOTF with the OTF and options of the workspace.
+		 * Returns when the iterations are finished.
+		 *
+		 * @return number of iterations done, less than iterations if the stopping criterion
+		 *         was met
+		 */
+		int run(ClearCLBuffer observed, ClearCLBuffer estimate, ClearCLBuffer normal,
+			int iterations);
+
+		/**
+		 * @return bytes of device memory read and written by the last run (a lower bound,
+		 *         FFTs are counted as one pass), 0 if the backend does not count
+		 */
+		long getBytesMoved();
+
+		/**
+		 * Set when run can stop before the maximum number of iterations
+		 */
+		void setStoppingCriterion(StoppingCriterion criterion);
+
+		/**
+		 * Turn Biggs-Andrews acceleration on or off.  Each iteration is applied to a
+		 * prediction extrapolated from the last two estimates, which needs four more
+		 * buffers of the extended size.
+		 */
+		void setAcceleration(boolean accelerate);
+
+		/**
+		 * @return true if run only uses the queue of the workspace, so it can be called from
+		 *         another thread while clij2 is used (see TiledDeconvolution)
+		 */
+		boolean isConcurrent();
+
+		@Override
+		void close();
+	}
+}
@@ -0,0 +1,66 @@
+package net.haesleinhuepf.clijx.plugins;
+
+/**
+ * Selects the FFT backend used by ForwardFFT, InverseFFT, ConvolveFFT and the
+ * deconvolution plugins.
+ *
+ * The backend can be chosen with the system property clij2fft.backend ("clfft" or
+ * "java") or by calling setBackend.  If no backend is chosen clFFT is used when the native
+ * library can be loaded, otherwise the pure java backend.
+ *
+ * @author Brian Northan
+ */
+public class FFTBackends {
+
+	public static final String BACKEND_PROPERTY = "clij2fft.backend";
+
+	private static FFTBackend backend = null;
+
+	/**
+	 * @return the current backend
+	 */
+	public static synchronized FFTBackend getBackend() {
+		if (backend == null) {
+			backend = select(System.getProperty(BACKEND_PROPERTY));
+		}
+		return backend;
+	}
+
+	/**
+	 * @param fftBackend - must be available (see FFTBackend.isAvailable)
+	 */
+	public static synchronized void setBackend(FFTBackend fftBackend) {
+		if (!fftBackend.isAvailable()) {
+			throw new IllegalArgumentException("Error: FFT backend " + fftBackend.getName() +
+				" is not available");
+		}
+		backend = fftBackend;
+	}
+
+	/**
+	 * @param name "clfft" or "java", null to select automatically
+	 */
+	public static synchronized void setBackend(String name) {
+		backend = select(name);
+	}
+
+	private static FFTBackend select(String name) {
+		if (JavaFFTBackend.NAME.equalsIgnoreCase(name)) {
+			return new JavaFFTBackend();
+		}
+
+		ClFFTBackend clFFT = new ClFFTBackend();
+
+		if (name != null && !ClFFTBackend.NAME.equalsIgnoreCase(name)) {
+			FFTLog.error("Unknown FFT backend " + name + ", using default");
+		}
+
+		if (clFFT.isAvailable()) {
+			return clFFT;
+		}
+
+		FFTLog.error("clFFT not available, using java FFT backend");
+
+		return new JavaFFTBackend();
+	}
+}
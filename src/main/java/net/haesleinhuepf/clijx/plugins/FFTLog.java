@@ -0,0 +1,59 @@
+package net.haesleinhuepf.clijx.plugins;
+
+/**
+ * Log of the Java side of clij2fft.  It has the same levels as the native log (0 off, 1
+ * errors, 2 info, 3 debug) and is set with the same switch (ClFFTBackend.setLogLevel or the
+ * system property clij2fft.loglevel).  By default only errors are printed, so tile plans,
+ * PSF reports and stopping messages do not go to stdout on every call.
+ *
+ * @author Brian Northan
+ */
+public class FFTLog {
+
+	public static final int OFF = 0;
+	public static final int ERROR = 1;
+	public static final int INFO = 2;
+	public static final int DEBUG = 3;
+
+	private static volatile int level = Integer.getInteger(
+		ClFFTBackend.LOG_LEVEL_PROPERTY, ERROR);
+
+	/**
+	 * Set the level of the Java log only, use ClFFTBackend.setLogLevel to set the native
+	 * level too
+	 *
+	 * @param level
+	 * @return the previous level
+	 */
+	public static int setLevel(int level) {
+		int previous = FFTLog.level;
+		FFTLog.level = level;
+		return previous;
+	}
+
+	public static int getLevel() {
+		return level;
+	}
+
+	public static boolean isEnabled(int level) {
+		return level <= FFTLog.level;
+	}
+
+	public static void error(String message) {
+		print(ERROR, message);
+	}
+
+	public static void info(String message) {
+		print(INFO, message);
+	}
+
+	public static void debug(String message) {
+		print(DEBUG, message);
+	}
+
+	private static void print(int level, String message) {
+		if (isEnabled(level)) {
+			System.out.println(message);
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import java.util.Arrays;
+
+import net.haesleinhuepf.clijx.plugins.TiledDeconvolution.TilePlan;
+
+/**
+ * Predicts the device memory of the FFT operations before they run, so a volume that is too
+ * large can be tiled (or rejected) up front instead of failing on an allocation deep inside
+ * the native code.
+ *
+ * All sizes are in bytes and are the peak of the device buffers alive at the same time,
+ * including the input, PSF and output buffers the caller passes in (all float).  They follow
+ * the buffers the plugins allocate with the clFFT backend:
+ *
+ * <ul>
+ * <li>n - the image, e - the extended image (see OpenCLFFTUtility.getExtendedSize), p - the
+ * PSF</li>
+ * <li>fft - a Hermitian interleaved FFT of the extended image, 2 * (e0 / 2 + 1) * e1 * e2
+ * floats</li>
+ * <li>one fft sized clFFT temporary buffer per transform (clFFT only allocates it for some
+ * sizes, so the estimate is an upper bound)</li>
+ * </ul>
+ *
+ * Buffers of the OTFCache are counted as if the OTF was not cached yet, including the copy
+ * of the PSF the cache keeps with every entry.
+ *
+ * deconvolve takes the boundary mode (BoundaryMode.PERIODIC_SMOOTH extends the image to
+ * the next fast FFT size only, keeps a smooth component per slot and runs two FFTs to
+ * decompose each image) and the size of the PSF after PSFSupport cropping (see
+ * PSFSupport.getSupportSize).  Not covered are the small reduction buffers of CLIJ (sums,
+ * minima, the PSF profiles of PSFSupport) and the memory the driver needs for kernels and
+ * queues, so callers should keep a margin (e.g. a few percent of the device memory).
+ * convolve assumes the zero extension of ConvolveFFT.convolveFFT without a boundary mode.
+ * Extended sizes come from the FFTSizeSelector cost model, a size table benchmarked on a
+ * device can pick a different (larger) size there.
+ *
+ * @author Brian Northan
+ */
+public class FFTMemoryPlanner {
+
+	/**
+	 * @param imageDimensions
+	 * @return bytes for ForwardFFT (image, FFT and the clFFT temporary buffer)
+	 */
+	public static long forwardFFT(long[] imageDimensions) {
+		long fft = fftSizeInFloats(imageDimensions);
+		return (numElements(imageDimensions) + 2 * fft) * Float.BYTES;
+	}
+
+	/**
+	 * @param imageDimensions - size of the spatial image
+	 * @return bytes for InverseFFT (FFT, image and the clFFT temporary buffer)
+	 */
+	public static long inverseFFT(long[] imageDimensions) {
+		return forwardFFT(imageDimensions);
+	}
+
+	/**
+	 * @param imageDimensions
+	 * @param psfDimensions
+	 * @return bytes for ConvolveFFT.convolveFFT
+	 */
+	public static long convolve(long[] imageDimensions, long[] psfDimensions) {
+		long[] extendedDimensions = OpenCLFFTUtility.getExtendedSize(imageDimensions,
+			psfDimensions);
+
+		long extended = numElements(extendedDimensions);
+		long fft = fftSizeInFloats(extendedDimensions);
+
+		// input, PSF, output, extended input and extended output
+		long base = 2 * numElements(imageDimensions) + numElements(psfDimensions) + 2 *
+			extended;
+
+		// OTF: float PSF, extended PSF, OTF and clFFT temporary buffer
+		long otf = numElements(psfDimensions) + extended + 2 * fft;
+
+		// convolution: OTF, image FFT, product and clFFT temporary buffer
+		long convolve = 4 * fft;
+
+		return (base + Math.max(otf, convolve)) * Float.BYTES;
+	}
+
+	/**
+	 * @param imageDimensions
+	 * @param psfDimensions
+	 * @param totalVariation - true if total variation regularization is used
+	 * @param nonCirculant
+	 * @return bytes for DeconvolveRichardsonLucyFFT.deconvolveRichardsonLucyFFT
+	 */
+	public static long deconvolve(long[] imageDimensions, long[] psfDimensions,
+		boolean totalVariation, boolean nonCirculant)
+	{
+		return deconvolve(imageDimensions, psfDimensions, totalVariation, nonCirculant,
+			StoppingCriterion.NONE, false);
+	}
+
+	/**
+	 * @param imageDimensions
+	 * @param psfDimensions
+	 * @param totalVariation - true if total variation regularization is used
+	 * @param nonCirculant
+	 * @param stoppingCriterion - RELATIVE_CHANGE keeps the previous estimate
+	 * @param accelerate - Biggs-Andrews acceleration keeps four more estimates
+	 * @return bytes for DeconvolveRichardsonLucyFFT.deconvolveRichardsonLucyFFT
+	 */
+	public static long deconvolve(long[] imageDimensions, long[] psfDimensions,
+		boolean totalVariation, boolean nonCirculant, StoppingCriterion stoppingCriterion,
+		boolean accelerate)
+	{
+		return deconvolve(imageDimensions, psfDimensions, psfDimensions, totalVariation,
+			BoundaryMode.fromNonCirculant(nonCirculant), stoppingCriterion, accelerate);
+	}
+
+	/**
+	 * @param imageDimensions
+	 * @param psfDimensions - size of the PSF passed in
+	 * @param psfSupportDimensions - size of the PSF after cropping it to its support (see
+	 *          PSFSupport.getSupportSize), psfDimensions if it is not cropped
+	 * @param totalVariation - true if total variation regularization is used
+	 * @param boundaryMode
+	 * @param stoppingCriterion - RELATIVE_CHANGE keeps the previous estimate
+	 * @param accelerate - Biggs-Andrews acceleration keeps four more estimates
+	 * @return bytes for DeconvolveRichardsonLucyFFT.deconvolveRichardsonLucyFFT
+	 */
+	public static long deconvolve(long[] imageDimensions, long[] psfDimensions,
+		long[] psfSupportDimensions, boolean totalVariation, BoundaryMode boundaryMode,
+		StoppingCriterion stoppingCriterion, boolean accelerate)
+	{
+		// input, PSF and output
+		long base = 2 * numElements(imageDimensions) + numElements(psfDimensions);
+
+		// cropping creates the cropped PSF and a scaled copy of it, which is kept
+		long crop = 0;
+
+		if (!Arrays.equals(psfDimensions, psfSupportDimensions)) {
+			base += numElements(psfSupportDimensions);
+			crop = numElements(psfSupportDimensions) * Float.BYTES;
+		}
+
+		return base * Float.BYTES + Math.max(crop, session(imageDimensions,
+			psfSupportDimensions, totalVariation, boundaryMode, 1, stoppingCriterion,
+			accelerate));
+	}
+
+	/**
+	 * Bytes for deconvolving tiles of tileDimensions (see TiledDeconvolution).  Only the
+	 * tiles are counted, not the PSF or a whole image on the device.
+	 *
+	 * @param tileDimensions - size of the tile (not extended)
+	 * @param psfDimensions
+	 * @param totalVariation - true if total variation regularization is used
+	 * @param nonCirculant
+	 * @param slots - number of tiles in flight
+	 * @return bytes for the tile buffers and the DeconvolutionSession
+	 */
+	public static long deconvolveTiled(long[] tileDimensions, long[] psfDimensions,
+		boolean totalVariation, boolean nonCirculant, int slots)
+	{
+		// tile in for each slot, tile out and weighted tile
+		long tiles = (slots + 2) * numElements(tileDimensions);
+
+		return tiles * Float.BYTES + session(tileDimensions, psfDimensions, totalVariation,
+			BoundaryMode.fromNonCirculant(nonCirculant), slots, StoppingCriterion.NONE, false);
+	}
+
+	/**
+	 * Plan tiles so that the workspace of one tile fits into availableBytes.  Starting with
+	 * one tile, the axis with the largest tile is split until deconvolveTiled fits.
+	 *
+	 * @param imageDimensions - size of the (3D) image
+	 * @param psfDimensions
+	 * @param totalVariation - true if total variation regularization is used
+	 * @param nonCirculant
+	 * @param availableBytes - device memory available for the workspace
+	 * @param maxAllocationBytes - largest buffer that can be allocated on the device
+	 * @param slots - number of tiles in flight
+	 * @return the plan
+	 */
+	public static TilePlan planTiles(long[] imageDimensions, long[] psfDimensions,
+		boolean totalVariation, boolean nonCirculant, long availableBytes,
+		long maxAllocationBytes, int slots)
+	{
+		if (imageDimensions.length != 3 || psfDimensions.length != 3) {
+			throw new IllegalArgumentException(
+				"Error: tiled deconvolution only supports 3D images");
+		}
+
+		// the tiles overlap by the PSF extent on each side
+		long[] margin = new long[3];
+		for (int d = 0; d < 3; d++) {
+			margin[d] = psfDimensions[d] / 2;
+		}
+
+		long[] tileCounts = new long[] { 1, 1, 1 };
+
+		while (true) {
+			TilePlan plan = new TilePlan(imageDimensions, tileCounts, margin, slots);
+
+			long[] extendedDimensions = OpenCLFFTUtility.getExtendedSize(plan.tileDimensions,
+				psfDimensions);
+
+			long bytes = deconvolveTiled(plan.tileDimensions, psfDimensions, totalVariation,
+				nonCirculant, slots);
+			long largestBuffer = fftSizeInFloats(extendedDimensions) * Float.BYTES;
+
+			if (bytes <= availableBytes && largestBuffer <= maxAllocationBytes) {
+				plan.estimatedBytes = bytes;
+				return plan;
+			}
+
+			// split the axis with the largest tile core (that can still be split)
+			int split = -1;
+			for (int d = 0; d < 3; d++) {
+				long core = imageDimensions[d] / (tileCounts[d] + 1);
+				if (core >= Math.max(1, margin[d]) && (split == -1 ||
+					imageDimensions[d] / tileCounts[d] > imageDimensions[split] /
+						tileCounts[split]))
+				{
+					split = d;
+				}
+			}
+
+			if (split == -1) {
+				throw new IllegalStateException("Error: a tile of " + Arrays.toString(
+					imageDimensions) + " does not fit into " + availableBytes +
+					" bytes of device memory");
+			}
+
+			tileCounts[split]++;
+		}
+	}
+
+	/**
+	 * @return size of the largest tile of imageDimensions whose workspace fits into
+	 *         availableBytes, see planTiles
+	 */
+	public static long[] getLargestTile(long[] imageDimensions, long[] psfDimensions,
+		boolean totalVariation, boolean nonCirculant, long availableBytes,
+		long maxAllocationBytes, int slots)
+	{
+		return planTiles(imageDimensions, psfDimensions, totalVariation, nonCirculant,
+			availableBytes, maxAllocationBytes, slots).getTileDimensions();
+	}
+
+	/**
+	 * Peak bytes of a DeconvolutionSession, from its creation (OTF and non-circulant
+	 * normalization factor) to its iterations
+	 */
+	private static long session(long[] imageDimensions, long[] psfDimensions,
+		boolean totalVariation, BoundaryMode boundaryMode, int slots,
+		StoppingCriterion stoppingCriterion, boolean accelerate)
+	{
+		boolean periodicSmooth = boundaryMode == BoundaryMode.PERIODIC_SMOOTH;
+		boolean nonCirculant = boundaryMode == BoundaryMode.NON_CIRCULANT;
+
+		// periodic plus smooth is not extended by the PSF (see DeconvolutionSession)
+		long[] extendedDimensions = periodicSmooth ? FFTSizeSelector.select(imageDimensions)
+			: OpenCLFFTUtility.getExtendedSize(imageDimensions, psfDimensions);
+
+		long psf = numElements(psfDimensions);
+		long extended = numElements(extendedDimensions);
+		long fft = fftSizeInFloats(extendedDimensions);
+
+		// OTF creation: PSF copy of the cache, float PSF, extended PSF, OTF and clFFT
+		// temporary buffer
+		long peak = 2 * psf + extended + 2 * fft;
+
+		// OTF with its PSF copy, extended input and estimate for each slot
+		long session = fft + psf + 2 * slots * extended;
+
+		if (nonCirculant) {
+			// valid region and normalization factor, convolved with the OTF (image FFT,
+			// product and clFFT temporary buffer)
+			peak = Math.max(peak, session + psf + 2 * extended + 3 * fft);
+
+			session += extended + psf;
+		}
+
+		if (periodicSmooth) {
+			// smooth component for each slot
+			session += slots * extended;
+		}
+
+		// native workspace: reblurred, estimate FFT and clFFT temporary buffer
+		long workspace = extended + 2 * fft;
+
+		if (totalVariation) {
+			workspace += extended;
+		}
+
+		if (stoppingCriterion != null && stoppingCriterion
+			.getMeasure() == StoppingCriterion.Measure.RELATIVE_CHANGE)
+		{
+			workspace += extended;
+		}
+
+		if (accelerate) {
+			workspace += 4 * extended;
+		}
+
+		peak = Math.max(peak, session + workspace);
+
+		if (periodicSmooth) {
+			// decomposition while an image is prepared: boundary image, its FFT and the clFFT
+			// temporary buffer
+			peak = Math.max(peak, session + workspace + extended + 2 * fft);
+		}
+
+		return peak * Float.BYTES;
+	}
+
+	/**
+	 * size of the Hermitian interleaved FFT of an image (see ForwardFFT) in floats
+	 */
+	static long fftSizeInFloats(long[] dimensions) {
+		long size = 2 * (dimensions[0] / 2 + 1);
+		for (int d = 1; d < dimensions.length; d++) {
+			size *= dimensions[d];
+		}
+		return size;
+	}
+
+	private static long numElements(long[] dimensions) {
+		return JavaFFTBackend.numElements(dimensions);
+	}
+}
@@ -0,0 +1,456 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process wide counters of the FFT plugins, for monitoring long running (Fiji or headless)
+ * workers.
+ *
+ * <ul>
+ * <li>calls and a latency histogram (see LatencyHistogram) of ConvolveFFT, ForwardFFT,
+ * InverseFFT and DeconvolveRichardsonLucyFFT.  FFTs run by another operation (for example
+ * the OTF of a convolution) are counted as well.</li>
+ * <li>bytes pushed to and pulled from the device by the plugins</li>
+ * <li>device bytes held by the package (DeconvolutionSession buffers and OTFCache
+ * entries) and their peak, short lived buffers of a single call are not counted</li>
+ * <li>Richardson Lucy iterations run</li>
+ * <li>hits and misses of the clFFT plan cache and of OTFCache</li>
+ * </ul>
+ *
+ * The counters are always on, they cost a few atomic additions per call.  They are
+ * registered as MXBeans under DOMAIN (type=FFTMetrics for the totals,
+ * type=FFTMetrics,operation=... for every operation) unless the system property
+ * clij2fft.metrics.jmx is false, and can be sent to MetricsExporters (see
+ * startExporting).
+ *
+ * @author Brian Northan
+ */
+public class FFTMetrics {
+
+	public static final String JMX_PROPERTY = "clij2fft.metrics.jmx";
+
+	public static final String DOMAIN = "net.haesleinhuepf.clij2fft";
+
+	/**
+	 * Operations with calls and latency
+	 */
+	public enum Operation {
+			CONVOLVE_FFT("ConvolveFFT"), FORWARD_FFT("ForwardFFT"), INVERSE_FFT("InverseFFT"),
+			DECONVOLVE_RICHARDSON_LUCY_FFT("DeconvolveRichardsonLucyFFT");
+
+		private final String name;
+
+		Operation(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return name of the plugin class
+		 */
+		public String getName() {
+			return name;
+		}
+	}
+
+	private static final OperationMetrics[] operations = new OperationMetrics[Operation
+		.values().length];
+
+	private static final AtomicLong bytesPushed = new AtomicLong();
+	private static final AtomicLong bytesPulled = new AtomicLong();
+	private static final AtomicLong deviceBytes = new AtomicLong();
+	private static final AtomicLong peakDeviceBytes = new AtomicLong();
+	private static final AtomicLong iterations = new AtomicLong();
+
+	private static final List<MetricsExporter> exporters = new CopyOnWriteArrayList<>();
+
+	private static ScheduledExecutorService exportTimer = null;
+
+	static {
+		for (Operation operation : Operation.values()) {
+			operations[operation.ordinal()] = new OperationMetrics();
+		}
+
+		if (Boolean.parseBoolean(System.getProperty(JMX_PROPERTY, "true"))) {
+			registerMBeans();
+		}
+	}
+
+	/**
+	 * Start timing a call, stop it with Timer.stop when the call succeeded
+	 *
+	 * @param operation
+	 * @return the running timer
+	 */
+	public static Timer start(Operation operation) {
+		return new Timer(operations[operation.ordinal()]);
+	}
+
+	/**
+	 * @param bytes - bytes copied from the host to the device
+	 */
+	public static void recordPush(long bytes) {
+		bytesPushed.addAndGet(bytes);
+	}
+
+	/**
+	 * @param bytes - bytes copied from the device to the host
+	 */
+	public static void recordPull(long bytes) {
+		bytesPulled.addAndGet(bytes);
+	}
+
+	/**
+	 * @param bytes - device memory allocated by a long lived owner (session, cache)
+	 */
+	static void deviceAllocated(long bytes) {
+		peakDeviceBytes.accumulateAndGet(deviceBytes.addAndGet(bytes), Math::max);
+	}
+
+	/**
+	 * @param bytes - device memory released again, see deviceAllocated
+	 */
+	static void deviceReleased(long bytes) {
+		deviceBytes.addAndGet(-bytes);
+	}
+
+	/**
+	 * @param n - Richardson Lucy iterations run
+	 */
+	static void addIterations(long n) {
+		iterations.addAndGet(n);
+	}
+
+	public static long getCalls(Operation operation) {
+		return operations[operation.ordinal()].getCalls();
+	}
+
+	/**
+	 * @param operation
+	 * @return latency histogram of the operation (live, not a copy)
+	 */
+	public static LatencyHistogram getLatency(Operation operation) {
+		return operations[operation.ordinal()].latency;
+	}
+
+	public static long getBytesPushed() {
+		return bytesPushed.get();
+	}
+
+	public static long getBytesPulled() {
+		return bytesPulled.get();
+	}
+
+	public static long getDeviceBytes() {
+		return deviceBytes.get();
+	}
+
+	public static long getPeakDeviceBytes() {
+		return peakDeviceBytes.get();
+	}
+
+	public static long getIterations() {
+		return iterations.get();
+	}
+
+	/**
+	 * @return hits of the clFFT plan cache, 0 if the native library was not loaded
+	 */
+	public static long getPlanCacheHits() {
+		return ClFFTBackend.isLoaded() ? clij2fftWrapper.planCacheHits() : 0;
+	}
+
+	/**
+	 * @return misses (baked plans) of the clFFT plan cache, 0 if the native library was not
+	 *         loaded
+	 */
+	public static long getPlanCacheMisses() {
+		return ClFFTBackend.isLoaded() ? clij2fftWrapper.planCacheMisses() : 0;
+	}
+
+	public static double getPlanCacheHitRate() {
+		return hitRate(getPlanCacheHits(), getPlanCacheMisses());
+	}
+
+	public static double getOTFCacheHitRate() {
+		return hitRate(OTFCache.getHits(), OTFCache.getMisses());
+	}
+
+	private static double hitRate(long hits, long misses) {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	/**
+	 * Set all counters (apart from the cache counters, see OTFCache and
+	 * clij2fftWrapper.planCacheHits) to 0 and the peak to the current device bytes
+	 */
+	public static void reset() {
+		for (OperationMetrics operation : operations) {
+			operation.calls.set(0);
+			operation.latency.reset();
+		}
+		bytesPushed.set(0);
+		bytesPulled.set(0);
+		peakDeviceBytes.set(deviceBytes.get());
+		iterations.set(0);
+	}
+
+	/**
+	 * @return all counters and gauges by name (clij2fft.[operation].calls,
+	 *         clij2fft.[operation].latency.mean_ms, ... and clij2fft.bytes_pushed, ...)
+	 */
+	public static Map<String, Number> getValues() {
+		Map<String, Number> values = new LinkedHashMap<>();
+
+		for (Operation operation : Operation.values()) {
+			OperationMetrics metrics = operations[operation.ordinal()];
+			String prefix = "clij2fft." + operation.getName() + ".";
+
+			values.put(prefix + "calls", metrics.getCalls());
+			values.put(prefix + "latency.total_ms", metrics.getTotalMillis());
+			values.put(prefix + "latency.mean_ms", metrics.getMeanMillis());
+			values.put(prefix + "latency.max_ms", metrics.getMaxMillis());
+			values.put(prefix + "latency.p50_ms", metrics.getP50Millis());
+			values.put(prefix + "latency.p95_ms", metrics.getP95Millis());
+			values.put(prefix + "latency.p99_ms", metrics.getP99Millis());
+		}
+
+		values.put("clij2fft.bytes_pushed", getBytesPushed());
+		values.put("clij2fft.bytes_pulled", getBytesPulled());
+		values.put("clij2fft.device_bytes", getDeviceBytes());
+		values.put("clij2fft.device_bytes_peak", getPeakDeviceBytes());
+		values.put("clij2fft.iterations", getIterations());
+		values.put("clij2fft.plan_cache.hits", getPlanCacheHits());
+		values.put("clij2fft.plan_cache.misses", getPlanCacheMisses());
+		values.put("clij2fft.plan_cache.hit_rate", getPlanCacheHitRate());
+		values.put("clij2fft.otf_cache.hits", OTFCache.getHits());
+		values.put("clij2fft.otf_cache.misses", OTFCache.getMisses());
+		values.put("clij2fft.otf_cache.hit_rate", getOTFCacheHitRate());
+		values.put("clij2fft.otf_cache.bytes", OTFCache.getSizeInBytes());
+
+		return values;
+	}
+
+	public static void addExporter(MetricsExporter exporter) {
+		exporters.add(exporter);
+	}
+
+	public static void removeExporter(MetricsExporter exporter) {
+		exporters.remove(exporter);
+	}
+
+	/**
+	 * Send the current values to all exporters
+	 */
+	public static void export() {
+		if (exporters.isEmpty()) {
+			return;
+		}
+
+		long timestamp = System.currentTimeMillis();
+		Map<String, Number> values = getValues();
+
+		for (MetricsExporter exporter : exporters) {
+			try {
+				exporter.export(timestamp, values);
+			}
+			catch (RuntimeException e) {
+				FFTLog.error("clij2fft metrics exporter failed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Call export periodically on a daemon thread
+	 *
+	 * @param periodSeconds
+	 */
+	public static synchronized void startExporting(long periodSeconds) {
+		stopExporting();
+
+		exportTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "clij2fft-metrics-export");
+			thread.setDaemon(true);
+			return thread;
+		});
+		exportTimer.scheduleAtFixedRate(FFTMetrics::export, periodSeconds, periodSeconds,
+			TimeUnit.SECONDS);
+	}
+
+	public static synchronized void stopExporting() {
+		if (exportTimer != null) {
+			exportTimer.shutdown();
+			exportTimer = null;
+		}
+	}
+
+	private static void registerMBeans() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+			register(server, new ObjectName(DOMAIN + ":type=FFTMetrics"), new Totals());
+
+			for (Operation operation : Operation.values()) {
+				register(server, new ObjectName(DOMAIN + ":type=FFTMetrics,operation=" +
+					operation.getName()), operations[operation.ordinal()]);
+			}
+		}
+		catch (JMException | RuntimeException e) {
+			FFTLog.error("clij2fft metrics not registered with JMX: " + e);
+		}
+	}
+
+	/**
+	 * register, replacing the beans of a previous class loader (for example after a plugin
+	 * reload in Fiji)
+	 */
+	private static void register(MBeanServer server, ObjectName name, Object bean)
+		throws JMException
+	{
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(bean, name);
+	}
+
+	/**
+	 * A call being timed, see start
+	 */
+	public static class Timer {
+
+		private final OperationMetrics operation;
+		private final long startNanos = System.nanoTime();
+
+		Timer(OperationMetrics operation) {
+			this.operation = operation;
+		}
+
+		/**
+		 * Count the call and record its latency
+		 */
+		public void stop() {
+			operation.calls.incrementAndGet();
+			operation.latency.record(System.nanoTime() - startNanos);
+		}
+	}
+
+	static class OperationMetrics implements OperationMetricsMXBean {
+
+		final AtomicLong calls = new AtomicLong();
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		@Override
+		public long getCalls() {
+			return calls.get();
+		}
+
+		@Override
+		public double getTotalMillis() {
+			return latency.getTotalNanos() / 1e6;
+		}
+
+		@Override
+		public double getMeanMillis() {
+			return latency.getMeanNanos() / 1e6;
+		}
+
+		@Override
+		public double getMaxMillis() {
+			return latency.getMaxNanos() / 1e6;
+		}
+
+		@Override
+		public double getP50Millis() {
+			return latency.getPercentileNanos(50) / 1e6;
+		}
+
+		@Override
+		public double getP95Millis() {
+			return latency.getPercentileNanos(95) / 1e6;
+		}
+
+		@Override
+		public double getP99Millis() {
+			return latency.getPercentileNanos(99) / 1e6;
+		}
+
+		@Override
+		public long[] getLatencyBuckets() {
+			return latency.getBucketCounts();
+		}
+	}
+
+	static class Totals implements FFTMetricsMXBean {
+
+		@Override
+		public long getBytesPushed() {
+			return FFTMetrics.getBytesPushed();
+		}
+
+		@Override
+		public long getBytesPulled() {
+			return FFTMetrics.getBytesPulled();
+		}
+
+		@Override
+		public long getDeviceBytes() {
+			return FFTMetrics.getDeviceBytes();
+		}
+
+		@Override
+		public long getPeakDeviceBytes() {
+			return FFTMetrics.getPeakDeviceBytes();
+		}
+
+		@Override
+		public long getIterations() {
+			return FFTMetrics.getIterations();
+		}
+
+		@Override
+		public long getPlanCacheHits() {
+			return FFTMetrics.getPlanCacheHits();
+		}
+
+		@Override
+		public long getPlanCacheMisses() {
+			return FFTMetrics.getPlanCacheMisses();
+		}
+
+		@Override
+		public double getPlanCacheHitRate() {
+			return FFTMetrics.getPlanCacheHitRate();
+		}
+
+		@Override
+		public long getOTFCacheHits() {
+			return OTFCache.getHits();
+		}
+
+		@Override
+		public long getOTFCacheMisses() {
+			return OTFCache.getMisses();
+		}
+
+		@Override
+		public double getOTFCacheHitRate() {
+			return FFTMetrics.getOTFCacheHitRate();
+		}
+
+		@Override
+		public void reset() {
+			FFTMetrics.reset();
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package net.haesleinhuepf.clijx.plugins;
+
+/**
+ * JMX view of the counters of FFTMetrics that are not per operation
+ *
+ * @author Brian Northan
+ */
+public interface FFTMetricsMXBean {
+
+	long getBytesPushed();
+
+	long getBytesPulled();
+
+	long getDeviceBytes();
+
+	long getPeakDeviceBytes();
+
+	long getIterations();
+
+	long getPlanCacheHits();
+
+	long getPlanCacheMisses();
+
+	double getPlanCacheHitRate();
+
+	long getOTFCacheHits();
+
+	long getOTFCacheMisses();
+
+	double getOTFCacheHitRate();
+
+	/**
+	 * Set all counters (apart from the cache counters) to 0 and the peak to the current
+	 * device bytes
+	 */
+	void reset();
+}
@@ -0,0 +1,84 @@
+package net.haesleinhuepf.clijx.plugins;
+
+/**
+ * Thrown when an FFT or deconvolution runs out of device memory, either because a native
+ * allocation (clCreateBuffer, clFFT temporary buffers) failed or because CLIJ could not
+ * create a buffer.  DeconvolveRichardsonLucyFFT catches it and retries in tiles.
+ *
+ * @author Brian Northan
+ */
+public class FFTOutOfMemoryException extends IllegalStateException {
+
+	private static final long serialVersionUID = 1L;
+
+	// OpenCL error codes that mean the device (or driver) ran out of memory, clFFT uses the
+	// same codes
+	static final int CL_MEM_OBJECT_ALLOCATION_FAILURE = -4;
+	static final int CL_OUT_OF_RESOURCES = -5;
+	static final int CL_OUT_OF_HOST_MEMORY = -6;
+	static final int CL_INVALID_BUFFER_SIZE = -61;
+
+	private static final String[] ERROR_NAMES = new String[] {
+		"CL_MEM_OBJECT_ALLOCATION_FAILURE", "CL_OUT_OF_RESOURCES", "CL_OUT_OF_HOST_MEMORY",
+		"CL_INVALID_BUFFER_SIZE" };
+
+	private final int errorCode;
+
+	/**
+	 * @param operation - what ran out of memory
+	 * @param errorCode - OpenCL error code, 0 if not known
+	 */
+	public FFTOutOfMemoryException(String operation, int errorCode) {
+		super("Error: " + operation + " ran out of device memory (" + errorCode + ")");
+		this.errorCode = errorCode;
+	}
+
+	/**
+	 * @param operation - what ran out of memory
+	 * @param cause - the exception thrown by CLIJ
+	 */
+	public FFTOutOfMemoryException(String operation, Throwable cause) {
+		super("Error: " + operation + " ran out of device memory", cause);
+		this.errorCode = 0;
+	}
+
+	/**
+	 * @return the OpenCL error code, 0 if not known
+	 */
+	public int getErrorCode() {
+		return errorCode;
+	}
+
+	/**
+	 * @return true if the OpenCL error code means the device ran out of memory
+	 */
+	public static boolean isOutOfMemoryCode(int errorCode) {
+		return errorCode == CL_MEM_OBJECT_ALLOCATION_FAILURE ||
+			errorCode == CL_OUT_OF_RESOURCES || errorCode == CL_OUT_OF_HOST_MEMORY ||
+			errorCode == CL_INVALID_BUFFER_SIZE;
+	}
+
+	/**
+	 * @return true if t, or one of its causes, reports that the device ran out of memory.
+	 *         CLIJ (ClearCL and JOCL) report failed allocations as exceptions whose message
+	 *         contains the name of the OpenCL error.
+	 */
+	public static boolean isOutOfMemory(Throwable t) {
+		for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+			if (cause instanceof FFTOutOfMemoryException) {
+				return true;
+			}
+
+			String message = cause.getMessage();
+
+			if (message != null) {
+				for (String name : ERROR_NAMES) {
+					if (message.contains(name)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+}
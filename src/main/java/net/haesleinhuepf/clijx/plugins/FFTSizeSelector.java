@@ -0,0 +1,478 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+/**
+ * Chooses the size images are extended to before an FFT.
+ *
+ * The extended size has to be at least image + 2 * (psf / 2) along each axis, so
+ * convolution with the PSF does not wrap around (the same requirement as get_pad_size in
+ * python/clij2fft/pad.py).  clFFT only supports lengths that factor into 2, 3, 5 and 7 and
+ * is much faster for some of them, so instead of the minimum size the selector considers
+ * the 7-smooth lengths from the next smooth number (see nextSmooth, a port of next_smooth
+ * in pad.py) up to the next power of two along each axis and picks the combination with
+ * the lowest cost.
+ *
+ * The cost of a transform of size n0 x n1 x n2 is modelled as n0 * n1 * n2 * (c(n0) + c(n1)
+ * + c(n2)), where c(n) is the cost per element of transforming one axis of length n.  By
+ * default c(n) is estimated from the factorization of n (larger radices are more expensive
+ * per factor).  benchmark measures c(n) with the current FFT backend on a device, the
+ * measured table is kept per device name, used by the calls that pass a CLIJ2 instance of
+ * that device and saved next to the program cache (see ProgramCache), so it only has to be
+ * measured once per device.  The calls without a device (and FFTMemoryPlanner) use the
+ * model.
+ *
+ * Size selection is off by default for images extended by the PSF (see
+ * OpenCLFFTUtility.getExtendedSize), they are extended to image + psf as before unless it
+ * is turned on with setEnabled or SELECT_PROPERTY.  Periodic plus smooth boundaries always
+ * use select.
+ *
+ * @author Brian Northan
+ */
+public class FFTSizeSelector {
+
+	/**
+	 * System property to turn size selection on (true) for images extended by the PSF, by
+	 * default they are extended to image + psf
+	 */
+	public static final String SELECT_PROPERTY = "clij2fft.fftsize.select";
+
+	private static volatile boolean enabled = Boolean.getBoolean(SELECT_PROPERTY);
+
+	// primes clFFT supports and the relative cost of one radix pass per element, divided by
+	// log2 of the radix
+	private static final long[] PRIMES = new long[] { 2, 3, 5, 7 };
+	private static final double[] RADIX_PENALTY = new double[] { 1.0, 1.15, 1.3, 1.5 };
+
+	// length of the second axis of the benchmark images
+	private static final long BENCHMARK_HEIGHT = 64;
+
+	// measured cost per element of one axis (see benchmark) per device name
+	private static final Map<String, TreeMap<Long, Double>> tables = new HashMap<>();
+
+	/**
+	 * @param imageDimensions
+	 * @param psfDimensions
+	 * @return the smallest extended size that avoids wrap around, image + 2 * (psf / 2)
+	 */
+	public static long[] getMinimumSize(long[] imageDimensions, long[] psfDimensions) {
+		long[] minimum = new long[imageDimensions.length];
+
+		for (int d = 0; d < imageDimensions.length; d++) {
+			minimum[d] = imageDimensions[d] + 2 * (psfDimensions[d] / 2);
+		}
+
+		return minimum;
+	}
+
+	/**
+	 * @param minimumSize - smallest acceptable size along each axis
+	 * @return the size with the lowest modelled cost that is at least minimumSize along each
+	 *         axis
+	 */
+	public static long[] select(long[] minimumSize) {
+		return select((String) null, minimumSize);
+	}
+
+	/**
+	 * @param clij2
+	 * @param minimumSize - smallest acceptable size along each axis
+	 * @return the size with the lowest cost on the device of clij2 (measured if it was
+	 *         benchmarked) that is at least minimumSize along each axis
+	 */
+	public static long[] select(CLIJ2 clij2, long[] minimumSize) {
+		return select(getDeviceName(clij2), minimumSize);
+	}
+
+	/**
+	 * @param device - device name, null for the model
+	 * @param minimumSize - smallest acceptable size along each axis
+	 * @return the size with the lowest cost that is at least minimumSize along each axis
+	 */
+	public static synchronized long[] select(String device, long[] minimumSize) {
+		TreeMap<Long, Double> table = getTable(device);
+		List<long[]> candidates = new ArrayList<>();
+
+		for (long minimum : minimumSize) {
+			candidates.add(getCandidates(minimum));
+		}
+
+		long[] best = new long[minimumSize.length];
+		long[] size = new long[minimumSize.length];
+		double[] bestCost = new double[] { Double.MAX_VALUE };
+
+		search(table, candidates, 0, size, best, bestCost);
+
+		return best;
+	}
+
+	private static void search(TreeMap<Long, Double> table, List<long[]> candidates, int d,
+		long[] size, long[] best, double[] bestCost)
+	{
+		if (d == size.length) {
+			double cost = getCost(table, size);
+			if (cost < bestCost[0]) {
+				bestCost[0] = cost;
+				System.arraycopy(size, 0, best, 0, size.length);
+			}
+			return;
+		}
+
+		for (long n : candidates.get(d)) {
+			size[d] = n;
+			search(table, candidates, d + 1, size, best, bestCost);
+		}
+	}
+
+	/**
+	 * @return the 7-smooth lengths from nextSmooth(minimum) up to the next power of two
+	 */
+	static long[] getCandidates(long minimum) {
+		long first = nextSmooth(minimum);
+		long last = Math.max(first, Long.highestOneBit(Math.max(1, minimum - 1)) << 1);
+
+		List<Long> lengths = new ArrayList<>();
+		for (long n = first; n <= last; n++) {
+			if (isSmooth(n)) {
+				lengths.add(n);
+			}
+		}
+
+		long[] candidates = new long[lengths.size()];
+		for (int i = 0; i < candidates.length; i++) {
+			candidates[i] = lengths.get(i);
+		}
+		return candidates;
+	}
+
+	/**
+	 * @return modelled cost of a transform of size (arbitrary units, only used to compare
+	 *         sizes)
+	 */
+	public static double getCost(long[] size) {
+		return getCost((String) null, size);
+	}
+
+	/**
+	 * @param device - device name, null for the model
+	 * @param size
+	 * @return estimated cost of a transform of size on the device (arbitrary units, only
+	 *         used to compare sizes)
+	 */
+	public static synchronized double getCost(String device, long[] size) {
+		return getCost(getTable(device), size);
+	}
+
+	private static double getCost(TreeMap<Long, Double> table, long[] size) {
+		double perElement = 0;
+		for (long n : size) {
+			perElement += getAxisCost(table, n);
+		}
+		return JavaFFTBackend.numElements(size) * perElement;
+	}
+
+	/**
+	 * @return the measured table of the device, null if it was not measured (or device is
+	 *         null)
+	 */
+	private static TreeMap<Long, Double> getTable(String device) {
+		return device == null ? null : tables.get(device);
+	}
+
+	/**
+	 * cost per element of transforming one axis of length n, measured if it is in the
+	 * table, otherwise the model scaled to the table
+	 */
+	private static double getAxisCost(TreeMap<Long, Double> table, long n) {
+		if (n <= 1) {
+			return 0;
+		}
+
+		if (table != null && !table.isEmpty()) {
+			Double measured = table.get(n);
+			if (measured != null) {
+				return measured;
+			}
+
+			// scale the model by the mean ratio of measured to modelled cost
+			double ratio = 0;
+			for (Map.Entry<Long, Double> entry : table.entrySet()) {
+				ratio += entry.getValue() / getModelCost(entry.getKey());
+			}
+			return getModelCost(n) * ratio / table.size();
+		}
+
+		return getModelCost(n);
+	}
+
+	/**
+	 * cost per element of one mixed radix transform of length n, the sum over the prime
+	 * factors p of log2(p) times the penalty of radix p.  Lengths that are not 7-smooth
+	 * are not supported by clFFT and get an infinite cost.
+	 */
+	static double getModelCost(long n) {
+		double cost = 0;
+
+		for (int i = 0; i < PRIMES.length; i++) {
+			while (n % PRIMES[i] == 0) {
+				cost += Math.log(PRIMES[i]) / Math.log(2) * RADIX_PENALTY[i];
+				n /= PRIMES[i];
+			}
+		}
+
+		return n == 1 ? cost : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @return true if n only has the prime factors 2, 3, 5 and 7
+	 */
+	public static boolean isSmooth(long n) {
+		if (n < 1) {
+			return false;
+		}
+		for (long p : PRIMES) {
+			while (n % p == 0) {
+				n /= p;
+			}
+		}
+		return n == 1;
+	}
+
+	/**
+	 * Next 7-smooth number (only has the prime factors 2, 3, 5 and 7) that is at least x.
+	 * Port of next_smooth in python/clij2fft/pad.py, based on A. Granville, Finding smooth
+	 * numbers computationally.
+	 *
+	 * @author Johannes Schindelin
+	 * @author Brian Northan
+	 */
+	public static long nextSmooth(long x) {
+		if (x <= 1) {
+			return 1;
+		}
+
+		int z = (int) (4 * Math.log(x) / Math.log(2));
+		double delta = 0.000001;
+
+		double[] a = new double[z];
+
+		for (long p : PRIMES) {
+			handlePrime(p, x, a);
+		}
+
+		double log = Math.log(x);
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] >= log - delta) {
+				return x + i;
+			}
+		}
+
+		// the sieve window was too small (only for very small x)
+		while (!isSmooth(x)) {
+			x++;
+		}
+		return x;
+	}
+
+	private static void handlePrime(long p, long x, double[] a) {
+		double log = Math.log(p);
+		long power = p;
+
+		while (power <= x + a.length) {
+			long j = x % power;
+			if (j > 0) {
+				j = power - j;
+			}
+
+			while (j < a.length) {
+				a[(int) j] += log;
+				j += power;
+			}
+
+			power *= p;
+		}
+	}
+
+	/**
+	 * Measure the cost per element of axes of the given lengths with the current FFT
+	 * backend on the device of clij2 (2D transforms of length x 64, the cost of the 64 axis
+	 * is subtracted).  The measured table is used by select for this device from then on
+	 * and saved to the program cache directory if there is one.
+	 *
+	 * @param clij2
+	 * @param lengths - 7-smooth lengths to measure
+	 */
+	public static synchronized void benchmark(CLIJ2 clij2, long[] lengths) {
+		String device = getDeviceName(clij2);
+
+		TreeMap<Long, Double> table = tables.get(device);
+		if (table == null) {
+			table = new TreeMap<>();
+			tables.put(device, table);
+		}
+
+		double heightCost = measure(clij2, BENCHMARK_HEIGHT) / 2;
+		table.put(BENCHMARK_HEIGHT, heightCost);
+
+		for (long length : lengths) {
+			if (isSmooth(length) && length != BENCHMARK_HEIGHT) {
+				table.put(length, Math.max(0, measure(clij2, length) - heightCost));
+			}
+		}
+
+		save(device, table);
+	}
+
+	/**
+	 * Measure the smooth lengths from 16 to maxLength, see benchmark
+	 */
+	public static void benchmark(CLIJ2 clij2, long maxLength) {
+		List<Long> lengths = new ArrayList<>();
+		for (long n = 16; n <= maxLength; n++) {
+			if (isSmooth(n)) {
+				lengths.add(n);
+			}
+		}
+
+		long[] array = new long[lengths.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = lengths.get(i);
+		}
+
+		benchmark(clij2, array);
+	}
+
+	/**
+	 * @return nanoseconds per element of a forward FFT of length x 64 (best of 3)
+	 */
+	private static double measure(CLIJ2 clij2, long length) {
+		long[] dimensions = new long[] { length, BENCHMARK_HEIGHT };
+
+		ClearCLBuffer input = clij2.create(dimensions, NativeTypeEnum.Float);
+		ClearCLBuffer fft = clij2.create(new long[] { 2 * (length / 2 + 1),
+			BENCHMARK_HEIGHT }, NativeTypeEnum.Float);
+
+		clij2.set(input, 1);
+
+		FFTBackend backend = FFTBackends.getBackend();
+
+		// warm up (plan, kernels)
+		backend.forwardFFT(clij2, input, fft);
+
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			long start = System.nanoTime();
+			backend.forwardFFT(clij2, input, fft);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		input.close();
+		fft.close();
+
+		return (double) best / (length * BENCHMARK_HEIGHT);
+	}
+
+	/**
+	 * Use the table measured for the device of clij2 by an earlier benchmark, if it was
+	 * saved
+	 *
+	 * @return true if a table was loaded
+	 */
+	public static synchronized boolean load(CLIJ2 clij2) {
+		String device = getDeviceName(clij2);
+		File file = getTableFile(device);
+
+		if (file == null || !file.isFile()) {
+			return false;
+		}
+
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+		}
+		catch (IOException e) {
+			FFTLog.error("Could not read FFT size table " + file + ": " + e);
+			return false;
+		}
+
+		TreeMap<Long, Double> loaded = new TreeMap<>();
+		for (String key : properties.stringPropertyNames()) {
+			loaded.put(Long.parseLong(key), Double.parseDouble(properties.getProperty(key)));
+		}
+
+		tables.put(device, loaded);
+
+		return true;
+	}
+
+	private static void save(String device, TreeMap<Long, Double> table) {
+		File file = getTableFile(device);
+
+		if (file == null) {
+			return;
+		}
+
+		Properties properties = new Properties();
+		for (Map.Entry<Long, Double> entry : table.entrySet()) {
+			properties.setProperty(entry.getKey().toString(), entry.getValue().toString());
+		}
+
+		try (OutputStream out = new FileOutputStream(file)) {
+			properties.store(out, "clFFT cost per element and axis, " + device);
+		}
+		catch (IOException e) {
+			FFTLog.error("Could not write FFT size table " + file + ": " + e);
+		}
+	}
+
+	private static File getTableFile(String device) {
+		// resolved from the program cache property, the native library does not have to be
+		// loaded
+		File directory = ProgramCache.getDirectory();
+
+		if (directory == null) {
+			return null;
+		}
+
+		return new File(directory, "fftsizes_" + device.replaceAll("[^A-Za-z0-9]", "_") +
+			".properties");
+	}
+
+	public static String getDeviceName(CLIJ2 clij2) {
+		return clij2.getCLIJ().getClearCLContext().getDevice().getName();
+	}
+
+	/**
+	 * Forget the measured tables of all devices, the cost model is used again
+	 */
+	public static synchronized void clearTable() {
+		tables.clear();
+	}
+
+	/**
+	 * @param enabled - true selects the size of images extended by the PSF, false (the
+	 *          default) extends them to image + psf
+	 */
+	public static void setEnabled(boolean enabled) {
+		FFTSizeSelector.enabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+}
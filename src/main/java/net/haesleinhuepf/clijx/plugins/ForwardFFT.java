@@ -1,6 +1,8 @@
 package net.haesleinhuepf.clijx.plugins;
 
-import org.jocl.NativePointerObject;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.scijava.plugin.Plugin;
 
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
@@ -41,60 +43,220 @@ CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation, HasAuthor, HasClassif
 	/**
 	 * Run FFT on a CLBuffer
 	 * 
+	 * The clFFT plan is baked the first time a size is used on a context and queue
+	 * and re-used afterwards (see clij2fftWrapper.planCacheSize).  On machines
+	 * without clFFT the java backend is used (see FFTBackends)
+	 * 
 	 * @param gpuImg input CLBuffer (needs to be pre-extended to an FFT friendly
 	 *          size this can be done by using the padInputAndPush function)
 	 * @return - output FFT as CLBuffer
 	 */
 	public static boolean runFFT(CLIJ2 clij2, ClearCLBuffer gpuImg, ClearCLBuffer gpuFFT) {
+		try (TransferAccounting.Scope scope = TransferAccounting.enter("ForwardFFT", false)) {
+			FFTMetrics.Timer timer = FFTMetrics.start(FFTMetrics.Operation.FORWARD_FFT);
 		
-		ClearCLBuffer input_float = gpuImg;
+			ClearCLBuffer input_float = gpuImg;
 		
-		boolean input_converted=false;
+			boolean input_converted=false;
 		
-		// currently we only support float type
-		if (input_float.getNativeType() != NativeTypeEnum.Float) {
-			input_float = clij2.create(gpuImg.getDimensions(), NativeTypeEnum.Float);
-			clij2.copy(gpuImg, input_float);
-			input_converted=true;
-		}
+			// currently we only support float type
+			if (input_float.getNativeType() != NativeTypeEnum.Float) {
+				input_float = clij2.create(gpuImg.getDimensions(), NativeTypeEnum.Float);
+				clij2.copy(gpuImg, input_float);
+				input_converted=true;
+			}
 
-		// get the long pointers to in, out, context and queue.
-		long l_in = ((NativePointerObject) (input_float.getPeerPointer()
-			.getPointer())).getNativePointer();
-		long l_out = ((NativePointerObject) (gpuFFT.getPeerPointer()
-			.getPointer())).getNativePointer();
-		long l_context = ((NativePointerObject) (clij2.getCLIJ().getClearCLContext()
-			.getPeerPointer().getPointer())).getNativePointer();
-		long l_queue = ((NativePointerObject) (clij2.getCLIJ().getClearCLContext()
-			.getDefaultQueue().getPeerPointer().getPointer())).getNativePointer();
-
-		if (gpuImg.getDimensions().length==2) {
-			// call the native code that runs the FFT
-			clij2fftWrapper.fft2d_32f_lp((long) (gpuImg.getWidth()), gpuImg.getHeight(),
-					l_in, l_out, l_context, l_queue);
+			// run the FFT with the current backend (clFFT or java)
+			FFTBackends.getBackend().forwardFFT(clij2, input_float, gpuFFT);
+		
+			// if we had to convert the input deallocate the converted
+			if (input_converted) {
+				input_float.close();
+			}
+		
+			timer.stop();
+		
+			return true;
+		}
+	}
+	
+	/**
+	 * Run FFT on every plane of a 3D stack of equally sized 2D images as one batched
+	 * transform
+	 * 
+	 * @param gpuStack - width x height x number of images
+	 * @return - FFTs of the planes as one stack (2*(width/2+1) x height x number of images)
+	 */
+	public static ClearCLBuffer runFFTBatch(CLIJ2 clij2, ClearCLBuffer gpuStack) {
+		
+		ClearCLBuffer gpuFFT = clij2.create(getFFTDimensions(gpuStack), NativeTypeEnum.Float);
+		
+		runFFTBatch(clij2, gpuStack, gpuFFT, new long[] { gpuStack.getWidth(), gpuStack
+			.getHeight() }, (int) gpuStack.getDepth(), 0, 0);
+		
+		return gpuFFT;
+	}
+	
+	/**
+	 * Run FFT on a list of equally sized 2D or 3D images as one batched transform.  The images
+	 * are copied into one staging buffer, transformed and copied out again.
+	 * 
+	 * @return - list of FFTs in the same order as the images
+	 */
+	public static List<ClearCLBuffer> runFFTBatch(CLIJ2 clij2, List<ClearCLBuffer> gpuImgs) {
+		
+		long[] imageDimensions = gpuImgs.get(0).getDimensions();
+		int batchSize = gpuImgs.size();
+		
+		// stack the images along z (3D images are stacked one after the other)
+		long depth = imageDimensions.length == 3 ? imageDimensions[2] : 1;
+		
+		ClearCLBuffer stack = clij2.create(new long[] { imageDimensions[0],
+			imageDimensions[1], depth * batchSize }, NativeTypeEnum.Float);
+		
+		for (int i = 0; i < batchSize; i++) {
+			if (imageDimensions.length == 2) {
+				clij2.copySlice(gpuImgs.get(i), stack, i);
+			}
+			else {
+				clij2.paste(gpuImgs.get(i), stack, 0, 0, i * depth);
+			}
+		}
+		
+		ClearCLBuffer fftStack = clij2.create(getFFTDimensions(stack), NativeTypeEnum.Float);
+		
+		runFFTBatch(clij2, stack, fftStack, imageDimensions, batchSize, 0, 0);
+		
+		long[] fftDimensions = getFFTDimensions(imageDimensions);
+		List<ClearCLBuffer> gpuFFTs = new ArrayList<ClearCLBuffer>();
+		
+		for (int i = 0; i < batchSize; i++) {
+			ClearCLBuffer gpuFFT = clij2.create(fftDimensions, NativeTypeEnum.Float);
+			
+			if (imageDimensions.length == 2) {
+				clij2.copySlice(fftStack, gpuFFT, i);
+			}
+			else {
+				clij2.crop(fftStack, gpuFFT, 0, 0, i * depth);
+			}
+			
+			gpuFFTs.add(gpuFFT);
 		}
 		
-		if (gpuImg.getDimensions().length==3) {
-			// call the native code that runs the FFT
-			clij2fftWrapper.fft3d_32f_lp((long) (gpuImg.getWidth()), gpuImg.getHeight(), gpuImg.getDepth(),
-					l_in, l_out, l_context, l_queue);
+		stack.close();
+		fftStack.close();
+		
+		return gpuFFTs;
+	}
+	
+	/**
+	 * Run a batched FFT on batchSize images of size imageDimensions stored in one buffer.  All
+	 * images are transformed with one clFFT plan and one enqueue.
+	 * 
+	 * @param gpuImgs - buffer containing the images
+	 * @param gpuFFTs - buffer for the FFTs
+	 * @param imageDimensions - size of one (2D or 3D) image
+	 * @param batchSize - number of images
+	 * @param inDistance - distance between the first pixels of consecutive images (in
+	 *          pixels), 0 if the images are contiguous
+	 * @param outDistance - distance between consecutive FFTs (in complex numbers, so half the
+	 *          number of floats), 0 if the FFTs are contiguous
+	 * @return true if successful
+	 */
+	public static boolean runFFTBatch(CLIJ2 clij2, ClearCLBuffer gpuImgs,
+		ClearCLBuffer gpuFFTs, long[] imageDimensions, int batchSize, long inDistance,
+		long outDistance)
+	{
+		// the native batched FFT does not know the buffer sizes, check them here
+		long realElements = numElements(imageDimensions);
+		long complexElements = numElements(getFFTDimensions(imageDimensions)) / 2;
+		checkBatchFits("input", numElements(gpuImgs.getDimensions()), batchSize, inDistance,
+			realElements, 1);
+		checkBatchFits("FFT", gpuFFTs.getSizeInBytes() / Float.BYTES, batchSize, outDistance,
+			complexElements, 2);
+		
+		try (TransferAccounting.Scope scope = TransferAccounting.enter("ForwardFFT", false)) {
+			FFTMetrics.Timer timer = FFTMetrics.start(FFTMetrics.Operation.FORWARD_FFT);
+		
+			ClearCLBuffer input_float = gpuImgs;
+		
+			// currently we only support float type
+			if (input_float.getNativeType() != NativeTypeEnum.Float) {
+				input_float = clij2.create(gpuImgs.getDimensions(), NativeTypeEnum.Float);
+				clij2.copy(gpuImgs, input_float);
+			}
+		
+			FFTBackends.getBackend().forwardFFTBatch(clij2, input_float, gpuFFTs,
+				imageDimensions, batchSize, inDistance, outDistance);
+		
+			// if we had to convert the input deallocate the converted
+			if (input_float != gpuImgs) {
+				input_float.close();
+			}
+		
+			timer.stop();
+		
+			return true;
+		}
+	}
+	
+	/**
+	 * Throw if batchSize images (or FFTs) of elementsPerImage elements, distance elements
+	 * apart, do not fit in a buffer of availableFloats floats.  Without this check wrong
+	 * arguments make the device read or write out of bounds.
+	 * 
+	 * @param name - which buffer, for the message
+	 * @param availableFloats - size of the buffer in floats
+	 * @param batchSize - number of images
+	 * @param distance - distance between consecutive images in elements, 0 if contiguous
+	 * @param elementsPerImage - elements of one image
+	 * @param floatsPerElement - 1 for real images, 2 for complex FFTs
+	 */
+	static void checkBatchFits(String name, long availableFloats, int batchSize,
+		long distance, long elementsPerImage, int floatsPerElement)
+	{
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Error: batch size " + batchSize + " < 1");
+		}
+		
+		if (distance == 0 || batchSize == 1) {
+			distance = elementsPerImage;
 		}
 		
-		// if we had to convert the input deallocate the converted
-		if (input_converted) {
-			input_float.close();
+		if (distance < elementsPerImage) {
+			throw new IllegalArgumentException("Error: " + name + " distance " + distance +
+				" is smaller than one image (" + elementsPerImage + ")");
 		}
 		
-		return true;
+		long neededFloats = ((batchSize - 1) * distance + elementsPerImage) *
+			floatsPerElement;
+		
+		if (neededFloats > availableFloats) {
+			throw new IllegalArgumentException("Error: " + name + " buffer holds " +
+				availableFloats + " floats, the batch of " + batchSize + " needs " +
+				neededFloats);
+		}
+	}
+	
+	static long numElements(long[] dimensions) {
+		long n = 1;
+		for (long d : dimensions) {
+			n *= d;
+		}
+		return n;
 	}
 	
 	private static long[] getFFTDimensions(ClearCLBuffer in) {
-		long[] dimensions=new long[in.getDimensions().length];
+		return getFFTDimensions(in.getDimensions());
+	}
+	
+	private static long[] getFFTDimensions(long[] in) {
+		long[] dimensions=new long[in.length];
 		
-		dimensions[0]=2*(in.getDimensions()[0]/2+1);
+		dimensions[0]=2*(in[0]/2+1);
 		
-		for (int d=1;d<in.getDimensions().length;d++) {
-			dimensions[d]=in.getDimensions()[d];
+		for (int d=1;d<in.length;d++) {
+			dimensions[d]=in[d];
 		}
 		
 		return dimensions;
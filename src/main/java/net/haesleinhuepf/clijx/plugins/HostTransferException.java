@@ -0,0 +1,22 @@
+package net.haesleinhuepf.clijx.plugins;
+
+/**
+ * Thrown in strict device-resident mode (see TransferAccounting.setStrict) when an
+ * operation that should only use device memory copies an image between host and device.
+ *
+ * @author Brian Northan
+ */
+public class HostTransferException extends IllegalStateException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param operation - the device-resident operation
+	 * @param direction - "push" or "pull"
+	 * @param bytes - size of the transfer
+	 */
+	public HostTransferException(String operation, String direction, long bytes) {
+		super("Error: " + operation + " is device-resident but did a " + direction +
+			" of " + bytes + " bytes");
+	}
+}
@@ -1,6 +1,8 @@
 package net.haesleinhuepf.clijx.plugins;
 
-import org.jocl.NativePointerObject;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.scijava.plugin.Plugin;
 
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
@@ -43,30 +45,128 @@ CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation, HasAuthor, HasClassif
 	 * @return - output image as CLBuffer
 	 */
 	public static boolean runInverseFFT(CLIJ2 clij2, ClearCLBuffer gpuFFT, ClearCLBuffer gpuImg) {
+		try (TransferAccounting.Scope scope = TransferAccounting.enter("InverseFFT", false)) {
+			FFTMetrics.Timer timer = FFTMetrics.start(FFTMetrics.Operation.INVERSE_FFT);
 	
-		// get the long pointers to in, out, context and queue.
-		long l_in = ((NativePointerObject) (gpuFFT.getPeerPointer()
-			.getPointer())).getNativePointer();
-		long l_out = ((NativePointerObject) (gpuImg.getPeerPointer()
-			.getPointer())).getNativePointer();
-		long l_context = ((NativePointerObject) (clij2.getCLIJ().getClearCLContext()
-			.getPeerPointer().getPointer())).getNativePointer();
-		long l_queue = ((NativePointerObject) (clij2.getCLIJ().getClearCLContext()
-			.getDefaultQueue().getPeerPointer().getPointer())).getNativePointer();
-
-		if (gpuImg.getDimensions().length==2) {
-			// call the native code that runs the inverse FFT
-			clij2fftWrapper.fft2dinv_32f_lp((long) (gpuImg.getWidth()), gpuImg.getHeight(),
-					l_in, l_out, l_context, l_queue);
+			// run the inverse FFT with the current backend (clFFT or java)
+			FFTBackends.getBackend().inverseFFT(clij2, gpuFFT, gpuImg);
+	
+			timer.stop();
+	
+			return true;
 		}
+	}
+	
+	/**
+	 * Run inverse FFT on every plane of a stack of 2D FFTs (as created by
+	 * ForwardFFT.runFFTBatch) as one batched transform
+	 * 
+	 * @param gpuFFTStack - 2*(width/2+1) x height x number of images
+	 * @param imageDimensions - width and height of one image
+	 * @return - stack of images (width x height x number of images)
+	 */
+	public static ClearCLBuffer runInverseFFTBatch(CLIJ2 clij2, ClearCLBuffer gpuFFTStack,
+		long[] imageDimensions)
+	{
+		ClearCLBuffer out = clij2.create(new long[] { imageDimensions[0],
+			imageDimensions[1], gpuFFTStack.getDepth() }, NativeTypeEnum.Float);
+		
+		runInverseFFTBatch(clij2, gpuFFTStack, out, imageDimensions, (int) gpuFFTStack
+			.getDepth(), 0, 0);
+		
+		return out;
+	}
+	
+	/**
+	 * Run inverse FFT on a list of equally sized FFTs as one batched transform.  The FFTs are
+	 * copied into one staging buffer, transformed and copied out again.
+	 * 
+	 * @param imageDimensions - size of one (2D or 3D) image
+	 * @return - list of images in the same order as the FFTs
+	 */
+	public static List<ClearCLBuffer> runInverseFFTBatch(CLIJ2 clij2,
+		List<ClearCLBuffer> gpuFFTs, long[] imageDimensions)
+	{
+		long[] fftDimensions = gpuFFTs.get(0).getDimensions();
+		int batchSize = gpuFFTs.size();
+		
+		long depth = imageDimensions.length == 3 ? imageDimensions[2] : 1;
 		
-		if (gpuImg.getDimensions().length==3) {
-			// call the native code that runs the inverse FFT
-			clij2fftWrapper.fft3dinv_32f_lp((long) (gpuImg.getWidth()), gpuImg.getHeight(), gpuImg.getDepth(),
-					l_in, l_out, l_context, l_queue);
+		ClearCLBuffer fftStack = clij2.create(new long[] { fftDimensions[0],
+			fftDimensions[1], depth * batchSize }, NativeTypeEnum.Float);
+		
+		for (int i = 0; i < batchSize; i++) {
+			if (imageDimensions.length == 2) {
+				clij2.copySlice(gpuFFTs.get(i), fftStack, i);
+			}
+			else {
+				clij2.paste(gpuFFTs.get(i), fftStack, 0, 0, i * depth);
+			}
 		}
+		
+		ClearCLBuffer stack = clij2.create(new long[] { imageDimensions[0],
+			imageDimensions[1], depth * batchSize }, NativeTypeEnum.Float);
+		
+		runInverseFFTBatch(clij2, fftStack, stack, imageDimensions, batchSize, 0, 0);
+		
+		List<ClearCLBuffer> gpuImgs = new ArrayList<ClearCLBuffer>();
+		
+		for (int i = 0; i < batchSize; i++) {
+			ClearCLBuffer gpuImg = clij2.create(imageDimensions, NativeTypeEnum.Float);
+			
+			if (imageDimensions.length == 2) {
+				clij2.copySlice(stack, gpuImg, i);
+			}
+			else {
+				clij2.crop(stack, gpuImg, 0, 0, i * depth);
+			}
+			
+			gpuImgs.add(gpuImg);
+		}
+		
+		fftStack.close();
+		stack.close();
+		
+		return gpuImgs;
+	}
 	
-		return true;
+	/**
+	 * Run a batched inverse FFT on batchSize FFTs stored in one buffer (see
+	 * ForwardFFT.runFFTBatch)
+	 * 
+	 * @param gpuFFTs - buffer containing the FFTs
+	 * @param gpuImgs - buffer for the images
+	 * @param imageDimensions - size of one (2D or 3D) image
+	 * @param batchSize - number of images
+	 * @param inDistance - distance between consecutive FFTs (in complex numbers), 0 if the
+	 *          FFTs are contiguous
+	 * @param outDistance - distance between the first pixels of consecutive images (in
+	 *          pixels), 0 if the images are contiguous
+	 * @return true if successful
+	 */
+	public static boolean runInverseFFTBatch(CLIJ2 clij2, ClearCLBuffer gpuFFTs,
+		ClearCLBuffer gpuImgs, long[] imageDimensions, int batchSize, long inDistance,
+		long outDistance)
+	{
+		// the native batched FFT does not know the buffer sizes, check them here
+		long realElements = ForwardFFT.numElements(imageDimensions);
+		long complexElements = realElements / imageDimensions[0] * (imageDimensions[0] / 2 +
+			1);
+		ForwardFFT.checkBatchFits("FFT", gpuFFTs.getSizeInBytes() / Float.BYTES, batchSize,
+			inDistance, complexElements, 2);
+		ForwardFFT.checkBatchFits("output", gpuImgs.getSizeInBytes() / Float.BYTES,
+			batchSize, outDistance, realElements, 1);
+		
+		try (TransferAccounting.Scope scope = TransferAccounting.enter("InverseFFT", false)) {
+			FFTMetrics.Timer timer = FFTMetrics.start(FFTMetrics.Operation.INVERSE_FFT);
+		
+			FFTBackends.getBackend().inverseFFTBatch(clij2, gpuFFTs, gpuImgs, imageDimensions,
+				batchSize, inDistance, outDistance);
+		
+			timer.stop();
+		
+			return true;
+		}
 	}
 	
 	@Override
@@ -0,0 +1,456 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Pure java, multi-threaded (fork-join) real to complex FFT for 1D, 2D and 3D float arrays.
+ *
+ * The result uses the same Hermitian interleaved layout as clFFT (and ForwardFFT), each row
+ * holds N0/2+1 complex numbers stored as (real, imaginary) float pairs.  As in clFFT the
+ * forward transform is not scaled and the inverse transform is scaled by 1/N.
+ *
+ * 1D transforms use a mixed radix (4, 2, 3, 5, 7, ...) decimation in time algorithm, any
+ * size is supported but 2,3,5,7-smooth sizes are fastest.
+ *
+ * @author Brian Northan
+ */
+public class JavaFFT {
+
+	private static final ConcurrentHashMap<Integer, Plan> plans = new ConcurrentHashMap<>();
+
+	private static final ConcurrentHashMap<Integer, RealPlan> realPlans = new ConcurrentHashMap<>();
+
+	private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+	/**
+	 * forward real to complex FFT
+	 *
+	 * @param real - input of size N0*N1*N2
+	 * @param hermitian - output of size 2*(N0/2+1)*N1*N2
+	 * @param dimensions - N0, N1 (, N2)
+	 */
+	public static void forward(float[] real, float[] hermitian, long[] dimensions) {
+		final int n0 = (int) dimensions[0];
+		final int n1 = dimensions.length > 1 ? (int) dimensions[1] : 1;
+		final int n2 = dimensions.length > 2 ? (int) dimensions[2] : 1;
+		final int h0 = n0 / 2 + 1;
+
+		// rows (real to complex)
+		IntStream.range(0, n1 * n2).parallel().forEach(row -> realForward(real, row * n0,
+			hermitian, 2 * row * h0, n0));
+
+		// columns and planes (complex to complex)
+		transformAxis(hermitian, h0, n1, n2, 1, false);
+		transformAxis(hermitian, h0, n1, n2, 2, false);
+	}
+
+	/**
+	 * inverse complex to real FFT (scaled by 1/N)
+	 *
+	 * @param hermitian - input of size 2*(N0/2+1)*N1*N2, is not modified
+	 * @param real - output of size N0*N1*N2
+	 * @param dimensions - N0, N1 (, N2) of the real output
+	 */
+	public static void inverse(float[] hermitian, float[] real, long[] dimensions) {
+		final int n0 = (int) dimensions[0];
+		final int n1 = dimensions.length > 1 ? (int) dimensions[1] : 1;
+		final int n2 = dimensions.length > 2 ? (int) dimensions[2] : 1;
+		final int h0 = n0 / 2 + 1;
+
+		float[] temp = new float[2 * h0 * n1 * n2];
+		System.arraycopy(hermitian, 0, temp, 0, temp.length);
+
+		transformAxis(temp, h0, n1, n2, 2, true);
+		transformAxis(temp, h0, n1, n2, 1, true);
+
+		// the row transform of an even length is computed as a half length complex transform
+		final float scale = 1.0f / ((n0 % 2 == 0 && n0 > 1 ? n0 / 2 : n0) * (float) n1 *
+			n2);
+
+		IntStream.range(0, n1 * n2).parallel().forEach(row -> realInverse(temp, 2 * row *
+			h0, real, row * n0, n0, scale));
+	}
+
+	/**
+	 * in place complex transform of every line along axis (1 or 2) of a complex array of size
+	 * h0*n1*n2
+	 */
+	private static void transformAxis(float[] data, int h0, int n1, int n2, int axis,
+		boolean inverse)
+	{
+		final int length = axis == 1 ? n1 : n2;
+
+		if (length == 1) {
+			return;
+		}
+
+		final int stride = axis == 1 ? h0 : h0 * n1;
+		final int numLines = axis == 1 ? h0 * n2 : h0 * n1;
+		final Plan plan = getPlan(length);
+
+		IntStream.range(0, numLines).parallel().forEach(line -> {
+			// first element of the line
+			int start = axis == 1 ? (line / h0) * h0 * n1 + line % h0 : line;
+
+			Scratch s = scratch.get();
+			float[] buffer = s.line(2 * length);
+
+			for (int i = 0; i < length; i++) {
+				int index = 2 * (start + i * stride);
+				buffer[2 * i] = data[index];
+				buffer[2 * i + 1] = data[index + 1];
+			}
+
+			plan.transform(buffer, s, inverse);
+
+			for (int i = 0; i < length; i++) {
+				int index = 2 * (start + i * stride);
+				data[index] = buffer[2 * i];
+				data[index + 1] = buffer[2 * i + 1];
+			}
+		});
+	}
+
+	/**
+	 * real to Hermitian transform of one row of length n
+	 */
+	private static void realForward(float[] real, int inOffset, float[] out,
+		int outOffset, int n)
+	{
+		Scratch s = scratch.get();
+
+		if (n == 1) {
+			out[outOffset] = real[inOffset];
+			out[outOffset + 1] = 0;
+			return;
+		}
+
+		if (n % 2 == 1) {
+			// odd length, use a full complex transform
+			float[] buffer = s.line(2 * n);
+			for (int i = 0; i < n; i++) {
+				buffer[2 * i] = real[inOffset + i];
+				buffer[2 * i + 1] = 0;
+			}
+			getPlan(n).transform(buffer, s, false);
+			System.arraycopy(buffer, 0, out, outOffset, 2 * (n / 2 + 1));
+			return;
+		}
+
+		// even length, treat the row as a complex signal of length n/2 (even samples real, odd
+		// samples imaginary), transform and separate the even and odd spectra
+		final int m = n / 2;
+		final RealPlan realPlan = getRealPlan(n);
+
+		float[] z = s.line(n);
+		System.arraycopy(real, inOffset, z, 0, n);
+		getPlan(m).transform(z, s, false);
+
+		for (int k = 0; k <= m; k++) {
+			int a = 2 * (k % m);
+			int b = 2 * ((m - k) % m);
+
+			float zr = z[a], zi = z[a + 1];
+			float cr = z[b], ci = z[b + 1];
+
+			// even and odd spectra
+			float er = 0.5f * (zr + cr);
+			float ei = 0.5f * (zi - ci);
+			float or = 0.5f * (zi + ci);
+			float oi = -0.5f * (zr - cr);
+
+			// twiddle exp(-2 pi i k / n)
+			float wr = realPlan.cos[k];
+			float wi = -realPlan.sin[k];
+
+			out[outOffset + 2 * k] = er + wr * or - wi * oi;
+			out[outOffset + 2 * k + 1] = ei + wr * oi + wi * or;
+		}
+	}
+
+	/**
+	 * Hermitian to real transform of one row of length n
+	 */
+	private static void realInverse(float[] in, int inOffset, float[] real,
+		int outOffset, int n, float scale)
+	{
+		Scratch s = scratch.get();
+
+		if (n == 1) {
+			real[outOffset] = in[inOffset] * scale;
+			return;
+		}
+
+		if (n % 2 == 1) {
+			// odd length, rebuild the full spectrum and use a full complex transform
+			float[] buffer = s.line(2 * n);
+			int h = n / 2 + 1;
+			System.arraycopy(in, inOffset, buffer, 0, 2 * h);
+			for (int k = h; k < n; k++) {
+				buffer[2 * k] = in[inOffset + 2 * (n - k)];
+				buffer[2 * k + 1] = -in[inOffset + 2 * (n - k) + 1];
+			}
+			getPlan(n).transform(buffer, s, true);
+			for (int i = 0; i < n; i++) {
+				real[outOffset + i] = buffer[2 * i] * scale;
+			}
+			return;
+		}
+
+		final int m = n / 2;
+		final RealPlan realPlan = getRealPlan(n);
+
+		float[] z = s.line(n);
+
+		for (int k = 0; k < m; k++) {
+			float xr = in[inOffset + 2 * k], xi = in[inOffset + 2 * k + 1];
+			float cr = in[inOffset + 2 * (m - k)], ci = -in[inOffset + 2 * (m - k) + 1];
+
+			float er = 0.5f * (xr + cr);
+			float ei = 0.5f * (xi + ci);
+
+			// (x - conj(x[m-k])) / 2 * exp(2 pi i k / n)
+			float dr = 0.5f * (xr - cr);
+			float di = 0.5f * (xi - ci);
+			float wr = realPlan.cos[k];
+			float wi = realPlan.sin[k];
+			float or = dr * wr - di * wi;
+			float oi = dr * wi + di * wr;
+
+			z[2 * k] = er - oi;
+			z[2 * k + 1] = ei + or;
+		}
+
+		getPlan(m).transform(z, s, true);
+
+		for (int i = 0; i < n; i++) {
+			real[outOffset + i] = z[i] * scale;
+		}
+	}
+
+	static Plan getPlan(int n) {
+		return plans.computeIfAbsent(n, Plan::new);
+	}
+
+	static RealPlan getRealPlan(int n) {
+		return realPlans.computeIfAbsent(n, RealPlan::new);
+	}
+
+	/**
+	 * Twiddles used to separate the even and odd spectra of a real transform
+	 */
+	static final class RealPlan {
+
+		final float[] cos;
+		final float[] sin;
+
+		RealPlan(int n) {
+			cos = new float[n / 2 + 1];
+			sin = new float[n / 2 + 1];
+			for (int k = 0; k <= n / 2; k++) {
+				cos[k] = (float) Math.cos(2 * Math.PI * k / n);
+				sin[k] = (float) Math.sin(2 * Math.PI * k / n);
+			}
+		}
+	}
+
+	/**
+	 * Factorization and twiddle factors for a complex transform of length n
+	 */
+	static final class Plan {
+
+		final int n;
+		final int[] factors;
+		final int maxFactor;
+		final float[] cos;
+		final float[] sin;
+
+		Plan(int n) {
+			this.n = n;
+			this.factors = factorize(n);
+
+			int max = 1;
+			for (int f : factors) {
+				max = Math.max(max, f);
+			}
+			this.maxFactor = max;
+
+			cos = new float[n];
+			sin = new float[n];
+			for (int k = 0; k < n; k++) {
+				cos[k] = (float) Math.cos(2 * Math.PI * k / n);
+				sin[k] = (float) Math.sin(2 * Math.PI * k / n);
+			}
+		}
+
+		/**
+		 * in place transform of the first n complex (interleaved) values of data (not scaled)
+		 */
+		void transform(float[] data, Scratch s, boolean inverse) {
+			if (n == 1) {
+				return;
+			}
+
+			float[] work = s.work(2 * n);
+			float[] butterfly = s.butterfly(2 * maxFactor);
+
+			pass(data, 0, 1, work, 0, n, 0, inverse ? 1 : -1, butterfly);
+
+			System.arraycopy(work, 0, data, 0, 2 * n);
+		}
+
+		/**
+		 * recursive decimation in time pass.  Offsets are float indices, stride is in complex
+		 * elements.
+		 */
+		private void pass(float[] in, int inOffset, int stride, float[] out, int outOffset,
+			int length, int f, float sign, float[] butterfly)
+		{
+			if (length == 1) {
+				out[outOffset] = in[inOffset];
+				out[outOffset + 1] = in[inOffset + 1];
+				return;
+			}
+
+			final int p = factors[f];
+			final int m = length / p;
+
+			// transform the p decimated sub sequences
+			for (int q = 0; q < p; q++) {
+				pass(in, inOffset + 2 * q * stride, stride * p, out, outOffset + 2 * q * m, m,
+					f + 1, sign, butterfly);
+			}
+
+			// twiddle index step for exp(sign 2 pi i / length)
+			final int step = n / length;
+
+			if (p == 2) {
+				for (int j = 0; j < m; j++) {
+					int a = outOffset + 2 * j;
+					int b = a + 2 * m;
+					float wr = cos[j * step], wi = sign * sin[j * step];
+					float tr = out[b] * wr - out[b + 1] * wi;
+					float ti = out[b] * wi + out[b + 1] * wr;
+					out[b] = out[a] - tr;
+					out[b + 1] = out[a + 1] - ti;
+					out[a] += tr;
+					out[a + 1] += ti;
+				}
+			}
+			else if (p == 4) {
+				for (int j = 0; j < m; j++) {
+					int i0 = outOffset + 2 * j;
+					int i1 = i0 + 2 * m;
+					int i2 = i1 + 2 * m;
+					int i3 = i2 + 2 * m;
+
+					float a0r = out[i0], a0i = out[i0 + 1];
+
+					float wr = cos[j * step], wi = sign * sin[j * step];
+					float a1r = out[i1] * wr - out[i1 + 1] * wi;
+					float a1i = out[i1] * wi + out[i1 + 1] * wr;
+
+					wr = cos[2 * j * step];
+					wi = sign * sin[2 * j * step];
+					float a2r = out[i2] * wr - out[i2 + 1] * wi;
+					float a2i = out[i2] * wi + out[i2 + 1] * wr;
+
+					wr = cos[3 * j * step];
+					wi = sign * sin[3 * j * step];
+					float a3r = out[i3] * wr - out[i3 + 1] * wi;
+					float a3i = out[i3] * wi + out[i3 + 1] * wr;
+
+					float b0r = a0r + a2r, b0i = a0i + a2i;
+					float b1r = a0r - a2r, b1i = a0i - a2i;
+					float b2r = a1r + a3r, b2i = a1i + a3i;
+					float b3r = a1r - a3r, b3i = a1i - a3i;
+
+					// multiply b3 by exp(sign 2 pi i / 4) = sign * i
+					float ur = -sign * b3i, ui = sign * b3r;
+
+					out[i0] = b0r + b2r;
+					out[i0 + 1] = b0i + b2i;
+					out[i1] = b1r + ur;
+					out[i1 + 1] = b1i + ui;
+					out[i2] = b0r - b2r;
+					out[i2 + 1] = b0i - b2i;
+					out[i3] = b1r - ur;
+					out[i3 + 1] = b1i - ui;
+				}
+			}
+			else {
+				// generic radix p butterfly
+				final int rootStep = n / p;
+
+				for (int j = 0; j < m; j++) {
+					for (int q = 0; q < p; q++) {
+						int index = outOffset + 2 * (q * m + j);
+						float wr = cos[q * j * step], wi = sign * sin[q * j * step];
+						butterfly[2 * q] = out[index] * wr - out[index + 1] * wi;
+						butterfly[2 * q + 1] = out[index] * wi + out[index + 1] * wr;
+					}
+
+					for (int k = 0; k < p; k++) {
+						float sr = 0, si = 0;
+						for (int q = 0; q < p; q++) {
+							int t = ((q * k) % p) * rootStep;
+							float wr = cos[t], wi = sign * sin[t];
+							sr += butterfly[2 * q] * wr - butterfly[2 * q + 1] * wi;
+							si += butterfly[2 * q] * wi + butterfly[2 * q + 1] * wr;
+						}
+						int index = outOffset + 2 * (k * m + j);
+						out[index] = sr;
+						out[index + 1] = si;
+					}
+				}
+			}
+		}
+
+		static int[] factorize(int n) {
+			int[] temp = new int[32];
+			int count = 0;
+
+			while (n % 4 == 0) {
+				temp[count++] = 4;
+				n /= 4;
+			}
+
+			for (int f = 2; n > 1; f++) {
+				while (n % f == 0) {
+					temp[count++] = f;
+					n /= f;
+				}
+			}
+
+			int[] factors = new int[count];
+			System.arraycopy(temp, 0, factors, 0, count);
+			return factors;
+		}
+	}
+
+	/**
+	 * per thread work buffers
+	 */
+	static final class Scratch {
+
+		private float[] line = new float[0];
+		private float[] work = new float[0];
+		private float[] butterfly = new float[0];
+
+		float[] line(int size) {
+			if (line.length < size) line = new float[size];
+			return line;
+		}
+
+		float[] work(int size) {
+			if (work.length < size) work = new float[size];
+			return work;
+		}
+
+		float[] butterfly(int size) {
+			if (butterfly.length < size) butterfly = new float[size];
+			return butterfly;
+		}
+	}
+}
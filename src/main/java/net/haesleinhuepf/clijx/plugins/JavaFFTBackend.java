@@ -0,0 +1,569 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import java.util.stream.IntStream;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.clearcl.ClearCLQueue;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.plugins.StoppingCriterion.Measure;
+
+/**
+ * FFT backend that runs on the CPU using JavaFFT.  Buffers are pulled to java float arrays,
+ * processed with multi-threaded java code and written back, so no native library is
+ * needed.  Results match ClFFTBackend up to float rounding.
+ *
+ * @author Brian Northan
+ */
+public class JavaFFTBackend implements FFTBackend {
+
+	public static final String NAME = "java";
+
+	// number of elements processed by one task of the element wise loops
+	private static final int CHUNK_SIZE = 16384;
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return true;
+	}
+
+	@Override
+	public void forwardFFT(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer fft) {
+		float[] real = pull(input);
+		float[] hermitian = new float[(int) numElements(fft)];
+
+		JavaFFT.forward(real, hermitian, input.getDimensions());
+
+		push(hermitian, fft);
+	}
+
+	@Override
+	public void inverseFFT(CLIJ2 clij2, ClearCLBuffer fft, ClearCLBuffer output) {
+		float[] hermitian = pull(fft);
+		float[] real = new float[(int) numElements(output)];
+
+		JavaFFT.inverse(hermitian, real, output.getDimensions());
+
+		push(real, output);
+	}
+
+	@Override
+	public void forwardFFTBatch(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer fft,
+		long[] imageDimensions, int batchSize, long inDistance, long outDistance)
+	{
+		final int realSize = (int) numElements(imageDimensions);
+		final int complexSize = 2 * (int) (imageDimensions[0] / 2 + 1) * (realSize /
+			(int) imageDimensions[0]);
+
+		final int realStep = inDistance > 0 ? (int) inDistance : realSize;
+		final int complexStep = outDistance > 0 ? 2 * (int) outDistance : complexSize;
+
+		float[] inArray = pull(input);
+		// pull the output as well if there are gaps between the FFTs that have to be kept
+		float[] outArray = complexStep == complexSize ? new float[(int) numElements(fft)]
+			: pull(fft);
+
+		float[] real = new float[realSize];
+		float[] hermitian = new float[complexSize];
+
+		for (int b = 0; b < batchSize; b++) {
+			System.arraycopy(inArray, b * realStep, real, 0, realSize);
+			JavaFFT.forward(real, hermitian, imageDimensions);
+			System.arraycopy(hermitian, 0, outArray, b * complexStep, complexSize);
+		}
+
+		push(outArray, fft);
+	}
+
+	@Override
+	public void inverseFFTBatch(CLIJ2 clij2, ClearCLBuffer fft, ClearCLBuffer output,
+		long[] imageDimensions, int batchSize, long inDistance, long outDistance)
+	{
+		final int realSize = (int) numElements(imageDimensions);
+		final int complexSize = 2 * (int) (imageDimensions[0] / 2 + 1) * (realSize /
+			(int) imageDimensions[0]);
+
+		final int complexStep = inDistance > 0 ? 2 * (int) inDistance : complexSize;
+		final int realStep = outDistance > 0 ? (int) outDistance : realSize;
+
+		float[] inArray = pull(fft);
+		float[] outArray = realStep == realSize ? new float[(int) numElements(output)]
+			: pull(output);
+
+		float[] hermitian = new float[complexSize];
+		float[] real = new float[realSize];
+
+		for (int b = 0; b < batchSize; b++) {
+			System.arraycopy(inArray, b * complexStep, hermitian, 0, complexSize);
+			JavaFFT.inverse(hermitian, real, imageDimensions);
+			System.arraycopy(real, 0, outArray, b * realStep, realSize);
+		}
+
+		push(outArray, output);
+	}
+
+	@Override
+	public void richardsonLucy(CLIJ2 clij2, ClearCLBuffer observed, ClearCLBuffer psf,
+		ClearCLBuffer estimate, ClearCLBuffer normal, int iterations,
+		float regularizationFactor)
+	{
+		final long[] dims = observed.getDimensions();
+		final int n = (int) numElements(observed);
+		final int nFreq = (int) (dims[0] / 2 + 1) * (n / (int) dims[0]);
+
+		// FFT of PSF
+		float[] psfFFT = new float[2 * nFreq];
+		JavaFFT.forward(pull(psf), psfFFT, dims);
+
+		new JavaRichardsonLucyWorkspace(psfFFT, dims, regularizationFactor).run(observed,
+			estimate, normal, iterations);
+	}
+
+	@Override
+	public void richardsonLucyOTF(CLIJ2 clij2, ClearCLBuffer observed, ClearCLBuffer otf,
+		ClearCLBuffer estimate, ClearCLBuffer normal, int iterations,
+		float regularizationFactor)
+	{
+		new JavaRichardsonLucyWorkspace(pull(otf), observed.getDimensions(),
+			regularizationFactor).run(observed, estimate, normal, iterations);
+	}
+
+	@Override
+	public RichardsonLucyWorkspace createRichardsonLucyWorkspace(CLIJ2 clij2,
+		ClearCLBuffer otf, long[] extendedDimensions, float regularizationFactor,
+		ClearCLQueue queue)
+	{
+		// runs on the CPU, the queue is not used
+		return new JavaRichardsonLucyWorkspace(pull(otf), extendedDimensions,
+			regularizationFactor);
+	}
+
+	/**
+	 * Keeps the OTF and the work arrays of Richardson Lucy in java memory, so repeated runs
+	 * only transfer the images.
+	 */
+	private static class JavaRichardsonLucyWorkspace implements
+		RichardsonLucyWorkspace
+	{
+
+		final long[] dims;
+		final int n;
+		final float regularizationFactor;
+
+		final float[] psfFFT;
+		final float[] observedArray;
+		final float[] estimateArray;
+		final float[] estimateFFT;
+		final float[] reblurred;
+		final float[] variation;
+		float[] normalArray;
+
+		StoppingCriterion stoppingCriterion = StoppingCriterion.NONE;
+		float[] previous;
+
+		boolean accelerate;
+		float[] accelY, accelXPrevious, accelG, accelGPrevious;
+
+		JavaRichardsonLucyWorkspace(float[] psfFFT, long[] dims,
+			float regularizationFactor)
+		{
+			this.dims = dims.clone();
+			this.n = (int) numElements(dims);
+			this.regularizationFactor = regularizationFactor;
+			this.psfFFT = psfFFT;
+
+			observedArray = new float[n];
+			estimateArray = new float[n];
+			estimateFFT = new float[psfFFT.length];
+			reblurred = new float[n];
+			variation = regularizationFactor > 0 ? new float[n] : null;
+		}
+
+		@Override
+		public int run(ClearCLBuffer observed, ClearCLBuffer estimate, ClearCLBuffer normal,
+			int iterations)
+		{
+			pull(observed, observedArray);
+			pull(estimate, estimateArray);
+
+			if (normal != null) {
+				if (normalArray == null) {
+					normalArray = new float[n];
+				}
+				pull(normal, normalArray);
+
+				parallelFor(n, (start, end) -> {
+					for (int i = start; i < end; i++) {
+						if (normalArray[i] < 0.00001) normalArray[i] = 1.0f;
+					}
+				});
+			}
+
+			final float[] normalArray = normal == null ? null : this.normalArray;
+
+			final Measure measure = stoppingCriterion.getMeasure();
+			double previousMeasure = Double.NaN;
+			int done = 0;
+
+			for (int it = 0; it < iterations; it++) {
+
+				boolean check = stoppingCriterion.isCheck(it);
+				double current = 0;
+
+				if (check && measure == Measure.RELATIVE_CHANGE) {
+					System.arraycopy(estimateArray, 0, previous, 0, n);
+				}
+
+				if (accelerate) {
+					System.arraycopy(estimateArray, 0, accelY, 0, n);
+				}
+
+				// reblur the estimate
+				JavaFFT.forward(estimateArray, estimateFFT, dims);
+				complexMultiply(estimateFFT, psfFFT, false);
+				JavaFFT.inverse(estimateFFT, reblurred, dims);
+
+				if (check && measure != Measure.RELATIVE_CHANGE) {
+					current = stoppingMeasure(measure, observedArray, reblurred);
+				}
+
+				// divide observed by reblurred
+				parallelFor(n, (start, end) -> {
+					for (int i = start; i < end; i++) {
+						reblurred[i] = observedArray[i] / reblurred[i];
+					}
+				});
+
+				// correlate the ratio with the PSF to get the update factor
+				JavaFFT.forward(reblurred, estimateFFT, dims);
+				complexMultiply(estimateFFT, psfFFT, true);
+				JavaFFT.inverse(estimateFFT, reblurred, dims);
+
+				final float[] update;
+
+				if (variation != null) {
+					totalVariationTerm(estimateArray, reblurred, variation, dims, 1.0f, 1.0f,
+						3.0f, regularizationFactor);
+					update = variation;
+				}
+				else {
+					update = reblurred;
+				}
+
+				// multiply estimate by update factor (and divide by normal)
+				parallelFor(n, (start, end) -> {
+					for (int i = start; i < end; i++) {
+						estimateArray[i] *= update[i];
+						if (normalArray != null) estimateArray[i] /= normalArray[i];
+					}
+				});
+
+				done = it + 1;
+
+				if (check) {
+					if (measure == Measure.RELATIVE_CHANGE) {
+						current = stoppingMeasure(measure, estimateArray, previous);
+					}
+					if (stoppingCriterion.isConverged(previousMeasure, current)) {
+						break;
+					}
+					previousMeasure = current;
+				}
+
+				// predict the next estimate (not after the last iteration)
+				if (accelerate && it + 1 < iterations) {
+					predict(it == 0);
+				}
+			}
+
+			push(estimateArray, estimate);
+
+			return done;
+		}
+
+		/**
+		 * java version of the Biggs-Andrews prediction of the native session
+		 */
+		private void predict(boolean first) {
+			final float[] g = accelG, gPrevious = accelGPrevious;
+
+			parallelFor(n, (start, end) -> {
+				for (int i = start; i < end; i++) {
+					g[i] = estimateArray[i] - accelY[i];
+				}
+			});
+
+			float alpha = 0;
+
+			if (!first) {
+				double num = IntStream.range(0, n).parallel().mapToDouble(i -> g[i] *
+					gPrevious[i]).sum();
+				double den = IntStream.range(0, n).parallel().mapToDouble(i -> gPrevious[i] *
+					gPrevious[i]).sum();
+				alpha = den > 0 ? (float) Math.min(Math.max(num / den, 0), 1) : 0;
+			}
+
+			final float a = alpha;
+
+			parallelFor(n, (start, end) -> {
+				for (int i = start; i < end; i++) {
+					float x = estimateArray[i];
+					float y = x + a * (x - accelXPrevious[i]);
+					accelXPrevious[i] = x;
+					estimateArray[i] = y > 0 ? y : x;
+				}
+			});
+
+			accelG = gPrevious;
+			accelGPrevious = g;
+		}
+
+		@Override
+		public long getBytesMoved() {
+			// no device memory is used
+			return 0;
+		}
+
+		@Override
+		public void setAcceleration(boolean accelerate) {
+			this.accelerate = accelerate;
+			if (accelerate && accelY == null) {
+				accelY = new float[n];
+				accelXPrevious = new float[n];
+				accelG = new float[n];
+				accelGPrevious = new float[n];
+			}
+		}
+
+		@Override
+		public void setStoppingCriterion(StoppingCriterion criterion) {
+			stoppingCriterion = criterion;
+			if (criterion.getMeasure() == Measure.RELATIVE_CHANGE && previous == null) {
+				previous = new float[n];
+			}
+		}
+
+		@Override
+		public boolean isConcurrent() {
+			// buffers are transferred with the default queue of clij2
+			return false;
+		}
+
+		@Override
+		public void close() {
+			// nothing to release, the arrays are garbage collected
+		}
+	}
+
+	/**
+	 * java version of the partialSums kernel (see native/clij2fft/clij2fft.cpp), a is the
+	 * observed image (or the estimate for RELATIVE_CHANGE) and b the reblurred image (or
+	 * the previous estimate)
+	 */
+	static double stoppingMeasure(Measure measure, float[] a, float[] b) {
+
+		double num = IntStream.range(0, a.length).parallel().mapToDouble(i -> {
+			float x = a[i], y = b[i];
+			if (measure == Measure.I_DIVERGENCE) {
+				return (x > 0 && y > 0) ? x * Math.log(x / y) - x + y : y;
+			}
+			return (x - y) * (x - y);
+		}).sum();
+
+		double den = IntStream.range(0, a.length).parallel().mapToDouble(i -> {
+			if (measure == Measure.I_DIVERGENCE) {
+				return a[i];
+			}
+			return measure == Measure.RELATIVE_CHANGE ? b[i] * b[i] : a[i] * a[i];
+		}).sum();
+
+		if (den <= 0) {
+			return 0;
+		}
+
+		return measure == Measure.I_DIVERGENCE ? num / den : Math.sqrt(num / den);
+	}
+
+	/**
+	 * a = a * b or a = a * conj(b) (correlation) for interleaved complex arrays
+	 */
+	private static void complexMultiply(float[] a, float[] b, boolean conjugate) {
+		final float sign = conjugate ? -1 : 1;
+
+		parallelFor(a.length / 2, (start, end) -> {
+			for (int i = start; i < end; i++) {
+				float ar = a[2 * i], ai = a[2 * i + 1];
+				float br = b[2 * i], bi = sign * b[2 * i + 1];
+				a[2 * i] = ar * br - ai * bi;
+				a[2 * i + 1] = ar * bi + ai * br;
+			}
+		});
+	}
+
+	/**
+	 * java version of the totalVariationTerm kernel (see native/clij2fft/totalvariationterm.cl)
+	 */
+	static void totalVariationTerm(float[] estimate, float[] correction, float[] variation,
+		long[] dims, float hx, float hy, float hz, float regularizationFactor)
+	{
+		final int nx = (int) dims[0];
+		final int ny = dims.length > 1 ? (int) dims[1] : 1;
+		final int nz = dims.length > 2 ? (int) dims[2] : 1;
+		final int nxny = nx * ny;
+
+		IntStream.range(0, nz * ny).parallel().forEach(line -> {
+			int j = line % ny;
+			int k = line / ny;
+
+			int jm1 = j > 0 ? j - 1 : 0;
+			int jp1 = j + 1 == ny ? j : j + 1;
+			int km1 = k > 0 ? k - 1 : 0;
+			int kp1 = k + 1 == nz ? k : k + 1;
+
+			for (int i = 0; i < nx; i++) {
+				int im1 = i > 0 ? i - 1 : 0;
+				int ip1 = i + 1 == nx ? i : i + 1;
+
+				float fimjm = estimate[im1 + jm1 * nx + k * nxny];
+				float fim = estimate[im1 + j * nx + k * nxny];
+				float fimkm = estimate[im1 + j * nx + km1 * nxny];
+				float fimkp = estimate[im1 + j * nx + kp1 * nxny];
+				float fimjp = estimate[im1 + jp1 * nx + k * nxny];
+
+				float fjmkm = estimate[i + jm1 * nx + km1 * nxny];
+				float fjm = estimate[i + jm1 * nx + k * nxny];
+
+				float fkm = estimate[i + j * nx + km1 * nxny];
+				float fijk = estimate[i + j * nx + k * nxny];
+				float fkp = estimate[i + j * nx + kp1 * nxny];
+
+				float fjpkm = estimate[i + jp1 * nx + km1 * nxny];
+				float fjp = estimate[i + jp1 * nx + k * nxny];
+
+				float fipjm = estimate[ip1 + jm1 * nx + k * nxny];
+				float fipkm = estimate[ip1 + j * nx + km1 * nxny];
+				float fip = estimate[ip1 + j * nx + k * nxny];
+
+				float dxpf = (fip - fijk) / hx;
+				float dxmf = (fijk - fim) / hx;
+				float dypf = (fjp - fijk) / hy;
+				float dymf = (fijk - fjm) / hy;
+				float dzpf = (fkp - fijk) / hz;
+				float dzmf = (fijk - fkm) / hz;
+
+				float aijk = hypot3(dxpf, m(dypf, dymf), m(dzpf, dzmf));
+				float bijk = hypot3(dypf, m(dxpf, dxmf), m(dzpf, dzmf));
+				float cijk = hypot3(dzpf, m(dypf, dymf), m(dxpf, dxmf));
+
+				aijk = aijk > 0 ? dxpf / aijk : 0;
+				bijk = bijk > 0 ? dypf / bijk : 0;
+				cijk = cijk > 0 ? dzpf / cijk : 0;
+
+				dxpf = (fijk - fim) / hx;
+				dypf = (fimjp - fim) / hy;
+				dymf = (fim - fimjm) / hy;
+				dzpf = (fimkp - fim) / hz;
+				dzmf = (fim - fimkm) / hz;
+				float aim = hypot3(dxpf, m(dypf, dymf), m(dzpf, dzmf));
+				aim = aim > 0 ? dxpf / aim : 0;
+
+				dxpf = (fipjm - fjm) / hx;
+				dxmf = (fjm - fimjm) / hx;
+				dypf = (fijk - fjm) / hy;
+				dzmf = (fjm - fjmkm) / hz;
+				float bjm = hypot3(dypf, m(dxpf, dxmf), m(dzpf, dzmf));
+				bjm = bjm > 0 ? dypf / bjm : 0;
+
+				dxpf = (fipkm - fkm) / hx;
+				dxmf = (fjm - fimkm) / hx;
+				dypf = (fjpkm - fkm) / hy;
+				dymf = (fkm - fjmkm) / hy;
+				dzpf = (fijk - fkm) / hz;
+				float ckm = hypot3(dzpf, m(dypf, dymf), m(dxpf, dxmf));
+				ckm = ckm > 0 ? dzpf / ckm : 0;
+
+				float dxma = (aijk - aim) / hx;
+				float dymb = (bijk - bjm) / hy;
+				float dzmc = (cijk - ckm) / hz;
+
+				int index = i + j * nx + k * nxny;
+				variation[index] = (float) (correction[index] / (1. - regularizationFactor *
+					(dxma + dymb + dzmc)));
+			}
+		});
+	}
+
+	private static float hypot3(float a, float b, float c) {
+		return (float) Math.sqrt(a * a + b * b + c * c);
+	}
+
+	private static float m(float a, float b) {
+		if (a < 0 && b < 0) {
+			return a >= b ? a : b;
+		}
+		if (a > 0 && b > 0) {
+			return a < b ? a : b;
+		}
+		return 0.0f;
+	}
+
+	interface Loop {
+
+		void run(int start, int end);
+	}
+
+	/**
+	 * runs loop over [0, n) in chunks on the common fork-join pool
+	 */
+	static void parallelFor(int n, Loop loop) {
+		int numChunks = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		IntStream.range(0, numChunks).parallel().forEach(c -> loop.run(c * CHUNK_SIZE, Math
+			.min(n, (c + 1) * CHUNK_SIZE)));
+	}
+
+	static long numElements(ClearCLBuffer buffer) {
+		return numElements(buffer.getDimensions());
+	}
+
+	static long numElements(long[] dimensions) {
+		long n = 1;
+		for (long d : dimensions) {
+			n *= d;
+		}
+		return n;
+	}
+
+	/**
+	 * copy a float buffer into a java array
+	 */
+	static float[] pull(ClearCLBuffer buffer) {
+		if (buffer.getNativeType() != NativeTypeEnum.Float) {
+			throw new IllegalArgumentException("java FFT backend only supports float buffers");
+		}
+		float[] array = new float[(int) numElements(buffer)];
+		pull(buffer, array);
+		return array;
+	}
+
+	/**
+	 * copy a float buffer into an existing java array of the same size
+	 */
+	static void pull(ClearCLBuffer buffer, float[] array) {
+		if (buffer.getNativeType() != NativeTypeEnum.Float) {
+			throw new IllegalArgumentException("java FFT backend only supports float buffers");
+		}
+		TransferAccounting.pull(buffer, array);
+	}
+
+	/**
+	 * copy a java array into a float buffer
+	 */
+	static void push(float[] array, ClearCLBuffer buffer) {
+		TransferAccounting.push(array, buffer);
+	}
+}
@@ -0,0 +1,116 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies with power of two buckets.  Bucket 0 counts latencies
+ * below 1 microsecond, bucket i (i > 0) latencies in [2^(i-1), 2^i) microseconds and the
+ * last bucket everything longer.  Percentiles are the upper bound of the bucket they fall
+ * into, so they are accurate to a factor of two.
+ *
+ * @author Brian Northan
+ */
+public class LatencyHistogram {
+
+	public static final int BUCKETS = 34;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * @param nanos - latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		nanos = Math.max(0, nanos);
+
+		buckets.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		maxNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	private static int bucket(long nanos) {
+		long micros = nanos / 1000;
+		int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+		return Math.min(bucket, BUCKETS - 1);
+	}
+
+	/**
+	 * @param bucket
+	 * @return upper bound of a bucket in nanoseconds, Long.MAX_VALUE for the last bucket
+	 */
+	public static long getUpperBoundNanos(int bucket) {
+		return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) * 1000;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	public double getMeanNanos() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) totalNanos.get() / n;
+	}
+
+	/**
+	 * @param percentile - in [0, 100]
+	 * @return upper bound (at most the maximum) of the bucket the percentile falls into, 0
+	 *         if nothing was recorded
+	 */
+	public long getPercentileNanos(double percentile) {
+		long[] counts = getBucketCounts();
+
+		long n = 0;
+		for (long c : counts) {
+			n += c;
+		}
+
+		if (n == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(getUpperBoundNanos(i), maxNanos.get());
+			}
+		}
+
+		return maxNanos.get();
+	}
+
+	/**
+	 * @return copy of the bucket counts
+	 */
+	public long[] getBucketCounts() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+		}
+		return counts;
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+}
@@ -0,0 +1,18 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import java.util.Map;
+
+/**
+ * Receives the values of FFTMetrics, see FFTMetrics.addExporter.  Implementations forward
+ * them to a monitoring system (Prometheus, StatsD, a log, ...).
+ *
+ * @author Brian Northan
+ */
+public interface MetricsExporter {
+
+	/**
+	 * @param timestamp - System.currentTimeMillis when the values were read
+	 * @param values - name and value of every counter and gauge, see FFTMetrics.getValues
+	 */
+	void export(long timestamp, Map<String, Number> values);
+}
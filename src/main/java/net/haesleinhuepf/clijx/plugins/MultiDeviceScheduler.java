@@ -0,0 +1,525 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.plugins.TiledDeconvolution.TilePlan;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Runs the tasks of a job (the tiles of a large image or the time points of a time-lapse)
+ * on several OpenCL devices.
+ *
+ * Every device gets its own thread, its own CLIJ2 instance and its own workspace (for
+ * example a DeconvolutionSession), the native plan cache and the OTFCache keep separate
+ * entries per context.  The tasks are split into contiguous blocks, one per device, and a
+ * device that runs out of tasks steals from the end of the largest remaining block, so fast
+ * devices end up doing more of the work.  Results go into a shared (host) output.
+ *
+ * <pre>
+ * MultiDeviceScheduler scheduler = new MultiDeviceScheduler(MultiDeviceScheduler
+ * 	.createInstances());
+ * scheduler.deconvolveRichardsonLucyFFT(timePoints, psf, deconvolved, 100, 0.0f, false);
+ * </pre>
+ *
+ * For testing without GPUs several PoCL CPU devices can be used (for example
+ * POCL_DEVICES="pthread pthread"), createInstances selects devices by index so devices with
+ * the same name can be used together.
+ *
+ * @author Brian Northan
+ */
+public class MultiDeviceScheduler {
+
+	private final List<CLIJ2> devices;
+
+	private volatile int[] tasksPerDevice = new int[0];
+	private volatile int steals = 0;
+	private volatile long wallNanos = 0;
+
+	/**
+	 * @param devices - one CLIJ2 instance per device, the instances must not be used
+	 *          elsewhere while a job runs
+	 */
+	public MultiDeviceScheduler(List<CLIJ2> devices) {
+		if (devices.isEmpty()) {
+			throw new IllegalArgumentException("Error: no devices");
+		}
+		this.devices = new ArrayList<>(devices);
+	}
+
+	/**
+	 * @return a CLIJ2 instance for every OpenCL device
+	 */
+	public static List<CLIJ2> createInstances() {
+		int[] indices = new int[CLIJ.getAvailableDeviceNames().size()];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = i;
+		}
+		return createInstances(indices);
+	}
+
+	/**
+	 * @param deviceIndices - indices into CLIJ.getAvailableDeviceNames()
+	 * @return a CLIJ2 instance for every device
+	 */
+	public static List<CLIJ2> createInstances(int... deviceIndices) {
+		List<CLIJ2> instances = new ArrayList<>();
+		for (int index : deviceIndices) {
+			instances.add(new CLIJ2(new CLIJ(index)));
+		}
+		return instances;
+	}
+
+	public List<CLIJ2> getDevices() {
+		return new ArrayList<>(devices);
+	}
+
+	/**
+	 * A job of independent tasks.  createWorkspace, process and closeWorkspace are called on
+	 * the thread of the device.
+	 *
+	 * @param <W> - per device state (buffers, sessions)
+	 */
+	public interface Job<W> {
+
+		W createWorkspace(CLIJ2 clij2);
+
+		void process(CLIJ2 clij2, W workspace, int task);
+
+		void closeWorkspace(W workspace);
+	}
+
+	/**
+	 * Run tasks 0 ... numberOfTasks-1 of a job on all devices, returns when all tasks are
+	 * done.  If a task fails the remaining tasks are skipped and the error is thrown.
+	 */
+	public <W> void run(int numberOfTasks, Job<W> job) {
+
+		final int n = devices.size();
+
+		long start = System.nanoTime();
+
+		// contiguous blocks of tasks, one per device
+		final List<ConcurrentLinkedDeque<Integer>> queues = new ArrayList<>();
+		for (int d = 0; d < n; d++) {
+			ConcurrentLinkedDeque<Integer> queue = new ConcurrentLinkedDeque<>();
+			for (int task = d * numberOfTasks / n; task < (d + 1) * numberOfTasks / n; task++) {
+				queue.add(task);
+			}
+			queues.add(queue);
+		}
+
+		final int[] processed = new int[n];
+		final AtomicInteger stolen = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+		ExecutorService pool = Executors.newFixedThreadPool(n);
+		List<Future<?>> futures = new ArrayList<>();
+
+		for (int d = 0; d < n; d++) {
+			final int device = d;
+
+			futures.add(pool.submit(() -> {
+				CLIJ2 clij2 = devices.get(device);
+				W workspace = null;
+
+				try {
+					workspace = job.createWorkspace(clij2);
+
+					Integer task;
+					while (failure.get() == null && (task = nextTask(queues, device,
+						stolen)) != null)
+					{
+						job.process(clij2, workspace, task);
+						processed[device]++;
+					}
+				}
+				catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+				finally {
+					if (workspace != null) {
+						job.closeWorkspace(workspace);
+					}
+				}
+			}));
+		}
+
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure.compareAndSet(null, e);
+		}
+		catch (ExecutionException e) {
+			failure.compareAndSet(null, e.getCause());
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		tasksPerDevice = processed;
+		steals = stolen.get();
+		wallNanos = System.nanoTime() - start;
+
+		if (failure.get() != null) {
+			if (failure.get() instanceof RuntimeException) {
+				throw (RuntimeException) failure.get();
+			}
+			throw new IllegalStateException("Error: multi device job failed", failure.get());
+		}
+
+		FFTLog.info("Multi device job: " + numberOfTasks + " tasks on " + n +
+			" devices in " + wallNanos / 1000000 + " ms, tasks per device " + Arrays.toString(
+				processed) + ", stolen " + steals);
+	}
+
+	/**
+	 * next task of a device, taken from the front of its own queue or stolen from the back of
+	 * the largest other queue
+	 */
+	private static Integer nextTask(List<ConcurrentLinkedDeque<Integer>> queues, int device,
+		AtomicInteger stolen)
+	{
+		Integer task = queues.get(device).pollFirst();
+
+		while (task == null) {
+			ConcurrentLinkedDeque<Integer> victim = null;
+			int largest = 0;
+
+			for (ConcurrentLinkedDeque<Integer> queue : queues) {
+				int size = queue.size();
+				if (size > largest) {
+					largest = size;
+					victim = queue;
+				}
+			}
+
+			if (victim == null) {
+				return null;
+			}
+
+			task = victim.pollLast();
+
+			if (task != null) {
+				stolen.incrementAndGet();
+			}
+		}
+
+		return task;
+	}
+
+	/**
+	 * @return number of tasks each device processed in the last job
+	 */
+	public int[] getTasksPerDevice() {
+		return tasksPerDevice.clone();
+	}
+
+	/**
+	 * @return number of tasks that were stolen in the last job
+	 */
+	public int getSteals() {
+		return steals;
+	}
+
+	/**
+	 * @return duration of the last job
+	 */
+	public long getWallNanos() {
+		return wallNanos;
+	}
+
+	/**
+	 * Convolve time points (images of the same size), one time point per task
+	 *
+	 * @param inputs
+	 * @param psf
+	 * @param outputs - one output per input, the convolved images are written here
+	 */
+	public <T extends RealType<T>, S extends RealType<S>> void convolveFFT(
+		List<? extends RandomAccessibleInterval<T>> inputs, RandomAccessibleInterval<S> psf,
+		List<? extends RandomAccessibleInterval<FloatType>> outputs)
+	{
+		final long[] imageDimensions = getTimePointDimensions(inputs, outputs);
+
+		run(inputs.size(), new Job<TransferBuffer[]>() {
+
+			@Override
+			public TransferBuffer[] createWorkspace(CLIJ2 clij2) {
+				TransferBuffer gpuPSF = new TransferBuffer(clij2, dimensions(psf));
+				gpuPSF.push(psf);
+
+				return new TransferBuffer[] { gpuPSF, new TransferBuffer(clij2,
+					imageDimensions), new TransferBuffer(clij2, imageDimensions) };
+			}
+
+			@Override
+			public void process(CLIJ2 clij2, TransferBuffer[] workspace, int task) {
+				workspace[1].push(inputs.get(task));
+				ConvolveFFT.convolveFFT(clij2, workspace[1].buffer, workspace[0].buffer,
+					workspace[2].buffer);
+				workspace[2].pull(outputs.get(task));
+			}
+
+			@Override
+			public void closeWorkspace(TransferBuffer[] workspace) {
+				close(workspace);
+			}
+		});
+	}
+
+	/**
+	 * Richardson Lucy deconvolution of time points (images of the same size), one time
+	 * point per task.  Each device deconvolves with its own DeconvolutionSession.
+	 *
+	 * @param inputs
+	 * @param psf
+	 * @param outputs - one output per input, the deconvolved images are written here
+	 * @param iterations
+	 * @param regularizationFactor - total variation regularization, 0 for none
+	 * @param nonCirculant
+	 */
+	public <T extends RealType<T>, S extends RealType<S>> void deconvolveRichardsonLucyFFT(
+		List<? extends RandomAccessibleInterval<T>> inputs, RandomAccessibleInterval<S> psf,
+		List<? extends RandomAccessibleInterval<FloatType>> outputs, int iterations,
+		float regularizationFactor, boolean nonCirculant)
+	{
+		final long[] imageDimensions = getTimePointDimensions(inputs, outputs);
+
+		run(inputs.size(), new Job<DeconvolutionWorkspace>() {
+
+			@Override
+			public DeconvolutionWorkspace createWorkspace(CLIJ2 clij2) {
+				return new DeconvolutionWorkspace(clij2, psf, imageDimensions,
+					regularizationFactor, nonCirculant, false);
+			}
+
+			@Override
+			public void process(CLIJ2 clij2, DeconvolutionWorkspace workspace, int task) {
+				workspace.input.push(inputs.get(task));
+				workspace.session.run(workspace.input.buffer, workspace.output.buffer,
+					iterations);
+				workspace.output.pull(outputs.get(task));
+			}
+
+			@Override
+			public void closeWorkspace(DeconvolutionWorkspace workspace) {
+				workspace.close();
+			}
+		});
+	}
+
+	/**
+	 * Tiled Richardson Lucy deconvolution of a (3D) image in host memory, one tile per task.
+	 * The tiles are planned (see FFTMemoryPlanner.planTiles) for the device with the least
+	 * memory, the blended tiles are added to the shared output.
+	 *
+	 * @param input
+	 * @param psf
+	 * @param deconvolved - same size as input, the result is written here
+	 * @param iterations
+	 * @param regularizationFactor - total variation regularization, 0 for none
+	 * @param nonCirculant
+	 */
+	public <T extends RealType<T>, S extends RealType<S>> void
+		deconvolveRichardsonLucyFFTTiled(RandomAccessibleInterval<T> input,
+			RandomAccessibleInterval<S> psf, RandomAccessibleInterval<FloatType> deconvolved,
+			int iterations, float regularizationFactor, boolean nonCirculant)
+	{
+		final long[] psfDimensions = dimensions(psf);
+		final long psfBytes = JavaFFTBackend.numElements(psfDimensions) * Float.BYTES;
+
+		long availableBytes = Long.MAX_VALUE;
+		long maxAllocationBytes = Long.MAX_VALUE;
+
+		for (CLIJ2 clij2 : devices) {
+			availableBytes = Math.min(availableBytes, TiledDeconvolution.getAvailableBytes(
+				clij2) - psfBytes);
+			maxAllocationBytes = Math.min(maxAllocationBytes, TiledDeconvolution
+				.getMaxAllocationBytes(clij2));
+		}
+
+		// the devices work in parallel, so every device processes one tile at a time
+		final TilePlan plan = FFTMemoryPlanner.planTiles(dimensions(input), psfDimensions,
+			regularizationFactor > 0, nonCirculant, availableBytes, maxAllocationBytes, 1);
+
+		FFTLog.info("Multi device tiled deconvolution " + plan);
+
+		final long[] tileDimensions = plan.getTileDimensions();
+
+		LoopBuilder.setImages(deconvolved).multiThreaded().forEachPixel(o -> o.setReal(0));
+
+		run(plan.getNumberOfTiles(), new Job<DeconvolutionWorkspace>() {
+
+			@Override
+			public DeconvolutionWorkspace createWorkspace(CLIJ2 clij2) {
+				return new DeconvolutionWorkspace(clij2, psf, tileDimensions,
+					regularizationFactor, nonCirculant, true);
+			}
+
+			@Override
+			public void process(CLIJ2 clij2, DeconvolutionWorkspace workspace, int task) {
+				long[] origin = plan.getTileOrigin(task);
+
+				workspace.input.push(TiledDeconvolution.tileView(input, origin,
+					tileDimensions));
+				workspace.session.run(workspace.input.buffer, workspace.tileOut, iterations);
+
+				// weight the tile on the device
+				TiledDeconvolution.blendTile(clij2, workspace.tileOut, workspace.output.buffer,
+					plan, task, origin, false);
+				workspace.output.pullArray();
+
+				// neighbouring tiles overlap, so adding to the shared output is synchronized
+				synchronized (deconvolved) {
+					LoopBuilder.setImages(workspace.output.img, TiledDeconvolution.tileView(
+						deconvolved, origin, tileDimensions)).forEachPixel((w, o) -> o.setReal(o
+							.getRealFloat() + w.getRealFloat()));
+				}
+			}
+
+			@Override
+			public void closeWorkspace(DeconvolutionWorkspace workspace) {
+				workspace.close();
+			}
+		});
+	}
+
+	private static long[] getTimePointDimensions(
+		List<? extends RandomAccessibleInterval<?>> inputs,
+		List<? extends RandomAccessibleInterval<?>> outputs)
+	{
+		if (inputs.size() != outputs.size() || inputs.isEmpty()) {
+			throw new IllegalArgumentException(
+				"Error: need the same (non zero) number of inputs and outputs");
+		}
+
+		long[] imageDimensions = dimensions(inputs.get(0));
+
+		for (int i = 0; i < inputs.size(); i++) {
+			if (!Arrays.equals(dimensions(inputs.get(i)), imageDimensions) || !Arrays.equals(
+				dimensions(outputs.get(i)), imageDimensions))
+			{
+				throw new IllegalArgumentException(
+					"Error: all time points need to be the same size");
+			}
+		}
+
+		return imageDimensions;
+	}
+
+	private static long[] dimensions(RandomAccessibleInterval<?> image) {
+		long[] dimensions = new long[image.numDimensions()];
+		for (int d = 0; d < dimensions.length; d++) {
+			dimensions[d] = image.dimension(d);
+		}
+		return dimensions;
+	}
+
+	private static void close(TransferBuffer[] buffers) {
+		for (TransferBuffer buffer : buffers) {
+			if (buffer != null) {
+				buffer.close();
+			}
+		}
+	}
+
+	/**
+	 * A float device buffer with a host copy, used to move images between host and device
+	 * without allocating per task
+	 */
+	private static class TransferBuffer {
+
+		final float[] array;
+		final Img<FloatType> img;
+		final ClearCLBuffer buffer;
+
+		TransferBuffer(CLIJ2 clij2, long[] dimensions) {
+			array = new float[(int) JavaFFTBackend.numElements(dimensions)];
+			img = ArrayImgs.floats(array, dimensions);
+			buffer = clij2.create(dimensions, NativeTypeEnum.Float);
+		}
+
+		<T extends RealType<T>> void push(RandomAccessibleInterval<T> source) {
+			LoopBuilder.setImages(source, img).forEachPixel((s, o) -> o.setReal(s
+				.getRealFloat()));
+			TransferAccounting.push(array, buffer);
+		}
+
+		void pullArray() {
+			TransferAccounting.pull(buffer, array);
+		}
+
+		void pull(RandomAccessibleInterval<FloatType> target) {
+			pullArray();
+			LoopBuilder.setImages(img, target).forEachPixel((s, o) -> o.setReal(s
+				.getRealFloat()));
+		}
+
+		void close() {
+			buffer.close();
+		}
+	}
+
+	/**
+	 * per device state of a deconvolution job
+	 */
+	private static class DeconvolutionWorkspace {
+
+		TransferBuffer psf;
+		TransferBuffer input;
+		TransferBuffer output;
+		ClearCLBuffer tileOut;
+		DeconvolutionSession session;
+
+		<S extends RealType<S>> DeconvolutionWorkspace(CLIJ2 clij2,
+			RandomAccessibleInterval<S> hostPSF, long[] imageDimensions,
+			float regularizationFactor, boolean nonCirculant, boolean tiled)
+		{
+			try {
+				psf = new TransferBuffer(clij2, dimensions(hostPSF));
+				psf.push(hostPSF);
+
+				input = new TransferBuffer(clij2, imageDimensions);
+				output = new TransferBuffer(clij2, imageDimensions);
+				if (tiled) {
+					tileOut = clij2.create(imageDimensions, NativeTypeEnum.Float);
+				}
+
+				session = new DeconvolutionSession(clij2, imageDimensions, psf.buffer,
+					regularizationFactor, nonCirculant);
+			}
+			catch (RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+
+		void close() {
+			if (session != null) session.close();
+			if (tileOut != null) tileOut.close();
+			MultiDeviceScheduler.close(new TransferBuffer[] { psf, input, output });
+		}
+	}
+}
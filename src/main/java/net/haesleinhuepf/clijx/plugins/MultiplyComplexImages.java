@@ -49,6 +49,14 @@ public class MultiplyComplexImages extends AbstractCLIJ2Plugin implements CLIJMa
     }
 
     public static boolean multiplyComplexImages(CLIJ2 clij2, ClearCLImageInterface src1, ClearCLImageInterface src2, ClearCLImageInterface dst) {
+        return multiplyComplexImages(clij2, src1, src2, dst, false);
+    }
+
+    /**
+     * Multiply two interleaved complex images, if conjugate is true src1 is multiplied with
+     * the complex conjugate of src2 (correlation instead of convolution)
+     */
+    public static boolean multiplyComplexImages(CLIJ2 clij2, ClearCLImageInterface src1, ClearCLImageInterface src2, ClearCLImageInterface dst, boolean conjugate) {
         assertDifferent(src1, dst);
         assertDifferent(src2, dst);
 
@@ -61,7 +69,11 @@ public class MultiplyComplexImages extends AbstractCLIJ2Plugin implements CLIJMa
             throw new IllegalArgumentException("Error: number of dimensions don't match! (multiplyComplexImages)");
         }
 
-        clij2.execute(MultiplyComplexImages.class, "multiply_complex_images_x.cl", "multiply_complex_images", dst.getDimensions(), dst.getDimensions(), parameters);
+        // one work item per complex number, each writes two floats
+        long[] dimensions = dst.getDimensions();
+        dimensions[0] /= 2;
+
+        clij2.execute(MultiplyComplexImages.class, "multiply_complex_images_x.cl", conjugate ? "multiply_complex_images_conjugate" : "multiply_complex_images", dimensions, dimensions, parameters);
         return true;
     }
 
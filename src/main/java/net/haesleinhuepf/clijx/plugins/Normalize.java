@@ -1,6 +1,8 @@
 
 package net.haesleinhuepf.clijx.plugins;
 
+import java.util.HashMap;
+
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
@@ -31,18 +33,58 @@ public class Normalize extends AbstractCLIJ2Plugin implements
 		return result;
 	}
 
+	/**
+	 * Scale input to [0, 1].  Minimum and maximum are computed and used on the device
+	 * (see normalize_x.cl), so nothing is read back to the host.
+	 * 
+	 * @param clij2
+	 * @param input
+	 * @param destination
+	 * @return true
+	 */
 	public static boolean normalize(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer destination)
 	{
-		double mininum = clij2.minimumOfAllPixels(input);
-		double maxinum = clij2.maximumOfAllPixels(input);
-		double range = maxinum - mininum;
-
-		ClearCLBuffer temp = clij2.create(destination);
-
-		clij2.addImageAndScalar(input, temp, -mininum);
-		clij2.multiplyImageAndScalar(temp, destination, 1.0 / range);
-
-		temp.close();
+		try (TransferAccounting.Scope scope = TransferAccounting.enter("Normalize", true)) {
+			// minimum and maximum of every row, then of all rows
+			long[] rows = new long[] { input.getHeight(), input.getDepth() };
+
+			ClearCLBuffer rowMinimum = clij2.create(rows, NativeTypeEnum.Float);
+			ClearCLBuffer rowMaximum = clij2.create(rows, NativeTypeEnum.Float);
+			ClearCLBuffer minMax = clij2.create(new long[] { 2, 1 }, NativeTypeEnum.Float);
+
+			HashMap<String, Object> parameters = new HashMap<>();
+			parameters.put("src", input);
+			parameters.put("min_dst", rowMinimum);
+			parameters.put("max_dst", rowMaximum);
+			parameters.put("width", (int) input.getWidth());
+
+			clij2.execute(Normalize.class, "normalize_x.cl", "min_max_rows", rows, rows,
+				parameters);
+
+			long[] single = new long[] { 1, 1 };
+
+			parameters = new HashMap<>();
+			parameters.put("min_src", rowMinimum);
+			parameters.put("max_src", rowMaximum);
+			parameters.put("dst", minMax);
+			parameters.put("rows", (int) rows[0]);
+			parameters.put("planes", (int) rows[1]);
+
+			clij2.execute(Normalize.class, "normalize_x.cl", "min_max_reduce", single,
+				single, parameters);
+
+			parameters = new HashMap<>();
+			parameters.put("src", input);
+			parameters.put("min_max", minMax);
+			parameters.put("dst", destination);
+
+			clij2.execute(Normalize.class, "normalize_x.cl", "normalize_min_max", destination
+				.getDimensions(), destination.getDimensions(), parameters);
+
+			rowMinimum.close();
+			rowMaximum.close();
+			minMax.close();
+		}
 
 		return true;
 	}
@@ -0,0 +1,495 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+/**
+ * Process wide cache of OTFs (the FFT of a PSF that has been extended and shifted with
+ * OpenCLFFTUtility.padShiftFFTKernel).
+ *
+ * Entries are keyed by a fingerprint of the PSF content (computed on the device), the PSF
+ * and extended dimensions, whether the PSF was normalized and the OpenCL context, so a PSF
+ * that does not change across a run is only padded and transformed once.  The OTFs stay on
+ * the device.  The fingerprint is not a content hash, so every entry keeps a copy of its PSF
+ * and a hit is only used if the copy equals the PSF (compared on the device).  A PSF whose
+ * fingerprint collides with a different cached one gets an OTF that is not cached.
+ *
+ * OTFs are computed outside of the cache lock, threads that ask for the same key wait for
+ * the first one, others (e.g. the workers of MultiDeviceScheduler) compute in parallel.
+ *
+ * The cache also holds the non-circulant normalization factors (see
+ * acquireNormalizationFactor), keyed by the same PSF fingerprint, the extended and the
+ * original image dimensions, so repeated non-circulant deconvolutions of the same size skip
+ * the extra correlation.  Unused entries are evicted in least recently used order once the cache is
+ * larger than the memory budget (see setMaxBytes).
+ *
+ * Every acquireOTF (acquireNormalizationFactor) has to be paired with a releaseOTF
+ * (releaseNormalizationFactor).  The returned buffer belongs to the
+ * cache and must not be closed by the caller.  Call clear() before closing the CLIJ2
+ * instance the OTFs were created with.
+ *
+ * @author Brian Northan
+ */
+public class OTFCache {
+
+	public static final String MAX_BYTES_PROPERTY = "clij2fft.otfcache.maxbytes";
+
+	private static long maxBytes = Long.getLong(MAX_BYTES_PROPERTY, 512L * 1024 * 1024);
+
+	// access ordered, so iteration starts at the least recently used entry
+	private static final LinkedHashMap<Key, Entry> cache = new LinkedHashMap<>(16, 0.75f,
+		true);
+
+	// OTFs of PSFs whose fingerprint collided with a cached one, closed when released
+	private static final List<Entry> detached = new ArrayList<>();
+
+	private static long sizeInBytes = 0;
+	private static long hits = 0;
+	private static long misses = 0;
+
+	/**
+	 * Get the OTF of psf for an extended image size, computing (and caching) it if it is not
+	 * in the cache.
+	 *
+	 * @param clij2
+	 * @param psf - the PSF (any type, not extended)
+	 * @param extendedDimensions - size of the extended image the OTF will be used with
+	 * @param normalize - if true the PSF is normalized (sum of 1) before it is transformed
+	 * @return OTF (Hermitian interleaved, see ForwardFFT), owned by the cache
+	 */
+	public static ClearCLBuffer acquireOTF(CLIJ2 clij2, ClearCLBuffer psf,
+		long[] extendedDimensions, boolean normalize)
+	{
+		return acquireOTF(clij2, psf, fingerprint(clij2, psf), extendedDimensions,
+			normalize);
+	}
+
+	/**
+	 * Get the non-circulant normalization factor (see
+	 * DeconvolveRichardsonLucyFFT.createNormalizationFactor) of the normalized psf for an
+	 * image of size imageDimensions extended to extendedDimensions, computing (and caching)
+	 * it if it is not in the cache.
+	 *
+	 * @param clij2
+	 * @param psf - the PSF (any type, not extended)
+	 * @param extendedDimensions - size of the extended image
+	 * @param imageDimensions - size of the original image
+	 * @return normalization factor of size extendedDimensions, owned by the cache
+	 */
+	public static ClearCLBuffer acquireNormalizationFactor(CLIJ2 clij2, ClearCLBuffer psf,
+		long[] extendedDimensions, long[] imageDimensions)
+	{
+		double[] fingerprint = fingerprint(clij2, psf);
+
+		Key key = new Key(clij2.getCLIJ().getClearCLContext(), fingerprint, psf
+			.getDimensions(), extendedDimensions, imageDimensions, true);
+
+		return acquire(clij2, key, psf, "compute normalization factor", () -> {
+			ClearCLBuffer otf = acquireOTF(clij2, psf, fingerprint, extendedDimensions, true);
+
+			try {
+				return DeconvolveRichardsonLucyFFT.createNormalizationFactor(clij2,
+					extendedDimensions, imageDimensions, otf);
+			}
+			finally {
+				releaseOTF(otf);
+			}
+		});
+	}
+
+	private static ClearCLBuffer acquireOTF(CLIJ2 clij2, ClearCLBuffer psf,
+		double[] fingerprint, long[] extendedDimensions, boolean normalize)
+	{
+		Key key = new Key(clij2.getCLIJ().getClearCLContext(), fingerprint, psf
+			.getDimensions(), extendedDimensions, new long[0], normalize);
+
+		return acquire(clij2, key, psf, "compute OTF", () -> computeOTF(clij2, psf,
+			extendedDimensions, normalize));
+	}
+
+	/**
+	 * Get the buffer of key, the first thread that asks for it computes it (without holding
+	 * the lock), the others wait for it.  A hit whose PSF differs from psf (a fingerprint
+	 * collision) is computed again and not cached.
+	 */
+	private static ClearCLBuffer acquire(CLIJ2 clij2, Key key, ClearCLBuffer psf,
+		String stageName, Supplier<ClearCLBuffer> compute)
+	{
+		ClearCLBuffer psfCopy = clij2.create(psf.getDimensions(), NativeTypeEnum.Float);
+		clij2.copy(psf, psfCopy);
+
+		Entry entry;
+		boolean computing;
+
+		synchronized (OTFCache.class) {
+			entry = cache.get(key);
+			computing = entry == null;
+
+			if (computing) {
+				misses++;
+				entry = new Entry();
+				cache.put(key, entry);
+			}
+			else {
+				hits++;
+			}
+
+			entry.refCount++;
+		}
+
+		if (computing) {
+			compute(key, entry, psfCopy, stageName, compute);
+			return entry.buffer;
+		}
+
+		try {
+			entry.await();
+		}
+		catch (RuntimeException e) {
+			synchronized (OTFCache.class) {
+				entry.refCount--;
+			}
+			psfCopy.close();
+			throw e;
+		}
+
+		boolean same;
+		try {
+			same = TransferAccounting.meanSquaredError(clij2, entry.psf, psfCopy) == 0;
+		}
+		catch (RuntimeException e) {
+			releaseOTF(entry.buffer);
+			psfCopy.close();
+			throw e;
+		}
+
+		if (same) {
+			psfCopy.close();
+			return entry.buffer;
+		}
+
+		// a different PSF with the same fingerprint, compute it without caching
+		releaseOTF(entry.buffer);
+
+		synchronized (OTFCache.class) {
+			hits--;
+			misses++;
+		}
+
+		Entry uncached = new Entry();
+		uncached.refCount = 1;
+
+		compute(null, uncached, psfCopy, stageName, compute);
+
+		synchronized (OTFCache.class) {
+			detached.add(uncached);
+		}
+
+		return uncached.buffer;
+	}
+
+	/**
+	 * compute the buffer of entry, which is in the cache under key (null if it is not
+	 * cached) and owns psfCopy afterwards
+	 */
+	private static void compute(Key key, Entry entry, ClearCLBuffer psfCopy,
+		String stageName, Supplier<ClearCLBuffer> compute)
+	{
+		ClearCLBuffer buffer;
+
+		Profiler.Stage stage = Profiler.start(stageName);
+
+		try {
+			buffer = compute.get();
+		}
+		catch (RuntimeException e) {
+			psfCopy.close();
+
+			synchronized (OTFCache.class) {
+				if (key != null) {
+					cache.remove(key, entry);
+				}
+			}
+
+			entry.fail(e);
+			throw e;
+		}
+
+		stage.stop();
+
+		long bytes = buffer.getSizeInBytes() + psfCopy.getSizeInBytes();
+
+		synchronized (OTFCache.class) {
+			sizeInBytes += bytes;
+			FFTMetrics.deviceAllocated(bytes);
+		}
+
+		entry.complete(buffer, psfCopy);
+
+		synchronized (OTFCache.class) {
+			evict();
+		}
+	}
+
+	/**
+	 * Release a normalization factor acquired with acquireNormalizationFactor, it stays in
+	 * the cache unless the cache is over budget
+	 */
+	public static synchronized void releaseNormalizationFactor(
+		ClearCLBuffer normalizationFactor)
+	{
+		releaseOTF(normalizationFactor);
+	}
+
+	/**
+	 * Release an OTF acquired with acquireOTF, it stays in the cache unless the cache is
+	 * over budget
+	 */
+	public static synchronized void releaseOTF(ClearCLBuffer otf) {
+		for (Entry entry : cache.values()) {
+			if (entry.buffer == otf && entry.refCount > 0) {
+				entry.refCount--;
+				evict();
+				return;
+			}
+		}
+
+		Iterator<Entry> iterator = detached.iterator();
+
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.buffer == otf && --entry.refCount == 0) {
+				close(entry);
+				iterator.remove();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Close all cached OTFs that are not in use
+	 *
+	 * @return number of OTFs still in use
+	 */
+	public static synchronized int clear() {
+		Iterator<Map.Entry<Key, Entry>> iterator = cache.entrySet().iterator();
+
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next().getValue();
+			if (entry.refCount == 0) {
+				remove(iterator, entry);
+			}
+		}
+
+		return cache.size();
+	}
+
+	/**
+	 * @param bytes - device memory budget of the cache, 0 disables caching
+	 */
+	public static synchronized void setMaxBytes(long bytes) {
+		maxBytes = Math.max(0, bytes);
+		evict();
+	}
+
+	public static synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public static synchronized long getSizeInBytes() {
+		return sizeInBytes;
+	}
+
+	public static synchronized int size() {
+		return cache.size();
+	}
+
+	public static synchronized long getHits() {
+		return hits;
+	}
+
+	public static synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * evict least recently used unreferenced OTFs until the cache is within budget
+	 */
+	private static void evict() {
+		Iterator<Map.Entry<Key, Entry>> iterator = cache.entrySet().iterator();
+
+		while (sizeInBytes > maxBytes && iterator.hasNext()) {
+			Entry entry = iterator.next().getValue();
+			if (entry.refCount == 0) {
+				remove(iterator, entry);
+			}
+		}
+	}
+
+	private static void remove(Iterator<Map.Entry<Key, Entry>> iterator, Entry entry) {
+		close(entry);
+		iterator.remove();
+	}
+
+	private static void close(Entry entry) {
+		long bytes = entry.buffer.getSizeInBytes() + entry.psf.getSizeInBytes();
+		sizeInBytes -= bytes;
+		FFTMetrics.deviceReleased(bytes);
+		entry.buffer.close();
+		entry.psf.close();
+	}
+
+	/**
+	 * (normalize), extend, shift and transform the PSF
+	 */
+	private static ClearCLBuffer computeOTF(CLIJ2 clij2, ClearCLBuffer psf,
+		long[] extendedDimensions, boolean normalize)
+	{
+		ClearCLBuffer psfFloat = clij2.create(psf.getDimensions(), NativeTypeEnum.Float);
+
+		if (normalize) {
+			OpenCLFFTUtility.normalize(clij2, psf, psfFloat);
+		}
+		else {
+			clij2.copy(psf, psfFloat);
+		}
+
+		ClearCLBuffer psfExtended = clij2.create(extendedDimensions, NativeTypeEnum.Float);
+
+		OpenCLFFTUtility.padShiftFFTKernel(clij2, psfFloat, psfExtended);
+
+		ClearCLBuffer otf = ForwardFFT.runFFT(clij2, psfExtended);
+
+		psfFloat.close();
+		psfExtended.close();
+
+		return otf;
+	}
+
+	/**
+	 * Fingerprint of the content of an image, computed on the device.  Consists of the sum
+	 * of all pixels and two sums of the pixels weighted with pseudo random weights.
+	 */
+	static double[] fingerprint(CLIJ2 clij2, ClearCLBuffer image) {
+		ClearCLBuffer weighted = clij2.create(image.getDimensions(), NativeTypeEnum.Float);
+
+		double[] fingerprint = new double[3];
+		fingerprint[0] = TransferAccounting.sumOfAllPixels(clij2, image);
+
+		for (int seed = 1; seed <= 2; seed++) {
+			HashMap<String, Object> parameters = new HashMap<>();
+			parameters.put("src", image);
+			parameters.put("dst", weighted);
+			parameters.put("width", (int) image.getWidth());
+			parameters.put("height", (int) image.getHeight());
+			parameters.put("seed", seed);
+
+			clij2.execute(OTFCache.class, "psf_fingerprint_x.cl", "psf_fingerprint", weighted
+				.getDimensions(), weighted.getDimensions(), parameters);
+
+			fingerprint[seed] = TransferAccounting.sumOfAllPixels(clij2, weighted);
+		}
+
+		weighted.close();
+
+		return fingerprint;
+	}
+
+	private static class Entry {
+
+		// OTF or normalization factor, null while it is computed
+		volatile ClearCLBuffer buffer;
+		// float copy of the PSF the buffer was computed from
+		ClearCLBuffer psf;
+		RuntimeException error;
+		// guarded by OTFCache.class
+		int refCount = 0;
+
+		synchronized void complete(ClearCLBuffer buffer, ClearCLBuffer psf) {
+			this.psf = psf;
+			this.buffer = buffer;
+			notifyAll();
+		}
+
+		synchronized void fail(RuntimeException error) {
+			this.error = error;
+			notifyAll();
+		}
+
+		/**
+		 * wait until the thread computing the entry is done, throws if it failed
+		 */
+		synchronized void await() {
+			while (buffer == null && error == null) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Error: interrupted while waiting for an OTF",
+						e);
+				}
+			}
+
+			// the error of the thread that computed it, so out of memory is reported as such
+			if (error != null) {
+				throw error;
+			}
+		}
+	}
+
+	private static class Key {
+
+		final Object context;
+		final double[] fingerprint;
+		final long[] psfDimensions;
+		final long[] extendedDimensions;
+		// original image size for normalization factors, empty for OTFs
+		final long[] imageDimensions;
+		final boolean normalized;
+
+		Key(Object context, double[] fingerprint, long[] psfDimensions,
+			long[] extendedDimensions, long[] imageDimensions, boolean normalized)
+		{
+			this.context = context;
+			this.fingerprint = fingerprint;
+			this.psfDimensions = psfDimensions.clone();
+			this.extendedDimensions = extendedDimensions.clone();
+			this.imageDimensions = imageDimensions.clone();
+			this.normalized = normalized;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return context == other.context && normalized == other.normalized && Arrays
+				.equals(fingerprint, other.fingerprint) && Arrays.equals(psfDimensions,
+					other.psfDimensions) && Arrays.equals(extendedDimensions,
+						other.extendedDimensions) && Arrays.equals(imageDimensions,
+							other.imageDimensions);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = System.identityHashCode(context);
+			hash = 31 * hash + Arrays.hashCode(fingerprint);
+			hash = 31 * hash + Arrays.hashCode(psfDimensions);
+			hash = 31 * hash + Arrays.hashCode(extendedDimensions);
+			hash = 31 * hash + Arrays.hashCode(imageDimensions);
+			return 31 * hash + (normalized ? 1 : 0);
+		}
+	}
+}
@@ -1,17 +1,15 @@
 
 package net.haesleinhuepf.clijx.plugins;
 
+import java.util.HashMap;
+
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.haesleinhuepf.clij2.CLIJ2;
 import net.imagej.ops.OpService;
-import net.imagej.ops.filter.pad.DefaultPadInputFFT;
-import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.outofbounds.OutOfBoundsConstantValueFactory;
-import net.imglib2.outofbounds.OutOfBoundsMirrorFactory;
 import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
@@ -33,77 +31,176 @@ public class OpenCLFFTUtility {
 	
 	
 	/**
-	 * Pad a GPU image to the next supported FFT size using mirror out of bounds strategy.  
-	 * Note.  This function is not fully implemented on the GPU, thus the image is pulled 
-	 * onto the CPU, extended, then pushed back to GPU
-	 *
-	 * TODO fully implement this on the GPU
+	 * Out of bounds strategies supported by padFFTInput.  
 	 * 
-	 * @param clij2
-	 * @param input
-	 * @param psf
-	 * @param ops
+	 * MIRROR_SINGLE mirrors without repeating the edge pixel (... 2 1 0 1 2 ...), 
+	 * MIRROR_DOUBLE repeats the edge pixel (... 1 0 0 1 2 ...) 
+	 */
+	public enum PadMode {
+		ZERO(0), CONSTANT(1), MIRROR_SINGLE(2), MIRROR_DOUBLE(3), PERIODIC(4);
+
+		final int code;
+
+		PadMode(int code) {
+			this.code = code;
+		}
+	}
+
+	/**
+	 * compute extended dimensions based on image and PSF dimensions, image + psf.  If size 
+	 * selection is turned on (see FFTSizeSelector.setEnabled) the size is chosen by 
+	 * FFTSizeSelector with the cost model (the cheapest FFT size that is at least image + 
+	 * 2 * (psf / 2)) 
+	 * 
+	 * @param imageDimensions
+	 * @param psfDimensions
 	 * @return
 	 */
-	public static ClearCLBuffer padFFTInputMirror(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer psf, OpService ops) {
-		
-		RandomAccessibleInterval img = clij2.pullRAI(input);
+	public static long[] getExtendedSize(long[] imageDimensions, long[] psfDimensions) {
+		return getExtendedSize(null, imageDimensions, psfDimensions);
+	}
 
-		// compute extended dimensions based on image and PSF dimensions
-		long[] extendedSize = new long[img.numDimensions()];
+	/**
+	 * compute extended dimensions based on image and PSF dimensions, as getExtendedSize 
+	 * but if size selection is turned on the cost measured for the device of clij2 is used 
+	 * (see FFTSizeSelector.benchmark) 
+	 * 
+	 * @param clij2 - null for the cost model
+	 * @param imageDimensions
+	 * @param psfDimensions
+	 * @return
+	 */
+	public static long[] getExtendedSize(CLIJ2 clij2, long[] imageDimensions, long[] psfDimensions) {
+		if (FFTSizeSelector.isEnabled()) {
+			long[] minimumSize = FFTSizeSelector.getMinimumSize(imageDimensions, psfDimensions);
+			return clij2 == null ? FFTSizeSelector.select(minimumSize) : FFTSizeSelector.select(
+				clij2, minimumSize);
+		}
+		
+		long[] extendedSize = new long[imageDimensions.length];
 
-		for (int d = 0; d < img.numDimensions(); d++) {
-			extendedSize[d] = img.dimension(d) + psf.getDimensions()[d];
+		for (int d = 0; d < imageDimensions.length; d++) {
+			extendedSize[d] = imageDimensions[d] + psfDimensions[d];
 		}
 
-		FinalDimensions extendedDimensions = new FinalDimensions(extendedSize);
+		return extendedSize;
+	}
 
-		// extend image
-		RandomAccessibleInterval extended = (RandomAccessibleInterval) ops.run(DefaultPadInputFFT.class, img, extendedDimensions, false,
-						new OutOfBoundsMirrorFactory(OutOfBoundsMirrorFactory.Boundary.SINGLE));
-	
-		// push extended image and psf to GPU
-		return  clij2.push(extended);
+	/**
+	 * Pad a GPU image to the next supported FFT size using mirror out of bounds strategy.  
+	 * 
+	 * @param clij2
+	 * @param input
+	 * @param psf
+	 * @param ops - not used anymore, padding is done on the GPU
+	 * @return extended image (float)
+	 */
+	public static ClearCLBuffer padFFTInputMirror(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer psf, OpService ops) {
+		return padFFTInputMirror(clij2, input, psf);
+	}
+
+	/**
+	 * Pad a GPU image to the next supported FFT size using mirror out of bounds strategy.  
+	 * 
+	 * @param clij2
+	 * @param input
+	 * @param psf
+	 * @return extended image (float)
+	 */
+	public static ClearCLBuffer padFFTInputMirror(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer psf) {
 		
+		long[] extendedSize = getExtendedSize(clij2, input.getDimensions(), psf.getDimensions());
+
+		return padFFTInput(clij2, input, extendedSize, PadMode.MIRROR_SINGLE, 0);
 	}
 	
 	/**
 	 * Pad a GPU image to the next supported FFT size using zeros out of bounds strategy.  
-	 * Note.  This function is not fully implemented on the GPU, thus the image is pulled 
-	 * onto the CPU, extended, then pushed back to GPU
-	 *
-	 * TODO fully implement this on the GPU
 	 * 
 	 * @param clij2
 	 * @param input
 	 * @param psf
-	 * @param ops
-	 * @return
+	 * @param ops - not used anymore, padding is done on the GPU
+	 * @return extended image (float)
 	 */
 	public static ClearCLBuffer padFFTInputZeros(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer psf, OpService ops) {
-		
-		RandomAccessibleInterval img = clij2.pullRAI(input);
-
-		// compute extended dimensions based on image and PSF dimensions
-		long[] extendedSize = new long[img.numDimensions()];
+		return padFFTInputZeros(clij2, input, psf);
+	}
 
-		for (int d = 0; d < img.numDimensions(); d++) {
-			extendedSize[d] = img.dimension(d) + psf.getDimensions()[d];
-		}
+	/**
+	 * Pad a GPU image to the next supported FFT size using zeros out of bounds strategy.  
+	 * 
+	 * @param clij2
+	 * @param input
+	 * @param psf
+	 * @return extended image (float)
+	 */
+	public static ClearCLBuffer padFFTInputZeros(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer psf) {
+		
+		long[] extendedSize = getExtendedSize(clij2, input.getDimensions(), psf.getDimensions());
+		
+		return padFFTInput(clij2, input, extendedSize, PadMode.ZERO, 0);
+	}
 
-		FinalDimensions extendedDimensions = new FinalDimensions(extendedSize);
+	/**
+	 * Create a float buffer of size extendedSize and write the padded input into it 
+	 * 
+	 * @param clij2
+	 * @param input
+	 * @param extendedSize
+	 * @param mode - out of bounds strategy
+	 * @param constant - value used for PadMode.CONSTANT
+	 * @return extended image
+	 */
+	public static ClearCLBuffer padFFTInput(CLIJ2 clij2, ClearCLBuffer input, long[] extendedSize, PadMode mode, float constant) {
 		
 		ClearCLBuffer extended = clij2.create(extendedSize, NativeTypeEnum.Float);
 		
-		if (input.getDimensions().length==3) {
-			clij2.paste(input, extended, psf.getDimensions()[0]/2, psf.getDimensions()[1]/2, psf.getDimensions()[2]/2);
-		}
-		else {
-			clij2.paste(input, extended, psf.getDimensions()[0]/2, psf.getDimensions()[1]/2);
-		}
+		padFFTInput(clij2, input, extended, mode, constant);
 		
 		return extended;
+	}
+
+	/**
+	 * Pad input into extended on the GPU.  The input is centered in the extended image 
+	 * (the same convention as cropExtended) and the border is filled according to mode. 
+	 * 
+	 * @param clij2
+	 * @param input
+	 * @param extended - the padded image will be written here
+	 * @param mode - out of bounds strategy
+	 * @param constant - value used for PadMode.CONSTANT
+	 * @return true if successful
+	 */
+	public static boolean padFFTInput(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer extended, PadMode mode, float constant) {
 		
+		long[] inputDims = input.getDimensions();
+		long[] extendedDims = extended.getDimensions();
+
+		if (inputDims.length != extendedDims.length) {
+			throw new IllegalArgumentException("Error: number of dimensions don't match! (padFFTInput)");
+		}
+
+		long[] offset = new long[3];
+		for (int d = 0; d < inputDims.length; d++) {
+			offset[d] = (extendedDims[d] - inputDims[d]) / 2;
+		}
+
+		HashMap<String, Object> parameters = new HashMap<>();
+		parameters.put("src", input);
+		parameters.put("dst", extended);
+		parameters.put("src_width", (int) input.getWidth());
+		parameters.put("src_height", (int) input.getHeight());
+		parameters.put("src_depth", inputDims.length == 3 ? (int) input.getDepth() : 1);
+		parameters.put("offset_x", (int) offset[0]);
+		parameters.put("offset_y", (int) offset[1]);
+		parameters.put("offset_z", (int) offset[2]);
+		parameters.put("mode", mode.code);
+		parameters.put("constant", constant);
+
+		clij2.execute(OpenCLFFTUtility.class, "pad_fft_input_x.cl", "pad_fft_input", extendedDims, extendedDims, parameters);
+
+		return true;
 	}
 
 	/**
@@ -197,7 +294,7 @@ public class OpenCLFFTUtility {
 	 */
 	public static boolean normalize(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer destination)
 	{
-		double sum = clij2.getSumOfAllPixels(input);
+		double sum = TransferAccounting.sumOfAllPixels(clij2, input);
 
 		clij2.multiplyImageAndScalar(input, destination, 1/sum);
 
@@ -0,0 +1,28 @@
+package net.haesleinhuepf.clijx.plugins;
+
+/**
+ * JMX view of the calls and latency of one operation (see FFTMetrics)
+ *
+ * @author Brian Northan
+ */
+public interface OperationMetricsMXBean {
+
+	long getCalls();
+
+	double getTotalMillis();
+
+	double getMeanMillis();
+
+	double getMaxMillis();
+
+	double getP50Millis();
+
+	double getP95Millis();
+
+	double getP99Millis();
+
+	/**
+	 * @return counts of the latency buckets, see LatencyHistogram
+	 */
+	long[] getLatencyBuckets();
+}
@@ -0,0 +1,60 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import net.imagej.ops.OpService;
+
+import org.scijava.Context;
+import org.scijava.command.CommandService;
+
+import ij.IJ;
+
+/**
+ * The SciJava Context and OpService for the code that still uses ImageJ Ops (see
+ * ImageUtility).  The plugins themselves run on the device and do not need Ops.
+ *
+ * The context is created the first time getContext or getOpService is called, not when
+ * the plugins are discovered or loaded, because creating it takes seconds.  Inside Fiji the
+ * running context is used.
+ *
+ * @author Brian Northan
+ */
+public class OpsContext {
+
+	// set by Holder, reading it does not create the context
+	private static volatile boolean initialized = false;
+
+	/**
+	 * @return the context of the running ImageJ, or a new one with CommandService and
+	 *         OpService
+	 */
+	public static Context getContext() {
+		return Holder.context;
+	}
+
+	public static OpService getOpService() {
+		return Holder.ops;
+	}
+
+	/**
+	 * @return true if the context was created already (does not create it)
+	 */
+	public static boolean isInitialized() {
+		return initialized;
+	}
+
+	// initialized by the JVM on first access, which is thread safe and lazy
+	private static class Holder {
+
+		static final Context context;
+		static final OpService ops;
+
+		static {
+			// this initializes the SciJava platform.
+			// See https://forum.image.sc/t/compatibility-of-imagej-tensorflow-with-imagej1/41295/2
+			Context ctx = (Context) IJ.runPlugIn("org.scijava.Context", "");
+			if (ctx == null) ctx = new Context(CommandService.class, OpService.class);
+			context = ctx;
+			ops = context.getService(OpService.class);
+			OpsContext.initialized = true;
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+/**
+ * Crops a PSF to the region that contains most of its energy, so images are extended by
+ * less (see OpenCLFFTUtility.getExtendedSize) and the FFTs get smaller.  Measured PSFs are
+ * often much larger than their support, e.g. 128^3 with almost all energy inside 40^3.
+ *
+ * The energy profile of the PSF along each axis is computed on the device (see
+ * psf_profile_x.cl, negative values are ignored).  The crop is centered on the center of
+ * mass of each profile, so the cropped PSF is re-centered, and along each axis it is the
+ * smallest odd size that leaves at most (1 - energyFraction) / numDimensions of the energy
+ * outside.  The cropped PSF is scaled so it has the same sum as the original.
+ *
+ * Cropping is off by default, it is turned on with the system property clij2fft.psfsupport
+ * (energy fraction, e.g. 0.999) or setEnergyFraction, and is then used by ConvolveFFT and
+ * DeconvolveRichardsonLucyFFT.
+ *
+ * @author Brian Northan
+ */
+public class PSFSupport {
+
+	public static final String ENERGY_FRACTION_PROPERTY = "clij2fft.psfsupport";
+
+	// fraction of the PSF energy kept by cropping, 0 to not crop
+	private static double energyFraction = Double.parseDouble(System.getProperty(
+		ENERGY_FRACTION_PROPERTY, "0"));
+
+	/**
+	 * @param energyFraction - fraction of the PSF energy the crop has to contain (for
+	 *          example 0.999), 0 turns cropping off
+	 */
+	public static void setEnergyFraction(double energyFraction) {
+		if (energyFraction < 0 || energyFraction > 1) {
+			throw new IllegalArgumentException(
+				"Error: PSF energy fraction has to be between 0 and 1");
+		}
+		PSFSupport.energyFraction = energyFraction;
+	}
+
+	public static double getEnergyFraction() {
+		return energyFraction;
+	}
+
+	/**
+	 * Crop psf if cropping is turned on and the crop is smaller than psf.  The reduction of
+	 * the extended volume and FFT cost for imageDimensions is printed.
+	 *
+	 * @param clij2
+	 * @param imageDimensions - size of the image the PSF will be used with
+	 * @param psf
+	 * @return the cropped PSF (has to be closed by the caller) or psf itself
+	 */
+	public static ClearCLBuffer cropIfEnabled(CLIJ2 clij2, long[] imageDimensions,
+		ClearCLBuffer psf)
+	{
+		if (energyFraction <= 0 || energyFraction >= 1) {
+			return psf;
+		}
+
+		long[][] support = findSupport(clij2, psf, energyFraction);
+
+		if (Arrays.equals(support[1], psf.getDimensions())) {
+			return psf;
+		}
+
+		if (FFTLog.isEnabled(FFTLog.INFO)) {
+			FFTLog.info("PSF support " + new Report(imageDimensions, psf.getDimensions(),
+				support[1]));
+		}
+
+		return crop(clij2, psf, support[0], support[1]);
+	}
+
+	/**
+	 * Crop psf to the region that contains energyFraction of its energy
+	 *
+	 * @param clij2
+	 * @param psf - 2D or 3D PSF (any type)
+	 * @param energyFraction - fraction of the energy the crop has to contain
+	 * @return cropped float PSF with the same sum as psf, has to be closed by the caller
+	 */
+	public static ClearCLBuffer crop(CLIJ2 clij2, ClearCLBuffer psf,
+		double energyFraction)
+	{
+		long[][] support = findSupport(clij2, psf, energyFraction);
+		return crop(clij2, psf, support[0], support[1]);
+	}
+
+	/**
+	 * @return size of psf cropped to energyFraction of its energy
+	 */
+	public static long[] getSupportSize(CLIJ2 clij2, ClearCLBuffer psf,
+		double energyFraction)
+	{
+		return findSupport(clij2, psf, energyFraction)[1];
+	}
+
+	private static ClearCLBuffer crop(CLIJ2 clij2, ClearCLBuffer psf, long[] origin,
+		long[] size)
+	{
+		ClearCLBuffer cropped = clij2.create(size, NativeTypeEnum.Float);
+
+		if (size.length == 2) {
+			clij2.crop(psf, cropped, origin[0], origin[1]);
+		}
+		else {
+			clij2.crop(psf, cropped, origin[0], origin[1], origin[2]);
+		}
+
+		double sum = TransferAccounting.sumOfAllPixels(clij2, psf);
+		double croppedSum = TransferAccounting.sumOfAllPixels(clij2, cropped);
+
+		if (croppedSum == 0 || sum == croppedSum) {
+			return cropped;
+		}
+
+		ClearCLBuffer scaled = clij2.create(size, NativeTypeEnum.Float);
+		clij2.multiplyImageAndScalar(cropped, scaled, sum / croppedSum);
+		cropped.close();
+
+		return scaled;
+	}
+
+	/**
+	 * @return origin and size of the crop
+	 */
+	private static long[][] findSupport(CLIJ2 clij2, ClearCLBuffer psf,
+		double energyFraction)
+	{
+		long[] dimensions = psf.getDimensions();
+
+		if (dimensions.length != 2 && dimensions.length != 3) {
+			throw new IllegalArgumentException("Error: only 2D and 3D PSFs can be cropped");
+		}
+
+		long[] origin = new long[dimensions.length];
+		long[] size = dimensions.clone();
+
+		// energy that may be outside the crop along each axis
+		double outside = (1 - energyFraction) / dimensions.length;
+
+		for (int d = 0; d < dimensions.length; d++) {
+			double[] profile = getProfile(clij2, psf, d);
+
+			double total = 0;
+			double moment = 0;
+			for (int i = 0; i < profile.length; i++) {
+				total += profile[i];
+				moment += i * profile[i];
+			}
+
+			if (total <= 0) {
+				continue;
+			}
+
+			int center = (int) Math.round(moment / total);
+
+			// grow the half width until enough energy is inside, or the crop reaches the
+			// border of the PSF
+			int maxHalfWidth = Math.min(center, profile.length - 1 - center);
+			double inside = profile[center];
+			int halfWidth = 0;
+
+			while (halfWidth < maxHalfWidth && total - inside > outside * total) {
+				halfWidth++;
+				inside += profile[center - halfWidth] + profile[center + halfWidth];
+			}
+
+			if (2 * halfWidth + 1 < dimensions[d]) {
+				origin[d] = center - halfWidth;
+				size[d] = 2 * halfWidth + 1;
+			}
+		}
+
+		return new long[][] { origin, size };
+	}
+
+	/**
+	 * energy profile of psf along axis, computed on the device
+	 */
+	private static double[] getProfile(CLIJ2 clij2, ClearCLBuffer psf, int axis) {
+		long length = psf.getDimensions()[axis];
+
+		ClearCLBuffer profile = clij2.create(new long[] { length, 1 }, NativeTypeEnum.Float);
+
+		HashMap<String, Object> parameters = new HashMap<>();
+		parameters.put("src", psf);
+		parameters.put("dst", profile);
+		parameters.put("width", (int) psf.getWidth());
+		parameters.put("height", (int) psf.getHeight());
+		parameters.put("depth", (int) psf.getDepth());
+		parameters.put("axis", axis);
+
+		clij2.execute(PSFSupport.class, "psf_profile_x.cl", "psf_profile", profile
+			.getDimensions(), profile.getDimensions(), parameters);
+
+		// the profile is a reduction result, it is read without counting as an image pull
+		float[] array = TransferAccounting.readResult(profile);
+		profile.close();
+
+		double[] result = new double[array.length];
+		for (int i = 0; i < array.length; i++) {
+			result[i] = array[i];
+		}
+		return result;
+	}
+
+	/**
+	 * How much cropping the PSF reduces the extended size of an image and the FFT cost
+	 * (see FFTSizeSelector.getCost)
+	 */
+	public static class Report {
+
+		final long[] psfDimensions;
+		final long[] croppedDimensions;
+		final long[] extendedDimensions;
+		final long[] croppedExtendedDimensions;
+
+		public Report(long[] imageDimensions, long[] psfDimensions,
+			long[] croppedDimensions)
+		{
+			this.psfDimensions = psfDimensions.clone();
+			this.croppedDimensions = croppedDimensions.clone();
+			extendedDimensions = OpenCLFFTUtility.getExtendedSize(imageDimensions,
+				psfDimensions);
+			croppedExtendedDimensions = OpenCLFFTUtility.getExtendedSize(imageDimensions,
+				croppedDimensions);
+		}
+
+		/**
+		 * @return extended volume with the cropped PSF divided by the extended volume with
+		 *         the original PSF
+		 */
+		public double getVolumeRatio() {
+			return (double) JavaFFTBackend.numElements(croppedExtendedDimensions) /
+				JavaFFTBackend.numElements(extendedDimensions);
+		}
+
+		/**
+		 * @return FFT cost with the cropped PSF divided by the cost with the original PSF
+		 */
+		public double getCostRatio() {
+			return FFTSizeSelector.getCost(croppedExtendedDimensions) / FFTSizeSelector
+				.getCost(extendedDimensions);
+		}
+
+		@Override
+		public String toString() {
+			return Arrays.toString(psfDimensions) + " -> " + Arrays.toString(
+				croppedDimensions) + ", extended " + Arrays.toString(extendedDimensions) +
+				" -> " + Arrays.toString(croppedExtendedDimensions) + String.format(
+					", volume %.1f%%, FFT cost %.1f%%", 100 * getVolumeRatio(), 100 *
+						getCostRatio());
+		}
+	}
+}
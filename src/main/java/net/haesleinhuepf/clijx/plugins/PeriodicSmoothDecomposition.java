@@ -0,0 +1,83 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import java.util.HashMap;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+/**
+ * Periodic plus smooth decomposition of an image (L. Moisan, Periodic plus smooth image
+ * decomposition, J Math Imaging Vis 39, 2011).
+ *
+ * An image u is split into u = p + s, where p has (almost) no jumps across the border when
+ * it is repeated periodically and s is smooth.  FFT based convolution and deconvolution of
+ * p do not produce the artifacts a circulant FFT produces at the image border, so p does
+ * not have to be extended by the PSF size.  s is the solution of a Poisson equation with
+ * the differences across the border as source term and is computed on the device with one
+ * forward and one inverse FFT (see periodic_smooth_x.cl).
+ *
+ * @author Brian Northan
+ */
+public class PeriodicSmoothDecomposition {
+
+	/**
+	 * Compute the smooth component of input (2D or 3D, float, a size clFFT supports), the
+	 * periodic component is input - smooth
+	 *
+	 * @param clij2
+	 * @param input
+	 * @param smooth - the smooth component is written here, same size as input
+	 */
+	public static void smoothComponent(CLIJ2 clij2, ClearCLBuffer input,
+		ClearCLBuffer smooth)
+	{
+		long[] dimensions = input.getDimensions();
+
+		ClearCLBuffer boundary = clij2.create(dimensions, NativeTypeEnum.Float);
+
+		HashMap<String, Object> parameters = new HashMap<>();
+		parameters.put("src", input);
+		parameters.put("dst", boundary);
+		parameters.put("width", (int) input.getWidth());
+		parameters.put("height", (int) input.getHeight());
+		parameters.put("depth", (int) input.getDepth());
+
+		clij2.execute(PeriodicSmoothDecomposition.class, "periodic_smooth_x.cl",
+			"periodic_smooth_boundary", dimensions, dimensions, parameters);
+
+		ClearCLBuffer fft = ForwardFFT.runFFT(clij2, boundary);
+		boundary.close();
+
+		// one work item per complex number of the Hermitian FFT
+		long[] frequencies = fft.getDimensions();
+		frequencies[0] /= 2;
+
+		parameters = new HashMap<>();
+		parameters.put("fft", fft);
+		parameters.put("width", (int) input.getWidth());
+		parameters.put("height", (int) input.getHeight());
+		parameters.put("depth", (int) input.getDepth());
+
+		clij2.execute(PeriodicSmoothDecomposition.class, "periodic_smooth_x.cl",
+			"periodic_smooth_solve", frequencies, frequencies, parameters);
+
+		InverseFFT.runInverseFFT(clij2, fft, smooth);
+		fft.close();
+	}
+
+	/**
+	 * Split input into its periodic and smooth component
+	 *
+	 * @param clij2
+	 * @param input - 2D or 3D float image of a size clFFT supports
+	 * @param periodic - the periodic component is written here
+	 * @param smooth - the smooth component is written here
+	 */
+	public static void decompose(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer periodic,
+		ClearCLBuffer smooth)
+	{
+		smoothComponent(clij2, input, smooth);
+		clij2.subtractImages(input, smooth, periodic);
+	}
+}
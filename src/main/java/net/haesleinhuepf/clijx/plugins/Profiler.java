@@ -0,0 +1,293 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Per-stage timing of the FFT, convolution and deconvolution paths, to see whether padding,
+ * FFTs, element-wise kernels or transfers dominate.
+ *
+ * Profiling is off by default and costs nothing then.  It is turned on with the system
+ * property clij2fft.profiling=true or setEnabled.  When it is on
+ *
+ * <ul>
+ * <li>the plugins and DeconvolutionSession time their stages (padding, OTF, crop, ...) on
+ * the host, these include the device work the stage waits for</li>
+ * <li>transfers between host and device (JavaFFTBackend) are timed</li>
+ * <li>the native FFTs and the native Richardson Lucy loop run on a queue created with
+ * CL_QUEUE_PROFILING_ENABLE and every FFT and kernel is timed with OpenCL events. Device
+ * times are moved onto the host clock so the first device event of a native call starts
+ * when the call started.</li>
+ * </ul>
+ *
+ * Events go to the registered listeners and are kept (up to MAX_EVENTS) for getSummary and
+ * writeChromeTrace (open the file in chrome://tracing or https://ui.perfetto.dev).  A
+ * session created while profiling was off is not profiled on the device.
+ *
+ * @author Brian Northan
+ */
+public class Profiler {
+
+	public static final String PROFILING_PROPERTY = "clij2fft.profiling";
+
+	public static final String CATEGORY_HOST = "host";
+	public static final String CATEGORY_TRANSFER = "transfer";
+	public static final String CATEGORY_DEVICE = "device";
+
+	/**
+	 * thread id of device events
+	 */
+	public static final long DEVICE_THREAD_ID = 0;
+
+	/**
+	 * events kept for the summary and the trace, later events only go to the listeners
+	 */
+	public static final int MAX_EVENTS = 1000000;
+
+	// names of the native stages, indexed by the PROFILE_* ids in clij2fft.cpp
+	private static final String[] NATIVE_STAGES = new String[] { "forward FFT",
+		"inverse FFT", "complex multiply", "divide", "update", "total variation update",
+		"remove small values", "reduce", "accelerate", "copy" };
+
+	private static volatile boolean enabled = Boolean.getBoolean(PROFILING_PROPERTY);
+
+	private static boolean nativeLoaded = false;
+
+	private static final List<ProfilingListener> listeners = new CopyOnWriteArrayList<>();
+
+	private static final List<ProfilingEvent> events = new ArrayList<>();
+
+	private static final Stage DISABLED = new Stage(null, null);
+
+	/**
+	 * Called when the native library was loaded (see ClFFTBackend.isAvailable)
+	 */
+	static synchronized void init() {
+		nativeLoaded = true;
+		clij2fftWrapper.set_profiling(enabled ? 1 : 0);
+	}
+
+	public static synchronized void setEnabled(boolean enabled) {
+		Profiler.enabled = enabled;
+		if (nativeLoaded) {
+			clij2fftWrapper.set_profiling(enabled ? 1 : 0);
+		}
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void addListener(ProfilingListener listener) {
+		listeners.add(listener);
+	}
+
+	public static void removeListener(ProfilingListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Start timing a stage on the host, stop it with Stage.stop.  Does nothing if profiling
+	 * is off.
+	 *
+	 * @param name - name of the stage
+	 * @return the running stage
+	 */
+	public static Stage start(String name) {
+		return start(name, CATEGORY_HOST);
+	}
+
+	/**
+	 * @param name - name of the stage
+	 * @param category - CATEGORY_HOST or CATEGORY_TRANSFER
+	 * @return the running stage
+	 */
+	public static Stage start(String name, String category) {
+		return enabled ? new Stage(name, category) : DISABLED;
+	}
+
+	/**
+	 * Read the events the native library recorded on the calling thread since the last call
+	 * and record them.  Called after each native FFT or Richardson Lucy call, the events of
+	 * calls running on other threads are left for them.
+	 *
+	 * @param callStartNanos - System.nanoTime when the native call started
+	 */
+	static void collectNative(long callStartNanos) {
+		if (!enabled || !nativeLoaded) {
+			return;
+		}
+
+		// the records are kept per thread by the native library
+		int count = clij2fftWrapper.profiling_collect_thread();
+
+		if (count == 0) {
+			return;
+		}
+
+		long offset = callStartNanos - clij2fftWrapper.profiling_thread_record_start(0);
+
+		for (int i = 0; i < count; i++) {
+			int stage = clij2fftWrapper.profiling_thread_record_stage(i);
+			long start = clij2fftWrapper.profiling_thread_record_start(i);
+			long end = clij2fftWrapper.profiling_thread_record_end(i);
+
+			String name = stage >= 0 && stage < NATIVE_STAGES.length ? NATIVE_STAGES[stage]
+				: "stage " + stage;
+
+			record(new ProfilingEvent(name, CATEGORY_DEVICE, DEVICE_THREAD_ID, start + offset,
+				end - start));
+		}
+	}
+
+	/**
+	 * Record an event measured elsewhere
+	 */
+	public static void record(ProfilingEvent event) {
+		synchronized (events) {
+			if (events.size() < MAX_EVENTS) {
+				events.add(event);
+			}
+		}
+		for (ProfilingListener listener : listeners) {
+			listener.eventRecorded(event);
+		}
+	}
+
+	/**
+	 * @return the kept events in the order they were recorded
+	 */
+	public static List<ProfilingEvent> getEvents() {
+		synchronized (events) {
+			return new ArrayList<>(events);
+		}
+	}
+
+	/**
+	 * Drop the kept events
+	 */
+	public static void clear() {
+		synchronized (events) {
+			events.clear();
+		}
+	}
+
+	/**
+	 * @return total time, count and share of every (category, name) of the kept events, one
+	 *         line each
+	 */
+	public static String getSummary() {
+		Map<String, long[]> totals = new LinkedHashMap<>();
+		long[] categoryTotals = new long[3];
+
+		for (ProfilingEvent event : getEvents()) {
+			long[] total = totals.computeIfAbsent(event.getCategory() + " " + event.getName(),
+				k -> new long[2]);
+			total[0] += event.getDurationNanos();
+			total[1]++;
+			categoryTotals[categoryIndex(event.getCategory())] += event.getDurationNanos();
+		}
+
+		StringBuilder summary = new StringBuilder();
+
+		for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+			long[] total = entry.getValue();
+			long categoryTotal = categoryTotals[categoryIndex(entry.getKey().substring(0, entry
+				.getKey().indexOf(' ')))];
+
+			summary.append(String.format(Locale.ROOT, "%-40s %10.3f ms %7d x %6.1f%%%n", entry
+				.getKey(), total[0] / 1e6, total[1], categoryTotal == 0 ? 0 : 100.0 * total[0] /
+					categoryTotal));
+		}
+
+		return summary.toString();
+	}
+
+	private static int categoryIndex(String category) {
+		return CATEGORY_DEVICE.equals(category) ? 2 : CATEGORY_TRANSFER.equals(category) ? 1
+			: 0;
+	}
+
+	/**
+	 * Write the kept events in the Chrome trace event format
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void writeChromeTrace(File file) throws IOException {
+		try (Writer writer = new FileWriter(file)) {
+			writeChromeTrace(writer);
+		}
+	}
+
+	/**
+	 * Write the kept events in the Chrome trace event format (complete events, times in
+	 * microseconds), host threads and the device are separate tracks
+	 *
+	 * @param writer
+	 * @throws IOException
+	 */
+	public static void writeChromeTrace(Writer writer) throws IOException {
+		List<ProfilingEvent> kept = getEvents();
+
+		long origin = Long.MAX_VALUE;
+		for (ProfilingEvent event : kept) {
+			origin = Math.min(origin, event.getStartNanos());
+		}
+
+		writer.write("{\"traceEvents\":[\n");
+		writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" +
+			DEVICE_THREAD_ID + ",\"args\":{\"name\":\"OpenCL device\"}}");
+
+		for (ProfilingEvent event : kept) {
+			// Locale.ROOT, a decimal comma would not be valid JSON
+			writer.write(String.format(Locale.ROOT,
+				",\n{\"name\":\"%s\",\"cat\":\"%s\",\"ph\":\"X\"," +
+				"\"ts\":%.3f,\"dur\":%.3f,\"pid\":1,\"tid\":%d}", escape(event.getName()), escape(
+					event.getCategory()), (event.getStartNanos() - origin) / 1e3, event
+						.getDurationNanos() / 1e3, event.getThreadId()));
+		}
+
+		writer.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+		writer.flush();
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * A stage timed on the host, see start
+	 */
+	public static class Stage {
+
+		private final String name;
+		private final String category;
+		private final long startNanos;
+
+		Stage(String name, String category) {
+			this.name = name;
+			this.category = category;
+			this.startNanos = name == null ? 0 : System.nanoTime();
+		}
+
+		/**
+		 * Stop timing and record the stage
+		 */
+		public void stop() {
+			if (name == null) {
+				return;
+			}
+			record(new ProfilingEvent(name, category, Thread.currentThread().getId(),
+				startNanos, System.nanoTime() - startNanos));
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import java.util.Locale;
+
+/**
+ * One timed stage recorded by the Profiler: a stage of a plugin or session measured on the
+ * host, a transfer between host and device, or an FFT or kernel measured on the device with
+ * OpenCL events.
+ *
+ * @author Brian Northan
+ */
+public class ProfilingEvent {
+
+	private final String name;
+	private final String category;
+	private final long threadId;
+	private final long startNanos;
+	private final long durationNanos;
+
+	/**
+	 * @param name - name of the stage (for example "pad input" or "forward FFT")
+	 * @param category - Profiler.CATEGORY_HOST, CATEGORY_TRANSFER or CATEGORY_DEVICE
+	 * @param threadId - id of the java thread, Profiler.DEVICE_THREAD_ID for device events
+	 * @param startNanos - start in System.nanoTime time
+	 * @param durationNanos
+	 */
+	public ProfilingEvent(String name, String category, long threadId, long startNanos,
+		long durationNanos)
+	{
+		this.name = name;
+		this.category = category;
+		this.threadId = threadId;
+		this.startNanos = startNanos;
+		this.durationNanos = durationNanos;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getCategory() {
+		return category;
+	}
+
+	public long getThreadId() {
+		return threadId;
+	}
+
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	@Override
+	public String toString() {
+		return category + " " + name + String.format(Locale.ROOT, " %.3f ms", durationNanos /
+			1e6);
+	}
+}
@@ -0,0 +1,13 @@
+package net.haesleinhuepf.clijx.plugins;
+
+/**
+ * Receives the events recorded by the Profiler (see Profiler.addListener).  Called on the
+ * thread that recorded the event, device events are delivered after the native call that
+ * ran them returned.
+ *
+ * @author Brian Northan
+ */
+public interface ProfilingListener {
+
+	void eventRecorded(ProfilingEvent event);
+}
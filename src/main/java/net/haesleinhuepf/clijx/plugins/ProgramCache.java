@@ -0,0 +1,201 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import java.io.File;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+/**
+ * Control of the cache of built OpenCL programs.
+ *
+ * The native library keeps the programs it builds (Richardson Lucy, total variation,
+ * convolution) per OpenCL context and device, so they are compiled once per context instead
+ * of once per call.  The binaries are also written to a directory on disk, keyed by device
+ * name, driver version and a hash of the source, so later runs of the JVM load them instead
+ * of compiling.  A binary that does not load (new driver, corrupt file) is rebuilt from
+ * source and replaced.  A cached program retains its context, release them with
+ * ClFFTBackend.releaseContext before the CLIJ2 instance is closed.
+ *
+ * The .cl kernels of the Java plugins are compiled by CLIJ, which keeps them per CLIJ2
+ * instance but does not expose the binaries.  warmUp compiles them (and the native
+ * programs) up front so the first real call does not pay for compilation.
+ *
+ * @author Brian Northan
+ */
+public class ProgramCache {
+
+	/**
+	 * System property for the directory of the on-disk cache, "none" to only cache in
+	 * memory.  Defaults to .clij2fft/programs in the user home.
+	 */
+	public static final String DIRECTORY_PROPERTY = "clij2fft.programcache";
+
+	private static File directory = null;
+
+	// true once setDirectory was called, the directory is then kept when the library loads
+	private static boolean directoryChosen = false;
+
+	/**
+	 * Apply the directory of DIRECTORY_PROPERTY (or the one set with setDirectory before),
+	 * called by ClFFTBackend once the native library is loaded
+	 */
+	static synchronized void init() {
+		if (directoryChosen) {
+			applyDirectory();
+			return;
+		}
+
+		setDirectory(getConfiguredDirectory());
+	}
+
+	/**
+	 * @return the directory of DIRECTORY_PROPERTY, the default directory if it is not set
+	 *         or null if it is "none"
+	 */
+	private static File getConfiguredDirectory() {
+		String property = System.getProperty(DIRECTORY_PROPERTY);
+		if (property == null) {
+			return getDefaultDirectory();
+		}
+		else if (property.isEmpty() || property.equalsIgnoreCase("none")) {
+			return null;
+		}
+		return new File(property);
+	}
+
+	public static File getDefaultDirectory() {
+		return new File(new File(System.getProperty("user.home"), ".clij2fft"), "programs");
+	}
+
+	/**
+	 * @param directory - directory for program binaries, null to only cache in memory.  Can
+	 *          be set before the native library is loaded.
+	 * @return false if the directory could not be created (the disk cache is then off)
+	 */
+	public static synchronized boolean setDirectory(File directory) {
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			FFTLog.error("clij2fft program cache: cannot create " + directory);
+			directory = null;
+		}
+		ProgramCache.directory = directory;
+		directoryChosen = true;
+		if (ClFFTBackend.isLoaded()) {
+			applyDirectory();
+		}
+		return directory != null;
+	}
+
+	private static void applyDirectory() {
+		clij2fftWrapper.setProgramCacheDir(directory == null ? "" : directory
+			.getAbsolutePath());
+	}
+
+	/**
+	 * @return directory of the on-disk cache, null if programs are only cached in memory.
+	 *         Before the native library is loaded this is the directory it will use.
+	 */
+	public static synchronized File getDirectory() {
+		if (!directoryChosen) {
+			setDirectory(getConfiguredDirectory());
+		}
+		return directory;
+	}
+
+	public static int size() {
+		return ClFFTBackend.isLoaded() ? clij2fftWrapper.programCacheSize() : 0;
+	}
+
+	/**
+	 * @return number of programs that were found in memory
+	 */
+	public static long getHits() {
+		return ClFFTBackend.isLoaded() ? clij2fftWrapper.programCacheHits() : 0;
+	}
+
+	/**
+	 * @return number of programs that were loaded from disk
+	 */
+	public static long getDiskHits() {
+		return ClFFTBackend.isLoaded() ? clij2fftWrapper.programCacheDiskHits() : 0;
+	}
+
+	/**
+	 * @return number of programs that were compiled from source
+	 */
+	public static long getMisses() {
+		return ClFFTBackend.isLoaded() ? clij2fftWrapper.programCacheMisses() : 0;
+	}
+
+	/**
+	 * Release the programs kept in memory for all contexts, the binaries on disk are kept.
+	 * The programs of a single context are released by ClFFTBackend.releaseContext, they are
+	 * not released when its plans and sessions are gone.
+	 */
+	public static void clear() {
+		if (ClFFTBackend.isLoaded()) {
+			clij2fftWrapper.clearProgramCache();
+		}
+	}
+
+	/**
+	 * Compile the kernels used by deconvolution and convolution on the device of clij2 by
+	 * running them once on tiny images: the complex image kernels and padding (CLIJ) and
+	 * the native Richardson Lucy programs with and without total variation.  The FFT size
+	 * table of the device is loaded if it was measured before (see FFTSizeSelector).
+	 *
+	 * @param clij2
+	 */
+	public static void warmUp(CLIJ2 clij2) {
+		FFTSizeSelector.load(clij2);
+
+		for (long[] dims : new long[][] { { 4, 4 }, { 4, 4, 4 } }) {
+			long[] complexDims = dims.clone();
+			complexDims[0] *= 2;
+
+			ClearCLBuffer complex = clij2.create(complexDims, NativeTypeEnum.Float);
+			ClearCLBuffer product = clij2.create(complexDims, NativeTypeEnum.Float);
+			ClearCLBuffer real = clij2.create(dims, NativeTypeEnum.Float);
+			ClearCLBuffer imaginary = clij2.create(dims, NativeTypeEnum.Float);
+
+			clij2.set(real, 1);
+			clij2.set(imaginary, 0);
+			CombineComplexImage.combineComplexImage(clij2, real, imaginary, complex);
+			MultiplyComplexImages.multiplyComplexImages(clij2, complex, complex, product);
+			SplitComplexImage.splitComplexImage(clij2, product, real, imaginary);
+
+			complex.close();
+			product.close();
+			real.close();
+			imaginary.close();
+		}
+
+		long[] dims = new long[] { 8, 8, 8 };
+		ClearCLBuffer input = clij2.create(dims, NativeTypeEnum.Float);
+		ClearCLBuffer output = clij2.create(dims, NativeTypeEnum.Float);
+		ClearCLBuffer psf = clij2.create(new long[] { 3, 3, 3 }, NativeTypeEnum.Float);
+		clij2.set(input, 1);
+		clij2.set(psf, 1);
+
+		for (float regularizationFactor : new float[] { 0.0f, 0.001f }) {
+			try (DeconvolutionSession session = new DeconvolutionSession(clij2, dims, psf,
+				regularizationFactor, false))
+			{
+				session.run(input, output, 1);
+			}
+		}
+
+		input.close();
+		output.close();
+		psf.close();
+	}
+
+	/**
+	 * @return one line summary of the cache, for logging
+	 */
+	public static String getStatistics() {
+		return "program cache: " + size() + " programs, " + getHits() + " hits, " +
+			getDiskHits() + " disk hits, " + getMisses() + " compiled, directory " +
+			getDirectory();
+	}
+}
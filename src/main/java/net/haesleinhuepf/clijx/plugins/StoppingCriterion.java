@@ -0,0 +1,103 @@
+package net.haesleinhuepf.clijx.plugins;
+
+/**
+ * When Richardson Lucy can stop before the maximum number of iterations.  Every interval
+ * iterations a measure is computed on the device (only a few partial sums are read back):
+ *
+ * <ul>
+ * <li>RELATIVE_CHANGE - ||estimate - previous estimate|| / ||previous estimate|| over one
+ * iteration, stops when it is below the tolerance</li>
+ * <li>I_DIVERGENCE - I-divergence between the observed and the reblurred image (per unit
+ * of observed intensity), stops when it decreased by less than tolerance (relative) since
+ * the last check</li>
+ * <li>RESIDUAL_NORM - ||observed - reblurred|| / ||observed||, stops like I_DIVERGENCE</li>
+ * </ul>
+ *
+ * The measure is computed in the extended image (in the non-circulant case the observed
+ * image is zero outside the original image).
+ *
+ * @author Brian Northan
+ */
+public class StoppingCriterion {
+
+	public enum Measure {
+		NONE, RELATIVE_CHANGE, I_DIVERGENCE, RESIDUAL_NORM
+	}
+
+	/**
+	 * Always run all iterations
+	 */
+	public static final StoppingCriterion NONE = new StoppingCriterion(Measure.NONE, 0, 0);
+
+	private final Measure measure;
+	private final float tolerance;
+	private final int interval;
+
+	/**
+	 * @param measure
+	 * @param tolerance
+	 * @param interval - iterations between checks, each check waits for the device
+	 */
+	public StoppingCriterion(Measure measure, float tolerance, int interval) {
+		if (measure != Measure.NONE && (interval < 1 || tolerance < 0)) {
+			throw new IllegalArgumentException(
+				"Error: stopping criterion needs an interval >= 1 and a tolerance >= 0");
+		}
+		this.measure = measure;
+		this.tolerance = tolerance;
+		this.interval = interval;
+	}
+
+	/**
+	 * Create a criterion from the number used in macros (0 none, 1 relative change, 2
+	 * I-divergence, 3 residual norm)
+	 */
+	public static StoppingCriterion fromCode(int code, float tolerance, int interval) {
+		if (code < 0 || code >= Measure.values().length) {
+			throw new IllegalArgumentException("Error: unknown stopping criterion " + code);
+		}
+		if (code == 0) {
+			return NONE;
+		}
+		return new StoppingCriterion(Measure.values()[code], tolerance, interval);
+	}
+
+	public Measure getMeasure() {
+		return measure;
+	}
+
+	public float getTolerance() {
+		return tolerance;
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @return true if the measure is computed after this (0 based) iteration
+	 */
+	boolean isCheck(int iteration) {
+		return measure != Measure.NONE && (iteration + 1) % interval == 0;
+	}
+
+	/**
+	 * @param previous - measure of the last check, NaN if there was none
+	 * @param current - measure of this check
+	 * @return true if the iterations can stop
+	 */
+	boolean isConverged(double previous, double current) {
+		if (measure == Measure.RELATIVE_CHANGE) {
+			return current < tolerance;
+		}
+		return !Double.isNaN(previous) && previous - current < tolerance * previous;
+	}
+
+	@Override
+	public String toString() {
+		if (measure == Measure.NONE) {
+			return "none";
+		}
+		return measure + " tolerance " + tolerance + " every " + interval + " iterations";
+	}
+}
@@ -0,0 +1,721 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.clearcl.ClearCLDevice;
+import net.haesleinhuepf.clij.clearcl.ClearCLQueue;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
+import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
+import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clij2.utilities.HasAuthor;
+import net.haesleinhuepf.clij2.utilities.HasClassifiedInputOutput;
+import net.haesleinhuepf.clij2.utilities.IsCategorized;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import org.scijava.plugin.Plugin;
+
+/**
+ * Richardson Lucy deconvolution of volumes that are too large to be deconvolved in one
+ * piece.
+ *
+ * The volume is split into tiles of equal size (so one DeconvolutionSession is used for all
+ * tiles).  The number of tiles is chosen so the Richardson Lucy workspace of a tile fits into
+ * the device memory (see FFTMemoryPlanner), the tiles overlap by half the PSF size
+ * on each side and the seams between tiles are blended linearly.
+ *
+ * The input can be on the device (macro plugin) or in host memory
+ * (RandomAccessibleInterval), in which case only the tiles in flight are on the device.
+ * By default two tiles are in flight: while one tile iterates on its own command queue the
+ * next tile is uploaded and the previous one downloaded (see setSlots and
+ * getLastPipelineStatistics).
+ *
+ * @author Brian Northan
+ */
+@Plugin(type = CLIJMacroPlugin.class, name = "CLIJx_deconvolveRichardsonLucyFFTTiled")
+public class TiledDeconvolution extends AbstractCLIJ2Plugin implements
+	CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation, HasAuthor,
+	HasClassifiedInputOutput, IsCategorized
+{
+
+	public static final String MEMORY_FRACTION_PROPERTY = "clij2fft.tiled.memoryfraction";
+
+	// fraction of the device memory the tiles are planned for
+	private static double memoryFraction = Double.parseDouble(System.getProperty(
+		MEMORY_FRACTION_PROPERTY, "0.5"));
+
+	public static final String SLOTS_PROPERTY = "clij2fft.tiled.slots";
+
+	// number of tiles in flight, more than one overlaps transfers with compute
+	private static int slots = Integer.getInteger(SLOTS_PROPERTY, 2);
+
+	private static volatile PipelineStatistics lastStatistics = null;
+
+	@Override
+	public boolean executeCL() {
+
+		float regularizationFactor = 0.0f;
+
+		if (args.length >= 5) {
+			regularizationFactor = ((Double) (args[4])).floatValue();
+		}
+
+		boolean nonCirculant = false;
+
+		if (args.length >= 6) {
+			if ((Double) (args[5]) > 0) {
+				nonCirculant = true;
+			}
+		}
+
+		return deconvolveRichardsonLucyFFTTiled(getCLIJ2(), (ClearCLBuffer) (args[0]),
+			(ClearCLBuffer) (args[1]), (ClearCLBuffer) (args[2]), asInteger(args[3]),
+			regularizationFactor, nonCirculant);
+	}
+
+	/**
+	 * Tiled Richardson Lucy of an image on the device.  Input and output stay on the device,
+	 * the tiles are planned for the remaining device memory.
+	 *
+	 * @param clij2
+	 * @param input
+	 * @param psf
+	 * @param deconvolved
+	 * @param num_iterations
+	 * @param regularizationFactor - total variation regularization, 0 for none
+	 * @param nonCirculant
+	 * @return true if successful
+	 */
+	public static boolean deconvolveRichardsonLucyFFTTiled(CLIJ2 clij2, ClearCLBuffer input,
+		ClearCLBuffer psf, ClearCLBuffer deconvolved, int num_iterations,
+		float regularizationFactor, boolean nonCirculant)
+	{
+		long availableBytes = getAvailableBytes(clij2) - input.getSizeInBytes() - deconvolved
+			.getSizeInBytes() - psf.getSizeInBytes();
+
+		return deconvolveRichardsonLucyFFTTiled(clij2, input, psf, deconvolved,
+			num_iterations, regularizationFactor, nonCirculant, availableBytes);
+	}
+
+	/**
+	 * Tiled Richardson Lucy of an image on the device, with tiles planned for
+	 * availableBytes of device memory (see FFTMemoryPlanner.planTiles)
+	 */
+	public static boolean deconvolveRichardsonLucyFFTTiled(CLIJ2 clij2, ClearCLBuffer input,
+		ClearCLBuffer psf, ClearCLBuffer deconvolved, int num_iterations,
+		float regularizationFactor, boolean nonCirculant, long availableBytes)
+	{
+		TilePlan plan = planTiles(input.getDimensions(), psf.getDimensions(),
+			regularizationFactor > 0, nonCirculant, availableBytes, getMaxAllocationBytes(
+				clij2));
+
+		FFTLog.info("Tiled deconvolution " + plan);
+
+		clij2.set(deconvolved, 0);
+
+		runTiles(clij2, plan, psf, num_iterations, regularizationFactor, nonCirculant, (
+			origin, tile) -> clij2.crop(input, tile, origin[0], origin[1], origin[2]), (t,
+				origin, tile) -> blendTile(clij2, tile, deconvolved, plan, t, new long[3], true));
+
+		return true;
+	}
+
+	/**
+	 * Tiled Richardson Lucy of a (3D) image in host memory.  Only the tiles in flight are
+	 * on the device, so the image can be larger than the device memory.
+	 *
+	 * @param clij2
+	 * @param input
+	 * @param psf
+	 * @param deconvolved - same size as input, the result is written here
+	 * @param num_iterations
+	 * @param regularizationFactor - total variation regularization, 0 for none
+	 * @param nonCirculant
+	 * @return true if successful
+	 */
+	public static <T extends RealType<T>> boolean deconvolveRichardsonLucyFFTTiled(
+		CLIJ2 clij2, RandomAccessibleInterval<T> input, ClearCLBuffer psf,
+		RandomAccessibleInterval<FloatType> deconvolved, int num_iterations,
+		float regularizationFactor, boolean nonCirculant)
+	{
+		long[] imageDimensions = new long[input.numDimensions()];
+		for (int d = 0; d < imageDimensions.length; d++) {
+			imageDimensions[d] = input.dimension(d);
+		}
+
+		TilePlan plan = planTiles(imageDimensions, psf.getDimensions(),
+			regularizationFactor > 0, nonCirculant, getAvailableBytes(clij2) - psf
+				.getSizeInBytes(), getMaxAllocationBytes(clij2));
+
+		FFTLog.info("Tiled deconvolution " + plan);
+
+		long[] tileDimensions = plan.getTileDimensions();
+
+		// host copy of one tile, reused for all tiles
+		float[] tileArray = new float[(int) JavaFFTBackend.numElements(tileDimensions)];
+		Img<FloatType> tileImg = ArrayImgs.floats(tileArray, tileDimensions);
+
+		ClearCLBuffer tileWeighted = clij2.create(tileDimensions, NativeTypeEnum.Float);
+
+		try {
+			LoopBuilder.setImages(deconvolved).multiThreaded().forEachPixel(o -> o.setReal(
+				0));
+
+			runTiles(clij2, plan, psf, num_iterations, regularizationFactor, nonCirculant, (
+				origin, tile) -> {
+				// copy the tile to the device
+				LoopBuilder.setImages(tileView(input, origin, tileDimensions), tileImg)
+					.multiThreaded().forEachPixel((i, o) -> o.setReal(i.getRealFloat()));
+				TransferAccounting.push(tileArray, tile);
+			}, (t, origin, tile) -> {
+				// weight the tile on the device and add it to the output
+				blendTile(clij2, tile, tileWeighted, plan, t, origin, false);
+				TransferAccounting.pull(tileWeighted, tileArray);
+
+				LoopBuilder.setImages(tileImg, tileView(deconvolved, origin, tileDimensions))
+					.multiThreaded().forEachPixel((w, o) -> o.setReal(o.getRealFloat() + w
+						.getRealFloat()));
+			});
+		}
+		finally {
+			tileWeighted.close();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Deconvolve all tiles of a plan with one DeconvolutionSession.
+	 *
+	 * With more than one slot (see setSlots) the tiles are pipelined: the iterations run on a
+	 * separate command queue on a worker thread, while the calling thread reads (uploads) tile
+	 * N+1 and writes (downloads) tile N-1.  A slot is only reused after its tile has been
+	 * written, the worker runs the tiles in order.  With one slot (or a backend that can not
+	 * run concurrently) the tiles are processed one after the other.
+	 */
+	private static PipelineStatistics runTiles(CLIJ2 clij2, TilePlan plan,
+		ClearCLBuffer psf, int iterations, float regularizationFactor, boolean nonCirculant,
+		TileReader reader, TileWriter writer)
+	{
+		final int slots = plan.slots;
+		final long[] tileDimensions = plan.getTileDimensions();
+
+		final PipelineStatistics statistics = new PipelineStatistics();
+
+		long start = System.nanoTime();
+
+		ClearCLQueue queue = slots > 1 ? clij2.getCLIJ().getClearCLContext().createQueue()
+			: null;
+
+		ClearCLBuffer[] tileIn = new ClearCLBuffer[slots];
+		ClearCLBuffer tileOut = null;
+
+		try (DeconvolutionSession session = new DeconvolutionSession(clij2, tileDimensions,
+			psf, regularizationFactor, nonCirculant, slots, queue))
+		{
+			for (int slot = 0; slot < slots; slot++) {
+				tileIn[slot] = clij2.create(tileDimensions, NativeTypeEnum.Float);
+			}
+			tileOut = clij2.create(tileDimensions, NativeTypeEnum.Float);
+
+			statistics.pipelined = slots > 1 && session.isConcurrent();
+
+			if (!statistics.pipelined) {
+				for (int t = 0; t < plan.getNumberOfTiles(); t++) {
+					long[] origin = plan.getTileOrigin(t);
+
+					long transferStart = System.nanoTime();
+					reader.read(origin, tileIn[0]);
+					session.prepare(0, tileIn[0]);
+					statistics.transferNanos += System.nanoTime() - transferStart;
+
+					long computeStart = System.nanoTime();
+					session.iterate(0, iterations);
+					statistics.computeNanos += System.nanoTime() - computeStart;
+
+					transferStart = System.nanoTime();
+					session.finish(0, tileOut);
+					writer.write(t, origin, tileOut);
+					statistics.transferNanos += System.nanoTime() - transferStart;
+				}
+			}
+			else {
+				ExecutorService compute = Executors.newSingleThreadExecutor();
+				AtomicLong computeNanos = new AtomicLong();
+
+				@SuppressWarnings("unchecked")
+				Future<?>[] pending = new Future[slots];
+
+				try {
+					for (int t = 0; t <= plan.getNumberOfTiles(); t++) {
+
+						// upload tile t and queue its iterations
+						if (t < plan.getNumberOfTiles()) {
+							final int slot = t % slots;
+
+							long transferStart = System.nanoTime();
+							reader.read(plan.getTileOrigin(t), tileIn[slot]);
+							session.prepare(slot, tileIn[slot]);
+							statistics.transferNanos += System.nanoTime() - transferStart;
+
+							pending[slot] = compute.submit(() -> {
+								long computeStart = System.nanoTime();
+								session.iterate(slot, iterations);
+								computeNanos.addAndGet(System.nanoTime() - computeStart);
+							});
+						}
+
+						// download tile t-1 while tile t iterates
+						if (t > 0) {
+							final int slot = (t - 1) % slots;
+
+							waitFor(pending[slot]);
+							pending[slot] = null;
+
+							long transferStart = System.nanoTime();
+							session.finish(slot, tileOut);
+							writer.write(t - 1, plan.getTileOrigin(t - 1), tileOut);
+							statistics.transferNanos += System.nanoTime() - transferStart;
+						}
+					}
+				}
+				finally {
+					// the session may only be closed once the worker is done
+					compute.shutdown();
+					try {
+						compute.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+
+				statistics.computeNanos = computeNanos.get();
+			}
+		}
+		finally {
+			for (ClearCLBuffer tile : tileIn) {
+				if (tile != null) tile.close();
+			}
+			if (tileOut != null) tileOut.close();
+			if (queue != null) queue.close();
+		}
+
+		statistics.wallNanos = System.nanoTime() - start;
+
+		lastStatistics = statistics;
+
+		FFTLog.info("Tiled deconvolve " + statistics);
+
+		return statistics;
+	}
+
+	private static void waitFor(Future<?> future) {
+		try {
+			future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Error: interrupted while waiting for a tile", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Error: deconvolving a tile failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Estimate the device memory used to deconvolve one tile, see
+	 * FFTMemoryPlanner.deconvolveTiled
+	 *
+	 * @param tileDimensions - size of the tile (not extended)
+	 * @param psfDimensions
+	 * @param totalVariation - true if total variation regularization is used
+	 * @param nonCirculant
+	 * @return estimated size in bytes
+	 */
+	public static long estimateMemory(long[] tileDimensions, long[] psfDimensions,
+		boolean totalVariation, boolean nonCirculant)
+	{
+		return estimateMemory(tileDimensions, psfDimensions, totalVariation, nonCirculant, 1);
+	}
+
+	/**
+	 * Estimate the device memory used to deconvolve tiles with a number of slots (tiles in
+	 * flight), see estimateMemory
+	 */
+	public static long estimateMemory(long[] tileDimensions, long[] psfDimensions,
+		boolean totalVariation, boolean nonCirculant, int slots)
+	{
+		return FFTMemoryPlanner.deconvolveTiled(tileDimensions, psfDimensions,
+			totalVariation, nonCirculant, slots);
+	}
+
+	/**
+	 * Plan tiles so that the workspace of one tile fits into availableBytes, see
+	 * FFTMemoryPlanner.planTiles
+	 *
+	 * @param imageDimensions - size of the (3D) image
+	 * @param psfDimensions
+	 * @param totalVariation - true if total variation regularization is used
+	 * @param nonCirculant
+	 * @param availableBytes - device memory available for the workspace
+	 * @param maxAllocationBytes - largest buffer that can be allocated on the device
+	 * @return the plan
+	 */
+	public static TilePlan planTiles(long[] imageDimensions, long[] psfDimensions,
+		boolean totalVariation, boolean nonCirculant, long availableBytes,
+		long maxAllocationBytes)
+	{
+		return FFTMemoryPlanner.planTiles(imageDimensions, psfDimensions, totalVariation,
+			nonCirculant, availableBytes, maxAllocationBytes, slots);
+	}
+
+	/**
+	 * @param fraction - fraction of the device memory tiles are planned for
+	 */
+	public static void setMemoryFraction(double fraction) {
+		memoryFraction = fraction;
+	}
+
+	public static double getMemoryFraction() {
+		return memoryFraction;
+	}
+
+	/**
+	 * @param slots - number of tiles in flight, 1 processes the tiles one after the other,
+	 *          2 or more overlaps the transfers of the neighbouring tiles with the iterations
+	 */
+	public static void setSlots(int slots) {
+		TiledDeconvolution.slots = Math.max(1, slots);
+	}
+
+	public static int getSlots() {
+		return slots;
+	}
+
+	/**
+	 * @return timings of the last tiled deconvolution, null if there was none
+	 */
+	public static PipelineStatistics getLastPipelineStatistics() {
+		return lastStatistics;
+	}
+
+	static long getAvailableBytes(CLIJ2 clij2) {
+		ClearCLDevice device = clij2.getCLIJ().getClearCLContext().getDevice();
+		return (long) (device.getGlobalMemorySizeInBytes() * memoryFraction);
+	}
+
+	static long getMaxAllocationBytes(CLIJ2 clij2) {
+		return clij2.getCLIJ().getClearCLContext().getDevice()
+			.getMaxMemoryAllocationSizeInBytes();
+	}
+
+	/**
+	 * weight a deconvolved tile (see blend_tile_x.cl) and write it to (or add it to) dst
+	 */
+	static void blendTile(CLIJ2 clij2, ClearCLBuffer tile, ClearCLBuffer dst,
+		TilePlan plan, int t, long[] dstOrigin, boolean accumulate)
+	{
+		long[] origin = plan.getTileOrigin(t);
+		long[] coreStart = plan.getCoreStart(t);
+		long[] coreEnd = plan.getCoreEnd(t);
+
+		String[] axes = new String[] { "x", "y", "z" };
+
+		HashMap<String, Object> parameters = new HashMap<>();
+		parameters.put("src", tile);
+		parameters.put("dst", dst);
+
+		for (int d = 0; d < 3; d++) {
+			parameters.put("src_origin_" + axes[d], (int) origin[d]);
+			parameters.put("dst_origin_" + axes[d], (int) dstOrigin[d]);
+			parameters.put("core_start_" + axes[d], (int) coreStart[d]);
+			parameters.put("core_end_" + axes[d], (int) coreEnd[d]);
+			parameters.put("blend_" + axes[d], (int) plan.blend[d]);
+		}
+
+		parameters.put("image_width", (int) plan.imageDimensions[0]);
+		parameters.put("image_height", (int) plan.imageDimensions[1]);
+		parameters.put("image_depth", (int) plan.imageDimensions[2]);
+		parameters.put("accumulate", accumulate ? 1 : 0);
+
+		clij2.execute(TiledDeconvolution.class, "blend_tile_x.cl", "blend_tile", tile
+			.getDimensions(), tile.getDimensions(), parameters);
+	}
+
+	static <T> RandomAccessibleInterval<T> tileView(RandomAccessibleInterval<T> image,
+		long[] origin, long[] tileDimensions)
+	{
+		long[] min = new long[origin.length];
+		long[] max = new long[origin.length];
+
+		for (int d = 0; d < origin.length; d++) {
+			min[d] = image.min(d) + origin[d];
+			max[d] = min[d] + tileDimensions[d] - 1;
+		}
+
+		return Views.interval(image, min, max);
+	}
+
+	/**
+	 * Tiling of an image.  Along each axis the image is split into tileCount cores of
+	 * (almost) equal size that cover the image.  Each tile is its core plus the margin on
+	 * each side, all tiles have the same size, tiles at the border of the image are shifted
+	 * inside the image.  Neighbouring tiles are blended over 2 * blend pixels around the seam.
+	 */
+	public static class TilePlan {
+
+		final long[] imageDimensions;
+		final long[] tileCounts;
+		final long[] margin;
+		final long[] blend;
+		final long[] tileDimensions;
+		final int slots;
+		long estimatedBytes;
+
+		TilePlan(long[] imageDimensions, long[] tileCounts, long[] margin, int slots) {
+			this.slots = slots;
+			this.imageDimensions = imageDimensions.clone();
+			this.tileCounts = tileCounts.clone();
+			this.margin = margin.clone();
+
+			tileDimensions = new long[3];
+			blend = new long[3];
+
+			for (int d = 0; d < 3; d++) {
+				long largestCore = (imageDimensions[d] + tileCounts[d] - 1) / tileCounts[d];
+				long smallestCore = imageDimensions[d] / tileCounts[d];
+
+				tileDimensions[d] = Math.min(largestCore + 2 * margin[d], imageDimensions[d]);
+
+				// blend over the inner half of the margin, the ramps of one tile may not overlap
+				blend[d] = Math.min(margin[d] / 2, smallestCore / 2);
+			}
+		}
+
+		public int getNumberOfTiles() {
+			return (int) (tileCounts[0] * tileCounts[1] * tileCounts[2]);
+		}
+
+		/**
+		 * @return size of every tile
+		 */
+		public long[] getTileDimensions() {
+			return tileDimensions.clone();
+		}
+
+		public long[] getTileCounts() {
+			return tileCounts.clone();
+		}
+
+		public long[] getMargin() {
+			return margin.clone();
+		}
+
+		/**
+		 * @return number of tiles in flight the plan was made for
+		 */
+		public int getSlots() {
+			return slots;
+		}
+
+		/**
+		 * @return estimated device memory needed to deconvolve one tile in bytes
+		 */
+		public long getEstimatedBytes() {
+			return estimatedBytes;
+		}
+
+		/**
+		 * @return position of tile t in the image
+		 */
+		public long[] getTileOrigin(int t) {
+			long[] index = getTileIndex(t);
+			long[] origin = new long[3];
+
+			for (int d = 0; d < 3; d++) {
+				long coreStart = coreStart(d, index[d]);
+				origin[d] = Math.max(0, Math.min(coreStart - margin[d], imageDimensions[d] -
+					tileDimensions[d]));
+			}
+
+			return origin;
+		}
+
+		/**
+		 * @return start of the core of tile t (the part of the image this tile is responsible
+		 *         for)
+		 */
+		public long[] getCoreStart(int t) {
+			long[] index = getTileIndex(t);
+			long[] start = new long[3];
+
+			for (int d = 0; d < 3; d++) {
+				start[d] = coreStart(d, index[d]);
+			}
+
+			return start;
+		}
+
+		/**
+		 * @return end (exclusive) of the core of tile t
+		 */
+		public long[] getCoreEnd(int t) {
+			long[] index = getTileIndex(t);
+			long[] end = new long[3];
+
+			for (int d = 0; d < 3; d++) {
+				end[d] = coreStart(d, index[d] + 1);
+			}
+
+			return end;
+		}
+
+		private long coreStart(int d, long i) {
+			return i * imageDimensions[d] / tileCounts[d];
+		}
+
+		private long[] getTileIndex(int t) {
+			return new long[] { t % tileCounts[0], (t / tileCounts[0]) % tileCounts[1], t /
+				(tileCounts[0] * tileCounts[1]) };
+		}
+
+		@Override
+		public String toString() {
+			return "tiles " + Arrays.toString(tileCounts) + " tile size " + Arrays.toString(
+				tileDimensions) + " margin " + Arrays.toString(margin) + " slots " + slots +
+				" estimated memory " +
+				estimatedBytes / (1024 * 1024) + " MB";
+		}
+	}
+
+	/**
+	 * Timings of a tiled deconvolution.  Transfer time is the time the calling thread spends
+	 * reading, preparing, finishing and writing tiles, compute time the time spent in the
+	 * iterations.  When the pipeline works the transfers are hidden behind the iterations and
+	 * the wall time approaches the compute time.
+	 */
+	public static class PipelineStatistics {
+
+		boolean pipelined;
+		long wallNanos;
+		long computeNanos;
+		long transferNanos;
+
+		public boolean isPipelined() {
+			return pipelined;
+		}
+
+		public long getWallNanos() {
+			return wallNanos;
+		}
+
+		public long getComputeNanos() {
+			return computeNanos;
+		}
+
+		public long getTransferNanos() {
+			return transferNanos;
+		}
+
+		/**
+		 * @return fraction of the transfer time that was hidden behind the iterations (0 if
+		 *         the tiles ran one after the other, 1 if all transfers were hidden)
+		 */
+		public double getOverlapEfficiency() {
+			if (transferNanos == 0) {
+				return 1;
+			}
+			double hidden = computeNanos + transferNanos - wallNanos;
+			return Math.max(0, Math.min(1, hidden / transferNanos));
+		}
+
+		@Override
+		public String toString() {
+			return "time " + wallNanos / 1000000 + " ms, compute " + computeNanos / 1000000 +
+				" ms, transfer " + transferNanos / 1000000 + " ms, overlap efficiency " + String
+					.format("%.2f", getOverlapEfficiency());
+		}
+	}
+
+	/**
+	 * writes the input of a tile to a device buffer, called on the calling thread
+	 */
+	private interface TileReader {
+
+		void read(long[] origin, ClearCLBuffer tile);
+	}
+
+	/**
+	 * takes the deconvolved tile t, called on the calling thread
+	 */
+	private interface TileWriter {
+
+		void write(int t, long[] origin, ClearCLBuffer tile);
+	}
+
+	@Override
+	public ClearCLBuffer createOutputBufferFromSource(ClearCLBuffer input) {
+		ClearCLBuffer in = (ClearCLBuffer) args[0];
+		return getCLIJ2().create(in.getDimensions(), NativeTypeEnum.Float);
+	}
+
+	@Override
+	public Object[] getDefaultValues() {
+		return new Object[] { null, null, null, 100, 0, 0 };
+	}
+
+	@Override
+	public String getParameterHelpText() {
+		return "Image input, Image convolution_kernel, ByRef Image destination, Number num_iterations, Number regularization_factor, Boolean non_circulant";
+	}
+
+	@Override
+	public String getDescription() {
+		return "Applies Richardson-Lucy deconvolution tile by tile, for images that are too large to be deconvolved in one piece.  The tile size is chosen from the available GPU memory, tiles overlap by the PSF size and seams are blended.  Currently 3D images only";
+	}
+
+	@Override
+	public String getAvailableForDimensions() {
+		return "3D";
+	}
+
+	@Override
+	public String getAuthorName() {
+		return "Brian Northan";
+	}
+
+	@Override
+	public String getInputType() {
+		return "Image";
+	}
+
+	@Override
+	public String getOutputType() {
+		return "Image";
+	}
+
+	@Override
+	public String getCategories() {
+		return "Filter,Deconvolve";
+	}
+}
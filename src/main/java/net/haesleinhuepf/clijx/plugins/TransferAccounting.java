@@ -0,0 +1,304 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+/**
+ * Accounting of the copies between host and device done by the FFT plugins.
+ *
+ * Every push (host to device) and pull (device to host) of an image done by the package
+ * is done by push and pull, which check the copy before it is made and book it, so a copy
+ * can not be made without being counted.  Reads of reduction results the host needs to
+ * continue (sums, minima, PSF profiles) are done by sumOfAllPixels, minimumOfAllPixels,
+ * meanOfAllPixels, meanSquaredError and readResult and counted separately.  The bytes are
+ * booked on the innermost operation running on the thread (see enter), or on OTHER, and
+ * added to FFTMetrics.
+ *
+ * ConvolveFFT, DeconvolveRichardsonLucyFFT and Normalize are device-resident: with a
+ * device FFT backend their inputs and outputs stay on the device.  In strict mode (system
+ * property clij2fft.strict=true or setStrict) a push or pull inside one of them, also by
+ * an operation it calls, throws HostTransferException, so a test catches a change that
+ * adds a hidden round trip.  Result reads are allowed in strict mode.  The java FFT
+ * backend copies every FFT to the host and fails in strict mode.
+ *
+ * @author Brian Northan
+ */
+public class TransferAccounting {
+
+	public static final String STRICT_PROPERTY = "clij2fft.strict";
+
+	/**
+	 * operation transfers outside of any operation are booked on
+	 */
+	public static final String OTHER = "other";
+
+	private static volatile boolean strict = Boolean.getBoolean(STRICT_PROPERTY);
+
+	private static final Map<String, Transfers> transfers = new LinkedHashMap<>();
+
+	private static final ThreadLocal<Deque<Scope>> scopes = ThreadLocal.withInitial(
+		ArrayDeque::new);
+
+	/**
+	 * @param strict - if true device-resident operations throw HostTransferException when
+	 *          they push or pull an image
+	 */
+	public static void setStrict(boolean strict) {
+		TransferAccounting.strict = strict;
+	}
+
+	public static boolean isStrict() {
+		return strict;
+	}
+
+	/**
+	 * Book the transfers of this thread on operation until the returned scope is closed,
+	 * use with try-with-resources
+	 *
+	 * @param operation - name of the operation
+	 * @param deviceResident - true if the operation must not transfer images in strict mode
+	 * @return the scope
+	 */
+	public static Scope enter(String operation, boolean deviceResident) {
+		Scope scope = new Scope(operation, deviceResident);
+		scopes.get().push(scope);
+		return scope;
+	}
+
+	/**
+	 * Copy array to buffer (float), throws HostTransferException before copying if that is
+	 * not allowed in strict mode
+	 *
+	 * @param array
+	 * @param buffer - float buffer with as many pixels as array
+	 */
+	public static void push(float[] array, ClearCLBuffer buffer) {
+		String operation = check("push", buffer.getSizeInBytes());
+
+		Profiler.Stage stage = Profiler.start("push", Profiler.CATEGORY_TRANSFER);
+		buffer.readFrom(FloatBuffer.wrap(array), true);
+		stage.stop();
+
+		recordPush(operation, buffer.getSizeInBytes());
+	}
+
+	/**
+	 * Copy buffer (float) to array, throws HostTransferException before copying if that is
+	 * not allowed in strict mode
+	 *
+	 * @param buffer - float buffer with as many pixels as array
+	 * @param array
+	 */
+	public static void pull(ClearCLBuffer buffer, float[] array) {
+		String operation = check("pull", buffer.getSizeInBytes());
+
+		Profiler.Stage stage = Profiler.start("pull", Profiler.CATEGORY_TRANSFER);
+		buffer.writeTo(FloatBuffer.wrap(array), true);
+		stage.stop();
+
+		recordPull(operation, buffer.getSizeInBytes());
+	}
+
+	/**
+	 * @return sum of all pixels of image, read as a result
+	 */
+	public static double sumOfAllPixels(CLIJ2 clij2, ClearCLBuffer image) {
+		double sum = clij2.getSumOfAllPixels(image);
+		recordResultRead(Float.BYTES);
+		return sum;
+	}
+
+	/**
+	 * @return minimum of all pixels of image, read as a result
+	 */
+	public static double minimumOfAllPixels(CLIJ2 clij2, ClearCLBuffer image) {
+		double minimum = clij2.minimumOfAllPixels(image);
+		recordResultRead(Float.BYTES);
+		return minimum;
+	}
+
+	/**
+	 * @return mean of all pixels of image, read as a result
+	 */
+	public static double meanOfAllPixels(CLIJ2 clij2, ClearCLBuffer image) {
+		double mean = clij2.meanOfAllPixels(image);
+		recordResultRead(Float.BYTES);
+		return mean;
+	}
+
+	/**
+	 * @return mean squared error of image1 and image2, read as a result
+	 */
+	public static double meanSquaredError(CLIJ2 clij2, ClearCLBuffer image1,
+		ClearCLBuffer image2)
+	{
+		double error = clij2.meanSquaredError(image1, image2);
+		recordResultRead(Float.BYTES);
+		return error;
+	}
+
+	/**
+	 * Copy a small reduction result (e.g. a PSF profile, float) to the host, it is read
+	 * without counting as an image pull
+	 *
+	 * @param result - float buffer
+	 * @return the pixels of result
+	 */
+	public static float[] readResult(ClearCLBuffer result) {
+		float[] array = new float[(int) JavaFFTBackend.numElements(result)];
+		result.writeTo(FloatBuffer.wrap(array), true);
+		recordResultRead(result.getSizeInBytes());
+		return array;
+	}
+
+	private static void recordPush(String operation, long bytes) {
+		synchronized (transfers) {
+			Transfers t = get(operation);
+			t.pushes++;
+			t.bytesPushed += bytes;
+		}
+
+		FFTMetrics.recordPush(bytes);
+	}
+
+	private static void recordPull(String operation, long bytes) {
+		synchronized (transfers) {
+			Transfers t = get(operation);
+			t.pulls++;
+			t.bytesPulled += bytes;
+		}
+
+		FFTMetrics.recordPull(bytes);
+	}
+
+	private static void recordResultRead(long bytes) {
+		String operation = current();
+
+		synchronized (transfers) {
+			Transfers t = get(operation);
+			t.resultReads++;
+			t.bytesPulled += bytes;
+		}
+
+		FFTMetrics.recordPull(bytes);
+	}
+
+	/**
+	 * @return the operation of the innermost scope, throws in strict mode if any scope of
+	 *         the thread is device-resident
+	 */
+	private static String check(String direction, long bytes) {
+		Deque<Scope> stack = scopes.get();
+
+		if (strict) {
+			for (Scope scope : stack) {
+				if (scope.deviceResident) {
+					throw new HostTransferException(scope.operation, direction, bytes);
+				}
+			}
+		}
+
+		return stack.isEmpty() ? OTHER : stack.peek().operation;
+	}
+
+	private static String current() {
+		Deque<Scope> stack = scopes.get();
+		return stack.isEmpty() ? OTHER : stack.peek().operation;
+	}
+
+	private static Transfers get(String operation) {
+		return transfers.computeIfAbsent(operation, k -> new Transfers());
+	}
+
+	/**
+	 * @return bytes pushed by operation (not including the operations it called)
+	 */
+	public static long getBytesPushed(String operation) {
+		synchronized (transfers) {
+			Transfers t = transfers.get(operation);
+			return t == null ? 0 : t.bytesPushed;
+		}
+	}
+
+	/**
+	 * @return bytes pulled (images and result reads) by operation
+	 */
+	public static long getBytesPulled(String operation) {
+		synchronized (transfers) {
+			Transfers t = transfers.get(operation);
+			return t == null ? 0 : t.bytesPulled;
+		}
+	}
+
+	/**
+	 * @return number of image pushes and pulls by operation, result reads are not included
+	 */
+	public static long getImageTransfers(String operation) {
+		synchronized (transfers) {
+			Transfers t = transfers.get(operation);
+			return t == null ? 0 : t.pushes + t.pulls;
+		}
+	}
+
+	/**
+	 * Drop the recorded transfers (FFTMetrics is not reset)
+	 */
+	public static void clear() {
+		synchronized (transfers) {
+			transfers.clear();
+		}
+	}
+
+	/**
+	 * @return one line per operation with pushes, pulls, result reads and bytes
+	 */
+	public static String getStatistics() {
+		StringBuilder statistics = new StringBuilder();
+
+		synchronized (transfers) {
+			for (Map.Entry<String, Transfers> entry : transfers.entrySet()) {
+				Transfers t = entry.getValue();
+				statistics.append(String.format(
+					"%-30s %6d pushes %12d bytes, %6d pulls %6d result reads %12d bytes%n",
+					entry.getKey(), t.pushes, t.bytesPushed, t.pulls, t.resultReads,
+					t.bytesPulled));
+			}
+		}
+
+		return statistics.toString();
+	}
+
+	/**
+	 * An operation running on a thread, see enter
+	 */
+	public static class Scope implements AutoCloseable {
+
+		private final String operation;
+		private final boolean deviceResident;
+
+		Scope(String operation, boolean deviceResident) {
+			this.operation = operation;
+			this.deviceResident = deviceResident;
+		}
+
+		@Override
+		public void close() {
+			scopes.get().remove(this);
+		}
+	}
+
+	private static class Transfers {
+
+		long pushes;
+		long pulls;
+		long resultReads;
+		long bytesPushed;
+		long bytesPulled;
+	}
+}
@@ -0,0 +1,73 @@
+__constant sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// weight of image coordinate p for a tile with core [core_start, core_end) along one axis.
+// Across a seam the weights ramp linearly over 2*blend pixels, the ramps of neighbouring
+// tiles sum up to one.  There is no ramp at the image border.
+inline float blend_weight(const int p, const int core_start, const int core_end, const int blend, const int size) {
+  float w = 1;
+
+  if (core_start > 0) {
+    w = blend > 0 ? clamp((p - core_start + blend + 0.5f) / (2.0f * blend), 0.0f, 1.0f) : (p >= core_start ? 1.0f : 0.0f);
+  }
+
+  if (core_end < size) {
+    const float w_end = blend > 0 ? clamp((core_end + blend - p - 0.5f) / (2.0f * blend), 0.0f, 1.0f) : (p < core_end ? 1.0f : 0.0f);
+    w = min(w, w_end);
+  }
+
+  return w;
+}
+
+// weights the deconvolved tile src (located at src_origin in the image) and writes it to dst
+// (located at dst_origin in the image).  If accumulate is set the weighted tile is added to dst.
+__kernel void blend_tile(
+    IMAGE_src_TYPE src,
+    IMAGE_dst_TYPE dst,
+    const int src_origin_x,
+    const int src_origin_y,
+    const int src_origin_z,
+    const int dst_origin_x,
+    const int dst_origin_y,
+    const int dst_origin_z,
+    const int core_start_x,
+    const int core_start_y,
+    const int core_start_z,
+    const int core_end_x,
+    const int core_end_y,
+    const int core_end_z,
+    const int blend_x,
+    const int blend_y,
+    const int blend_z,
+    const int image_width,
+    const int image_height,
+    const int image_depth,
+    const int accumulate
+)
+{
+  const int x = get_global_id(0);
+  const int y = get_global_id(1);
+  const int z = get_global_id(2);
+
+  // position in the image
+  const int px = x + src_origin_x;
+  const int py = y + src_origin_y;
+  const int pz = z + src_origin_z;
+
+  const float w = blend_weight(px, core_start_x, core_end_x, blend_x, image_width)
+                * blend_weight(py, core_start_y, core_end_y, blend_y, image_height)
+                * blend_weight(pz, core_start_z, core_end_z, blend_z, image_depth);
+
+  const int dx = px - dst_origin_x;
+  const int dy = py - dst_origin_y;
+  const int dz = pz - dst_origin_z;
+
+  if (accumulate) {
+    if (w > 0) {
+      const float value = READ_IMAGE(dst, sampler, POS_dst_INSTANCE(dx, dy, dz, 0)).x;
+      WRITE_IMAGE(dst, POS_dst_INSTANCE(dx, dy, dz, 0), CONVERT_dst_PIXEL_TYPE(value + w * READ_IMAGE(src, sampler, POS_src_INSTANCE(x, y, z, 0)).x));
+    }
+  }
+  else {
+    WRITE_IMAGE(dst, POS_dst_INSTANCE(dx, dy, dz, 0), CONVERT_dst_PIXEL_TYPE(w * READ_IMAGE(src, sampler, POS_src_INSTANCE(x, y, z, 0)).x));
+  }
+}
@@ -23,9 +23,7 @@ import org.bytedeco.javacpp.annotation.Properties;
 			preload = { "clFFT" }) })
 public class clij2fftWrapper {
 
-	static {
-		Loader.load();
-	}
+	private static boolean loaded = false;
 
 	public static native long fft2d_32f_lp(long N1, long N2, long inPointer,
 		long outPointer, long contextPointer, long queuePointer);
@@ -39,6 +37,28 @@ public class clij2fftWrapper {
 	public static native long fft3dinv_32f_lp(long N0, long N1, long N2, long inPointer,
 		long outPointer, long contextPointer, long queuePointer);
 	
+	/**
+	 * Batched transforms.  batchSize images of size N0 x N1 (x N2) are transformed with one
+	 * clFFT plan and one enqueue.  inDistance and outDistance are the distances between
+	 * consecutive images in pixels (real side) or complex numbers (FFT side), 0 means the
+	 * images are contiguous.
+	 */
+	public static native int fft2d_batch_32f_lp(long N0, long N1, long batchSize,
+		long inDistance, long outDistance, long inPointer, long outPointer,
+		long contextPointer, long queuePointer);
+
+	public static native int fft3d_batch_32f_lp(long N0, long N1, long N2,
+		long batchSize, long inDistance, long outDistance, long inPointer,
+		long outPointer, long contextPointer, long queuePointer);
+
+	public static native int fft2dinv_batch_32f_lp(long N0, long N1, long batchSize,
+		long inDistance, long outDistance, long inPointer, long outPointer,
+		long contextPointer, long queuePointer);
+
+	public static native int fft3dinv_batch_32f_lp(long N0, long N1, long N2,
+		long batchSize, long inDistance, long outDistance, long inPointer,
+		long outPointer, long contextPointer, long queuePointer);
+
 	public static native int conv3d_32f_lp(long N0, long N1, long N2, long l_image,
 		long l_psf, long l_output, boolean correlate, long l_context, long l_queue,
 		long l_device);
@@ -51,11 +71,214 @@ public class clij2fftWrapper {
 		long N0, long N1, long N2, long d_image, long d_psf, long d_update, long d_normal,
 		long l_context, long l_queuee, long l_device);
 	
+	/**
+	 * Richardson Lucy with a precomputed OTF (FFT of the extended and shifted PSF, see
+	 * OTFCache), the OTF is not modified
+	 */
+	public static native int deconv3d_32f_lp_tv_otf(int iterations,
+		float regularizationFactor, long N0, long N1, long N2, long d_image, long d_otf,
+		long d_update, long d_normal, long l_context, long l_queuee, long l_device);
+
+	/**
+	 * Create a Richardson Lucy session for extended images of size N0 x N1 x N2.  The
+	 * session holds the work buffers, kernels and FFT plans and retains the OTF, so it can
+	 * be run many times without allocation or compilation.
+	 *
+	 * @return session handle, 0 if the session could not be created
+	 */
+	public static native long deconv_session_create(long N0, long N1, long N2,
+		float regularizationFactor, long d_otf, long l_context, long l_queue,
+		long l_device);
+
+	/**
+	 * Error code of the last deconv_session_create on the calling thread, 0 if the session
+	 * was created
+	 */
+	public static native int deconv_session_last_error();
+
+	/**
+	 * Run iterations of Richardson Lucy, d_update has to contain the first guess
+	 */
+	public static native int deconv_session_run(long session, int iterations,
+		long d_image, long d_update, long d_normal);
+
+	/**
+	 * Set the stopping criterion of a session (measure 0 none, 1 relative change, 2
+	 * I-divergence, 3 residual norm), computed every interval iterations
+	 */
+	public static native int deconv_session_set_stopping(long session, int measure,
+		float tolerance, int interval);
+
+	/**
+	 * Turn Biggs-Andrews acceleration of a session on (1) or off (0)
+	 */
+	public static native int deconv_session_set_acceleration(long session, int accelerate);
+
+	/**
+	 * Number of iterations the last run of a session did
+	 */
+	public static native int deconv_session_get_iterations(long session);
+
+	/**
+	 * Last value of the stopping measure of the last run of a session
+	 */
+	public static native float deconv_session_get_measure(long session);
+
+	/**
+	 * Bytes of device memory the last run of a session read and wrote
+	 */
+	public static native long deconv_session_get_bytes_moved(long session);
+
+	/**
+	 * Release everything a session holds
+	 */
+	public static native int deconv_session_destroy(long session);
+
+	/**
+	 * Set the level of the native log (0 off, 1 errors, 2 info, 3 debug), returns the
+	 * previous level
+	 */
+	public static native int set_log_level(int level);
+
+	/**
+	 * Wait for the queue every interval Richardson Lucy iterations, 0 to only wait at the
+	 * end of a run.  Returns the previous interval
+	 */
+	public static native int set_checkpoint_interval(int interval);
+
+	/**
+	 * Use the fused Richardson Lucy kernels (1, default) or the separate kernels (0),
+	 * returns the previous setting
+	 */
+	public static native int set_fused_kernels(int fused);
+
+	/**
+	 * Turn profiling on (1) or off (0), returns the previous setting.  With profiling on the
+	 * FFTs and new sessions run on a profiling queue and time their stages with markers.
+	 */
+	public static native int set_profiling(int enabled);
+
+	/**
+	 * Wait for the pending profiling markers of all threads and turn them into records
+	 *
+	 * @return number of records
+	 */
+	public static native int profiling_collect();
+
+	/**
+	 * Wait for the pending profiling markers the calling thread enqueued and turn them into
+	 * the records of the thread (replacing the records of the last call)
+	 *
+	 * @return number of records of the thread
+	 */
+	public static native int profiling_collect_thread();
+
+	/**
+	 * Stage, start and end of a record of the calling thread, see profiling_collect_thread
+	 */
+	public static native int profiling_thread_record_stage(int index);
+
+	public static native long profiling_thread_record_start(int index);
+
+	public static native long profiling_thread_record_end(int index);
+
+	public static native int profiling_record_count();
+
+	/**
+	 * Stage of a record, the stage names are listed in Profiler
+	 */
+	public static native int profiling_record_stage(int index);
+
+	/**
+	 * Start and end of a record in device nanoseconds
+	 */
+	public static native long profiling_record_start(int index);
+
+	public static native long profiling_record_end(int index);
+
+	/**
+	 * Drop all records
+	 */
+	public static native int profiling_clear();
+
 	public static native int diagnostic();
 
+	/**
+	 * clFFT plans are baked once per (dimensions, direction, context, queue) and kept in a
+	 * process wide cache.  The functions below report and control that cache.
+	 */
+	public static native int planCacheSize();
+
+	public static native long planCacheHits();
+
+	public static native long planCacheMisses();
+
+	/**
+	 * Destroy all cached plans that are not currently in use.  Should be called before the
+	 * OpenCL context the plans were baked for is closed.
+	 *
+	 * @return number of plans still in use
+	 */
+	public static native int clearPlanCache();
+
+	/**
+	 * @param maxSize maximum number of cached plans, 0 disables caching
+	 * @return previous maximum
+	 */
+	public static native int setPlanCacheMaxSize(int maxSize);
 
-	public static void load() {
-		Loader.load();
-	};
+	public static native int getPlanCacheMaxSize();
+
+	/**
+	 * Destroy the cached plans baked for a context that are not in use.  Cached plans
+	 * retain their context and queue, call this before the context is released.
+	 *
+	 * @param context - native pointer of the context
+	 * @return number of plans of the context still in use
+	 */
+	public static native int releasePlansForContext(long context);
+
+	/**
+	 * Built OpenCL programs are kept per (context, device, source) and, if a directory is
+	 * set, their binaries are written to disk keyed by device, driver version and source
+	 * hash.  The functions below report and control that cache.
+	 */
+	public static native int programCacheSize();
+
+	public static native long programCacheHits();
+
+	public static native long programCacheDiskHits();
+
+	public static native long programCacheMisses();
+
+	/**
+	 * Release all programs kept in memory, the binaries on disk are kept
+	 */
+	public static native int clearProgramCache();
+
+	/**
+	 * @param directory - directory for program binaries, empty to not use a disk cache
+	 */
+	public static native int setProgramCacheDir(String directory);
+
+	/**
+	 * Release the programs kept in memory for a context (they retain it), call this before
+	 * the context is released
+	 *
+	 * @param context - native pointer of the context
+	 */
+	public static native int releaseProgramsForContext(long context);
+
+
+	/**
+	 * Load the native libraries (clij2fft and clFFT).  They are not loaded when the class is
+	 * loaded, call ClFFTBackend.probe (which calls load) before calling a native function.
+	 */
+	public static synchronized void load() {
+		if (!loaded) {
+			Loader.load(clij2fftWrapper.class);
+			loaded = true;
+		}
+	}
 
 }
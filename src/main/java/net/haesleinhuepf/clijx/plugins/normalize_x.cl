@@ -0,0 +1,68 @@
+__constant sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// minimum and maximum of every row (y, z) of src, written to min_dst(y, z) and max_dst(y, z)
+__kernel void min_max_rows(
+    IMAGE_src_TYPE src,
+    IMAGE_min_dst_TYPE min_dst,
+    IMAGE_max_dst_TYPE max_dst,
+    const int width
+)
+{
+  const int y = get_global_id(0);
+  const int z = get_global_id(1);
+
+  float minimum = READ_IMAGE(src, sampler, POS_src_INSTANCE(0, y, z, 0)).x;
+  float maximum = minimum;
+
+  for (int x = 1; x < width; x++) {
+    const float value = READ_IMAGE(src, sampler, POS_src_INSTANCE(x, y, z, 0)).x;
+    minimum = min(minimum, value);
+    maximum = max(maximum, value);
+  }
+
+  WRITE_IMAGE(min_dst, POS_min_dst_INSTANCE(y, z, 0, 0), CONVERT_min_dst_PIXEL_TYPE(minimum));
+  WRITE_IMAGE(max_dst, POS_max_dst_INSTANCE(y, z, 0, 0), CONVERT_max_dst_PIXEL_TYPE(maximum));
+}
+
+// reduce the row minima and maxima (rows x planes) to dst(0) (minimum) and dst(1) (maximum),
+// run by a single work item
+__kernel void min_max_reduce(
+    IMAGE_min_src_TYPE min_src,
+    IMAGE_max_src_TYPE max_src,
+    IMAGE_dst_TYPE dst,
+    const int rows,
+    const int planes
+)
+{
+  float minimum = READ_IMAGE(min_src, sampler, POS_min_src_INSTANCE(0, 0, 0, 0)).x;
+  float maximum = READ_IMAGE(max_src, sampler, POS_max_src_INSTANCE(0, 0, 0, 0)).x;
+
+  for (int z = 0; z < planes; z++) {
+    for (int y = 0; y < rows; y++) {
+      minimum = min(minimum, READ_IMAGE(min_src, sampler, POS_min_src_INSTANCE(y, z, 0, 0)).x);
+      maximum = max(maximum, READ_IMAGE(max_src, sampler, POS_max_src_INSTANCE(y, z, 0, 0)).x);
+    }
+  }
+
+  WRITE_IMAGE(dst, POS_dst_INSTANCE(0, 0, 0, 0), CONVERT_dst_PIXEL_TYPE(minimum));
+  WRITE_IMAGE(dst, POS_dst_INSTANCE(1, 0, 0, 0), CONVERT_dst_PIXEL_TYPE(maximum));
+}
+
+// dst = (src - minimum) / (maximum - minimum) with minimum and maximum read from min_max
+__kernel void normalize_min_max(
+    IMAGE_src_TYPE src,
+    IMAGE_min_max_TYPE min_max,
+    IMAGE_dst_TYPE dst
+)
+{
+  const int x = get_global_id(0);
+  const int y = get_global_id(1);
+  const int z = get_global_id(2);
+
+  const float minimum = READ_IMAGE(min_max, sampler, POS_min_max_INSTANCE(0, 0, 0, 0)).x;
+  const float maximum = READ_IMAGE(min_max, sampler, POS_min_max_INSTANCE(1, 0, 0, 0)).x;
+
+  const float value = READ_IMAGE(src, sampler, POS_src_INSTANCE(x, y, z, 0)).x;
+
+  WRITE_IMAGE(dst, POS_dst_INSTANCE(x, y, z, 0), CONVERT_dst_PIXEL_TYPE((value - minimum) / (maximum - minimum)));
+}
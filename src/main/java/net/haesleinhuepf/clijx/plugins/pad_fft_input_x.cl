@@ -0,0 +1,72 @@
+__constant sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// out of bounds modes, see OpenCLFFTUtility.PadMode
+#define PAD_ZERO 0
+#define PAD_CONSTANT 1
+#define PAD_MIRROR_SINGLE 2
+#define PAD_MIRROR_DOUBLE 3
+#define PAD_PERIODIC 4
+
+// map a (possibly out of bounds) coordinate i onto [0, n)
+// returns -1 if the coordinate is out of bounds and should be filled with a constant
+inline int pad_index(int i, const int n, const int mode) {
+  if (i >= 0 && i < n) {
+    return i;
+  }
+
+  if (mode == PAD_PERIODIC) {
+    i = i % n;
+    return i < 0 ? i + n : i;
+  }
+
+  if (mode == PAD_MIRROR_SINGLE) {
+    // edge pixel is not repeated ... 2 1 0 1 2 ...
+    if (n == 1) {
+      return 0;
+    }
+    const int period = 2 * n - 2;
+    i = i % period;
+    i = i < 0 ? i + period : i;
+    return i < n ? i : period - i;
+  }
+
+  if (mode == PAD_MIRROR_DOUBLE) {
+    // edge pixel is repeated ... 1 0 0 1 2 ...
+    const int period = 2 * n;
+    i = i % period;
+    i = i < 0 ? i + period : i;
+    return i < n ? i : period - 1 - i;
+  }
+
+  return -1;
+}
+
+__kernel void pad_fft_input(
+    IMAGE_src_TYPE src,
+    IMAGE_dst_TYPE dst,
+    const int src_width,
+    const int src_height,
+    const int src_depth,
+    const int offset_x,
+    const int offset_y,
+    const int offset_z,
+    const int mode,
+    const float constant
+)
+{
+  const int x = get_global_id(0);
+  const int y = get_global_id(1);
+  const int z = get_global_id(2);
+
+  const int sx = pad_index(x - offset_x, src_width, mode);
+  const int sy = pad_index(y - offset_y, src_height, mode);
+  const int sz = pad_index(z - offset_z, src_depth, mode);
+
+  float value = (mode == PAD_CONSTANT) ? constant : 0;
+
+  if (sx >= 0 && sy >= 0 && sz >= 0) {
+    value = READ_IMAGE(src, sampler, POS_src_INSTANCE(sx, sy, sz, 0)).x;
+  }
+
+  WRITE_IMAGE(dst, POS_dst_INSTANCE(x, y, z, 0), CONVERT_dst_PIXEL_TYPE(value));
+}
@@ -0,0 +1,68 @@
+__constant sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// boundary image of the periodic plus smooth decomposition (Moisan): along each axis the
+// first pixel gets last - first and the last pixel gets first - last (an axis of length 1
+// adds nothing, its difference is 0)
+__kernel void periodic_smooth_boundary(
+    IMAGE_src_TYPE src,
+    IMAGE_dst_TYPE dst,
+    const int width,
+    const int height,
+    const int depth
+)
+{
+  const int x = get_global_id(0);
+  const int y = get_global_id(1);
+  const int z = get_global_id(2);
+
+  float value = 0;
+
+  if (x == 0 || x == width - 1) {
+    const float difference = READ_IMAGE(src, sampler, POS_src_INSTANCE(width - 1, y, z, 0)).x - READ_IMAGE(src, sampler, POS_src_INSTANCE(0, y, z, 0)).x;
+    value += x == 0 ? difference : -difference;
+  }
+  if (y == 0 || y == height - 1) {
+    const float difference = READ_IMAGE(src, sampler, POS_src_INSTANCE(x, height - 1, z, 0)).x - READ_IMAGE(src, sampler, POS_src_INSTANCE(x, 0, z, 0)).x;
+    value += y == 0 ? difference : -difference;
+  }
+  if (z == 0 || z == depth - 1) {
+    const float difference = READ_IMAGE(src, sampler, POS_src_INSTANCE(x, y, depth - 1, 0)).x - READ_IMAGE(src, sampler, POS_src_INSTANCE(x, y, 0, 0)).x;
+    value += z == 0 ? difference : -difference;
+  }
+
+  WRITE_IMAGE(dst, POS_dst_INSTANCE(x, y, z, 0), CONVERT_dst_PIXEL_TYPE(value));
+}
+
+// divide the (Hermitian interleaved) FFT of the boundary image by the eigenvalues of the
+// periodic laplacian, 2 cos(2 pi kx / width) + 2 cos(2 pi ky / height) + 2 cos(2 pi kz / depth) - 6,
+// which gives the FFT of the smooth component (with mean 0)
+__kernel void periodic_smooth_solve(
+    IMAGE_fft_TYPE fft,
+    const int width,
+    const int height,
+    const int depth
+)
+{
+  const int kx = get_global_id(0);
+  const int ky = get_global_id(1);
+  const int kz = get_global_id(2);
+
+  const float pi2 = 6.283185307179586f;
+
+  const float eigenvalue = 2 * cos(pi2 * kx / width) + 2 * cos(pi2 * ky / height) + 2 * cos(pi2 * kz / depth) - 6;
+
+  float re = READ_IMAGE(fft, sampler, POS_fft_INSTANCE(2 * kx, ky, kz, 0)).x;
+  float im = READ_IMAGE(fft, sampler, POS_fft_INSTANCE(2 * kx + 1, ky, kz, 0)).x;
+
+  if (kx == 0 && ky == 0 && kz == 0) {
+    re = 0;
+    im = 0;
+  }
+  else {
+    re = re / eigenvalue;
+    im = im / eigenvalue;
+  }
+
+  WRITE_IMAGE(fft, POS_fft_INSTANCE(2 * kx, ky, kz, 0), CONVERT_fft_PIXEL_TYPE(re));
+  WRITE_IMAGE(fft, POS_fft_INSTANCE(2 * kx + 1, ky, kz, 0), CONVERT_fft_PIXEL_TYPE(im));
+}
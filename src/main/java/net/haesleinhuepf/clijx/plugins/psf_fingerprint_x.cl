@@ -0,0 +1,33 @@
+__constant sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// pseudo random weight in [0.5, 1.5) for a pixel index, different for every seed
+inline float fingerprint_weight(uint index, uint seed) {
+  uint h = index * 2654435761u + seed * 0x9E3779B9u;
+  h ^= h >> 16;
+  h *= 0x7feb352du;
+  h ^= h >> 15;
+  h *= 0x846ca68bu;
+  h ^= h >> 16;
+  return 0.5f + (float)(h & 0xffffff) / 16777216.0f;
+}
+
+// writes every pixel multiplied by a position dependent weight, the sum of dst is
+// (with high probability) different for images with different content
+__kernel void psf_fingerprint(
+    IMAGE_src_TYPE src,
+    IMAGE_dst_TYPE dst,
+    const int width,
+    const int height,
+    const int seed
+)
+{
+  const int x = get_global_id(0);
+  const int y = get_global_id(1);
+  const int z = get_global_id(2);
+
+  const uint index = x + y * width + z * width * height;
+
+  const float value = READ_IMAGE(src, sampler, POS_src_INSTANCE(x, y, z, 0)).x;
+
+  WRITE_IMAGE(dst, POS_dst_INSTANCE(x, y, z, 0), CONVERT_dst_PIXEL_TYPE(value * fingerprint_weight(index, seed)));
+}
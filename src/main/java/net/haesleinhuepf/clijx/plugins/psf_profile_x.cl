@@ -0,0 +1,32 @@
+__constant sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// energy profile of a PSF along one axis: dst[i] is the sum of the (positive) PSF values
+// in the plane with coordinate i along axis (0 x, 1 y, 2 z)
+__kernel void psf_profile(
+    IMAGE_src_TYPE src,
+    IMAGE_dst_TYPE dst,
+    const int width,
+    const int height,
+    const int depth,
+    const int axis
+)
+{
+  const int i = get_global_id(0);
+
+  const int n0 = axis == 0 ? height : width;
+  const int n1 = axis == 2 ? height : depth;
+
+  float sum = 0;
+
+  for (int b = 0; b < n1; b++) {
+    for (int a = 0; a < n0; a++) {
+      const int x = axis == 0 ? i : a;
+      const int y = axis == 0 ? a : (axis == 1 ? i : b);
+      const int z = axis == 2 ? i : b;
+
+      sum += max(READ_IMAGE(src, sampler, POS_src_INSTANCE(x, y, z, 0)).x, 0.0f);
+    }
+  }
+
+  WRITE_IMAGE(dst, POS_dst_INSTANCE(i, 0, 0, 0), CONVERT_dst_PIXEL_TYPE(sum));
+}
@@ -0,0 +1,21 @@
+// mask of the original image within an extended image: 1 inside [start, end], 0 outside
+// (the valid region of the non-circulant Richardson Lucy normalization)
+__kernel void valid_region(
+    IMAGE_dst_TYPE dst,
+    const int start_x,
+    const int start_y,
+    const int start_z,
+    const int end_x,
+    const int end_y,
+    const int end_z
+)
+{
+  const int x = get_global_id(0);
+  const int y = get_global_id(1);
+  const int z = get_global_id(2);
+
+  const bool inside = x >= start_x && x <= end_x && y >= start_y && y <= end_y &&
+    z >= start_z && z <= end_z;
+
+  WRITE_IMAGE(dst, POS_dst_INSTANCE(x, y, z, 0), CONVERT_dst_PIXEL_TYPE(inside ? 1.0f : 0.0f));
+}
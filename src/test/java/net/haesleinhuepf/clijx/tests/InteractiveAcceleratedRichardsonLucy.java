@@ -0,0 +1,61 @@
+package net.haesleinhuepf.clijx.tests;
+
+import java.util.Random;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.plugins.ConvolveFFT;
+import net.haesleinhuepf.clijx.plugins.DeconvolveRichardsonLucyFFT;
+import net.haesleinhuepf.clijx.plugins.StoppingCriterion;
+import net.imglib2.img.array.ArrayImgs;
+
+/**
+ * Blurs random beads and compares plain Richardson Lucy with Biggs-Andrews accelerated
+ * Richardson Lucy for several iteration counts.  Prints the time and the mean squared
+ * error to the beads.
+ */
+public class InteractiveAcceleratedRichardsonLucy {
+
+	public static void main(final String[] args) {
+
+		CLIJ2 clij2 = CLIJ2.getInstance();
+
+		long[] dims = new long[] { 128, 128, 64 };
+
+		// random beads on a background
+		Random random = new Random(1);
+		float[] beadsArray = new float[128 * 128 * 64];
+		for (int i = 0; i < beadsArray.length; i++) {
+			beadsArray[i] = random.nextFloat() < 0.001 ? 1000 : 10;
+		}
+
+		ClearCLBuffer beads = clij2.push(ArrayImgs.floats(beadsArray, dims));
+		ClearCLBuffer psf = clij2.push(SyntheticImages.gaussianPSF());
+		ClearCLBuffer blurred = clij2.create(dims, NativeTypeEnum.Float);
+		ClearCLBuffer deconvolved = clij2.create(dims, NativeTypeEnum.Float);
+
+		ConvolveFFT.convolveFFT(clij2, beads, psf, blurred);
+
+		System.out.println("blurred error " + clij2.meanSquaredError(blurred, beads));
+
+		for (int iterations : new int[] { 10, 20, 50, 100, 200 }) {
+			for (boolean accelerate : new boolean[] { false, true }) {
+
+				long start = System.nanoTime();
+				DeconvolveRichardsonLucyFFT.deconvolveRichardsonLucyFFT(clij2, blurred, psf,
+					deconvolved, iterations, 0.0f, false, StoppingCriterion.NONE, accelerate);
+				long end = System.nanoTime();
+
+				System.out.println((accelerate ? "accelerated " : "plain ") + iterations +
+					" iterations: " + (end - start) / 1000000 + " ms, error " + clij2
+						.meanSquaredError(deconvolved, beads));
+			}
+		}
+
+		beads.close();
+		psf.close();
+		blurred.close();
+		deconvolved.close();
+	}
+}
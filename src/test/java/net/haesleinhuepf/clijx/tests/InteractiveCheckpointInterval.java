@@ -0,0 +1,51 @@
+package net.haesleinhuepf.clijx.tests;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.plugins.ClFFTBackend;
+import net.haesleinhuepf.clijx.plugins.DeconvolutionSession;
+
+/**
+ * Times Richardson Lucy on a small volume waiting for the queue after every iteration
+ * (checkpoint interval 1, the old behaviour) and only at the end (checkpoint interval 0).
+ * On small volumes the per iteration wait dominates.
+ */
+public class InteractiveCheckpointInterval {
+
+	public static void main(final String[] args) {
+
+		CLIJ2 clij2 = CLIJ2.getInstance();
+
+		long[] dims = new long[] { 64, 64, 64 };
+		int iterations = 100;
+
+		ClearCLBuffer input = clij2.push(SyntheticImages.randomVolume(dims));
+		ClearCLBuffer psf = clij2.push(SyntheticImages.gaussianPSF());
+		ClearCLBuffer output = clij2.create(dims, NativeTypeEnum.Float);
+
+		try (DeconvolutionSession session = new DeconvolutionSession(clij2, dims, psf, 0.0f,
+			false))
+		{
+			// warm up
+			session.run(input, output, 10);
+
+			for (int interval : new int[] { 1, 0 }) {
+				ClFFTBackend.setCheckpointInterval(interval);
+
+				long start = System.nanoTime();
+				session.run(input, output, iterations);
+				long end = System.nanoTime();
+
+				System.out.println("checkpoint interval " + interval + ": " + (end - start) /
+					1000000.0 / iterations + " ms per iteration");
+			}
+		}
+
+		ClFFTBackend.setCheckpointInterval(0);
+
+		input.close();
+		psf.close();
+		output.close();
+	}
+}
@@ -6,11 +6,12 @@ import java.io.IOException;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.plugins.ClFFTBackend;
 import net.haesleinhuepf.clijx.plugins.DeconvolveRichardsonLucyFFT;
 import net.haesleinhuepf.clijx.plugins.Normalize;
 import net.haesleinhuepf.clijx.plugins.OpenCLFFTUtility;
+import net.haesleinhuepf.clijx.plugins.TiledDeconvolution;
 import net.haesleinhuepf.clijx.plugins.clij2fftWrapper;
-import net.haesleinhuepf.clijx.CLIJx;
 import net.imagej.Dataset;
 import net.imagej.ImageJ;
 import net.imglib2.RandomAccessibleInterval;
@@ -31,7 +32,10 @@ public class InteractiveDeconvolve<T extends RealType<T> & NativeType<T>> {
 		// check the library path, can be useful for debugging
 		System.out.println(System.getProperty("java.library.path"));
 		
-		clij2fftWrapper.diagnostic();
+		// load the native library, prints why if it can not be loaded
+		if (ClFFTBackend.probe()) {
+			clij2fftWrapper.diagnostic();
+		}
 		
 		// launch IJ so we can interact with the inputs and outputs
 		ij.launch(args);
@@ -93,32 +97,8 @@ public class InteractiveDeconvolve<T extends RealType<T> & NativeType<T>> {
 			DeconvolveRichardsonLucyFFT.deconvolveRichardsonLucyFFT(clij2, gpu_image, gpu_psf, gpu_deconvolved_tv, 100, 0.02f, false   );
 		}
 		else {
-			int numTilesX = 2;
-			int numTilesY = 2;
-			
-			int margin = 10;
-			
-			int tileWidth = (int)Math.floor(gpu_image.getWidth() / numTilesX);
-			int tileHeight = (int)Math.floor(gpu_image.getHeight() / numTilesY);
-			int tileDepth = (int)gpu_image.getDepth();
-			
-			CLIJx clijx=CLIJx.getInstance();
-			
-			for (int x = 0; x < numTilesX; x++) {
-				for (int y = 0; y < numTilesY; y++) {
-					System.out.println(x+" "+y);
-					ClearCLBuffer tempIn = clijx.pushTile(gpu_image, x, y, 0, tileWidth, tileHeight, tileDepth, margin, margin, 0);
-					ClearCLBuffer tempOut = clij2.create(tempIn.getDimensions(), NativeTypeEnum.Float);
-					DeconvolveRichardsonLucyFFT.deconvolveRichardsonLucyFFT(clij2, tempIn, gpu_psf, tempOut, 100, 0.0f, false);
-					
-					//clijx.show(tempOut, "tile");
-					clijx.pullTile(tempOut, gpu_deconvolved, x, y, 0, tileWidth, tileHeight, tileDepth, margin, margin, margin);
-				
-					
-				
-				
-				}
-			}
+			// tile size, overlap and seam blending are chosen by TiledDeconvolution
+			TiledDeconvolution.deconvolveRichardsonLucyFFTTiled(clij2, gpu_image, gpu_psf, gpu_deconvolved_tv, 100, 0.02f, false);
 		}
 		//RandomAccessibleInterval deconvolvedRAI = clij2.pullRAI(gpu_deconvolved);
 		RandomAccessibleInterval deconvolvedRAI_tv = clij2.pullRAI(gpu_deconvolved_tv);
@@ -5,6 +5,7 @@ import java.io.IOException;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.plugins.ClFFTBackend;
 import net.haesleinhuepf.clijx.plugins.OpenCLFFTUtility;
 import net.haesleinhuepf.clijx.plugins.clij2fftWrapper;
 import net.imagej.Dataset;
@@ -84,6 +85,9 @@ public class InteractiveFFTFilter {
 		long l_queue = ((NativePointerObject) (clij2.getCLIJ().getClearCLContext()
 				.getDefaultQueue().getPeerPointer().getPointer())).getNativePointer();
 
+		// load the native library before calling it directly
+		ClFFTBackend.probe();
+
 		clij2fftWrapper.fft2d_32f_lp(N0, N1, longPointerImg, longPointerFFT, l_context, l_queue);
 		
 		clij2.show(FFT, "FFT");
@@ -0,0 +1,65 @@
+package net.haesleinhuepf.clijx.tests;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.plugins.ClFFTBackend;
+import net.haesleinhuepf.clijx.plugins.DeconvolutionSession;
+
+/**
+ * Runs Richardson Lucy (plain, total variation, non-circulant) with the separate and the
+ * fused kernels and prints the time, the bytes moved per iteration and the largest
+ * difference between the results.
+ */
+public class InteractiveFusedKernels {
+
+	public static void main(final String[] args) {
+
+		CLIJ2 clij2 = CLIJ2.getInstance();
+
+		long[] dims = new long[] { 128, 128, 64 };
+		int iterations = 50;
+
+		ClearCLBuffer input = clij2.push(SyntheticImages.randomVolume(dims));
+		ClearCLBuffer psf = clij2.push(SyntheticImages.gaussianPSF());
+		ClearCLBuffer separate = clij2.create(dims, NativeTypeEnum.Float);
+		ClearCLBuffer fused = clij2.create(dims, NativeTypeEnum.Float);
+		ClearCLBuffer difference = clij2.create(dims, NativeTypeEnum.Float);
+
+		for (float regularizationFactor : new float[] { 0.0f, 0.002f }) {
+			for (boolean nonCirculant : new boolean[] { false, true }) {
+
+				try (DeconvolutionSession session = new DeconvolutionSession(clij2, dims, psf,
+					regularizationFactor, nonCirculant))
+				{
+					System.out.println("regularization " + regularizationFactor +
+						" non-circulant " + nonCirculant);
+
+					for (boolean useFused : new boolean[] { false, true }) {
+						ClFFTBackend.setFusedKernels(useFused);
+
+						long start = System.nanoTime();
+						session.run(input, useFused ? fused : separate, iterations);
+						long end = System.nanoTime();
+
+						System.out.println("  " + (useFused ? "fused" : "separate") + ": " + (end -
+							start) / 1000000 + " ms, " + session.getBytesPerIteration() / 1000000 +
+							" MB per iteration");
+					}
+
+					clij2.subtractImages(separate, fused, difference);
+					System.out.println("  max difference " + Math.max(clij2.maximumOfAllPixels(
+						difference), -clij2.minimumOfAllPixels(difference)));
+				}
+			}
+		}
+
+		ClFFTBackend.setFusedKernels(true);
+
+		input.close();
+		psf.close();
+		separate.close();
+		fused.close();
+		difference.close();
+	}
+}
@@ -0,0 +1,51 @@
+package net.haesleinhuepf.clijx.tests;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.plugins.ClFFTBackend;
+import net.haesleinhuepf.clijx.plugins.FFTBackends;
+import net.haesleinhuepf.clijx.plugins.ForwardFFT;
+import net.haesleinhuepf.clijx.plugins.InverseFFT;
+import net.haesleinhuepf.clijx.plugins.JavaFFTBackend;
+
+/**
+ * Runs the forward and inverse FFT with the clFFT and the java backend and prints the
+ * difference between the results
+ */
+public class InteractiveJavaFFTBackend {
+
+	public static void main(final String[] args) {
+
+		CLIJ2 clij2 = CLIJ2.getInstance();
+
+		long[] dims = new long[] { 210, 180, 48 };
+
+		ClearCLBuffer img = clij2.create(dims, NativeTypeEnum.Float);
+		clij2.setRandom(img, 0, 100, 1);
+
+		FFTBackends.setBackend(new ClFFTBackend());
+		long start = System.currentTimeMillis();
+		ClearCLBuffer fftCl = ForwardFFT.runFFT(clij2, img);
+		ClearCLBuffer inverseCl = InverseFFT.runInverseFFT(clij2, fftCl, dims);
+		System.out.println("clFFT time " + (System.currentTimeMillis() - start));
+
+		FFTBackends.setBackend(new JavaFFTBackend());
+		start = System.currentTimeMillis();
+		ClearCLBuffer fftJava = ForwardFFT.runFFT(clij2, img);
+		ClearCLBuffer inverseJava = InverseFFT.runInverseFFT(clij2, fftJava, dims);
+		System.out.println("java FFT time " + (System.currentTimeMillis() - start));
+
+		ClearCLBuffer fftDifference = clij2.create(fftCl);
+		clij2.subtractImages(fftCl, fftJava, fftDifference);
+		System.out.println("max FFT difference " + clij2.maximumOfAllPixels(fftDifference) +
+			" " + clij2.minimumOfAllPixels(fftDifference));
+
+		ClearCLBuffer difference = clij2.create(img);
+		clij2.subtractImages(inverseCl, inverseJava, difference);
+		System.out.println("max inverse difference " + clij2.maximumOfAllPixels(
+			difference) + " " + clij2.minimumOfAllPixels(difference));
+
+		clij2.clear();
+	}
+}
@@ -0,0 +1,68 @@
+package net.haesleinhuepf.clijx.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.plugins.MultiDeviceScheduler;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Deconvolves random time points with the first device and with all devices and prints the
+ * speed up and the largest difference between the results.
+ *
+ * Without GPUs run with several PoCL CPU devices, for example POCL_DEVICES="pthread pthread"
+ * and POCL_CPU_MAX_CU_COUNT set to a fraction of the cores.
+ */
+public class InteractiveMultiDeviceScheduler {
+
+	public static void main(final String[] args) {
+
+		System.out.println("devices " + CLIJ.getAvailableDeviceNames());
+
+		long[] dims = new long[] { 128, 128, 32 };
+		int timePoints = 16;
+
+		Random random = new Random(1);
+
+		List<Img<FloatType>> inputs = new ArrayList<>();
+		List<Img<FloatType>> single = new ArrayList<>();
+		List<Img<FloatType>> multi = new ArrayList<>();
+
+		for (int t = 0; t < timePoints; t++) {
+			inputs.add(SyntheticImages.randomVolume(random, dims));
+			single.add(ArrayImgs.floats(dims));
+			multi.add(ArrayImgs.floats(dims));
+		}
+
+		Img<FloatType> psf = SyntheticImages.gaussianPSF();
+
+		List<CLIJ2> devices = MultiDeviceScheduler.createInstances();
+
+		MultiDeviceScheduler first = new MultiDeviceScheduler(devices.subList(0, 1));
+		first.deconvolveRichardsonLucyFFT(inputs, psf, single, 20, 0.0f, false);
+
+		MultiDeviceScheduler all = new MultiDeviceScheduler(devices);
+		all.deconvolveRichardsonLucyFFT(inputs, psf, multi, 20, 0.0f, false);
+
+		System.out.println("speed up with " + devices.size() + " devices " + (double) first
+			.getWallNanos() / all.getWallNanos());
+
+		float[] maxDifference = new float[1];
+		for (int t = 0; t < timePoints; t++) {
+			LoopBuilder.setImages(single.get(t), multi.get(t)).forEachPixel((a,
+				b) -> maxDifference[0] = Math.max(maxDifference[0], Math.abs(a.getRealFloat() - b
+					.getRealFloat())));
+		}
+		System.out.println("max difference " + maxDifference[0]);
+
+		for (CLIJ2 clij2 : devices) {
+			clij2.close();
+		}
+	}
+}
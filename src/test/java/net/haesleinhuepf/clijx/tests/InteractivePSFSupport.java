@@ -0,0 +1,54 @@
+package net.haesleinhuepf.clijx.tests;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.plugins.DeconvolveRichardsonLucyFFT;
+import net.haesleinhuepf.clijx.plugins.PSFSupport;
+
+/**
+ * Deconvolves with a large PSF whose energy is concentrated in the center, once with the
+ * full PSF and once cropped to 99.9% of its energy, and prints the times and the
+ * difference of the results.
+ */
+public class InteractivePSFSupport {
+
+	public static void main(final String[] args) {
+
+		CLIJ2 clij2 = CLIJ2.getInstance();
+
+		long[] dims = new long[] { 128, 128, 64 };
+		int psfSize = 65;
+		int iterations = 50;
+
+		ClearCLBuffer input = clij2.push(SyntheticImages.randomVolume(dims));
+
+		// narrow gaussian in a large volume
+		ClearCLBuffer psf = clij2.push(SyntheticImages.gaussianPSF(psfSize, psfSize, 8.0,
+			32.0, false));
+		ClearCLBuffer full = clij2.create(dims, NativeTypeEnum.Float);
+		ClearCLBuffer cropped = clij2.create(dims, NativeTypeEnum.Float);
+
+		long start = System.currentTimeMillis();
+		DeconvolveRichardsonLucyFFT.deconvolveRichardsonLucyFFT(clij2, input, psf, full,
+			iterations);
+		System.out.println("full PSF: " + (System.currentTimeMillis() - start) + " ms");
+
+		PSFSupport.setEnergyFraction(0.999);
+
+		start = System.currentTimeMillis();
+		DeconvolveRichardsonLucyFFT.deconvolveRichardsonLucyFFT(clij2, input, psf, cropped,
+			iterations);
+		System.out.println("cropped PSF: " + (System.currentTimeMillis() - start) + " ms");
+
+		PSFSupport.setEnergyFraction(0);
+
+		System.out.println("mean squared difference " + clij2.meanSquaredError(full,
+			cropped) + ", mean " + clij2.meanOfAllPixels(full));
+
+		input.close();
+		psf.close();
+		full.close();
+		cropped.close();
+	}
+}
@@ -0,0 +1,45 @@
+package net.haesleinhuepf.clijx.tests;
+
+import java.io.File;
+import java.io.IOException;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.plugins.DeconvolutionSession;
+import net.haesleinhuepf.clijx.plugins.Profiler;
+
+/**
+ * Profiles a Richardson Lucy deconvolution of a small volume, prints the time per stage and
+ * writes clij2fft-trace.json (open it in chrome://tracing or https://ui.perfetto.dev).
+ */
+public class InteractiveProfiler {
+
+	public static void main(final String[] args) throws IOException {
+
+		CLIJ2 clij2 = CLIJ2.getInstance();
+
+		long[] dims = new long[] { 64, 64, 64 };
+
+		ClearCLBuffer input = clij2.push(SyntheticImages.randomVolume(dims));
+		ClearCLBuffer psf = clij2.push(SyntheticImages.gaussianPSF());
+		ClearCLBuffer output = clij2.create(dims, NativeTypeEnum.Float);
+
+		// enable before the session is created so the native loop runs on a profiling queue
+		Profiler.setEnabled(true);
+
+		try (DeconvolutionSession session = new DeconvolutionSession(clij2, dims, psf, 0.0f,
+			false))
+		{
+			session.run(input, output, 20);
+		}
+
+		System.out.println(Profiler.getSummary());
+		Profiler.writeChromeTrace(new File("clij2fft-trace.json"));
+
+		Profiler.setEnabled(false);
+
+		input.close();
+		psf.close();
+		output.close();
+	}
+}
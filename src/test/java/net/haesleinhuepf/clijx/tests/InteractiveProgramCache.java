@@ -0,0 +1,29 @@
+package net.haesleinhuepf.clijx.tests;
+
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.plugins.ProgramCache;
+
+/**
+ * Times the warm up of the deconvolution kernels.  Run it twice: the first run compiles
+ * the native programs and writes their binaries to the program cache directory, the
+ * second run loads them from disk (see the disk hits).
+ */
+public class InteractiveProgramCache {
+
+	public static void main(final String[] args) {
+
+		CLIJ2 clij2 = CLIJ2.getInstance();
+
+		long start = System.nanoTime();
+		ProgramCache.warmUp(clij2);
+		long end = System.nanoTime();
+		System.out.println("first warm up: " + (end - start) / 1000000.0 + " ms");
+
+		start = System.nanoTime();
+		ProgramCache.warmUp(clij2);
+		end = System.nanoTime();
+		System.out.println("second warm up: " + (end - start) / 1000000.0 + " ms");
+
+		System.out.println(ProgramCache.getStatistics());
+	}
+}
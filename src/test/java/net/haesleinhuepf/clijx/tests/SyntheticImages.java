@@ -0,0 +1,83 @@
+package net.haesleinhuepf.clijx.tests;
+
+import java.util.Random;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Synthetic volumes and PSFs used by the interactive tests and the benchmarks, so runs of
+ * different tests are comparable.
+ *
+ * @author Brian Northan
+ */
+public class SyntheticImages {
+
+	/**
+	 * @param dimensions
+	 * @return volume with uniform random values in [0, 100), always the same for a size
+	 */
+	public static Img<FloatType> randomVolume(long... dimensions) {
+		return randomVolume(new Random(1), dimensions);
+	}
+
+	/**
+	 * @param random - generator, pass the same one to get different volumes (time points)
+	 * @param dimensions
+	 * @return volume with uniform random values in [0, 100)
+	 */
+	public static Img<FloatType> randomVolume(Random random, long... dimensions) {
+		float[] array = new float[(int) numElements(dimensions)];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = random.nextFloat() * 100;
+		}
+		return ArrayImgs.floats(array, dimensions);
+	}
+
+	/**
+	 * @return 15 x 15 x 15 gaussian PSF, exp(-(x^2 + y^2) / 4 - z^2 / 16), not normalized
+	 */
+	public static Img<FloatType> gaussianPSF() {
+		return gaussianPSF(15, 15, 4.0, 16.0, false);
+	}
+
+	/**
+	 * @param width - lateral size
+	 * @param depth - axial size
+	 * @param lateral - exp(-(x^2 + y^2) / lateral - z^2 / axial)
+	 * @param axial
+	 * @param normalize - scale to a sum of one
+	 * @return gaussian PSF of size width x width x depth, centered at width / 2, depth / 2
+	 */
+	public static Img<FloatType> gaussianPSF(int width, int depth, double lateral,
+		double axial, boolean normalize)
+	{
+		float[] array = new float[width * width * depth];
+		double sum = 0;
+
+		for (int i = 0; i < array.length; i++) {
+			int x = i % width - width / 2;
+			int y = (i / width) % width - width / 2;
+			int z = i / (width * width) - depth / 2;
+			array[i] = (float) Math.exp(-(x * x + y * y) / lateral - z * z / axial);
+			sum += array[i];
+		}
+
+		if (normalize) {
+			for (int i = 0; i < array.length; i++) {
+				array[i] /= sum;
+			}
+		}
+
+		return ArrayImgs.floats(array, width, width, depth);
+	}
+
+	private static long numElements(long[] dimensions) {
+		long n = 1;
+		for (long d : dimensions) {
+			n *= d;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,88 @@
+package net.haesleinhuepf.clijx.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.plugins.ClFFTBackend;
+import net.haesleinhuepf.clijx.plugins.ConvolveFFT;
+import net.haesleinhuepf.clijx.plugins.DeconvolveRichardsonLucyFFT;
+import net.haesleinhuepf.clijx.plugins.FFTBackends;
+import net.haesleinhuepf.clijx.plugins.HostTransferException;
+import net.haesleinhuepf.clijx.plugins.Normalize;
+import net.haesleinhuepf.clijx.plugins.TransferAccounting;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the device-resident operations in strict mode, a hidden push or pull makes them
+ * throw HostTransferException (see TransferAccounting).  Skipped if clFFT or an OpenCL
+ * device is not available.
+ */
+public class TestDeviceResident {
+
+	private CLIJ2 clij2;
+
+	@Before
+	public void setUp() {
+		Assume.assumeTrue("clFFT is not available", ClFFTBackend.probe());
+
+		try {
+			clij2 = CLIJ2.getInstance();
+		}
+		catch (Throwable t) {
+			Assume.assumeNoException("no OpenCL device", t);
+		}
+
+		FFTBackends.setBackend(ClFFTBackend.NAME);
+		Assume.assumeTrue("clFFT backend not selected", ClFFTBackend.NAME.equals(FFTBackends
+			.getBackend().getName()));
+	}
+
+	@After
+	public void tearDown() {
+		TransferAccounting.setStrict(false);
+
+		if (clij2 != null) {
+			clij2.clear();
+		}
+	}
+
+	@Test
+	public void testNoImageTransfers() {
+		long[] dims = new long[] { 32, 32, 16 };
+
+		ClearCLBuffer input = clij2.create(dims, NativeTypeEnum.Float);
+		ClearCLBuffer psf = clij2.create(new long[] { 5, 5, 5 }, NativeTypeEnum.Float);
+		ClearCLBuffer output = clij2.create(dims, NativeTypeEnum.Float);
+
+		clij2.setRampX(input);
+		clij2.set(psf, 1);
+
+		TransferAccounting.setStrict(true);
+		TransferAccounting.clear();
+
+		ConvolveFFT.convolveFFT(clij2, input, psf, output);
+		DeconvolveRichardsonLucyFFT.deconvolveRichardsonLucyFFT(clij2, input, psf, output, 5,
+			0.0f, true);
+		Normalize.normalize(clij2, input, output);
+
+		assertEquals(0, TransferAccounting.getImageTransfers("ConvolveFFT"));
+		assertEquals(0, TransferAccounting.getImageTransfers("DeconvolveRichardsonLucyFFT"));
+		assertEquals(0, TransferAccounting.getImageTransfers("Normalize"));
+	}
+
+	@Test(expected = HostTransferException.class)
+	public void testPullInDeviceResidentOperationThrows() {
+		ClearCLBuffer image = clij2.create(new long[] { 16, 16 }, NativeTypeEnum.Float);
+
+		TransferAccounting.setStrict(true);
+
+		try (TransferAccounting.Scope scope = TransferAccounting.enter("ConvolveFFT", true)) {
+			TransferAccounting.pull(image, new float[16 * 16]);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package net.haesleinhuepf.clijx.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.haesleinhuepf.clijx.plugins.FFTSizeSelector;
+import org.junit.Test;
+
+/**
+ * Size selection with the cost model, no device needed
+ */
+public class TestFFTSizeSelector {
+
+	@Test
+	public void testIsSmooth() {
+		assertTrue(FFTSizeSelector.isSmooth(1));
+		assertTrue(FFTSizeSelector.isSmooth(2 * 3 * 5 * 7));
+		assertTrue(FFTSizeSelector.isSmooth(1024));
+		assertFalse(FFTSizeSelector.isSmooth(0));
+		assertFalse(FFTSizeSelector.isSmooth(11));
+		assertFalse(FFTSizeSelector.isSmooth(2 * 13));
+	}
+
+	@Test
+	public void testNextSmooth() {
+		for (long x = 1; x <= 5000; x++) {
+			long expected = x;
+			while (!FFTSizeSelector.isSmooth(expected)) {
+				expected++;
+			}
+			assertEquals("next smooth of " + x, expected, FFTSizeSelector.nextSmooth(x));
+		}
+
+		assertEquals(1, FFTSizeSelector.nextSmooth(0));
+	}
+
+	@Test
+	public void testMinimumSize() {
+		assertArrayEquals(new long[] { 110, 64, 24 }, FFTSizeSelector.getMinimumSize(
+			new long[] { 100, 50, 20 }, new long[] { 11, 15, 4 }));
+	}
+
+	@Test
+	public void testSelect() {
+		long[][] minimumSizes = new long[][] { { 1, 1, 1 }, { 97, 61, 13 }, { 130, 129 }, {
+			257 }, { 11, 1, 3 } };
+
+		for (long[] minimum : minimumSizes) {
+			long[] selected = FFTSizeSelector.select(minimum);
+
+			assertEquals(minimum.length, selected.length);
+
+			for (int d = 0; d < minimum.length; d++) {
+				assertTrue("at least the minimum", selected[d] >= minimum[d]);
+				assertTrue("smooth", FFTSizeSelector.isSmooth(selected[d]));
+
+				// candidates stop at the next power of two
+				long powerOfTwo = Long.highestOneBit(Math.max(1, minimum[d] - 1)) << 1;
+				assertTrue("at most the next power of two", selected[d] <= Math.max(powerOfTwo,
+					FFTSizeSelector.nextSmooth(minimum[d])));
+			}
+
+			// nothing cheaper than the next smooth size along every axis
+			long[] nextSmooth = new long[minimum.length];
+			for (int d = 0; d < minimum.length; d++) {
+				nextSmooth[d] = FFTSizeSelector.nextSmooth(minimum[d]);
+			}
+			assertTrue(FFTSizeSelector.getCost(selected) <= FFTSizeSelector.getCost(
+				nextSmooth));
+		}
+	}
+
+	@Test
+	public void testSelectKeepsSmoothPowersOfTwo() {
+		assertArrayEquals(new long[] { 64, 32, 16 }, FFTSizeSelector.select(new long[] { 64,
+			32, 16 }));
+	}
+}
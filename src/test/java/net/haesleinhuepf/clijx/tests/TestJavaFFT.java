@@ -0,0 +1,169 @@
+package net.haesleinhuepf.clijx.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.haesleinhuepf.clijx.plugins.JavaFFT;
+import org.junit.Test;
+
+/**
+ * Compares JavaFFT with a naive DFT (computed in double precision, one axis after the
+ * other) on odd, mixed radix and degenerate sizes.  Runs on the CPU, no OpenCL needed.
+ */
+public class TestJavaFFT {
+
+	private static final long[][] SIZES = new long[][] { { 7, 5, 3 }, { 15, 14, 11 }, { 1, 3,
+		2 }, { 49, 22, 13 }, { 16, 9, 1 }, { 2, 1, 1 }, { 12, 10 }, { 33 } };
+
+	@Test
+	public void testForward() {
+		for (long[] dimensions : SIZES) {
+			float[] real = random(dimensions);
+			int h0 = (int) dimensions[0] / 2 + 1;
+
+			float[] hermitian = new float[2 * h0 * (int) (numElements(dimensions) /
+				dimensions[0])];
+			JavaFFT.forward(real, hermitian, dimensions);
+
+			float[] expected = naiveForward(real, dimensions);
+
+			assertClose("forward " + toString(dimensions), expected, hermitian);
+		}
+	}
+
+	@Test
+	public void testInverse() {
+		for (long[] dimensions : SIZES) {
+			float[] real = random(dimensions);
+
+			// the inverse of the naive spectrum has to give back the input
+			float[] hermitian = naiveForward(real, dimensions);
+			float[] inverse = new float[real.length];
+			JavaFFT.inverse(hermitian, inverse, dimensions);
+
+			assertClose("inverse " + toString(dimensions), real, inverse);
+		}
+	}
+
+	@Test
+	public void testRoundTrip() {
+		for (long[] dimensions : SIZES) {
+			float[] real = random(dimensions);
+			int h0 = (int) dimensions[0] / 2 + 1;
+
+			float[] hermitian = new float[2 * h0 * (int) (numElements(dimensions) /
+				dimensions[0])];
+			float[] inverse = new float[real.length];
+			JavaFFT.forward(real, hermitian, dimensions);
+			JavaFFT.inverse(hermitian, inverse, dimensions);
+
+			assertClose("round trip " + toString(dimensions), real, inverse);
+		}
+	}
+
+	/**
+	 * @return the DFT of real (exp(-2 pi i j k / n) along every axis, not scaled) in the
+	 *         Hermitian interleaved layout of JavaFFT
+	 */
+	private static float[] naiveForward(float[] real, long[] dimensions) {
+		int[] n = new int[] { (int) dimensions[0], dimensions.length > 1 ? (int) dimensions[1]
+			: 1, dimensions.length > 2 ? (int) dimensions[2] : 1 };
+		int size = n[0] * n[1] * n[2];
+
+		double[] re = new double[size];
+		double[] im = new double[size];
+		for (int i = 0; i < size; i++) {
+			re[i] = real[i];
+		}
+
+		int stride = 1;
+		for (int axis = 0; axis < 3; axis++) {
+			dftAxis(re, im, n[axis], stride, size);
+			stride *= n[axis];
+		}
+
+		int h0 = n[0] / 2 + 1;
+		float[] hermitian = new float[2 * h0 * n[1] * n[2]];
+
+		for (int row = 0; row < n[1] * n[2]; row++) {
+			for (int k = 0; k < h0; k++) {
+				hermitian[2 * (row * h0 + k)] = (float) re[row * n[0] + k];
+				hermitian[2 * (row * h0 + k) + 1] = (float) im[row * n[0] + k];
+			}
+		}
+
+		return hermitian;
+	}
+
+	/**
+	 * naive DFT of every line of length n with the given stride (in elements)
+	 */
+	private static void dftAxis(double[] re, double[] im, int n, int stride, int size) {
+		double[] lineRe = new double[n];
+		double[] lineIm = new double[n];
+
+		for (int start = 0; start < size; start++) {
+			// first element of a line
+			if ((start / stride) % n != 0) {
+				continue;
+			}
+
+			for (int k = 0; k < n; k++) {
+				double sumRe = 0, sumIm = 0;
+				for (int j = 0; j < n; j++) {
+					double angle = -2 * Math.PI * ((long) j * k % n) / n;
+					double r = re[start + j * stride];
+					double i = im[start + j * stride];
+					sumRe += r * Math.cos(angle) - i * Math.sin(angle);
+					sumIm += r * Math.sin(angle) + i * Math.cos(angle);
+				}
+				lineRe[k] = sumRe;
+				lineIm[k] = sumIm;
+			}
+
+			for (int k = 0; k < n; k++) {
+				re[start + k * stride] = lineRe[k];
+				im[start + k * stride] = lineIm[k];
+			}
+		}
+	}
+
+	private static void assertClose(String message, float[] expected, float[] actual) {
+		assertEquals(message + " length", expected.length, actual.length);
+
+		double max = 0;
+		for (float e : expected) {
+			max = Math.max(max, Math.abs(e));
+		}
+
+		// single precision, the error grows with the size of the transform
+		double tolerance = 1e-4 * Math.max(1, max);
+
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(message + " at " + i, expected[i], actual[i], tolerance);
+		}
+	}
+
+	private static float[] random(long[] dimensions) {
+		Random random = new Random(42);
+		float[] array = new float[(int) numElements(dimensions)];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = random.nextFloat() - 0.5f;
+		}
+		return array;
+	}
+
+	private static long numElements(long[] dimensions) {
+		long n = 1;
+		for (long d : dimensions) {
+			n *= d;
+		}
+		return n;
+	}
+
+	private static String toString(long[] dimensions) {
+		return Arrays.toString(dimensions);
+	}
+}
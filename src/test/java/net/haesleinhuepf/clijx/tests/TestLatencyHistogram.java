@@ -0,0 +1,84 @@
+package net.haesleinhuepf.clijx.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import net.haesleinhuepf.clijx.plugins.LatencyHistogram;
+import org.junit.Test;
+
+/**
+ * Buckets and percentiles of LatencyHistogram
+ */
+public class TestLatencyHistogram {
+
+	@Test
+	public void testEmpty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentileNanos(50));
+		assertEquals(0, histogram.getMeanNanos(), 0);
+	}
+
+	@Test
+	public void testBuckets() {
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		// below 1 us, [1, 2) us, [2, 4) us, [1024, 2048) us
+		histogram.record(500);
+		histogram.record(1000);
+		histogram.record(1999);
+		histogram.record(3000);
+		histogram.record(1500000);
+		histogram.record(-5);
+
+		long[] counts = histogram.getBucketCounts();
+		assertEquals(2, counts[0]);
+		assertEquals(2, counts[1]);
+		assertEquals(1, counts[2]);
+		assertEquals(1, counts[11]);
+
+		assertEquals(6, histogram.getCount());
+		assertEquals(1500000, histogram.getMaxNanos());
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		// 90 fast calls in [8, 16) us and 10 slow ones in [512, 1024) us
+		for (int i = 0; i < 90; i++) {
+			histogram.record(10000);
+		}
+		for (int i = 0; i < 10; i++) {
+			histogram.record(600000);
+		}
+
+		assertEquals(16000, histogram.getPercentileNanos(0));
+		assertEquals(16000, histogram.getPercentileNanos(50));
+		assertEquals(16000, histogram.getPercentileNanos(90));
+		// the upper bound of the bucket is limited to the maximum
+		assertEquals(600000, histogram.getPercentileNanos(91));
+		assertEquals(600000, histogram.getPercentileNanos(100));
+
+		assertEquals((90 * 10000.0 + 10 * 600000.0) / 100, histogram.getMeanNanos(), 1e-9);
+	}
+
+	@Test
+	public void testUpperBounds() {
+		assertEquals(1000, LatencyHistogram.getUpperBoundNanos(0));
+		assertEquals(2000, LatencyHistogram.getUpperBoundNanos(1));
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.getUpperBoundNanos(
+			LatencyHistogram.BUCKETS - 1));
+	}
+
+	@Test
+	public void testReset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(5000);
+		histogram.reset();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMaxNanos());
+		assertEquals(0, histogram.getPercentileNanos(99));
+	}
+}